@@ -52,6 +52,7 @@ import org.opensaml.xml.XMLObject;
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.error.Layer;
 import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.sp.metadata.MetadataSnapshot;
 import dk.itst.oiosaml.sp.service.SPFilter;
 import dk.itst.oiosaml.sp.service.util.Constants;
 
@@ -249,12 +250,40 @@ public class FileConfiguration implements SAMLConfiguration {
     }
 
     public List<XMLObject> getListOfIdpMetadata() throws WrappedException {
-        List<XMLObject> descriptors = new ArrayList<XMLObject>();
+        List<File> sources = new ArrayList<File>();
         String protocol = getSystemConfiguration().getString(Constants.PROP_PROTOCOL);
+        File directory;
         if (getSystemConfiguration().getString(Constants.IDP_METADATA_FILE) != null) {
             String idpFileName = homeDir + getSystemConfiguration().getString(Constants.IDP_METADATA_DIRECTORY) + "/"
                     + getSystemConfiguration().getString(Constants.IDP_METADATA_FILE);
             File md = new File(idpFileName);
+            sources.add(md);
+            directory = md.getAbsoluteFile().getParentFile();
+        } else {
+            directory = new File(homeDir + getSystemConfiguration().getString(Constants.IDP_METADATA_DIRECTORY));
+            File[] files = directory.listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.toLowerCase().endsWith(".xml");
+                }
+            });
+            if (files != null) {
+                sources.addAll(Arrays.asList(files));
+            }
+        }
+
+        MetadataSnapshot snapshot = null;
+        byte[] sourceHash = null;
+        if (!sources.isEmpty() && getSystemConfiguration().getBoolean(Constants.PROP_METADATA_SNAPSHOT, false)) {
+            snapshot = new MetadataSnapshot(new File(directory, MetadataSnapshot.FILE_NAME));
+            sourceHash = MetadataSnapshot.hash(protocol, sources);
+            List<XMLObject> descriptors = snapshot.load(sourceHash, protocol);
+            if (descriptors != null) {
+                return descriptors;
+            }
+        }
+
+        List<XMLObject> descriptors = new ArrayList<XMLObject>();
+        for (File md : sources) {
             log.info("Loading " + protocol + " metadata from " + md);
             try {
                 XMLObject descriptor = SAMLUtil.unmarshallElementFromFile(md.getAbsolutePath());
@@ -272,40 +301,13 @@ public class FileConfiguration implements SAMLConfiguration {
                         + ". File must contain valid XML and have EntityDescriptor as top tag", e);
                 throw e;
             }
-        } else {
-            String directory = homeDir + getSystemConfiguration().getString(Constants.IDP_METADATA_DIRECTORY);
-            File idpDir = new File(directory);
-            File[] files = idpDir.listFiles(new FilenameFilter() {
-                public boolean accept(File dir, String name) {
-                    return name.toLowerCase().endsWith(".xml");
-                }
-            });
-            if (files != null) {
-                for (File md : files) {
-                    log.info("Loading " + protocol + " metadata from " + md);
-                    try {
-                        XMLObject descriptor = SAMLUtil.unmarshallElementFromFile(md.getAbsolutePath());
-                        if (descriptor instanceof EntityDescriptor) {
-                            descriptors.add(descriptor);
-                        } else if (descriptor instanceof EntitiesDescriptor) {
-                            EntitiesDescriptor desc = (EntitiesDescriptor) descriptor;
-                            descriptors.addAll(desc.getEntityDescriptors());
-                        } else {
-                            throw new RuntimeException("Metadata file " + md
-                                    + " does not contain an EntityDescriptor. Found " + descriptor.getElementQName()
-                                    + ", expected " + EntityDescriptor.ELEMENT_QNAME);
-                        }
-                    } catch (RuntimeException e) {
-                        log.error("Unable to load metadata from " + md
-                                + ". File must contain valid XML and have EntityDescriptor as top tag", e);
-                        throw e;
-                    }
-                }
-            }
         }
         if (descriptors.isEmpty()) {
             throw new IllegalStateException("No IdP descriptors found in ! At least one file is required.");
         }
+        if (snapshot != null) {
+            snapshot.store(sourceHash, protocol, descriptors);
+        }
         return descriptors;
     }
 
@@ -27,6 +27,7 @@ package dk.itst.oiosaml.logging;
 import java.text.MessageFormat;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 
 import dk.itst.oiosaml.sp.UserAssertion;
 import dk.itst.oiosaml.sp.service.util.Constants;
@@ -106,6 +107,24 @@ public class Audit {
 	}
 
 	public static void init(HttpServletRequest request) {
+		init(request, true);
+	}
+
+	/**
+	 * Initialize audit logging for a request.
+	 * 
+	 * @param createSession If <code>false</code>, a session is not created if the request does not have one. The session id is then
+	 * logged as empty.
+	 */
+	public static void init(HttpServletRequest request, boolean createSession) {
+		if (!createSession) {
+			HttpSession existing = request.getSession(false);
+			remoteAddress.set(request.getRemoteAddr());
+			session.set(existing != null ? existing.getId() : "");
+			UserAssertion ua = existing != null ? (UserAssertion) existing.getAttribute(Constants.SESSION_USER_ASSERTION) : null;
+			assertionId.set(ua != null ? ua.getAssertionId() : "");
+			return;
+		}
 		log.info("Session created at: " + request.getSession().getCreationTime() + ", timeout after " + request.getSession().getMaxInactiveInterval() + " seconds");
 		remoteAddress.set(request.getRemoteAddr());
 		session.set(request.getSession().getId());
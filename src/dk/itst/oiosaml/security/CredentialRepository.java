@@ -36,9 +36,11 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import dk.itst.oiosaml.logging.Logger;
 import dk.itst.oiosaml.logging.LoggerFactory;
+import org.apache.commons.configuration.Configuration;
 import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.security.x509.BasicX509Credential;
 
+import dk.itst.oiosaml.configuration.SAMLConfigurationFactory;
 import dk.itst.oiosaml.error.Layer;
 import dk.itst.oiosaml.error.WrappedException;
 import dk.itst.oiosaml.sp.service.util.Constants;
@@ -85,6 +87,18 @@ public class CredentialRepository {
 		return getCredential(keystore, password, Constants.PROP_CERTIFICATE_LOCATION);
 	}
 	
+	/**
+	 * Load the SP credential from the keystore and the password in the configuration.
+	 */
+	public static BasicX509Credential getServiceProviderCredential(Configuration config) {
+		try {
+			return new CredentialRepository().getCredential(SAMLConfigurationFactory.getConfiguration().getKeystore(),
+					config.getString(Constants.PROP_CERTIFICATE_PASSWORD));
+		} catch (Exception e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		}
+	}
+
 	public Collection<BasicX509Credential> getCredentials() {
 		return credentials.values();
 	}
@@ -24,7 +24,9 @@
 package dk.itst.oiosaml.security;
 
 import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.KeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
@@ -39,8 +41,12 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
 import java.util.Date;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.apache.xml.security.algorithms.JCEMapper;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Sequence;
@@ -167,6 +173,30 @@ public class SecurityHelper {
         return keyPair;
     }
     
+    /**
+     * Derive a secret key from the private key of a credential.
+     * 
+     * <p>The key is HMAC-SHA256 of the label, keyed with the encoded private key, so different labels give independent keys, and all
+     * nodes using the same credential derive the same keys.</p>
+     * 
+     * @param label Purpose of the key.
+     * @param length Key length in bytes, at most 32.
+     */
+    public static byte[] deriveKey(Credential credential, String label, int length) {
+        if (credential.getPrivateKey() == null || credential.getPrivateKey().getEncoded() == null) {
+            throw new IllegalArgumentException("Credential does not contain an exportable private key");
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(credential.getPrivateKey().getEncoded(), "HmacSHA256"));
+            return Arrays.copyOf(mac.doFinal(label.getBytes("UTF-8")), length);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Unable to derive key", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static X509Certificate generateCertificate(Credential credential, String entityId) throws Exception {
         X500Name issuer = new X500Name("o=keymanager, ou=oiosaml-sp");
         BigInteger serialNumber = BigInteger.valueOf(System.currentTimeMillis());
@@ -169,4 +169,8 @@ public class PassiveUserAssertion implements UserAssertion {
 		return null;
 	}
 
+	public Privileges getPrivileges() {
+		return Privileges.NONE;
+	}
+
 }
@@ -0,0 +1,250 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opensaml.xml.util.Base64;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.common.SAMLUtil;
+
+/**
+ * Privileges from the OIOSAML basic privilege profile, sent in the {@link OIOSAMLConstants#ATTRIBUTE_PRIVILEGES_INTERMEDIATE} attribute.
+ * 
+ * <p>The privilege list is parsed once, and indexed by scope and privilege, so checking a privilege is a map lookup. Instances are
+ * immutable. Use {@link UserAssertion#getPrivileges()} to get the privileges of the current user.</p>
+ * 
+ * <p>Constraints from version 1.1 of the profile are not evaluated by {@link #hasPrivilege(String, String)}. Applications which use
+ * constraints must check them using {@link #getConstraints(String, String)}.</p>
+ */
+public class Privileges implements Serializable {
+	private static final long serialVersionUID = 3471858205614318421L;
+
+	/**
+	 * Scope prefix for privileges granted for a CVR number.
+	 */
+	public static final String SCOPE_CVR = "urn:dk:gov:saml:cvrNumberIdentifier:";
+
+	/**
+	 * Scope prefix for privileges granted for a production unit (P number).
+	 */
+	public static final String SCOPE_PNR = "urn:dk:gov:saml:productionUnitIdentifier:";
+
+	/**
+	 * No privileges.
+	 */
+	public static final Privileges NONE = new Privileges(new HashMap<String, Map<String, List<Map<String, String>>>>());
+
+	private final Map<String, Map<String, List<Map<String, String>>>> byScope;
+	private final Map<String, Set<String>> byPrivilege;
+
+	private Privileges(Map<String, Map<String, List<Map<String, String>>>> scopes) {
+		Map<String, Map<String, List<Map<String, String>>>> byScope = new HashMap<String, Map<String, List<Map<String, String>>>>();
+		Map<String, Set<String>> byPrivilege = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, Map<String, List<Map<String, String>>>> scope : scopes.entrySet()) {
+			Map<String, List<Map<String, String>>> privileges = new HashMap<String, List<Map<String, String>>>();
+			for (Map.Entry<String, List<Map<String, String>>> privilege : scope.getValue().entrySet()) {
+				privileges.put(privilege.getKey(), Collections.unmodifiableList(privilege.getValue()));
+
+				Set<String> s = byPrivilege.get(privilege.getKey());
+				if (s == null) {
+					s = new HashSet<String>();
+					byPrivilege.put(privilege.getKey(), s);
+				}
+				s.add(scope.getKey());
+			}
+			byScope.put(scope.getKey(), Collections.unmodifiableMap(privileges));
+		}
+		for (Map.Entry<String, Set<String>> e : byPrivilege.entrySet()) {
+			e.setValue(Collections.unmodifiableSet(e.getValue()));
+		}
+		this.byScope = Collections.unmodifiableMap(byScope);
+		this.byPrivilege = Collections.unmodifiableMap(byPrivilege);
+	}
+
+	/**
+	 * Get the privileges from a privilege attribute.
+	 * 
+	 * @param attribute The attribute. Values are Base64 encoded privilege lists, but unencoded XML is also accepted. May be <code>null</code>.
+	 * @return The privileges from all values of the attribute, or {@link #NONE} if the attribute is <code>null</code> or has no values.
+	 * @throws IllegalArgumentException If a value is not a valid privilege list.
+	 * @throws dk.itst.oiosaml.error.WrappedException If a value is not valid XML.
+	 */
+	public static Privileges fromAttribute(UserAttribute attribute) {
+		if (attribute == null || attribute.getValues().isEmpty()) return NONE;
+
+		Map<String, Map<String, List<Map<String, String>>>> scopes = new HashMap<String, Map<String, List<Map<String, String>>>>();
+		for (String value : attribute.getValues()) {
+			if (value == null) continue;
+			value = value.trim();
+			if (!value.startsWith("<")) {
+				byte[] decoded = Base64.decode(value);
+				if (decoded == null) throw new IllegalArgumentException("Privilege value is not Base64 encoded: " + value);
+				try {
+					value = new String(decoded, "UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			parse(value, scopes);
+		}
+		return scopes.isEmpty() ? NONE : new Privileges(scopes);
+	}
+
+	/**
+	 * Parse a privilege list.
+	 * 
+	 * @param xml The PrivilegeList XML document.
+	 * @throws IllegalArgumentException If the document is not a privilege list.
+	 * @throws dk.itst.oiosaml.error.WrappedException If the document is not valid XML.
+	 */
+	public static Privileges parse(String xml) {
+		Map<String, Map<String, List<Map<String, String>>>> scopes = new HashMap<String, Map<String, List<Map<String, String>>>>();
+		parse(xml, scopes);
+		return new Privileges(scopes);
+	}
+
+	private static void parse(String xml, Map<String, Map<String, List<Map<String, String>>>> scopes) {
+		Element root = SAMLUtil.loadElementFromString(xml);
+		if (!"PrivilegeList".equals(root.getLocalName())) {
+			throw new IllegalArgumentException("Expected PrivilegeList, was " + root.getLocalName());
+		}
+		for (Element group : getChildren(root, "PrivilegeGroup")) {
+			String scope = group.getAttribute("Scope").trim();
+			if (scope.length() == 0) throw new IllegalArgumentException("PrivilegeGroup without Scope");
+
+			Map<String, String> constraints = new LinkedHashMap<String, String>();
+			for (Element constraint : getChildren(group, "Constraint")) {
+				constraints.put(constraint.getAttribute("Name"), constraint.getTextContent().trim());
+			}
+			constraints = Collections.unmodifiableMap(constraints);
+
+			Map<String, List<Map<String, String>>> privileges = scopes.get(scope);
+			if (privileges == null) {
+				privileges = new HashMap<String, List<Map<String, String>>>();
+				scopes.put(scope, privileges);
+			}
+			for (Element privilege : getChildren(group, "Privilege")) {
+				String uri = privilege.getTextContent().trim();
+				List<Map<String, String>> c = privileges.get(uri);
+				if (c == null) {
+					c = new ArrayList<Map<String, String>>(1);
+					privileges.put(uri, c);
+				}
+				c.add(constraints);
+			}
+		}
+	}
+
+	private static List<Element> getChildren(Element parent, String localName) {
+		List<Element> res = new ArrayList<Element>();
+		for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE && localName.equals(n.getLocalName())) {
+				res.add((Element) n);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return <code>true</code> if the privilege has been granted for the scope.
+	 */
+	public boolean hasPrivilege(String scope, String privilege) {
+		Map<String, List<Map<String, String>>> privileges = byScope.get(scope);
+		return privileges != null && privileges.containsKey(privilege);
+	}
+
+	/**
+	 * @return <code>true</code> if the privilege has been granted for the CVR number.
+	 */
+	public boolean hasCVRPrivilege(String cvr, String privilege) {
+		return hasPrivilege(SCOPE_CVR + cvr, privilege);
+	}
+
+	/**
+	 * @return <code>true</code> if the privilege has been granted for the production unit.
+	 */
+	public boolean hasPNRPrivilege(String pnr, String privilege) {
+		return hasPrivilege(SCOPE_PNR + pnr, privilege);
+	}
+
+	/**
+	 * @return All privileges granted for a scope. Empty if none.
+	 */
+	public Set<String> getPrivileges(String scope) {
+		Map<String, List<Map<String, String>>> privileges = byScope.get(scope);
+		if (privileges == null) return Collections.emptySet();
+		return privileges.keySet();
+	}
+
+	/**
+	 * @return All scopes a privilege has been granted for. Empty if none.
+	 */
+	public Set<String> getScopes(String privilege) {
+		Set<String> scopes = byPrivilege.get(privilege);
+		if (scopes == null) return Collections.emptySet();
+		return scopes;
+	}
+
+	/**
+	 * @return All scopes with at least one privilege.
+	 */
+	public Set<String> getScopes() {
+		return byScope.keySet();
+	}
+
+	/**
+	 * Get the constraints of a privilege. The privilege can be granted in several groups with different constraints, and each group
+	 * results in one element in the list.
+	 * 
+	 * @return Constraint values by constraint name, one map for each group granting the privilege. A map is empty if the group has no
+	 * constraints. The list is empty if the privilege has not been granted.
+	 */
+	public List<Map<String, String>> getConstraints(String scope, String privilege) {
+		Map<String, List<Map<String, String>>> privileges = byScope.get(scope);
+		if (privileges == null || !privileges.containsKey(privilege)) return Collections.emptyList();
+		return privileges.get(privilege);
+	}
+
+	public boolean isEmpty() {
+		return byScope.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "Privileges" + byScope;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opensaml.saml2.core.Attribute;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+
+/**
+ * Writes and reads strings in the serialized form of {@link UserAssertionImpl} and {@link UserAttribute}.
+ * 
+ * <p>Well known OIOSAML attribute names, name formats and values are written as a single byte. Other strings are written once, and
+ * written as references if they occur again in the same stream. A dictionary instance must only be used for one stream.</p>
+ */
+class StringDictionary {
+	/**
+	 * Strings with a fixed code. Codes are the index in the array, so new strings must only be added at the end.
+	 */
+	private static final String[] WELL_KNOWN = {
+		OIOSAMLConstants.ATTRIBUTE_SURNAME_NAME,
+		OIOSAMLConstants.ATTRIBUTE_SURNAME_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_COMMON_NAME_NAME,
+		OIOSAMLConstants.ATTRIBUTE_COMMON_NAME_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_UID_NAME,
+		OIOSAMLConstants.ATTRIBUTE_UID_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_MAIL_NAME,
+		OIOSAMLConstants.ATTRIBUTE_MAIL_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_TELEPHONE_NUMBER_IDENTIFIER_NAME,
+		OIOSAMLConstants.ATTRIBUTE_TELEPHONE_NUMBER_IDENTIFIER_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_MOBILE_NUMBER_IDENTIFIER_NAME,
+		OIOSAMLConstants.ATTRIBUTE_MOBILE_NUMBER_IDENTIFIER_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_CVR_NUMBER_IDENTIFIER_NAME,
+		OIOSAMLConstants.ATTRIBUTE_CVR_NUMBER_IDENTIFIER_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_PRODUCTION_UNIT_IDENTIFIER_NAME,
+		OIOSAMLConstants.ATTRIBUTE_PRODUCTION_UNIT_IDENTIFIER_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_SERIAL_NUMBER_NAME,
+		OIOSAMLConstants.ATTRIBUTE_SERIAL_NUMBER_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_PID_NUMBER_IDENTIFIER_NAME,
+		OIOSAMLConstants.ATTRIBUTE_PID_NUMBER_IDENTIFIER_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_PRIVILEGES_INTERMEDIATE,
+		OIOSAMLConstants.ATTRIBUTE_USER_ADMINISTRATOR_INDICATOR,
+		OIOSAMLConstants.ATTRIBUTE_RID_NUMBER_IDENTIFIER_NAME,
+		OIOSAMLConstants.ATTRIBUTE_RID_NUMBER_IDENTIFIER_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_USER_CERTIFICATE_NAME,
+		OIOSAMLConstants.ATTRIBUTE_USER_CERTIFICATE_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_ASSURANCE_LEVEL_NAME,
+		OIOSAMLConstants.ATTRIBUTE_ASSURANCE_LEVEL_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_CURRENT_CVR_NUMBER_IDENTIFIER_NAME,
+		OIOSAMLConstants.ATTRIBUTE_CURRENT_CVR_NUMBER_IDENTIFIER_FRIENDLY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_ORGANISATION_NAME_NAME,
+		OIOSAMLConstants.ATTRIBUTE_ORGANISATION_UNIT_NAME,
+		OIOSAMLConstants.ATTRIBUTE_POSTAL_ADDRESS_NAME,
+		OIOSAMLConstants.ATTRIBUTE_SPECVER_NAME,
+		OIOSAMLConstants.ATTRIBUTE_TITLE_NAME,
+		OIOSAMLConstants.ATTRIBUTE_UNIQUE_ACCOUNT_KEY_NAME,
+		OIOSAMLConstants.ATTRIBUTE_CPR_NUMBER_NAME,
+		OIOSAMLConstants.ATTRIBUTE_PSEUDONYM_NAME,
+		OIOSAMLConstants.ATTRIBUTE_YOUTH_CERTIFICATE_NAME,
+		OIOSAMLConstants.ATTRIBUTE_CERTIFICATE_ISSUER,
+		Attribute.BASIC,
+		Attribute.URI_REFERENCE,
+		Attribute.UNSPECIFIED,
+		NameIDFormat.UNSPECIFIED.getFormat(),
+		NameIDFormat.EMAIL.getFormat(),
+		NameIDFormat.X509SUBJECT.getFormat(),
+		NameIDFormat.WINDOWS_DOMAIN.getFormat(),
+		NameIDFormat.KERBEROS_PRINCIPAL.getFormat(),
+		NameIDFormat.ENTITY.getFormat(),
+		NameIDFormat.PERSISTENT.getFormat(),
+		NameIDFormat.TRANSIENT.getFormat(),
+		"DK-SAML-2.0",
+		"true",
+		"false",
+		"1",
+		"2",
+		"3",
+		"4",
+	};
+	private static final Map<String, Integer> CODES = new HashMap<String, Integer>();
+	static {
+		for (int i = 0; i < WELL_KNOWN.length; i++) {
+			if (!CODES.containsKey(WELL_KNOWN[i])) {
+				CODES.put(WELL_KNOWN[i], i);
+			}
+		}
+	}
+
+	private static final int NULL = 0;
+	private static final int WELL_KNOWN_CODE = 1;
+	private static final int REFERENCE = 2;
+	private static final int LITERAL = 3;
+
+	/**
+	 * Strings longer than this are not remembered for references, as large values are rarely repeated.
+	 */
+	private static final int MAX_REFERENCED_LENGTH = 256;
+
+	private final Map<String, Integer> written = new HashMap<String, Integer>();
+	private final List<String> read = new ArrayList<String>();
+
+	void write(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+			return;
+		}
+		Integer code = CODES.get(value);
+		if (code != null) {
+			out.writeByte(WELL_KNOWN_CODE);
+			out.writeByte(code);
+			return;
+		}
+		Integer ref = written.get(value);
+		if (ref != null) {
+			out.writeByte(REFERENCE);
+			out.writeInt(ref);
+			return;
+		}
+		out.writeByte(LITERAL);
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		if (value.length() <= MAX_REFERENCED_LENGTH) {
+			written.put(value, written.size());
+		}
+	}
+
+	String read(DataInput in) throws IOException {
+		int type = in.readByte();
+		switch (type) {
+		case NULL:
+			return null;
+		case WELL_KNOWN_CODE:
+			int code = in.readUnsignedByte();
+			if (code >= WELL_KNOWN.length) throw new IOException("Unknown string code " + code);
+			return WELL_KNOWN[code];
+		case REFERENCE:
+			int ref = in.readInt();
+			if (ref < 0 || ref >= read.size()) throw new IOException("Invalid string reference " + ref);
+			return read.get(ref);
+		case LITERAL:
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			String value = new String(bytes, "UTF-8");
+			if (value.length() <= MAX_REFERENCED_LENGTH) {
+				read.add(value);
+			}
+			return value;
+		default:
+			throw new IOException("Unknown string type " + type);
+		}
+	}
+}
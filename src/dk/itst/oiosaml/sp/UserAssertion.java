@@ -285,5 +285,13 @@ public interface UserAssertion {
 	 * the user has been allowed to continue. This can happen if IsPassive is set, and the user was signed on.
 	 */
 	public boolean isAuthenticated();
+
+	/**
+	 * Attribute name: dk:gov:saml:attribute:Privileges_intermediate<br />
+	 * Privileges from the OIOSAML basic privilege profile. The attribute is parsed on the first call, and the result is kept for the
+	 * rest of the session.
+	 * @return The privileges of the subject. Empty if the attribute is not present, never null.
+	 */
+	public Privileges getPrivileges();
 	
 }
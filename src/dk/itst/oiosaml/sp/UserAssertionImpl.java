@@ -23,7 +23,14 @@
  */
 package dk.itst.oiosaml.sp;
 
-import java.io.Serializable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
@@ -32,18 +39,33 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
-import org.joda.time.DateTime;
+import org.apache.commons.configuration.Configuration;
 import org.opensaml.saml2.core.Attribute;
 import org.opensaml.saml2.core.AttributeStatement;
 
 import dk.itst.oiosaml.common.OIOSAMLConstants;
 import dk.itst.oiosaml.security.SecurityHelper;
+import dk.itst.oiosaml.sp.model.AssertionView;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
+import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.service.util.Utils;
 import dk.itst.oiosaml.sp.util.AttributeUtil;
 
-public class UserAssertionImpl implements UserAssertion, Serializable {
-	
+/**
+ * {@link UserAssertion} created from a received assertion.
+ * 
+ * <p>Instances are stored in the session, so they are serialized in a compact, versioned form when sessions are replicated. Strings are
+ * written using a {@link StringDictionary}, and everything except an already compressed assertion XML is deflated.</p>
+ */
+public class UserAssertionImpl implements UserAssertion, Externalizable {
+	private static final long serialVersionUID = -2941556324938517446L;
+	private static final int VERSION = 1;
+
 	private Map<String, UserAttribute> attributes = new HashMap<String, UserAttribute>();
 	private Date issueTime;
 	private String issuer;
@@ -52,36 +74,74 @@ public class UserAssertionImpl implements UserAssertion, Serializable {
 	private String nameID;
 	private boolean signed;
 	private String xml;
+	private byte[] compressedXml;
 	private String id;
+	private transient volatile Privileges privileges;
+
+	/**
+	 * How the assertion XML is kept by the user assertion, see {@link Constants#PROP_USER_ASSERTION_XML}.
+	 */
+	public enum XmlRetention {
+		/** The XML is kept as a string. */
+		FULL,
+		/** The XML is kept in deflated form, and inflated on each call to {@link UserAssertionImpl#getXML()}. */
+		COMPRESSED,
+		/** The XML is not kept, and {@link UserAssertionImpl#getXML()} returns <code>null</code>. */
+		NONE;
+
+		/**
+		 * Get the retention configured using {@link Constants#PROP_USER_ASSERTION_XML}. Defaults to {@link #FULL}.
+		 */
+		public static XmlRetention getRetention(Configuration conf) {
+			String value = conf.getString(Constants.PROP_USER_ASSERTION_XML, FULL.name());
+			try {
+				return valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid value for " + Constants.PROP_USER_ASSERTION_XML + ": " + value);
+			}
+		}
+	}
+
+	/**
+	 * Only used for deserialization.
+	 */
+	public UserAssertionImpl() {}
 
 	public UserAssertionImpl(OIOAssertion assertion) {
+		this(assertion, XmlRetention.FULL);
+	}
+
+	public UserAssertionImpl(OIOAssertion assertion, XmlRetention xmlRetention) {
 		for (AttributeStatement attrStatement : assertion.getAssertion().getAttributeStatements()) {
 			for (Attribute attr : attrStatement.getAttributes()) {
 				attributes.put(attr.getName(), new UserAttribute(attr.getName(), attr.getFriendlyName(), AttributeUtil.extractAttributeValueValues(attr), attr.getNameFormat()));
 			}
 		}
-		id = assertion.getID();
+		AssertionView view = assertion.getView();
+		id = view.getID();
 		
-		if (assertion.getAssertion().getIssueInstant() != null) {
-			issueTime = assertion.getAssertion().getIssueInstant().toDate();
+		if (view.getIssueInstant() != null) {
+			issueTime = view.getIssueInstant().toDate();
 		}
-		if (assertion.getAssertion().getIssuer() != null) {
-			issuer = assertion.getAssertion().getIssuer().getValue();
+		issuer = view.getIssuer();
+		if (view.getSessionNotOnOrAfter() != null) {
+			sessionExpireTime = view.getSessionNotOnOrAfter().toDate();
 		}
-		if (!assertion.getAssertion().getAuthnStatements().isEmpty()) {
-			DateTime expireTime = assertion.getAssertion().getAuthnStatements().get(0).getSessionNotOnOrAfter();
-			if (expireTime != null) {
-				sessionExpireTime = expireTime.toDate();
-			}
+		if (view.hasNameID()) {
+			nameIDFormat = NameIDFormat.getNameID(view.getSubjectNameIDFormat());
+			nameID = view.getSubjectNameIDValue();
 		}
-		if (assertion.getAssertion().getSubject() != null) {
-			nameIDFormat = NameIDFormat.getNameID(assertion.getAssertion().getSubject().getNameID().getFormat());
-			nameID = assertion.getAssertion().getSubject().getNameID().getValue();
+		signed = view.isSigned();
+		if (xmlRetention != XmlRetention.NONE) {
+			try {
+				String value = assertion.toXML();
+				if (xmlRetention == XmlRetention.COMPRESSED) {
+					compressedXml = Utils.deflate(value);
+				} else {
+					xml = value;
+				}
+			} catch (Exception e) {}
 		}
-		signed = assertion.getAssertion().getSignature() != null;
-		try {
-			xml = assertion.toXML();
-		} catch (Exception e) {}
 	}
 
 	public Collection<UserAttribute> getAllAttributes() {
@@ -172,6 +232,9 @@ public class UserAssertionImpl implements UserAssertion, Serializable {
 	}
 
 	public String getXML() {
+		if (compressedXml != null) {
+			return Utils.inflate(compressedXml);
+		}
 		return xml;
 	}
 
@@ -278,4 +341,95 @@ public class UserAssertionImpl implements UserAssertion, Serializable {
 	public boolean isAuthenticated() {
 		return true;
 	}
+
+	public Privileges getPrivileges() {
+		Privileges p = privileges;
+		if (p == null) {
+			// not serialized, so after replication the attribute is parsed again on first use
+			p = Privileges.fromAttribute(getAttribute(OIOSAMLConstants.ATTRIBUTE_PRIVILEGES_INTERMEDIATE));
+			privileges = p;
+		}
+		return p;
+	}
+
+	public void writeExternal(ObjectOutput out) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		DataOutputStream dos = new DataOutputStream(new DeflaterOutputStream(bos, deflater));
+		StringDictionary dictionary = new StringDictionary();
+		dictionary.write(dos, id);
+		dictionary.write(dos, issuer);
+		dictionary.write(dos, nameID);
+		dictionary.write(dos, nameIDFormat != null ? nameIDFormat.getFormat() : null);
+		writeDate(dos, issueTime);
+		writeDate(dos, sessionExpireTime);
+		dos.writeBoolean(signed);
+		dictionary.write(dos, xml);
+		dos.writeInt(attributes.size());
+		for (UserAttribute attribute : attributes.values()) {
+			attribute.write(dos, dictionary);
+		}
+		dos.close();
+		deflater.end();
+
+		out.writeByte(VERSION);
+		out.writeInt(bos.size());
+		out.write(bos.toByteArray());
+		if (compressedXml == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(compressedXml.length);
+			out.write(compressedXml);
+		}
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int version = in.readByte();
+		if (version != VERSION) throw new IOException("Unsupported UserAssertionImpl version " + version);
+
+		byte[] payload = new byte[in.readInt()];
+		in.readFully(payload);
+		int compressedLength = in.readInt();
+		if (compressedLength >= 0) {
+			compressedXml = new byte[compressedLength];
+			in.readFully(compressedXml);
+		}
+
+		Inflater inflater = new Inflater(true);
+		try {
+			DataInputStream dis = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload), inflater));
+			StringDictionary dictionary = new StringDictionary();
+			id = dictionary.read(dis);
+			issuer = dictionary.read(dis);
+			nameID = dictionary.read(dis);
+			String format = dictionary.read(dis);
+			if (format != null) {
+				nameIDFormat = NameIDFormat.getNameID(format);
+			}
+			issueTime = readDate(dis);
+			sessionExpireTime = readDate(dis);
+			signed = dis.readBoolean();
+			xml = dictionary.read(dis);
+			int count = dis.readInt();
+			attributes = new HashMap<String, UserAttribute>(Math.max(16, count * 2));
+			for (int i = 0; i < count; i++) {
+				UserAttribute attribute = new UserAttribute();
+				attribute.read(dis, dictionary);
+				attributes.put(attribute.getName(), attribute);
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static void writeDate(DataOutputStream out, Date date) throws IOException {
+		out.writeBoolean(date != null);
+		if (date != null) {
+			out.writeLong(date.getTime());
+		}
+	}
+
+	private static Date readDate(DataInputStream in) throws IOException {
+		return in.readBoolean() ? new Date(in.readLong()) : null;
+	}
 }
@@ -23,21 +23,38 @@
  */
 package dk.itst.oiosaml.sp;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.opensaml.xml.util.Base64;
 
-public class UserAttribute implements Serializable{
+/**
+ * A single attribute from an assertion.
+ * 
+ * <p>Attributes are serialized in a compact form, where well known attribute names and formats are written as a single byte, see
+ * {@link StringDictionary}.</p>
+ */
+public class UserAttribute implements Externalizable {
 
 	private static final long serialVersionUID = 7213348395041737852L;
+	private static final int VERSION = 1;
 
-	private final String name;
-	private final String friendlyName;
-	private final List<String> values;
-	private final String format;
+	private String name;
+	private String friendlyName;
+	private List<String> values;
+	private String format;
 	
+	/**
+	 * Only used for deserialization.
+	 */
+	public UserAttribute() {}
+
 	public UserAttribute(String name, String friendlyName, List<String> values, String format) {
 		super();
 		this.name = name;
@@ -110,6 +127,44 @@ public class UserAttribute implements Serializable{
 		return new UserAttribute(name, null, null, format);
 	}
 
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(VERSION);
+		write(out, new StringDictionary());
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int version = in.readByte();
+		if (version != VERSION) throw new IOException("Unsupported UserAttribute version " + version);
+		read(in, new StringDictionary());
+	}
+
+	void write(DataOutput out, StringDictionary dictionary) throws IOException {
+		dictionary.write(out, name);
+		dictionary.write(out, friendlyName);
+		dictionary.write(out, format);
+		if (values == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(values.size());
+			for (String value : values) {
+				dictionary.write(out, value);
+			}
+		}
+	}
+
+	void read(DataInput in, StringDictionary dictionary) throws IOException {
+		name = dictionary.read(in);
+		friendlyName = dictionary.read(in);
+		format = dictionary.read(in);
+		int count = in.readInt();
+		if (count >= 0) {
+			values = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				values.add(dictionary.read(in));
+			}
+		}
+	}
+
 	@Override
 	public String toString() {
 		return name + " (" + friendlyName + "): " + values;
@@ -0,0 +1,420 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2009 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.metadata;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.metadata.ArtifactResolutionService;
+import org.opensaml.saml2.metadata.AttributeAuthorityDescriptor;
+import org.opensaml.saml2.metadata.AttributeService;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.X509Certificate;
+import org.opensaml.xml.signature.X509Data;
+import org.opensaml.xml.util.Base64;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+
+/**
+ * Binary snapshot of parsed IdP metadata.
+ *
+ * <p>Parsing large metadata aggregates dominates the startup time of the SP. A snapshot contains the parts of the
+ * metadata used by {@link IdpMetadata} (entity ids, endpoints, attribute formats and certificates) in a compact,
+ * versioned binary format, and is written next to the metadata files the first time they are parsed.</p>
+ *
+ * <p>The snapshot records a SHA-256 hash of the source files. On the next startup, the snapshot is memory mapped
+ * and used instead of the XML files, but only if the hash still matches. Otherwise, the XML files are parsed again and
+ * the snapshot is replaced.</p>
+ *
+ * <p>The descriptors returned from a snapshot are rebuilt using the OpenSAML builders, and only contain the elements listed
+ * above, so they should not be republished.</p>
+ */
+public class MetadataSnapshot {
+	private static final Logger log = LoggerFactory.getLogger(MetadataSnapshot.class);
+
+	/**
+	 * Name of the snapshot file, placed in the IdP metadata directory.
+	 */
+	public static final String FILE_NAME = "oiosaml-idp-metadata.snapshot";
+
+	/**
+	 * Version of the binary format. Snapshots with a different version are ignored.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	private static final int MAGIC = 0x4f494f4d;
+	private static final int HASH_LENGTH = 32;
+
+	private static final byte USE_UNSPECIFIED = 0;
+	private static final byte USE_SIGNING = 1;
+	private static final byte USE_ENCRYPTION = 2;
+
+	private final File file;
+
+	public MetadataSnapshot(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Calculate the hash of a set of metadata files. The hash covers the file names and contents, the protocol and the snapshot format version.
+	 */
+	public static byte[] hash(String protocol, List<File> sources) {
+		File[] files = sources.toArray(new File[sources.size()]);
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return f1.getName().compareTo(f2.getName());
+			}
+		});
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(utf8(FORMAT_VERSION + ":" + protocol));
+			byte[] buffer = new byte[8192];
+			for (File f : files) {
+				md.update(utf8(f.getName() + ":" + f.length()));
+				InputStream is = new FileInputStream(f);
+				try {
+					int read;
+					while ((read = is.read(buffer)) != -1) {
+						md.update(buffer, 0, read);
+					}
+				} finally {
+					is.close();
+				}
+			}
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		} catch (IOException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+	}
+
+	/**
+	 * Load descriptors from the snapshot.
+	 *
+	 * @return The descriptors, or <code>null</code> if the snapshot does not exist, is corrupt, or was created from other sources.
+	 */
+	public List<XMLObject> load(byte[] sourceHash, String protocol) {
+		if (!file.isFile()) {
+			log.debug("No metadata snapshot found at " + file);
+			return null;
+		}
+		try {
+			// check the header using a plain stream first - a mapped file cannot be replaced on some platforms until the mapping is collected
+			if (!matches(sourceHash)) {
+				log.info("Metadata snapshot " + file + " is out of date");
+				return null;
+			}
+
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				FileChannel channel = fis.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				buffer.position(4 + 4 + HASH_LENGTH);
+				List<XMLObject> descriptors = read(buffer, protocol);
+				log.info("Loaded " + descriptors.size() + " IdP descriptors from metadata snapshot " + file);
+				return descriptors;
+			} finally {
+				fis.close();
+			}
+		} catch (IOException e) {
+			log.warn("Unable to read metadata snapshot " + file + ", ignoring it", e);
+			return null;
+		} catch (BufferUnderflowException e) {
+			log.warn("Metadata snapshot " + file + " is truncated, ignoring it");
+			return null;
+		} catch (RuntimeException e) {
+			log.warn("Metadata snapshot " + file + " is corrupt, ignoring it", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Write a new snapshot. Errors are logged, but not thrown, as the snapshot is only an optimization.
+	 */
+	public void store(byte[] sourceHash, String protocol, List<XMLObject> descriptors) {
+		List<EntityDescriptor> entities = new ArrayList<EntityDescriptor>();
+		for (XMLObject o : descriptors) {
+			EntityDescriptor ed = (EntityDescriptor) o;
+			if (ed.getIDPSSODescriptor(protocol) == null) {
+				log.info("Entity " + ed.getEntityID() + " has no IDPSSODescriptor for " + protocol + ", not writing metadata snapshot");
+				return;
+			}
+			entities.add(ed);
+		}
+
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		try {
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				os.writeInt(MAGIC);
+				os.writeInt(FORMAT_VERSION);
+				os.write(sourceHash);
+				os.writeInt(entities.size());
+				for (EntityDescriptor ed : entities) {
+					write(os, ed, protocol);
+				}
+			} finally {
+				os.close();
+			}
+			if (file.exists() && !file.delete()) {
+				log.warn("Unable to replace metadata snapshot " + file);
+				tmp.delete();
+				return;
+			}
+			if (!tmp.renameTo(file)) {
+				log.warn("Unable to rename " + tmp + " to " + file);
+				tmp.delete();
+				return;
+			}
+			log.info("Wrote metadata snapshot with " + entities.size() + " IdP descriptors to " + file);
+		} catch (IOException e) {
+			log.warn("Unable to write metadata snapshot " + file, e);
+			tmp.delete();
+		}
+	}
+
+	private boolean matches(byte[] sourceHash) throws IOException {
+		DataInputStream is = new DataInputStream(new FileInputStream(file));
+		try {
+			if (is.readInt() != MAGIC) return false;
+			if (is.readInt() != FORMAT_VERSION) return false;
+			byte[] hash = new byte[HASH_LENGTH];
+			is.readFully(hash);
+			return Arrays.equals(hash, sourceHash);
+		} finally {
+			is.close();
+		}
+	}
+
+	private void write(DataOutputStream os, EntityDescriptor ed, String protocol) throws IOException {
+		IDPSSODescriptor idp = ed.getIDPSSODescriptor(protocol);
+		writeString(os, ed.getEntityID());
+
+		os.writeInt(idp.getSingleSignOnServices().size());
+		for (SingleSignOnService s : idp.getSingleSignOnServices()) {
+			writeString(os, s.getBinding());
+			writeString(os, s.getLocation());
+		}
+		os.writeInt(idp.getSingleLogoutServices().size());
+		for (SingleLogoutService s : idp.getSingleLogoutServices()) {
+			writeString(os, s.getBinding());
+			writeString(os, s.getLocation());
+			writeString(os, s.getResponseLocation());
+		}
+		os.writeInt(idp.getArtifactResolutionServices().size());
+		for (ArtifactResolutionService s : idp.getArtifactResolutionServices()) {
+			writeString(os, s.getBinding());
+			writeString(os, s.getLocation());
+			os.writeInt(s.getIndex() != null ? s.getIndex() : -1);
+			os.writeBoolean(Boolean.TRUE.equals(s.isDefault()));
+		}
+		os.writeInt(idp.getAttributes().size());
+		for (Attribute a : idp.getAttributes()) {
+			writeString(os, a.getName());
+			writeString(os, a.getNameFormat());
+		}
+
+		List<KeyDescriptor> keys = new ArrayList<KeyDescriptor>();
+		for (KeyDescriptor kd : idp.getKeyDescriptors()) {
+			if (kd.getKeyInfo() != null) keys.add(kd);
+		}
+		os.writeInt(keys.size());
+		for (KeyDescriptor kd : keys) {
+			UsageType use = kd.getUse();
+			os.writeByte(use == UsageType.SIGNING ? USE_SIGNING : use == UsageType.ENCRYPTION ? USE_ENCRYPTION : USE_UNSPECIFIED);
+
+			List<byte[]> certs = new ArrayList<byte[]>();
+			for (X509Data data : kd.getKeyInfo().getX509Datas()) {
+				for (X509Certificate cert : data.getX509Certificates()) {
+					certs.add(Base64.decode(cert.getValue()));
+				}
+			}
+			os.writeInt(certs.size());
+			for (byte[] cert : certs) {
+				os.writeInt(cert.length);
+				os.write(cert);
+			}
+		}
+
+		AttributeAuthorityDescriptor aad = ed.getAttributeAuthorityDescriptor(SAMLConstants.SAML20P_NS);
+		if (aad == null) {
+			os.writeInt(-1);
+		} else {
+			os.writeInt(aad.getAttributeServices().size());
+			for (AttributeService s : aad.getAttributeServices()) {
+				writeString(os, s.getBinding());
+				writeString(os, s.getLocation());
+			}
+		}
+	}
+
+	private List<XMLObject> read(ByteBuffer buffer, String protocol) {
+		int count = buffer.getInt();
+		List<XMLObject> res = new ArrayList<XMLObject>(count);
+		for (int i = 0; i < count; i++) {
+			EntityDescriptor ed = SAMLUtil.buildXMLObject(EntityDescriptor.class);
+			ed.setEntityID(readString(buffer));
+
+			IDPSSODescriptor idp = SAMLUtil.buildXMLObject(IDPSSODescriptor.class);
+			idp.addSupportedProtocol(protocol);
+			ed.getRoleDescriptors().add(idp);
+
+			int num = buffer.getInt();
+			for (int j = 0; j < num; j++) {
+				SingleSignOnService s = SAMLUtil.buildXMLObject(SingleSignOnService.class);
+				s.setBinding(readString(buffer));
+				s.setLocation(readString(buffer));
+				idp.getSingleSignOnServices().add(s);
+			}
+			num = buffer.getInt();
+			for (int j = 0; j < num; j++) {
+				String binding = readString(buffer);
+				String location = readString(buffer);
+				idp.getSingleLogoutServices().add(SAMLUtil.createSingleLogoutService(location, readString(buffer), binding));
+			}
+			num = buffer.getInt();
+			for (int j = 0; j < num; j++) {
+				ArtifactResolutionService s = SAMLUtil.buildXMLObject(ArtifactResolutionService.class);
+				s.setBinding(readString(buffer));
+				s.setLocation(readString(buffer));
+				int index = buffer.getInt();
+				if (index >= 0) {
+					s.setIndex(index);
+				}
+				s.setIsDefault(buffer.get() != 0);
+				idp.getArtifactResolutionServices().add(s);
+			}
+			num = buffer.getInt();
+			for (int j = 0; j < num; j++) {
+				Attribute a = SAMLUtil.buildXMLObject(Attribute.class);
+				a.setName(readString(buffer));
+				a.setNameFormat(readString(buffer));
+				idp.getAttributes().add(a);
+			}
+
+			num = buffer.getInt();
+			for (int j = 0; j < num; j++) {
+				KeyDescriptor kd = SAMLUtil.buildXMLObject(KeyDescriptor.class);
+				byte use = buffer.get();
+				kd.setUse(use == USE_SIGNING ? UsageType.SIGNING : use == USE_ENCRYPTION ? UsageType.ENCRYPTION : UsageType.UNSPECIFIED);
+				KeyInfo keyInfo = SAMLUtil.buildXMLObject(KeyInfo.class);
+				X509Data data = SAMLUtil.buildXMLObject(X509Data.class);
+				int certs = buffer.getInt();
+				for (int k = 0; k < certs; k++) {
+					byte[] der = new byte[buffer.getInt()];
+					buffer.get(der);
+					X509Certificate cert = SAMLUtil.buildXMLObject(X509Certificate.class);
+					cert.setValue(Base64.encodeBytes(der, Base64.DONT_BREAK_LINES));
+					data.getX509Certificates().add(cert);
+				}
+				keyInfo.getX509Datas().add(data);
+				kd.setKeyInfo(keyInfo);
+				idp.getKeyDescriptors().add(kd);
+			}
+
+			num = buffer.getInt();
+			if (num >= 0) {
+				AttributeAuthorityDescriptor aad = SAMLUtil.buildXMLObject(AttributeAuthorityDescriptor.class);
+				aad.addSupportedProtocol(SAMLConstants.SAML20P_NS);
+				for (int j = 0; j < num; j++) {
+					AttributeService s = SAMLUtil.buildXMLObject(AttributeService.class);
+					s.setBinding(readString(buffer));
+					s.setLocation(readString(buffer));
+					aad.getAttributeServices().add(s);
+				}
+				ed.getRoleDescriptors().add(aad);
+			}
+			res.add(ed);
+		}
+		if (buffer.hasRemaining()) {
+			throw new IllegalStateException("Unexpected data after " + count + " descriptors");
+		}
+		return res;
+	}
+
+	private static void writeString(DataOutputStream os, String value) throws IOException {
+		if (value == null) {
+			os.writeInt(-1);
+		} else {
+			byte[] bytes = utf8(value);
+			os.writeInt(bytes.length);
+			os.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		try {
+			return new String(bytes, OIOSAMLConstants.UTF_8);
+		} catch (UnsupportedEncodingException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+	}
+
+	private static byte[] utf8(String value) {
+		try {
+			return value.getBytes(OIOSAMLConstants.UTF_8);
+		} catch (UnsupportedEncodingException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+	}
+}
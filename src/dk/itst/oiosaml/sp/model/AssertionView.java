@@ -0,0 +1,328 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.saml2.core.Audience;
+import org.opensaml.saml2.core.AudienceRestriction;
+import org.opensaml.saml2.core.AuthnContext;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml2.core.SubjectConfirmationData;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.sp.util.AttributeUtil;
+
+/**
+ * Immutable view of the values of an assertion which are used during validation and login.
+ * 
+ * <p>The view is created by traversing the assertion once, so the values can be read any number of times without navigating the
+ * OpenSAML object tree. Changes made to the assertion after the view has been created are not reflected in the view.</p>
+ */
+public class AssertionView {
+	private final String id;
+	private final String issuer;
+	private final DateTime issueInstant;
+	private final boolean signed;
+	private final boolean nameIDPresent;
+	private final String nameIDValue;
+	private final String nameIDFormat;
+	private final boolean holderOfKey;
+	private final DateTime confirmationTime;
+	private final Set<String> bearerRecipients;
+	private final DateTime conditionTime;
+	private final List<String> audience;
+	private final int authnStatementCount;
+	private final String sessionIndex;
+	private final DateTime sessionNotOnOrAfter;
+	private final String authnContextClassRef;
+	private final int attributeStatementCount;
+	private final int authzDecisionStatementCount;
+	private final int assuranceLevel;
+
+	/**
+	 * Create a view of an assertion.
+	 */
+	public AssertionView(Assertion assertion) {
+		id = assertion.getID();
+		issuer = getIssuer(assertion);
+		issueInstant = assertion.getIssueInstant();
+		signed = assertion.getSignature() != null;
+
+		NameID nameID = getNameID(assertion);
+		nameIDPresent = nameID != null;
+		nameIDValue = nameID != null ? nameID.getValue() : null;
+		nameIDFormat = nameID != null ? nameID.getFormat() : null;
+
+		holderOfKey = isHolderOfKey(assertion);
+		confirmationTime = getConfirmationTime(assertion);
+		Set<String> recipients = new HashSet<String>();
+		for (SubjectConfirmationData data : getBearerConfirmations(assertion)) {
+			if (data.getRecipient() != null) {
+				recipients.add(data.getRecipient());
+			}
+		}
+		bearerRecipients = Collections.unmodifiableSet(recipients);
+
+		conditionTime = getConditionTime(assertion);
+		audience = Collections.unmodifiableList(getAudience(assertion));
+
+		authnStatementCount = size(assertion.getAuthnStatements());
+		sessionIndex = getSessionIndex(assertion);
+		sessionNotOnOrAfter = getSessionNotOnOrAfter(assertion);
+		authnContextClassRef = getAuthnContextClassRef(assertion);
+
+		attributeStatementCount = size(assertion.getAttributeStatements());
+		authzDecisionStatementCount = size(assertion.getAuthzDecisionStatements());
+		assuranceLevel = getAssuranceLevel(assertion);
+	}
+
+	static String getIssuer(Assertion assertion) {
+		return assertion.getIssuer() != null ? assertion.getIssuer().getValue() : null;
+	}
+
+	static NameID getNameID(Assertion assertion) {
+		return assertion.getSubject() != null ? assertion.getSubject().getNameID() : null;
+	}
+
+	static boolean isHolderOfKey(Assertion assertion) {
+		if (assertion.getSubject() == null) return false;
+		List<SubjectConfirmation> confirmations = assertion.getSubject().getSubjectConfirmations();
+		if (confirmations == null || confirmations.isEmpty()) return false;
+
+		return OIOSAMLConstants.METHOD_HOK.equals(confirmations.get(0).getMethod());
+	}
+
+	static DateTime getConfirmationTime(Assertion assertion) {
+		if (assertion.getSubject() == null || assertion.getSubject().getSubjectConfirmations() == null) return null;
+
+		for (SubjectConfirmation subjectConfirmation : assertion.getSubject().getSubjectConfirmations()) {
+			SubjectConfirmationData data = subjectConfirmation.getSubjectConfirmationData();
+			if (data != null && data.getNotOnOrAfter() != null) {
+				return data.getNotOnOrAfter();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The SubjectConfirmationData of all subject confirmations using the bearer method.
+	 */
+	static List<SubjectConfirmationData> getBearerConfirmations(Assertion assertion) {
+		List<SubjectConfirmationData> res = new ArrayList<SubjectConfirmationData>();
+		if (assertion.getSubject() == null || assertion.getSubject().getSubjectConfirmations() == null) return res;
+
+		for (SubjectConfirmation subjectConfirmation : assertion.getSubject().getSubjectConfirmations()) {
+			if (!OIOSAMLConstants.METHOD_BEARER.equals(subjectConfirmation.getMethod())) continue;
+			if (subjectConfirmation.getSubjectConfirmationData() != null) {
+				res.add(subjectConfirmation.getSubjectConfirmationData());
+			}
+		}
+		return res;
+	}
+
+	static DateTime getConditionTime(Assertion assertion) {
+		return assertion.getConditions() != null ? assertion.getConditions().getNotOnOrAfter() : null;
+	}
+
+	static List<String> getAudience(Assertion assertion) {
+		List<String> audiences = new ArrayList<String>();
+		if (assertion.getConditions() == null) return audiences;
+
+		for (AudienceRestriction audienceRestriction : assertion.getConditions().getAudienceRestrictions()) {
+			for (Audience a : audienceRestriction.getAudiences()) {
+				audiences.add(a.getAudienceURI());
+			}
+		}
+		return audiences;
+	}
+
+	/**
+	 * @return The first AuthnStatement, or <code>null</code>. Only the first statement is used.
+	 */
+	private static AuthnStatement getAuthnStatement(Assertion assertion) {
+		if (assertion.getAuthnStatements() == null || assertion.getAuthnStatements().isEmpty()) return null;
+		return assertion.getAuthnStatements().get(0);
+	}
+
+	static String getSessionIndex(Assertion assertion) {
+		AuthnStatement authnStatement = getAuthnStatement(assertion);
+		return authnStatement != null ? authnStatement.getSessionIndex() : null;
+	}
+
+	static DateTime getSessionNotOnOrAfter(Assertion assertion) {
+		AuthnStatement authnStatement = getAuthnStatement(assertion);
+		return authnStatement != null ? authnStatement.getSessionNotOnOrAfter() : null;
+	}
+
+	static String getAuthnContextClassRef(Assertion assertion) {
+		AuthnStatement authnStatement = getAuthnStatement(assertion);
+		if (authnStatement == null) return null;
+
+		AuthnContext authnContext = authnStatement.getAuthnContext();
+		if (authnContext == null || authnContext.getAuthnContextClassRef() == null) return null;
+		return authnContext.getAuthnContextClassRef().getAuthnContextClassRef();
+	}
+
+	static int getAssuranceLevel(Assertion assertion) {
+		if (assertion.getAttributeStatements() == null) return 0;
+
+		for (AttributeStatement attributeStatement : assertion.getAttributeStatements()) {
+			for (Attribute attribute : attributeStatement.getAttributes()) {
+				if (OIOSAMLConstants.ATTRIBUTE_ASSURANCE_LEVEL_NAME.equals(attribute.getName())) {
+					String value = AttributeUtil.extractAttributeValueValue(attribute);
+					return new AssuranceLevel(value).getValue();
+				}
+			}
+		}
+		return 0;
+	}
+
+	private static int size(List<?> list) {
+		return list != null ? list.size() : 0;
+	}
+
+	public String getID() {
+		return id;
+	}
+
+	/**
+	 * @return The value of /Issuer, or <code>null</code> if the assertion has no issuer.
+	 */
+	public String getIssuer() {
+		return issuer;
+	}
+
+	public DateTime getIssueInstant() {
+		return issueInstant;
+	}
+
+	/**
+	 * @return <code>true</code> if the assertion contains a signature. The signature is not validated.
+	 */
+	public boolean isSigned() {
+		return signed;
+	}
+
+	/**
+	 * @return <code>true</code> if the assertion contains a /Subject/NameID element.
+	 */
+	public boolean hasNameID() {
+		return nameIDPresent;
+	}
+
+	public String getSubjectNameIDValue() {
+		return nameIDValue;
+	}
+
+	public String getSubjectNameIDFormat() {
+		return nameIDFormat;
+	}
+
+	/**
+	 * @return <code>true</code> if the first subject confirmation uses the holder-of-key method.
+	 */
+	public boolean isHolderOfKey() {
+		return holderOfKey;
+	}
+
+	/**
+	 * @return The first SubjectConfirmationData/@NotOnOrAfter, or <code>null</code>.
+	 */
+	public DateTime getConfirmationTime() {
+		return confirmationTime;
+	}
+
+	/**
+	 * @return <code>true</code> if a bearer subject confirmation has the given recipient.
+	 */
+	public boolean hasBearerRecipient(String recipient) {
+		return recipient != null && bearerRecipients.contains(recipient);
+	}
+
+	/**
+	 * @return Conditions/@NotOnOrAfter, or <code>null</code>.
+	 */
+	public DateTime getConditionTime() {
+		return conditionTime;
+	}
+
+	/**
+	 * @return An unmodifiable list of all audiences in the assertion.
+	 */
+	public Collection<String> getAudience() {
+		return audience;
+	}
+
+	public int getAuthnStatementCount() {
+		return authnStatementCount;
+	}
+
+	/**
+	 * @return The SessionIndex of the first AuthnStatement, or <code>null</code>.
+	 */
+	public String getSessionIndex() {
+		return sessionIndex;
+	}
+
+	/**
+	 * @return The SessionNotOnOrAfter of the first AuthnStatement, or <code>null</code>.
+	 */
+	public DateTime getSessionNotOnOrAfter() {
+		return sessionNotOnOrAfter;
+	}
+
+	/**
+	 * @return The AuthnContextClassRef of the first AuthnStatement, or <code>null</code>.
+	 */
+	public String getAuthnContextClassRef() {
+		return authnContextClassRef;
+	}
+
+	public int getAttributeStatementCount() {
+		return attributeStatementCount;
+	}
+
+	public int getAuthzDecisionStatementCount() {
+		return authzDecisionStatementCount;
+	}
+
+	/**
+	 * @return The value of the AssuranceLevel attribute, or 0 if the assertion does not contain the attribute.
+	 */
+	public int getAssuranceLevel() {
+		return assuranceLevel;
+	}
+}
@@ -23,40 +23,38 @@
  */
 package dk.itst.oiosaml.sp.model;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
 
 import dk.itst.oiosaml.logging.Logger;
 import dk.itst.oiosaml.logging.LoggerFactory;
 import org.joda.time.DateTime;
 import org.opensaml.common.SAMLVersion;
 import org.opensaml.saml2.core.Assertion;
-import org.opensaml.saml2.core.Attribute;
-import org.opensaml.saml2.core.AttributeStatement;
-import org.opensaml.saml2.core.Audience;
-import org.opensaml.saml2.core.AudienceRestriction;
-import org.opensaml.saml2.core.AuthnContext;
-import org.opensaml.saml2.core.AuthnContextClassRef;
-import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.NameID;
 import org.opensaml.saml2.core.Response;
-import org.opensaml.saml2.core.SubjectConfirmation;
 import org.opensaml.saml2.core.SubjectConfirmationData;
+import org.opensaml.xml.XMLObject;
 
-import dk.itst.oiosaml.common.OIOSAMLConstants;
 import dk.itst.oiosaml.sp.model.validation.AssertionValidator;
 import dk.itst.oiosaml.sp.model.validation.ValidationException;
-import dk.itst.oiosaml.sp.util.AttributeUtil;
 
 public class OIOAssertion extends OIOSamlObject {
 	private static final Logger log = LoggerFactory.getLogger(OIOAssertion.class);
 	
 	private final Assertion assertion;
+	private volatile AssertionView view;
 
 	public OIOAssertion(Assertion assertion) {
 		super(assertion);
 		this.assertion = assertion;
 	}
+
+	/**
+	 * Constructor for subclasses which do not keep the assertion in memory. Such subclasses must override {@link #getAssertion()}.
+	 */
+	protected OIOAssertion() {
+		this.assertion = null;
+	}
 	
 	public static OIOAssertion fromResponse(Response response) {
 		if (response.getAssertions().isEmpty()) {
@@ -73,15 +71,26 @@ public class OIOAssertion extends OIOSamlObject {
 	 *         contain the element.
 	 */
 	public String getSubjectNameIDValue() {
-		String retVal = null;
-    	if (assertion.getSubject() != null && 
-        	assertion.getSubject().getNameID() != null) {
-        		retVal =  assertion.getSubject().getNameID().getValue();
-        }
-    	return retVal;
+		AssertionView v = view;
+		if (v != null) return v.getSubjectNameIDValue();
+		NameID nameID = AssertionView.getNameID(getAssertion());
+		return nameID != null ? nameID.getValue() : null;
 	}
 	
 	
+	/**
+	 * Return the Format of the /Subject/NameID element in an assertion
+	 * 
+	 * @return The format. <code>null</code>, if the assertion does not
+	 *         contain the element.
+	 */
+	public String getSubjectNameIDFormat() {
+		AssertionView v = view;
+		if (v != null) return v.getSubjectNameIDFormat();
+		NameID nameID = AssertionView.getNameID(getAssertion());
+		return nameID != null ? nameID.getFormat() : null;
+	}
+
 	/**
 	 * Check whether an assertion contains an assertionConsumerURL
 	 * within a subjectConfirmationData having the
@@ -92,18 +101,11 @@ public class OIOAssertion extends OIOSamlObject {
 	 *         otherwise.
 	 */
 	public boolean checkRecipient(String assertionConsumerURL) {
+		AssertionView v = view;
+		if (v != null) return v.hasBearerRecipient(assertionConsumerURL);
 		if (assertionConsumerURL == null) return false;
-		if (assertion.getSubject() == null) return false;
-		if (assertion.getSubject().getSubjectConfirmations() == null) return false;
-		
-		
-		for (SubjectConfirmation subjectConfirmation : assertion.getSubject().getSubjectConfirmations()) {
-			if (!OIOSAMLConstants.METHOD_BEARER.equals(subjectConfirmation.getMethod())) continue;
-
-			SubjectConfirmationData subjectConfirmationData = subjectConfirmation.getSubjectConfirmationData();
-			if (subjectConfirmationData == null) continue;
-			
-			if (assertionConsumerURL.equals(subjectConfirmationData.getRecipient())) {
+		for (SubjectConfirmationData data : AssertionView.getBearerConfirmations(getAssertion())) {
+			if (assertionConsumerURL.equals(data.getRecipient())) {
 				return true;
 			}
 		}
@@ -111,18 +113,8 @@ public class OIOAssertion extends OIOSamlObject {
 	}
 
 	public DateTime getConfirmationTime() {
-		if (assertion.getSubject() == null) return null;
-		if (assertion.getSubject().getSubjectConfirmations() == null || 
-				assertion.getSubject().getSubjectConfirmations().isEmpty()) return null;
-
-		for (SubjectConfirmation subjectConfirmation : assertion.getSubject().getSubjectConfirmations()) {
-			SubjectConfirmationData data = subjectConfirmation.getSubjectConfirmationData();
-
-			if (data != null && data.getNotOnOrAfter() != null) {
-				return data.getNotOnOrAfter();
-			}
-		}
-		return null;
+		AssertionView v = view;
+		return v != null ? v.getConfirmationTime() : AssertionView.getConfirmationTime(getAssertion());
 	}
 
 	
@@ -133,15 +125,8 @@ public class OIOAssertion extends OIOSamlObject {
 	 *         contain the element.
 	 */
 	public String getSessionIndex() {
-		String retVal = null;
-    	if (assertion != null && assertion.getAuthnStatements() != null) {
-    		if (assertion.getAuthnStatements().size() > 0) {
-    			// We only look into the first AuthnStatement
-    			AuthnStatement authnStatement = assertion.getAuthnStatements().get(0);
-    			retVal = authnStatement.getSessionIndex();
-    		}
-    	}
-    	return retVal;
+		AssertionView v = view;
+		return v != null ? v.getSessionIndex() : AssertionView.getSessionIndex(getAssertion());
 	}
 
 	/**
@@ -152,19 +137,19 @@ public class OIOAssertion extends OIOSamlObject {
 	 *         otherwise.
 	 */
 	public boolean hasSessionExpired() {
-		boolean retVal = false;
-    	if (assertion != null && assertion.getAuthnStatements() != null) {
-			if (assertion.getAuthnStatements().size() > 0) {
-				// We only look into the first AuthnStatement
-				AuthnStatement authnStatement = (AuthnStatement) assertion.getAuthnStatements().get(0);
-				if (authnStatement.getSessionNotOnOrAfter() != null) {
-					retVal = authnStatement.getSessionNotOnOrAfter().isBeforeNow();
-				} else {
-					retVal = false;
-				}
-			}
-		}
-		return retVal;
+		DateTime sessionNotOnOrAfter = getSessionNotOnOrAfter();
+		return sessionNotOnOrAfter != null && sessionNotOnOrAfter.isBeforeNow();
+	}
+
+	/**
+	 * Return the value of the /AuthnStatement@SessionNotOnOrAfter attribute in an assertion
+	 * 
+	 * @return The value. <code>null</code>, if the assertion does not
+	 *         contain the attribute.
+	 */
+	public DateTime getSessionNotOnOrAfter() {
+		AssertionView v = view;
+		return v != null ? v.getSessionNotOnOrAfter() : AssertionView.getSessionNotOnOrAfter(getAssertion());
 	}
 
 	/**
@@ -175,21 +160,8 @@ public class OIOAssertion extends OIOSamlObject {
 	 *         contain the element.
 	 */
 	public String getAuthnContextClassRef() {
-		String retVal = null;
-    	if (assertion.getAuthnStatements() != null) {
-    		if (assertion.getAuthnStatements().size() > 0) {
-    			// We only look into the first AuthnStatement
-    			AuthnStatement authnStatement = (AuthnStatement) assertion.getAuthnStatements().get(0);
-    			AuthnContext authnContext = authnStatement.getAuthnContext();
-    			if (authnContext != null) {
-    				AuthnContextClassRef authnContextClassRef = authnContext.getAuthnContextClassRef();
-    				if (authnContextClassRef != null) {
-    					retVal = authnContextClassRef.getAuthnContextClassRef();
-    				}
-    			}
-    		}
-    	}
-    	return retVal;
+		AssertionView v = view;
+		return v != null ? v.getAuthnContextClassRef() : AssertionView.getAuthnContextClassRef(getAssertion());
 	}
 
     /**
@@ -199,6 +171,7 @@ public class OIOAssertion extends OIOSamlObject {
      * @param spAssertionConsumerURL The assertion consumer URL of the service provider
      */
     public void validateAssertion(AssertionValidator validator, String spEntityID, String spAssertionConsumerURL) throws ValidationException {
+    	Assertion assertion = getAssertion();
     	try {
 			assertion.validate(false);
 		} catch (org.opensaml.xml.validation.ValidationException e) {
@@ -222,53 +195,63 @@ public class OIOAssertion extends OIOSamlObject {
     public Assertion getAssertion() {
     	return assertion;
     }
-    
-    public int getAssuranceLevel() {
-    	for (AttributeStatement attributeStatement : assertion.getAttributeStatements()) {
-    		for (Attribute attribute : attributeStatement.getAttributes()) {
-				if (OIOSAMLConstants.ATTRIBUTE_ASSURANCE_LEVEL_NAME.equals(attribute.getName())) {
-					String value = AttributeUtil.extractAttributeValueValue(attribute);
-					return new AssuranceLevel(value).getValue();
-				}
-			}
+
+	/**
+	 * Get the values of the assertion used for validation and login.
+	 * 
+	 * @return The view created by {@link #precomputeView()}, or a new view of the current state of the assertion if the view has not been precomputed.
+	 */
+	public AssertionView getView() {
+		AssertionView v = view;
+		return v != null ? v : new AssertionView(getAssertion());
+	}
+
+	/**
+	 * Create the view of the assertion and keep it, so all following calls to the accessors of this object read from the view instead of 
+	 * traversing the assertion. The assertion must not be modified after this method has been called.
+	 */
+	public AssertionView precomputeView() {
+		AssertionView v = view;
+		if (v == null) {
+			v = new AssertionView(getAssertion());
+			view = v;
 		}
-    	return 0;
+		return v;
+	}
+
+    @Override
+    protected XMLObject getXMLObject() {
+    	return getAssertion();
     }
     
+    public int getAssuranceLevel() {
+		AssertionView v = view;
+		return v != null ? v.getAssuranceLevel() : AssertionView.getAssuranceLevel(getAssertion());
+	}
+    
     public String getID() {
-    	return assertion.getID();
-    }
+		AssertionView v = view;
+		return v != null ? v.getID() : getAssertion().getID();
+	}
     
 	public boolean isHolderOfKey() {
-		if (assertion.getSubject() == null) return false;
-		if (assertion.getSubject().getSubjectConfirmations().isEmpty()) return false;
-		
-		return OIOSAMLConstants.METHOD_HOK.equals(assertion.getSubject().getSubjectConfirmations().get(0).getMethod());
+		AssertionView v = view;
+		return v != null ? v.isHolderOfKey() : AssertionView.isHolderOfKey(getAssertion());
 	}
 	
 	public Collection<String> getAudience() {
-		List<String> audiences = new ArrayList<String>();
-		
-		if (assertion.getConditions() == null) return audiences;
-		
-		for (AudienceRestriction audienceRestriction : assertion.getConditions().getAudienceRestrictions()) {
-			for (Audience audience : audienceRestriction.getAudiences()) {
-				audiences.add(audience.getAudienceURI());
-			}
-		}
-		
-		return audiences;
+		AssertionView v = view;
+		return v != null ? v.getAudience() : AssertionView.getAudience(getAssertion());
 	}
 
 	public DateTime getConditionTime() {
-		if (assertion.getConditions() == null) return null;
-		
-		DateTime notOnOrAfter = assertion.getConditions().getNotOnOrAfter();
-		return notOnOrAfter;
+		AssertionView v = view;
+		return v != null ? v.getConditionTime() : AssertionView.getConditionTime(getAssertion());
 	}
 
 	public String getIssuer() {
-		return assertion.getIssuer().getValue();
+		AssertionView v = view;
+		return v != null ? v.getIssuer() : AssertionView.getIssuer(getAssertion());
 	}
 	
 
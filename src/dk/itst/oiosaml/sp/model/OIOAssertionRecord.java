@@ -0,0 +1,313 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.xml.util.XMLHelper;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.service.util.Utils;
+import dk.itst.oiosaml.sp.util.AttributeUtil;
+
+/**
+ * Compact record of an assertion, used for keeping logged in sessions in memory.
+ * 
+ * <p>The record only holds the values which are read while a session is active: the assertion id, issuer, NameID, session index,
+ * session expiry, authentication context and assurance level. The original assertion XML can optionally be kept in deflated form.</p>
+ * 
+ * <p>{@link #getAssertion()} recreates the {@link Assertion}, either by parsing the retained XML or, if the XML has not been kept, from the
+ * values in the record. The rebuilt assertion is not signed. It is cached using a soft reference, so it is only parsed again if the memory
+ * is needed, and it must not be modified by the caller.</p>
+ */
+public class OIOAssertionRecord extends OIOAssertion {
+	private static final int FORMAT_VERSION = 1;
+
+	private final String id;
+	private final String issuer;
+	private final String nameIDValue;
+	private final String nameIDFormat;
+	private final String sessionIndex;
+	private final String authnContextClassRef;
+	private final long sessionNotOnOrAfter;
+	private final int assuranceLevel;
+	private final byte[] xml;
+	private volatile SoftReference<Assertion> cached;
+
+	/**
+	 * @param assertion The assertion to create a record of.
+	 * @param retainXml Keep the assertion XML in compressed form, so the original assertion can be recreated.
+	 */
+	public OIOAssertionRecord(OIOAssertion assertion, boolean retainXml) {
+		id = assertion.getID();
+		Assertion a = assertion.getAssertion();
+		issuer = a.getIssuer() != null ? a.getIssuer().getValue() : null;
+		nameIDValue = assertion.getSubjectNameIDValue();
+		nameIDFormat = assertion.getSubjectNameIDFormat();
+		sessionIndex = assertion.getSessionIndex();
+		authnContextClassRef = assertion.getAuthnContextClassRef();
+		sessionNotOnOrAfter = getSessionNotOnOrAfter(a);
+		assuranceLevel = assertion.getAssuranceLevel();
+		xml = retainXml ? Utils.deflate(XMLHelper.nodeToString(SAMLUtil.marshallObject(a))) : null;
+	}
+
+	private OIOAssertionRecord(String id, String issuer, String nameIDValue, String nameIDFormat, String sessionIndex, String authnContextClassRef,
+			long sessionNotOnOrAfter, int assuranceLevel, byte[] xml) {
+		this.id = id;
+		this.issuer = issuer;
+		this.nameIDValue = nameIDValue;
+		this.nameIDFormat = nameIDFormat;
+		this.sessionIndex = sessionIndex;
+		this.authnContextClassRef = authnContextClassRef;
+		this.sessionNotOnOrAfter = sessionNotOnOrAfter;
+		this.assuranceLevel = assuranceLevel;
+		this.xml = xml;
+	}
+
+	/**
+	 * Create a record of an assertion. If the assertion is already a record, it is returned as is.
+	 */
+	public static OIOAssertionRecord valueOf(OIOAssertion assertion, boolean retainXml) {
+		if (assertion instanceof OIOAssertionRecord) {
+			return (OIOAssertionRecord) assertion;
+		}
+		return new OIOAssertionRecord(assertion, retainXml);
+	}
+
+	private static long getSessionNotOnOrAfter(Assertion assertion) {
+		if (assertion.getAuthnStatements().isEmpty()) return Long.MAX_VALUE;
+
+		// We only look into the first AuthnStatement
+		DateTime time = assertion.getAuthnStatements().get(0).getSessionNotOnOrAfter();
+		return time != null ? time.getMillis() : Long.MAX_VALUE;
+	}
+
+	@Override
+	public String getID() {
+		return id;
+	}
+
+	@Override
+	public String getIssuer() {
+		return issuer;
+	}
+
+	@Override
+	public String getSubjectNameIDValue() {
+		return nameIDValue;
+	}
+
+	@Override
+	public String getSubjectNameIDFormat() {
+		return nameIDFormat;
+	}
+
+	@Override
+	public String getSessionIndex() {
+		return sessionIndex;
+	}
+
+	@Override
+	public String getAuthnContextClassRef() {
+		return authnContextClassRef;
+	}
+
+	@Override
+	public boolean hasSessionExpired() {
+		return sessionNotOnOrAfter != Long.MAX_VALUE && sessionNotOnOrAfter < System.currentTimeMillis();
+	}
+
+	@Override
+	public DateTime getSessionNotOnOrAfter() {
+		return sessionNotOnOrAfter != Long.MAX_VALUE ? new DateTime(sessionNotOnOrAfter) : null;
+	}
+
+	@Override
+	public int getAssuranceLevel() {
+		return assuranceLevel;
+	}
+
+	/**
+	 * @return <code>true</code> if the original assertion XML has been kept.
+	 */
+	public boolean isXmlRetained() {
+		return xml != null;
+	}
+
+	/**
+	 * Recreate the assertion. The same instance is returned until it has been garbage collected.
+	 */
+	@Override
+	public Assertion getAssertion() {
+		SoftReference<Assertion> ref = cached;
+		Assertion a = ref != null ? ref.get() : null;
+		if (a == null) {
+			a = xml != null ? parse() : build();
+			cached = new SoftReference<Assertion>(a);
+		}
+		return a;
+	}
+
+	private Assertion parse() {
+		Inflater inflater = new Inflater(true);
+		try {
+			return (Assertion) SAMLUtil.unmarshallElement(new InflaterInputStream(new ByteArrayInputStream(xml), inflater));
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private Assertion build() {
+		Assertion assertion = SAMLUtil.buildXMLObject(Assertion.class);
+		assertion.setID(id);
+		assertion.setVersion(SAMLVersion.VERSION_20);
+		if (issuer != null) {
+			assertion.setIssuer(SAMLUtil.createIssuer(issuer));
+		}
+		if (nameIDValue != null) {
+			Subject subject = SAMLUtil.buildXMLObject(Subject.class);
+			NameID nameID = SAMLUtil.createNameID(nameIDValue);
+			nameID.setFormat(nameIDFormat);
+			subject.setNameID(nameID);
+			assertion.setSubject(subject);
+		}
+		if (sessionIndex != null || authnContextClassRef != null || sessionNotOnOrAfter != Long.MAX_VALUE) {
+			AuthnStatement authnStatement = SAMLUtil.buildXMLObject(AuthnStatement.class);
+			authnStatement.setSessionIndex(sessionIndex);
+			if (sessionNotOnOrAfter != Long.MAX_VALUE) {
+				authnStatement.setSessionNotOnOrAfter(new DateTime(sessionNotOnOrAfter, DateTimeZone.UTC));
+			}
+			if (authnContextClassRef != null) {
+				authnStatement.setAuthnContext(SAMLUtil.createAuthnContext(authnContextClassRef));
+			}
+			assertion.getAuthnStatements().add(authnStatement);
+		}
+		if (assuranceLevel != 0) {
+			AttributeStatement attributeStatement = SAMLUtil.buildXMLObject(AttributeStatement.class);
+			attributeStatement.getAttributes().add(AttributeUtil.createAssuranceLevel(assuranceLevel));
+			assertion.getAttributeStatements().add(attributeStatement);
+		}
+		return assertion;
+	}
+
+	/**
+	 * @return The estimated number of bytes used by the record on the heap.
+	 */
+	public int getEstimatedSize() {
+		int size = 64;
+		for (String value : new String[] { id, issuer, nameIDValue, nameIDFormat, sessionIndex, authnContextClassRef }) {
+			if (value != null) {
+				size += 40 + 2 * value.length();
+			}
+		}
+		if (xml != null) {
+			size += 16 + xml.length;
+		}
+		return size;
+	}
+
+	/**
+	 * @return A copy of the record without the assertion XML.
+	 */
+	public OIOAssertionRecord withoutXml() {
+		if (xml == null) return this;
+		return new OIOAssertionRecord(id, issuer, nameIDValue, nameIDFormat, sessionIndex, authnContextClassRef, sessionNotOnOrAfter, assuranceLevel, null);
+	}
+
+	/**
+	 * Write the record in a binary format which can be read using {@link #readFrom(DataInput)}.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeByte(FORMAT_VERSION);
+		writeString(out, id);
+		writeString(out, issuer);
+		writeString(out, nameIDValue);
+		writeString(out, nameIDFormat);
+		writeString(out, sessionIndex);
+		writeString(out, authnContextClassRef);
+		out.writeLong(sessionNotOnOrAfter);
+		out.writeInt(assuranceLevel);
+		if (xml != null) {
+			out.writeInt(xml.length);
+			out.write(xml);
+		} else {
+			out.writeInt(-1);
+		}
+	}
+
+	/**
+	 * Read a record written by {@link #writeTo(DataOutput)}.
+	 */
+	public static OIOAssertionRecord readFrom(DataInput in) throws IOException {
+		int version = in.readByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported record format " + version);
+		}
+		String id = readString(in);
+		String issuer = readString(in);
+		String nameIDValue = readString(in);
+		String nameIDFormat = readString(in);
+		String sessionIndex = readString(in);
+		String authnContextClassRef = readString(in);
+		long sessionNotOnOrAfter = in.readLong();
+		int assuranceLevel = in.readInt();
+		byte[] xml = null;
+		int length = in.readInt();
+		if (length >= 0) {
+			xml = new byte[length];
+			in.readFully(xml);
+		}
+		return new OIOAssertionRecord(id, issuer, nameIDValue, nameIDFormat, sessionIndex, authnContextClassRef, sessionNotOnOrAfter, assuranceLevel, xml);
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	@Override
+	public String toString() {
+		return "Assertion record: " + id + ", issuer: " + issuer + ", sessionIndex: " + sessionIndex;
+	}
+}
@@ -55,10 +55,19 @@ public class OIOAuthnRequest extends OIORequest {
 	
 	
 	public static OIOAuthnRequest buildAuthnRequest(String ssoServiceLocation, String spEntityId, String protocolBinding, SessionHandler handler, String relayState, String assertionConsumerUrl) {
+		return buildAuthnRequest(ssoServiceLocation, spEntityId, protocolBinding, handler, relayState, assertionConsumerUrl, Utils.generateUUID());
+	}
+
+	/**
+	 * Build a new AuthnRequest with a given id.
+	 * 
+	 * @param id The request id. This must be a valid xs:ID.
+	 */
+	public static OIOAuthnRequest buildAuthnRequest(String ssoServiceLocation, String spEntityId, String protocolBinding, SessionHandler handler, String relayState, String assertionConsumerUrl, String id) {
 		AuthnRequest authnRequest = SAMLUtil.buildXMLObject(AuthnRequest.class);
 
 		authnRequest.setIssuer(SAMLUtil.createIssuer(spEntityId));
-		authnRequest.setID(Utils.generateUUID());
+		authnRequest.setID(id);
 		authnRequest.setForceAuthn(Boolean.FALSE);
 		authnRequest.setIssueInstant(new DateTime(DateTimeZone.UTC));
 		authnRequest.setProtocolBinding(protocolBinding);
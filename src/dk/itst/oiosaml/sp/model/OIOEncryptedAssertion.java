@@ -71,7 +71,10 @@ public class OIOEncryptedAssertion {
 			assertion = (Assertion) SAMLUtil.unmarshallElementFromString(res.toXML());
 			if (log.isDebugEnabled()) log.debug("Decrypted assertion: " + res.toXML());
 
-			return new OIOAssertion(assertion);
+			res = new OIOAssertion(assertion);
+			// extract the values used for validation and login while the assertion is fresh
+			res.precomputeView();
+			return res;
 		} catch (DecryptionException e) {
 			throw new ValidationException(e);
 		}
@@ -178,21 +178,41 @@ public class OIOLogoutRequest extends OIORequest {
 	 * @param logoutServiceLocation Destination for the logout request.
 	 * @param issuerEntityId Entity ID of the issuing entity.
 	 */
-	@SuppressWarnings("deprecation")
 	public static OIOLogoutRequest buildLogoutRequest(HttpSession session, String logoutServiceLocation, String issuerEntityId, SessionHandler handler) {
+		return buildLogoutRequest(session, logoutServiceLocation, issuerEntityId, handler, Utils.generateUUID());
+	}
+
+	/**
+	 * Generate a new LogoutRequest with a given id.
+	 * 
+	 * @param id The request id. This must be a valid xs:ID.
+	 */
+	public static OIOLogoutRequest buildLogoutRequest(HttpSession session, String logoutServiceLocation, String issuerEntityId, SessionHandler handler, String id) {
+		return buildLogoutRequest(handler.getAssertion(session.getId()), logoutServiceLocation, issuerEntityId, id);
+	}
+
+	/**
+	 * Generate a new LogoutRequest for an assertion.
+	 * 
+	 * @param assertion The active assertion, or <code>null</code> if the session is not logged in.
+	 * @param logoutServiceLocation Destination for the logout request.
+	 * @param issuerEntityId Entity ID of the issuing entity.
+	 * @param id The request id. This must be a valid xs:ID.
+	 */
+	@SuppressWarnings("deprecation")
+	public static OIOLogoutRequest buildLogoutRequest(OIOAssertion assertion, String logoutServiceLocation, String issuerEntityId, String id) {
 		LogoutRequest logoutRequest = new LogoutRequestBuilder().buildObject();
 
-		logoutRequest.setID(Utils.generateUUID());
+		logoutRequest.setID(id);
 		logoutRequest.setIssueInstant(new DateTime(DateTimeZone.UTC));
 		logoutRequest.addNamespace(OIOSAMLConstants.SAML20_NAMESPACE);
 		logoutRequest.setDestination(logoutServiceLocation);
 		logoutRequest.setReason("urn:oasis:names:tc:SAML:2.0:logout:user");
 		logoutRequest.setIssuer(SAMLUtil.createIssuer(issuerEntityId));
 
-		OIOAssertion assertion = handler.getAssertion(session.getId());
 		if (assertion != null) {
 			NameID nameID = SAMLUtil.createNameID(assertion.getSubjectNameIDValue());
-			nameID.setFormat(assertion.getAssertion().getSubject().getNameID().getFormat());
+			nameID.setFormat(assertion.getSubjectNameIDFormat());
 			logoutRequest.setNameID(nameID);
 			SessionIndex sessionIndex = new SessionIndexBuilder().buildObject();
 			logoutRequest.getSessionIndexes().add(sessionIndex);
@@ -35,6 +35,7 @@ import org.opensaml.saml2.core.StatusCode;
 import org.opensaml.xml.security.credential.Credential;
 
 import dk.itst.oiosaml.sp.model.validation.ValidationException;
+import dk.itst.oiosaml.sp.service.session.RequestIdSigner;
 import dk.itst.oiosaml.sp.service.session.SessionHandler;
 
 /**
@@ -64,6 +65,17 @@ public class OIOResponse extends OIOAbstractResponse {
 	 * @throws ValidationException If the response is unsolicited and does not contain an issuer.
 	 */
 	public String getOriginatingIdpEntityId(SessionHandler handler) {
+		return getOriginatingIdpEntityId(handler, null);
+	}
+
+	/**
+	 * Get the id of the issuing entity.
+	 * @param handler Handler which holds sent request ids. This is used if the response has a InResponseTo.
+	 * @param signer Signer used to validate signed request ids, or <code>null</code> if signed ids are not enabled.
+	 * 
+	 * @throws ValidationException If the response is unsolicited and does not contain an issuer.
+	 */
+	public String getOriginatingIdpEntityId(SessionHandler handler, RequestIdSigner signer) {
 		if (response.getInResponseTo() == null) {
 			Issuer issuer = null;
 			if (!response.getAssertions().isEmpty()) {
@@ -78,7 +90,7 @@ public class OIOResponse extends OIOAbstractResponse {
 			}
 			return issuer.getValue();
 		} else {
-			return handler.removeEntityIdForRequest(response.getInResponseTo());
+			return RequestIdSigner.removeEntityIdForRequest(signer, handler, response.getInResponseTo());
 		}
 	}
 	
@@ -126,11 +138,11 @@ public class OIOResponse extends OIOAbstractResponse {
 	 * Get the response assertion.
 	 */
 	public OIOAssertion getAssertion() {
-		if (assertion != null) {
-			if (log.isDebugEnabled()) log.debug("Found encrypted assertion, returning decrypted");
-			return assertion;
+		if (assertion == null) {
+			// keep the wrapper, so a precomputed view is reused
+			assertion = OIOAssertion.fromResponse(response);
 		}
-		return OIOAssertion.fromResponse(response);
+		return assertion;
 	}
 	
 	
@@ -74,16 +74,31 @@ public class OIOSamlObject {
 
 		this.obj = obj;
 	}
+
+	/**
+	 * Constructor for subclasses which do not keep the SAML object in memory. Such subclasses must override {@link #getXMLObject()}.
+	 */
+	protected OIOSamlObject() {
+		this.obj = null;
+	}
+
+	/**
+	 * Get the wrapped SAML object.
+	 */
+	protected XMLObject getXMLObject() {
+		return obj;
+	}
 	
 	@Override
 	public String toString() {
-		return "Object: " + obj;
+		return "Object: " + getXMLObject();
 	}
 	
 	/**
 	 * Get an XML representation of the object.
 	 */
 	public String toXML() {
+		XMLObject obj = getXMLObject();
 		Element e = SAMLUtil.marshallObject(obj);
 		return XMLHelper.nodeToString(e);
 	}
@@ -98,6 +113,7 @@ public class OIOSamlObject {
 	 */
 	@SuppressWarnings("deprecation")
 	public void sign(Credential signingCredential) {
+		XMLObject obj = getXMLObject();
 		Signature signature = SAMLUtil.buildXMLObject(Signature.class);
 		if (!(obj instanceof SignableSAMLObject)) {
 			throw new IllegalStateException("Object of type " + obj.getClass() + " is not signable");
@@ -138,6 +154,7 @@ public class OIOSamlObject {
 	 * @return The XML representation encoded with base64. 
 	 */
 	public String toBase64() {
+		XMLObject obj = getXMLObject();
 		Element element = SAMLUtil.marshallObject(obj);
 		String xml = XMLHelper.nodeToString(element);
 		return Base64.encodeBytes(xml.getBytes(), Base64.DONT_BREAK_LINES);
@@ -148,6 +165,7 @@ public class OIOSamlObject {
 	 * Check if the object has a signature.
 	 */
 	public boolean hasSignature() {
+		XMLObject obj = getXMLObject();
 		if (!(obj instanceof SignableSAMLObject)) return false;
 		return ((SignableSAMLObject)obj).getSignature() != null;
 	}
@@ -159,6 +177,7 @@ public class OIOSamlObject {
 	 * 	Returns <code>false</code> if the object is not signed at all.
 	 */
 	public boolean verifySignature(PublicKey publicKey) {
+		XMLObject obj = getXMLObject();
 		if (publicKey == null) {
 			throw new IllegalArgumentException("Certificate cannot be null");
 		}
@@ -200,6 +219,7 @@ public class OIOSamlObject {
 	}
 
 	public String toSoapEnvelope() {
+		XMLObject obj = getXMLObject();
 		Body body = SAMLUtil.buildXMLObject(Body.class);
 		body.getUnknownXMLObjects().add(obj);
 
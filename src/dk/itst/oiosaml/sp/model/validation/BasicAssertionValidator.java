@@ -24,37 +24,36 @@
 package dk.itst.oiosaml.sp.model.validation;
 
 import org.joda.time.DateTime;
-import org.opensaml.saml2.core.Assertion;
 
+import dk.itst.oiosaml.sp.model.AssertionView;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
 
 public class BasicAssertionValidator implements AssertionValidator {
 
 	public void validate(OIOAssertion assertion, String spEntityId, String spAssertionConsumerURL) throws ValidationException {
-		Assertion a = assertion.getAssertion();
+		AssertionView view = assertion.getView();
 		
     	// There must be an IssueInstant
-    	if (a.getIssueInstant() == null) {  
+    	if (view.getIssueInstant() == null) {  
     		throw new ValidationException("The assertion must contain a IssueInstant");
     	}
 
     	// There must be an Issuer
-    	if (a.getIssuer() == null ||
-    		a.getIssuer().getValue() == null) {  
+    	if (view.getIssuer() == null) {  
     		throw new ValidationException("The assertion must contain an Issuer");
     	}
 
     	// There must be a Subject/NameID
-    	if (assertion.getSubjectNameIDValue() == null) {  
+    	if (view.getSubjectNameIDValue() == null) {  
     		throw new ValidationException("The assertion must contain a Subject/NameID");
     	}
 		
     	// There must be a valid audience
-    	if (!assertion.getAudience().contains(spEntityId)) {
-    		throw new ValidationException("The assertion must contain the service provider "+spEntityId+" within the Audience list: " + assertion.getAudience());
+    	if (!view.getAudience().contains(spEntityId)) {
+    		throw new ValidationException("The assertion must contain the service provider "+spEntityId+" within the Audience list: " + view.getAudience());
     	}
 
-    	DateTime conditionTime = assertion.getConditionTime();
+    	DateTime conditionTime = view.getConditionTime();
     	if (conditionTime == null || !conditionTime.isAfterNow()) {
     		throw new ValidationException("Condition NotOnOrAfter is after now: " + conditionTime);
     	}
@@ -26,12 +26,9 @@ package dk.itst.oiosaml.sp.model.validation;
 import dk.itst.oiosaml.logging.Logger;
 import dk.itst.oiosaml.logging.LoggerFactory;
 import org.joda.time.DateTime;
-import org.opensaml.saml2.core.Assertion;
-import org.opensaml.saml2.core.AuthnContext;
-import org.opensaml.saml2.core.AuthnContextClassRef;
-import org.opensaml.saml2.core.AuthnStatement;
 
 import dk.itst.oiosaml.common.OIOSAMLConstants;
+import dk.itst.oiosaml.sp.model.AssertionView;
 import dk.itst.oiosaml.sp.model.AssuranceLevel;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
 
@@ -41,28 +38,20 @@ public class OIOSAMLAssertionValidator extends BasicAssertionValidator {
 	public void validate(OIOAssertion assertion, String spEntityId, String spAssertionConsumerURL) throws ValidationException {
 		super.validate(assertion, spEntityId, spAssertionConsumerURL);
 		
-		Assertion a = assertion.getAssertion();
+		AssertionView view = assertion.getView();
 		
-		DateTime confirmationTime = assertion.getConfirmationTime();
+		DateTime confirmationTime = view.getConfirmationTime();
 		if (confirmationTime == null || !confirmationTime.isAfterNow()) {
 			throw new ValidationException("Subject Confirmation Data is expired: " + confirmationTime + " before " + new DateTime());
 		}
 
     	// There must be only be one AuthnStatement within the assertion
-    	if (a.getAuthnStatements().size() != 1) {  
-    		throw new ValidationException("The assertion must contain exactly one AuthnStatement. Was " + a.getAuthnStatements().size());
+    	if (view.getAuthnStatementCount() != 1) {  
+    		throw new ValidationException("The assertion must contain exactly one AuthnStatement. Was " + view.getAuthnStatementCount());
     	}
     	// AssuranceLevel and AuthnStatement/AuthnContext/AuthnContextClassRef must be consistent
-    	int assuranceLevel = assertion.getAssuranceLevel();
-    	String authnContextClassRefValue = null;
-    	AuthnStatement authnStatement = (AuthnStatement) a.getAuthnStatements().get(0);
-    	AuthnContext authnContext = authnStatement.getAuthnContext();
-    	if (authnContext != null) {
-    		AuthnContextClassRef authnContextClassRef = authnContext.getAuthnContextClassRef();
-    		if (authnContextClassRef != null) {
-    			authnContextClassRefValue = authnContextClassRef.getAuthnContextClassRef();
-    		}
-    	}
+    	int assuranceLevel = view.getAssuranceLevel();
+    	String authnContextClassRefValue = view.getAuthnContextClassRef();
     	if (assuranceLevel == AssuranceLevel.PASSWORD_ASSURANCE_LEVEL && 
     		!OIOSAMLConstants.PASSWORD_AUTHN_CONTEXT_CLASS_REF.equals(authnContextClassRefValue)) {
     		log.warn("The assuranceLevel attribute " + assuranceLevel + "  in the assertion does not correspond with the value of AuthnStatement/AuthnContext/AuthnContextClassRef: " + authnContextClassRefValue);
@@ -72,27 +61,27 @@ public class OIOSAMLAssertionValidator extends BasicAssertionValidator {
        	}
     	
     	// There must be a SessionIndex
-    	if (assertion.getSessionIndex() == null) {  
+    	if (view.getSessionIndex() == null) {  
     		throw new ValidationException("The assertion must contain a AuthnStatement@SessionIndex");
     	}
     	// There must be exactly one AttributeStatement within the assertion
-    	if (a.getAttributeStatements().size() != 1) {  
-    		throw new ValidationException("The assertion must contain exactly one AttributeStatement. Contains " + a.getAttributeStatements().size());
+    	if (view.getAttributeStatementCount() != 1) {  
+    		throw new ValidationException("The assertion must contain exactly one AttributeStatement. Contains " + view.getAttributeStatementCount());
     	}
     	// There must not be a AttributeStatement within the assertion
-    	if (a.getAuthzDecisionStatements().size() != 0) {  
-    		throw new ValidationException("The assertion must not contain a AuthzDecisionStatement. Contains " + a.getAuthzDecisionStatements().size());
+    	if (view.getAuthzDecisionStatementCount() != 0) {  
+    		throw new ValidationException("The assertion must not contain a AuthzDecisionStatement. Contains " + view.getAuthzDecisionStatementCount());
     	}
 
     	// There must be a valid recipient
-    	if (!assertion.checkRecipient(spAssertionConsumerURL)) {
+    	if (!view.hasBearerRecipient(spAssertionConsumerURL)) {
     		throw new ValidationException("The assertion must contain the recipient "+ spAssertionConsumerURL);
     	}
     	
     	// Session must not have expired
-    	if (authnStatement.getSessionNotOnOrAfter() != null &&
-    		!authnStatement.getSessionNotOnOrAfter().isAfterNow()) {  
-    		throw new ValidationException("The assertion must have a AuthnStatement@SessionNotOnOrAfter and it must not have expired. SessionNotOnOrAfter: " + authnStatement.getSessionNotOnOrAfter());
+    	if (view.getSessionNotOnOrAfter() != null &&
+    		!view.getSessionNotOnOrAfter().isAfterNow()) {  
+    		throw new ValidationException("The assertion must have a AuthnStatement@SessionNotOnOrAfter and it must not have expired. SessionNotOnOrAfter: " + view.getSessionNotOnOrAfter());
     	}
 	}
 
@@ -55,6 +55,9 @@ import dk.itst.oiosaml.sp.bindings.DefaultBindingHandlerFactory;
 import dk.itst.oiosaml.sp.configuration.ConfigurationHandler;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata;
 import dk.itst.oiosaml.sp.metadata.SPMetadata;
+import dk.itst.oiosaml.sp.service.session.CookieSessionHandler;
+import dk.itst.oiosaml.sp.service.session.RequestCookie;
+import dk.itst.oiosaml.sp.service.session.SessionCookie;
 import dk.itst.oiosaml.sp.service.session.SessionHandler;
 import dk.itst.oiosaml.sp.service.session.SessionHandlerFactory;
 import dk.itst.oiosaml.sp.service.util.Constants;
@@ -86,6 +89,9 @@ public class DispatcherServlet extends HttpServlet {
 	private BindingHandlerFactory bindingHandlerFactory;
 
 	private SessionHandlerFactory sessionHandlerFactory;
+	private SessionCookie sessionCookie;
+	private RequestCookie requestCookie;
+	private boolean lazySessions;
 	private ServletContext servletContext;
 
 	@Override
@@ -135,6 +141,9 @@ public class DispatcherServlet extends HttpServlet {
 				setSPMetadata(SPMetadata.getInstance());
 				setCredential(new CredentialRepository().getCredential(SAMLConfigurationFactory.getConfiguration()
 						.getKeystore(), configuration.getString(Constants.PROP_CERTIFICATE_PASSWORD)));
+				sessionCookie = SessionCookie.getInstance(configuration);
+				requestCookie = RequestCookie.getInstance(configuration);
+				lazySessions = configuration.getBoolean(Constants.PROP_LAZY_SESSION, false);
 
 				initialized = true;
 			}
@@ -168,15 +177,15 @@ public class DispatcherServlet extends HttpServlet {
 		}
 
 		String action = req.getRequestURI().substring(req.getRequestURI().lastIndexOf("/") + 1);
-		Audit.init(req);
+		Audit.init(req, !lazySessions);
 
 		// This is needed if DispatcherServlet isn't protected
 		// by the SPFilter
 		if (handlers.containsKey(action)) {
 			try {
 				SAMLHandler handler = handlers.get(action);
-				SessionHandler sessionHandler = sessionHandlerFactory != null ? sessionHandlerFactory.getHandler()
-						: null;
+				SessionHandler sessionHandler = sessionHandlerFactory != null ? CookieSessionHandler.wrap(
+						sessionHandlerFactory.getHandler(), sessionCookie, requestCookie, req, res) : null;
 				RequestContext context = new RequestContext(req, res, idpMetadata, spMetadata, credential,
 						configuration, sessionHandler, bindingHandlerFactory);
 				handler.handleGet(context);
@@ -198,15 +207,15 @@ public class DispatcherServlet extends HttpServlet {
 		}
 
 		String action = req.getRequestURI().substring(req.getRequestURI().lastIndexOf("/") + 1);
-		Audit.init(req);
+		Audit.init(req, !lazySessions);
 
 		// This is needed if DispatcherServlet isn't protected
 		// by the SPFilter
 		if (handlers.containsKey(action)) {
 			try {
 				SAMLHandler handler = handlers.get(action);
-				SessionHandler sessionHandler = sessionHandlerFactory != null ? sessionHandlerFactory.getHandler()
-						: null;
+				SessionHandler sessionHandler = sessionHandlerFactory != null ? CookieSessionHandler.wrap(
+						sessionHandlerFactory.getHandler(), sessionCookie, requestCookie, req, res) : null;
 				RequestContext context = new RequestContext(req, res, idpMetadata, spMetadata, credential,
 						configuration, sessionHandler, bindingHandlerFactory);
 				handler.handlePost(context);
@@ -255,6 +264,14 @@ public class DispatcherServlet extends HttpServlet {
 		this.sessionHandlerFactory = sessionHandlerFactory;
 	}
 
+	public void setSessionCookie(SessionCookie sessionCookie) {
+		this.sessionCookie = sessionCookie;
+	}
+
+	public void setRequestCookie(RequestCookie requestCookie) {
+		this.requestCookie = requestCookie;
+	}
+
 	/*
 	 * Generic error handling for SAML requests/responses - due to a security
 	 * issue with XML Encryption, all error messages are anonymized - so
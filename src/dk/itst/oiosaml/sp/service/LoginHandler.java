@@ -50,8 +50,10 @@ import dk.itst.oiosaml.sp.bindings.BindingHandler;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
 import dk.itst.oiosaml.sp.model.OIOAuthnRequest;
+import dk.itst.oiosaml.sp.service.session.RequestIdSigner;
 import dk.itst.oiosaml.sp.service.util.Constants;
 import dk.itst.oiosaml.sp.service.util.HTTPUtils;
+import dk.itst.oiosaml.sp.service.util.PathRules;
 
 public class LoginHandler implements SAMLHandler {
 	private static final Logger log = LoggerFactory.getLogger(LoginHandler.class);
@@ -124,13 +126,18 @@ public class LoginHandler implements SAMLHandler {
 		BindingHandler bindingHandler = context.getBindingHandlerFactory().getBindingHandler(signonLocation.getBinding());
 		log.info("Using idp " + metadata.getEntityID() + " at " + signonLocation.getLocation() + " with binding " + signonLocation.getBinding());
 
-		HttpSession session = context.getSession();
-		UserAssertion ua = (UserAssertion) session.getAttribute(Constants.SESSION_USER_ASSERTION);
-		session.removeAttribute(Constants.SESSION_USER_ASSERTION);
+		// with lazy sessions, do not create a session here, the request might not be authenticated at all
+		HttpSession session = conf.getBoolean(Constants.PROP_LAZY_SESSION, false) ? context.getSession(false) : context.getSession();
+		UserAssertion ua = null;
+		if (session != null) {
+			ua = (UserAssertion) session.getAttribute(Constants.SESSION_USER_ASSERTION);
+			session.removeAttribute(Constants.SESSION_USER_ASSERTION);
+		}
 		UserAssertionHolder.set(null);
 
 		String relayState = context.getRequest().getParameter(Constants.SAML_RELAYSTATE);
-		OIOAuthnRequest authnRequest = OIOAuthnRequest.buildAuthnRequest(signonLocation.getLocation(), context.getSpMetadata().getEntityID(), context.getSpMetadata().getDefaultAssertionConsumerService().getBinding(), context.getSessionHandler(), relayState, context.getSpMetadata().getDefaultAssertionConsumerService().getLocation());
+		String id = RequestIdSigner.registerRequest(RequestIdSigner.getInstance(conf), context.getSessionHandler(), metadata.getEntityID());
+		OIOAuthnRequest authnRequest = OIOAuthnRequest.buildAuthnRequest(signonLocation.getLocation(), context.getSpMetadata().getEntityID(), context.getSpMetadata().getDefaultAssertionConsumerService().getBinding(), context.getSessionHandler(), relayState, context.getSpMetadata().getDefaultAssertionConsumerService().getLocation(), id);
 		authnRequest.setNameIDPolicy(conf.getString(Constants.PROP_NAMEID_POLICY, null), conf.getBoolean(Constants.PROP_NAMEID_POLICY_ALLOW_CREATE, false));
 		authnRequest.setForceAuthn(isForceAuthnEnabled(request, conf));
 
@@ -139,7 +146,6 @@ public class LoginHandler implements SAMLHandler {
 		}
 		Audit.log(Operation.AUTHNREQUEST_SEND, true, authnRequest.getID(), authnRequest.toXML());
 
-		context.getSessionHandler().registerRequest(authnRequest.getID(), metadata.getEntityID());
 		bindingHandler.handle(request, response, context.getCredential(), authnRequest);
 	}
 
@@ -148,21 +154,13 @@ public class LoginHandler implements SAMLHandler {
 	}
 
 	private boolean isForceAuthnEnabled(HttpServletRequest servletRequest, Configuration conf) {
-		String[] urls = conf.getStringArray(Constants.PROP_FORCE_AUTHN_URLS);
-		if (urls == null) return false;
-		
 		String path = servletRequest.getPathInfo();
 		if (path == null) {
 			path = "/";
 		}
-		if (log.isDebugEnabled()) log.debug("ForceAuthn urls: " + Arrays.toString(urls) + "; path: " + path);
-		
-		
-		for (String url : urls) {
-			if (path.matches(url.trim())) {
-				if (log.isDebugEnabled()) log.debug("Requested url " + path + " is in forceauthn list " + Arrays.toString(urls));
-				return true;
-			}
+		if (PathRules.getInstance(conf).match(path).isForceAuthn()) {
+			if (log.isDebugEnabled()) log.debug("Requested url " + path + " is in forceauthn list");
+			return true;
 		}
 
         // Force authentication can also be specified through the query string.
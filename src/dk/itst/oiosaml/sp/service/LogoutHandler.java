@@ -37,6 +37,7 @@ import dk.itst.oiosaml.sp.LogoutAuthenticationHandler;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
 import dk.itst.oiosaml.sp.model.OIOLogoutRequest;
+import dk.itst.oiosaml.sp.service.session.SessionState;
 import dk.itst.oiosaml.sp.service.util.Constants;
 import dk.itst.oiosaml.sp.service.util.Utils;
 
@@ -55,23 +56,26 @@ public class LogoutHandler implements SAMLHandler{
 		HttpSession session = context.getSession();
 
 		// Check that user is logged in...
-		if (!context.getSessionHandler().isLoggedIn(session.getId())) {
+		SessionState state = context.getSessionHandler().getSessionState(session.getId());
+		if (!state.isLoggedIn()) {
 			context.getSessionHandler().logOut(session);
 			String homeUrl = context.getConfiguration().getString(Constants.PROP_HOME, context.getRequest().getContextPath());
 			context.getResponse().sendRedirect(homeUrl);
 			return;
 		}
 		
-		OIOAssertion assertion = context.getSessionHandler().getAssertion(session.getId());
-		String entityID = assertion.getAssertion().getIssuer().getValue();
+		OIOAssertion assertion = state.getAssertion();
+		String entityID = state.getIssuer();
 		Metadata metadata = context.getIdpMetadata().getMetadata(entityID);
 
-		OIOLogoutRequest lr = OIOLogoutRequest.buildLogoutRequest(session, metadata.getSingleLogoutServiceLocation(), context.getSpMetadata().getEntityID(), context.getSessionHandler());
+		// always register the request, even with signed request ids, so the response can only be used once on all nodes
+		String id = Utils.generateUUID();
+		context.getSessionHandler().registerRequest(id, metadata.getEntityID());
+		OIOLogoutRequest lr = OIOLogoutRequest.buildLogoutRequest(assertion, metadata.getSingleLogoutServiceLocation(), context.getSpMetadata().getEntityID(), id);
 		String redirectURL = lr.getRedirectRequestURL(context.getCredential());
 		
 		Audit.log(Operation.LOGOUTREQUEST, true, lr.getID(), lr.toXML());
 
-		context.getSessionHandler().registerRequest(lr.getID(), metadata.getEntityID());
 		context.getSessionHandler().logOut(session);
 		
 		invokeAuthenticationHandler(context);
@@ -41,6 +41,7 @@ import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
 import dk.itst.oiosaml.sp.model.OIOLogoutRequest;
 import dk.itst.oiosaml.sp.model.OIOLogoutResponse;
+import dk.itst.oiosaml.sp.service.session.SessionState;
 import dk.itst.oiosaml.sp.service.util.Constants;
 import dk.itst.oiosaml.sp.service.util.Utils;
 import dk.itst.oiosaml.sp.util.LogoutRequestValidationException;
@@ -83,11 +84,9 @@ public class LogoutServiceHTTPRedirectHandler implements SAMLHandler {
 		String statusCode = StatusCode.SUCCESS_URI;
 		String consent = null;
 
-		OIOAssertion assertion = ctx.getSessionHandler().getAssertion(session.getId());
-		String idpEntityId = null;
-		if (assertion != null) {
-			idpEntityId = assertion.getIssuer();
-		}
+		SessionState state = ctx.getSessionHandler().getSessionState(session.getId());
+		OIOAssertion assertion = state.getAssertion();
+		String idpEntityId = state.getIssuer();
 		if (idpEntityId == null) {
 			log.warn("LogoutRequest received but user is not logged in");
 			idpEntityId = logoutRequest.getIssuer();
@@ -155,11 +154,9 @@ public class LogoutServiceHTTPRedirectHandler implements SAMLHandler {
         String statusCode = StatusCode.SUCCESS_URI;
         String consent = null;
 
-        OIOAssertion assertion = ctx.getSessionHandler().getAssertion(session.getId());
-        String idpEntityId = null;
-        if (assertion != null) {
-            idpEntityId = assertion.getIssuer();
-        }
+        SessionState state = ctx.getSessionHandler().getSessionState(session.getId());
+        OIOAssertion assertion = state.getAssertion();
+        String idpEntityId = state.getIssuer();
         if (idpEntityId == null) {
             log.warn("LogoutRequest received but user is not logged in");
             idpEntityId = logoutRequest.getIssuer();
@@ -51,6 +51,8 @@ import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
 import dk.itst.oiosaml.sp.model.OIOLogoutRequest;
 import dk.itst.oiosaml.sp.model.OIOLogoutResponse;
+import dk.itst.oiosaml.sp.service.session.SessionRevalidator;
+import dk.itst.oiosaml.sp.service.session.SessionState;
 import dk.itst.oiosaml.sp.util.LogoutRequestValidationException;
 
 /**
@@ -97,11 +99,9 @@ public class LogoutServiceSOAPHandler implements SAMLHandler {
 			String sessionIndex = logoutRequest.getSessionIndex();
 			String sessionId = ctx.getSessionHandler().getRelatedSessionId(sessionIndex);
 			
-			OIOAssertion assertion = ctx.getSessionHandler().getAssertion(sessionId);
-			String idpEntityId = null;
-			if (assertion != null) {
-				idpEntityId = assertion.getIssuer();
-			}
+			SessionState state = ctx.getSessionHandler().getSessionState(sessionId);
+			OIOAssertion assertion = state.getAssertion();
+			String idpEntityId = state.getIssuer();
 			if (idpEntityId == null) {
 				log.warn("LogoutRequest received over SOAP for unknown user");
 				statusCode = StatusCode.NO_SUPPORTED_IDP_URI;
@@ -111,6 +111,10 @@ public class LogoutServiceSOAPHandler implements SAMLHandler {
 
 					logoutRequest.validateRequest(null, null, metadata.getPublicKeys(), ctx.getSpMetadata().getSingleLogoutServiceSOAPLocation(), metadata.getEntityID());
 					ctx.getSessionHandler().logOut(sessionId);
+					SessionRevalidator revalidator = SessionRevalidator.getInstance(ctx.getConfiguration());
+					if (revalidator != null) {
+						revalidator.loggedOut(sessionId);
+					}
 					
 					Audit.log(Operation.LOGOUT, assertion.getSubjectNameIDValue());
 				} catch (LogoutRequestValidationException e) {
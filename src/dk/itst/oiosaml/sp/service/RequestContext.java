@@ -83,6 +83,13 @@ public class RequestContext {
 	public HttpSession getSession() {
 		return request.getSession();
 	}
+
+	/**
+	 * @param create If <code>false</code>, <code>null</code> is returned if the request does not have a session.
+	 */
+	public HttpSession getSession(boolean create) {
+		return request.getSession(create);
+	}
 	
 	public SessionHandler getSessionHandler() {
 		return sessionHandler;
@@ -40,11 +40,13 @@ import dk.itst.oiosaml.sp.AuthenticationHandler;
 import dk.itst.oiosaml.sp.PassiveUserAssertion;
 import dk.itst.oiosaml.sp.UserAssertion;
 import dk.itst.oiosaml.sp.UserAssertionImpl;
+import dk.itst.oiosaml.sp.UserAssertionImpl.XmlRetention;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
 import dk.itst.oiosaml.sp.model.OIOResponse;
 import dk.itst.oiosaml.sp.model.RelayState;
 import dk.itst.oiosaml.sp.model.validation.AssertionValidator;
+import dk.itst.oiosaml.sp.service.session.RequestIdSigner;
 import dk.itst.oiosaml.sp.service.util.ArtifactExtractor;
 import dk.itst.oiosaml.sp.service.util.Constants;
 import dk.itst.oiosaml.sp.service.util.HTTPUtils;
@@ -124,7 +126,7 @@ public class SAMLAssertionConsumerHandler implements SAMLHandler {
 		RelayState relayState = RelayState.fromRequest(ctx.getRequest());
 		if (log.isDebugEnabled()) log.debug("Got relayState..:" + relayState);
 
-		String idpEntityId = response.getOriginatingIdpEntityId(ctx.getSessionHandler());
+		String idpEntityId = response.getOriginatingIdpEntityId(ctx.getSessionHandler(), RequestIdSigner.getInstance(ctx.getConfiguration()));
 		if (log.isDebugEnabled()) log.debug("Received SAML Response from " + idpEntityId + ": " + response.toXML());
 		
 		boolean allowPassive = ctx.getConfiguration().getBoolean(Constants.PROP_PASSIVE, false);
@@ -142,10 +144,12 @@ public class SAMLAssertionConsumerHandler implements SAMLHandler {
 			Audit.log(Operation.LOGIN, passiveUserAssertion.getSubject());
 		} else {
 			OIOAssertion assertion = response.getAssertion();
+			// read the values used below once, before the DOM is released
+			assertion.precomputeView();
 	
 			assertion.validateAssertion(validator, ctx.getSpMetadata().getEntityID(), ctx.getSpMetadata().getAssertionConsumerServiceLocation(0));
 
-			UserAssertion userAssertion = new UserAssertionImpl(assertion);
+			UserAssertion userAssertion = new UserAssertionImpl(assertion, XmlRetention.getRetention(ctx.getConfiguration()));
 			if (!invokeAuthenticationHandler(ctx, userAssertion)) {
 				Audit.logError(Operation.LOGIN, false, response.getInResponseTo(), "Authentication handler stopped authentication");
 				log.error("Authentication handler stopped authentication");
@@ -63,11 +63,18 @@ import dk.itst.oiosaml.sp.develmode.DevelModeImpl;
 import dk.itst.oiosaml.sp.metadata.CRLChecker;
 import dk.itst.oiosaml.sp.metadata.IdpMetadata;
 import dk.itst.oiosaml.sp.metadata.SPMetadata;
+import dk.itst.oiosaml.sp.service.session.CookieSessionHandler;
 import dk.itst.oiosaml.sp.service.session.Request;
+import dk.itst.oiosaml.sp.service.session.RequestCookie;
+import dk.itst.oiosaml.sp.service.session.RequestIdSigner;
 import dk.itst.oiosaml.sp.service.session.SessionCleaner;
+import dk.itst.oiosaml.sp.service.session.SessionCookie;
 import dk.itst.oiosaml.sp.service.session.SessionHandler;
 import dk.itst.oiosaml.sp.service.session.SessionHandlerFactory;
+import dk.itst.oiosaml.sp.service.session.SessionRevalidator;
+import dk.itst.oiosaml.sp.service.session.SessionState;
 import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.service.util.PathRules;
 import dk.itst.oiosaml.logging.Logger;
 import dk.itst.oiosaml.logging.LoggerFactory;
 
@@ -112,6 +119,11 @@ public class SPFilter implements Filter {
 	private SAMLConfiguration conf;
 	private String hostname;
 	private SessionHandlerFactory sessionHandlerFactory;
+	private SessionCookie sessionCookie;
+	private RequestCookie requestCookie;
+	private boolean lazySessions;
+	private PathRules pathRules;
+	private SessionRevalidator sessionRevalidator;
 	private AtomicBoolean cleanerRunning = new AtomicBoolean(false);
 	private DevelMode develMode;
 	/**
@@ -132,6 +144,11 @@ public class SPFilter implements Filter {
 			sessionHandlerFactory.close();
 		}
 		SessionHandlerFactory.Factory.close();
+		SessionCookie.close();
+		RequestIdSigner.close();
+		SessionRevalidator.close();
+		RequestCookie.close();
+		PathRules.close();
 	}
 
 	/**
@@ -151,7 +168,7 @@ public class SPFilter implements Filter {
 			throw new RuntimeException("Not supported operation...");
 		}
 		HttpServletRequest servletRequest = ((HttpServletRequest) request);
-		Audit.init(servletRequest);
+		Audit.init(servletRequest, !lazySessions);
 		if (!isFilterInitialized()) {
 			try {
 				Configuration conf = SAMLConfigurationFactory.getConfiguration().getSystemConfiguration();
@@ -166,16 +183,36 @@ public class SPFilter implements Filter {
 			develMode.doFilter(servletRequest, (HttpServletResponse) response, chain, conf.getSystemConfiguration());
 			return;
 		}
-		if (cleanerRunning.compareAndSet(false, true)) {
-			SessionCleaner.startCleaner(sessionHandlerFactory.getHandler(), ((HttpServletRequest) request).getSession().getMaxInactiveInterval(), 30);
+		PathRules.Rule rule = pathRules != null ? pathRules.match(PathRules.getPath(servletRequest)) : PathRules.Rule.NONE;
+		if (rule.isBypass()) {
+			if (log.isDebugEnabled())
+				log.debug("Path " + PathRules.getPath(servletRequest) + " bypassed, access granted");
+			chain.doFilter(request, response);
+			return;
 		}
-		SessionHandler sessionHandler = sessionHandlerFactory.getHandler();
+		if (!cleanerRunning.get()) {
+			HttpSession existing = lazySessions ? servletRequest.getSession(false) : servletRequest.getSession();
+			if (existing != null && cleanerRunning.compareAndSet(false, true)) {
+				SessionCleaner.startCleaner(sessionHandlerFactory.getHandler(), existing.getMaxInactiveInterval(), 30);
+			}
+		}
+		SessionHandler sessionHandler = CookieSessionHandler.wrap(sessionHandlerFactory.getHandler(), sessionCookie, requestCookie, servletRequest, (HttpServletResponse) response);
 		if (servletRequest.getServletPath().equals(conf.getSystemConfiguration().getProperty(Constants.PROP_SAML_SERVLET))) {
 			log.debug("Request to SAML servlet, access granted");
 			chain.doFilter(new SAMLHttpServletRequest(servletRequest, hostname, null), response);
 			return;
 		}
-		final HttpSession session = servletRequest.getSession();
+		HttpSession session = lazySessions ? servletRequest.getSession(false) : servletRequest.getSession();
+		if (session == null && sessionHandler instanceof CookieSessionHandler && ((CookieSessionHandler) sessionHandler).hasSessionCookie()) {
+			// logged in on another node, so a session is needed to hold the user assertion
+			session = servletRequest.getSession();
+		}
+		if (session == null) {
+			log.debug("No session, access denied");
+			UserAssertionHolder.set(null);
+			saveRequestAndGotoLogin((HttpServletResponse) response, servletRequest);
+			return;
+		}
 		if (log.isDebugEnabled())
 			log.debug("sessionId....:" + session.getId());
 
@@ -186,27 +223,34 @@ public class SPFilter implements Filter {
             forceAuthn = forceAuthnAsString.toLowerCase().equals("true");
         }
 
+		// Has the session been validated recently?
+		if (sessionRevalidator != null && !forceAuthn) {
+			UserAssertion ua = getUserAssertion(sessionHandler, session);
+			if (ua != null && ua.getAssuranceLevel() >= rule.getAssuranceLevel() && sessionRevalidator.isValid(session, ua)) {
+				if (log.isDebugEnabled())
+					log.debug("Session validated recently... Assertion: " + ua);
+				doFilterAuthenticated(servletRequest, response, chain, ua);
+				return;
+			}
+		}
+
 		// Is the user logged in?
-		if (sessionHandler.isLoggedIn(session.getId()) && session.getAttribute(Constants.SESSION_USER_ASSERTION) != null && !forceAuthn) {
-			int actualAssuranceLevel = sessionHandler.getAssertion(session.getId()).getAssuranceLevel();
-			int assuranceLevel = conf.getSystemConfiguration().getInt(Constants.PROP_ASSURANCE_LEVEL);
+		SessionState state = sessionHandler.getSessionState(session.getId());
+		if (state.isLoggedIn() && getUserAssertion(sessionHandler, session) != null && !forceAuthn) {
+			int actualAssuranceLevel = state.getAssuranceLevel();
+			int assuranceLevel = Math.max(conf.getSystemConfiguration().getInt(Constants.PROP_ASSURANCE_LEVEL), rule.getAssuranceLevel());
 			if ((actualAssuranceLevel > 0) && (actualAssuranceLevel < assuranceLevel)) {
 				sessionHandler.logOut(session);
 				log.warn("Assurance level too low: " + actualAssuranceLevel + ", required: " + assuranceLevel);
 				throw new RuntimeException("Assurance level too low: " + actualAssuranceLevel + ", required: " + assuranceLevel);
 			}
-			UserAssertion ua = (UserAssertion) session.getAttribute(Constants.SESSION_USER_ASSERTION);
+			UserAssertion ua = getUserAssertion(sessionHandler, session);
 			if (log.isDebugEnabled())
 				log.debug("Everything is ok... Assertion: " + ua);
-			Audit.log(Operation.ACCESS, servletRequest.getRequestURI());
-			try {
-				UserAssertionHolder.set(ua);
-				HttpServletRequestWrapper requestWrap = new SAMLHttpServletRequest(servletRequest, ua, hostname);
-				chain.doFilter(requestWrap, response);
-				return;
-			} finally {
-				UserAssertionHolder.set(null);
+			if (sessionRevalidator != null) {
+				sessionRevalidator.validated(session, state);
 			}
+			doFilterAuthenticated(servletRequest, response, chain, ua);
 		} else {
 			session.removeAttribute(Constants.SESSION_USER_ASSERTION);
 			UserAssertionHolder.set(null);
@@ -214,8 +258,27 @@ public class SPFilter implements Filter {
 		}
 	}
 
+	private void doFilterAuthenticated(HttpServletRequest servletRequest, ServletResponse response, FilterChain chain, UserAssertion ua) throws IOException, ServletException {
+		Audit.log(Operation.ACCESS, servletRequest.getRequestURI());
+		try {
+			UserAssertionHolder.set(ua);
+			HttpServletRequestWrapper requestWrap = new SAMLHttpServletRequest(servletRequest, ua, hostname);
+			chain.doFilter(requestWrap, response);
+		} finally {
+			UserAssertionHolder.set(null);
+		}
+	}
+
+	private UserAssertion getUserAssertion(SessionHandler sessionHandler, HttpSession session) {
+		if (sessionHandler instanceof CookieSessionHandler) {
+			// the user might have logged in on another node, so the session does not hold the user assertion yet
+			return ((CookieSessionHandler) sessionHandler).getUserAssertion(session);
+		}
+		return (UserAssertion) session.getAttribute(Constants.SESSION_USER_ASSERTION);
+	}
+
 	protected void saveRequestAndGotoLogin(HttpServletResponse response, HttpServletRequest request) throws ServletException, IOException {
-		SessionHandler sessionHandler = sessionHandlerFactory.getHandler();
+		SessionHandler sessionHandler = CookieSessionHandler.wrap(sessionHandlerFactory.getHandler(), null, requestCookie, request, response);
 		String relayState = sessionHandler.saveRequest(Request.fromHttpRequest(request));
 		String protocol = conf.getSystemConfiguration().getString(Constants.PROP_PROTOCOL, "saml20");
 		String loginUrl = conf.getSystemConfiguration().getString(Constants.PROP_SAML_SERVLET, "/saml");
@@ -266,6 +329,11 @@ public class SPFilter implements Filter {
 		setHostname();
 		sessionHandlerFactory = SessionHandlerFactory.Factory.newInstance(conf);
 		sessionHandlerFactory.getHandler().resetReplayProtection(conf.getInt(Constants.PROP_NUM_TRACKED_ASSERTIONIDS));
+		sessionCookie = SessionCookie.getInstance(conf);
+		requestCookie = RequestCookie.getInstance(conf);
+		lazySessions = conf.getBoolean(Constants.PROP_LAZY_SESSION, false);
+		pathRules = PathRules.getInstance(conf);
+		sessionRevalidator = SessionRevalidator.getInstance(conf);
 
 		BasicSecurityConfiguration config = (BasicSecurityConfiguration) org.opensaml.Configuration.getGlobalSecurityConfiguration();
 		config.registerSignatureAlgorithmURI("RSA", conf.getString(Constants.SIGNATURE_ALGORITHM, "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256"));
@@ -314,6 +382,26 @@ public class SPFilter implements Filter {
 		this.sessionHandlerFactory = sessionHandlerFactory;
 	}
 
+	public void setSessionCookie(SessionCookie sessionCookie) {
+		this.sessionCookie = sessionCookie;
+	}
+
+	public void setRequestCookie(RequestCookie requestCookie) {
+		this.requestCookie = requestCookie;
+	}
+
+	public void setLazySessions(boolean lazySessions) {
+		this.lazySessions = lazySessions;
+	}
+
+	public void setPathRules(PathRules pathRules) {
+		this.pathRules = pathRules;
+	}
+
+	public void setSessionRevalidator(SessionRevalidator sessionRevalidator) {
+		this.sessionRevalidator = sessionRevalidator;
+	}
+
 	public void setDevelMode(DevelMode develMode) {
 		this.develMode = develMode;
 	}
@@ -0,0 +1,126 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.opensaml.xml.security.credential.Credential;
+
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+import dk.itst.oiosaml.security.SecurityHelper;
+import dk.itst.oiosaml.sp.service.util.Utils;
+
+/**
+ * Encryption of cookie values.
+ * 
+ * <p>Values are encrypted with AES-CBC and authenticated with HMAC-SHA256 over the IV and the cipher text (encrypt-then-MAC). Both keys
+ * are derived from the private key of the SP credential and a label, so all nodes using the same credential can read each others values,
+ * and values created for one purpose cannot be used for another. The result is url safe base64 without padding, so it does not need
+ * quoting in a cookie.</p>
+ */
+class CookieCipher {
+	private static final Logger log = LoggerFactory.getLogger(CookieCipher.class);
+
+	private static final int FORMAT_VERSION = 1;
+	private static final int IV_LENGTH = 16;
+	private static final int MAC_LENGTH = 32;
+
+	private final SecretKeySpec encryptionKey;
+	private final SecretKeySpec macKey;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * @param credential Credential with the private key used to derive the keys.
+	 * @param label Label used to derive the keys. Values can only be decrypted using the same label.
+	 */
+	CookieCipher(Credential credential, String label) {
+		encryptionKey = new SecretKeySpec(SecurityHelper.deriveKey(credential, label + " encryption", 16), "AES");
+		macKey = new SecretKeySpec(SecurityHelper.deriveKey(credential, label + " authentication", MAC_LENGTH), "HmacSHA256");
+	}
+
+	String encrypt(byte[] plain) {
+		try {
+			byte[] iv = new byte[IV_LENGTH];
+			random.nextBytes(iv);
+			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+			byte[] encrypted = cipher.doFinal(plain);
+
+			byte[] res = new byte[1 + IV_LENGTH + encrypted.length + MAC_LENGTH];
+			res[0] = FORMAT_VERSION;
+			System.arraycopy(iv, 0, res, 1, IV_LENGTH);
+			System.arraycopy(encrypted, 0, res, 1 + IV_LENGTH, encrypted.length);
+			System.arraycopy(mac(res, res.length - MAC_LENGTH), 0, res, res.length - MAC_LENGTH, MAC_LENGTH);
+
+			return Utils.encodeBase64Url(res);
+		} catch (GeneralSecurityException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		}
+	}
+
+	/**
+	 * Verify and decrypt a value.
+	 * 
+	 * @param maxLength Values longer than this are rejected without being decoded.
+	 * @return The decrypted content, or <code>null</code> if the value has been changed or was not created with the same keys.
+	 */
+	byte[] decrypt(String value, int maxLength) {
+		if (value == null || value.length() == 0 || value.length() > maxLength) return null;
+
+		byte[] data = Utils.decodeBase64Url(value);
+		if (data == null || data.length < 1 + IV_LENGTH + 16 + MAC_LENGTH || data[0] != FORMAT_VERSION) return null;
+
+		try {
+			byte[] expected = mac(data, data.length - MAC_LENGTH);
+			if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(data, data.length - MAC_LENGTH, data.length))) {
+				log.warn("Cookie has an invalid MAC, ignoring it");
+				return null;
+			}
+			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(data, 1, IV_LENGTH));
+			return cipher.doFinal(data, 1 + IV_LENGTH, data.length - 1 - IV_LENGTH - MAC_LENGTH);
+		} catch (GeneralSecurityException e) {
+			log.warn("Unable to decrypt cookie: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private byte[] mac(byte[] data, int length) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(macKey);
+		mac.update(data, 0, length);
+		return mac.doFinal();
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+import dk.itst.oiosaml.sp.UserAssertion;
+import dk.itst.oiosaml.sp.UserAssertionImpl;
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+import dk.itst.oiosaml.sp.model.OIOAssertionRecord;
+import dk.itst.oiosaml.sp.service.util.Constants;
+
+/**
+ * Session handler which reads logged in sessions from a {@link SessionCookie}.
+ * 
+ * <p>A handler is created for each request, and wraps the configured session handler. Sessions are still stored in the wrapped handler when
+ * a user logs in, which also provides replay protection, but {@link #isLoggedIn(String)} and {@link #getAssertion(String)} are answered from
+ * the cookie without accessing the wrapped handler. If the request does not have a valid cookie, the wrapped handler is used.</p>
+ * 
+ * <p>Logging out revokes the session index of the cookie and removes the cookie from the browser. Logouts on other nodes are detected when
+ * the cookie is checked against the wrapped handler, see {@link SessionCookie}.</p>
+ * 
+ * <p>If a {@link RequestCookie} is configured, saved requests are kept in cookies instead of in the wrapped handler, unless they are too
+ * large.</p>
+ */
+public class CookieSessionHandler implements SessionHandler {
+	private static final Logger log = LoggerFactory.getLogger(CookieSessionHandler.class);
+
+	private final SessionHandler delegate;
+	private final SessionCookie cookie;
+	private final RequestCookie requestCookie;
+	private final HttpServletRequest request;
+	private final HttpServletResponse response;
+
+	private boolean read;
+	private OIOAssertionRecord record;
+
+	public CookieSessionHandler(SessionHandler delegate, SessionCookie cookie, HttpServletRequest request, HttpServletResponse response) {
+		this(delegate, cookie, null, request, response);
+	}
+
+	/**
+	 * @param cookie The session cookie, or <code>null</code> to keep sessions in the wrapped handler only.
+	 * @param requestCookie The request cookie, or <code>null</code> to save requests in the wrapped handler.
+	 */
+	public CookieSessionHandler(SessionHandler delegate, SessionCookie cookie, RequestCookie requestCookie, HttpServletRequest request, HttpServletResponse response) {
+		this.delegate = delegate;
+		this.cookie = cookie;
+		this.requestCookie = requestCookie;
+		this.request = request;
+		this.response = response;
+	}
+
+	/**
+	 * Wrap a session handler if session cookies are enabled.
+	 * 
+	 * @param cookie The session cookie. If <code>null</code>, the handler is returned as is.
+	 */
+	public static SessionHandler wrap(SessionHandler handler, SessionCookie cookie, HttpServletRequest request, HttpServletResponse response) {
+		return wrap(handler, cookie, null, request, response);
+	}
+
+	/**
+	 * Wrap a session handler if session or request cookies are enabled.
+	 * 
+	 * @param cookie The session cookie, or <code>null</code> if session cookies are not enabled.
+	 * @param requestCookie The request cookie, or <code>null</code> if request cookies are not enabled.
+	 * @return The handler as is if neither is enabled.
+	 */
+	public static SessionHandler wrap(SessionHandler handler, SessionCookie cookie, RequestCookie requestCookie, HttpServletRequest request, HttpServletResponse response) {
+		if ((cookie == null && requestCookie == null) || handler == null) return handler;
+		return new CookieSessionHandler(handler, cookie, requestCookie, request, response);
+	}
+
+	private OIOAssertionRecord getRecord() {
+		if (cookie == null) return null;
+		if (!read) {
+			record = cookie.read(request, response, delegate);
+			read = true;
+		}
+		return record;
+	}
+
+	public void setAssertion(String sessionId, OIOAssertion assertion) throws IllegalArgumentException {
+		delegate.setAssertion(sessionId, assertion);
+		if (cookie != null && cookie.isSupported(assertion)) {
+			cookie.write(request, response, assertion);
+		}
+		read = true;
+		record = null;
+	}
+
+	public boolean isLoggedIn(String sessionId) {
+		OIOAssertion ass = getAssertion(sessionId);
+		return ass != null && !ass.hasSessionExpired();
+	}
+
+	public SessionState getSessionState(String sessionId) {
+		return SessionState.valueOf(getAssertion(sessionId));
+	}
+
+	public void logOut(HttpSession session) {
+		OIOAssertionRecord current = getRecord();
+		if (current != null) {
+			cookie.revoke(current);
+			cookie.clear(request, response);
+			read = true;
+			record = null;
+		}
+		OIOAssertion stored = cookie != null ? delegate.getAssertion(session.getId()) : null;
+		if (stored != null && cookie.isSupported(stored)) {
+			cookie.revoke(stored);
+		}
+		delegate.logOut(session);
+	}
+
+	public void logOut(String sessionId) {
+		OIOAssertion stored = cookie != null ? delegate.getAssertion(sessionId) : null;
+		if (stored != null && cookie.isSupported(stored)) {
+			cookie.revoke(stored);
+		}
+		delegate.logOut(sessionId);
+	}
+
+	public OIOAssertion getAssertion(String sessionId) {
+		OIOAssertionRecord current = getRecord();
+		if (current != null) return current;
+
+		return delegate.getAssertion(sessionId);
+	}
+
+	/**
+	 * @return <code>true</code> if the request has a valid session cookie.
+	 */
+	public boolean hasSessionCookie() {
+		return getRecord() != null;
+	}
+
+	/**
+	 * Get the user assertion for the session.
+	 * 
+	 * <p>If the session already holds the user assertion for the cookie, it is returned. Otherwise, for example when the user was logged in on
+	 * another node, a new user assertion is created from the cookie and stored in the session.</p>
+	 * 
+	 * <p>The attributes and signature of the assertion are only available from the assertion XML. If the cookie was too large to hold the XML,
+	 * the assertion is loaded from the wrapped handler instead.</p>
+	 * 
+	 * @return The user assertion, or <code>null</code> if there is no valid cookie and the session does not hold a user assertion, or if the
+	 * full assertion is not available in the cookie or in the wrapped handler.
+	 */
+	public UserAssertion getUserAssertion(HttpSession session) {
+		UserAssertion ua = (UserAssertion) session.getAttribute(Constants.SESSION_USER_ASSERTION);
+		OIOAssertionRecord current = getRecord();
+		if (current == null || (ua != null && current.getID().equals(ua.getAssertionId()))) {
+			return ua;
+		}
+		OIOAssertion assertion = current;
+		if (!current.isXmlRetained()) {
+			assertion = getStoredAssertion(session.getId(), current);
+			if (assertion == null) {
+				log.warn("Assertion " + current.getID() + " is not available in the session cookie or the session handler, unable to create user assertion");
+				return null;
+			}
+		}
+		ua = new UserAssertionImpl(assertion);
+		session.setAttribute(Constants.SESSION_USER_ASSERTION, ua);
+		return ua;
+	}
+
+	/**
+	 * Find the full assertion for a cookie in the wrapped handler, either by the session id or, if the user logged in using another HTTP
+	 * session, by the session index.
+	 * 
+	 * @return The assertion, or <code>null</code> if the wrapped handler does not hold the assertion XML.
+	 */
+	private OIOAssertion getStoredAssertion(String sessionId, OIOAssertionRecord current) {
+		OIOAssertion stored = delegate.getAssertion(sessionId);
+		if (!isFullAssertion(stored, current)) {
+			String relatedSessionId = delegate.getRelatedSessionId(current.getSessionIndex());
+			stored = relatedSessionId != null ? delegate.getAssertion(relatedSessionId) : null;
+		}
+		return isFullAssertion(stored, current) ? stored : null;
+	}
+
+	private static boolean isFullAssertion(OIOAssertion stored, OIOAssertionRecord current) {
+		if (stored == null || !current.getID().equals(stored.getID())) return false;
+		return !(stored instanceof OIOAssertionRecord) || ((OIOAssertionRecord) stored).isXmlRetained();
+	}
+
+	public String getRelatedSessionId(String sessionIndex) {
+		return delegate.getRelatedSessionId(sessionIndex);
+	}
+
+	public void registerRequest(String id, String receiverEntityID) {
+		delegate.registerRequest(id, receiverEntityID);
+	}
+
+	public String removeEntityIdForRequest(String id) throws IllegalArgumentException {
+		return delegate.removeEntityIdForRequest(id);
+	}
+
+	public String saveRequest(Request request) {
+		if (requestCookie != null) {
+			String state = requestCookie.save(this.request, response, request);
+			if (state != null) {
+				return state;
+			}
+		}
+		return delegate.saveRequest(request);
+	}
+
+	/**
+	 * Get a saved request.
+	 * 
+	 * <p>The browser only keeps a limited number of request cookies, so a cookie can have been removed when the user started another login.
+	 * In that case, and when the cookie has expired, <code>null</code> is returned, so the user is sent to the home page after login instead
+	 * of getting an error.</p>
+	 */
+	public Request getRequest(String state) throws IllegalArgumentException {
+		if (requestCookie != null && RequestCookie.isCookieState(state)) {
+			try {
+				return requestCookie.read(request, response, state);
+			} catch (IllegalArgumentException e) {
+				log.info("Saved request for state " + state + " is no longer available, returning to the home page");
+				return null;
+			}
+		}
+		return delegate.getRequest(state);
+	}
+
+	public void cleanup(long requestIdsCleanupDelay, long sessionCleanupDelay) {
+		delegate.cleanup(requestIdsCleanupDelay, sessionCleanupDelay);
+	}
+
+	public void resetReplayProtection(int maxNum) {
+		delegate.resetReplayProtection(maxNum);
+	}
+
+	public SessionHandler getDelegate() {
+		return delegate;
+	}
+}
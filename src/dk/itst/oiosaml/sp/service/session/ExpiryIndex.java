@@ -0,0 +1,115 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2009 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Index of keys by expiry time.
+ *
+ * <p>Keys are placed in time buckets of a fixed resolution, so finding the expired keys only touches the buckets which
+ * have expired, and not all registered keys. A key is returned from {@link #poll(long)} at most one resolution after its expiry time.</p>
+ *
+ * <p>The index does not track the keys themselves, so a key can be scheduled several times, and it is up to the caller to check
+ * if a polled key has actually expired. This makes it possible to extend the lifetime of a key simply by scheduling it again.</p>
+ */
+public class ExpiryIndex<K> {
+	private final long resolution;
+	private final ConcurrentSkipListMap<Long, Queue<K>> buckets = new ConcurrentSkipListMap<Long, Queue<K>>();
+
+	/**
+	 * @param resolution Bucket size in milliseconds.
+	 */
+	public ExpiryIndex(long resolution) {
+		if (resolution < 1) throw new IllegalArgumentException("Resolution must be positive, was " + resolution);
+		this.resolution = resolution;
+	}
+
+	/**
+	 * Schedule a key for expiry at a given time.
+	 */
+	public void schedule(K key, long expiresAt) {
+		Long bucket = (expiresAt + resolution - 1) / resolution;
+		while (true) {
+			Queue<K> queue = buckets.get(bucket);
+			if (queue == null) {
+				queue = new ConcurrentLinkedQueue<K>();
+				Queue<K> existing = buckets.putIfAbsent(bucket, queue);
+				if (existing != null) {
+					queue = existing;
+				}
+			}
+			queue.add(key);
+			// if the bucket was polled while adding, the key might have been missed, so add it again
+			if (buckets.get(bucket) == queue) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Remove and return all keys scheduled to expire at or before a given time.
+	 */
+	public List<K> poll(long now) {
+		List<K> res = new ArrayList<K>();
+		Map.Entry<Long, Queue<K>> entry;
+		while ((entry = buckets.firstEntry()) != null && entry.getKey() * resolution <= now) {
+			if (buckets.remove(entry.getKey(), entry.getValue())) {
+				K key;
+				while ((key = entry.getValue().poll()) != null) {
+					res.add(key);
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return <code>true</code> if there are keys which have expired at the given time.
+	 */
+	public boolean hasExpired(long now) {
+		Map.Entry<Long, Queue<K>> entry = buckets.firstEntry();
+		return entry != null && entry.getKey() * resolution <= now;
+	}
+
+	/**
+	 * @return The time of the earliest scheduled keys, rounded up to the resolution. {@link Long#MAX_VALUE} if no keys are scheduled.
+	 */
+	public long first() {
+		Map.Entry<Long, Queue<K>> entry = buckets.firstEntry();
+		return entry != null ? entry.getKey() * resolution : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Remove all keys.
+	 */
+	public void clear() {
+		buckets.clear();
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ *
+ * The Initial Developer of the Original Code is Trifork A/S. Portions
+ * created by Trifork A/S are Copyright (C) 2009 Danish National IT
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTime;
+
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+
+/**
+ * Thread safe set of assertion ids used for replay protection.
+ *
+ * <p>Ids are registered atomically, so two threads can never both register the same id. Each id is kept until it expires, which should be
+ * the time where the assertion is no longer valid, so the cache only holds ids for assertions which could still be replayed. Expired ids are
+ * removed using an {@link ExpiryIndex}, each time a new id is added or {@link #expire(long)} is called.</p>
+ */
+public class ReplayCache {
+	/**
+	 * Time in milliseconds assertion ids are kept for replay protection if the assertion does not contain any validity times.
+	 */
+	private static final long DEFAULT_TTL = 60 * 60 * 1000L;
+
+	private final ConcurrentMap<String, Long> ids;
+	private final ExpiryIndex<String> expiry;
+
+	/**
+	 * @param expectedSize The expected number of ids in the cache. This is only used for sizing.
+	 * @param resolution The resolution of expiry, in milliseconds.
+	 */
+	public ReplayCache(int expectedSize, long resolution) {
+		ids = new ConcurrentHashMap<String, Long>(Math.max(16, Math.min(expectedSize, 1 << 16)));
+		expiry = new ExpiryIndex<String>(resolution);
+	}
+
+	/**
+	 * @return The key used for replay protection of an assertion, which is the issuer and the assertion id.
+	 */
+	public static String getKey(OIOAssertion assertion) {
+		String issuer = assertion.getIssuer();
+		return (issuer != null ? issuer : "unknown") + ":" + assertion.getID();
+	}
+
+	/**
+	 * Get the time where an assertion id can be removed from replay protection.
+	 * 
+	 * <p>This is SubjectConfirmationData/@NotOnOrAfter, or Conditions/@NotOnOrAfter if not present, plus the clock skew. The id is always
+	 * kept for at least the clock skew.</p>
+	 */
+	public static long getExpiry(OIOAssertion assertion, long clockSkew) {
+		DateTime validTo = assertion.getConfirmationTime();
+		if (validTo == null) {
+			validTo = assertion.getConditionTime();
+		}
+		long now = System.currentTimeMillis();
+		long expiry = validTo != null ? validTo.getMillis() : now + DEFAULT_TTL;
+		// the assertion was accepted now, so keep the id for at least the clock skew
+		return Math.max(expiry, now) + clockSkew;
+	}
+
+	/**
+	 * Register an id.
+	 *
+	 * @param expiresAt Time in millis where the id can be forgotten.
+	 * @return <code>true</code> if the id has not been seen before, <code>false</code> if it is being replayed.
+	 */
+	public boolean add(String id, long expiresAt) {
+		long now = System.currentTimeMillis();
+		expire(now);
+
+		Long existing = ids.putIfAbsent(id, expiresAt);
+		if (existing != null) {
+			// an id which has expired but not been removed yet does not count as replay
+			if (existing > now || !ids.replace(id, existing, expiresAt)) {
+				return false;
+			}
+		}
+		expiry.schedule(id, expiresAt);
+		return true;
+	}
+
+	/**
+	 * Remove all ids which have expired at the given time.
+	 * 
+	 * @return The number of removed ids.
+	 */
+	public int expire(long now) {
+		if (!expiry.hasExpired(now)) return 0;
+
+		int removed = 0;
+		for (String id : expiry.poll(now)) {
+			Long expiresAt = ids.get(id);
+			if (expiresAt != null && expiresAt <= now && ids.remove(id, expiresAt)) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	public boolean contains(String id) {
+		Long expiresAt = ids.get(id);
+		return expiresAt != null && expiresAt > System.currentTimeMillis();
+	}
+
+	/**
+	 * @return The number of ids currently tracked.
+	 */
+	public int size() {
+		return ids.size();
+	}
+}
@@ -42,7 +42,7 @@ public class Request implements Serializable {
 		this.requestURI = requestURI;
 
         // Remove forceAuthn attribute if it was part of request. This is done in order to avoid an infinite loop of force logins.
-        this.queryString = queryString == null ? null : queryString.replaceAll(Constants.QUERY_STRING_FORCE_AUTHN + "=.*?($|[&;])", "");
+        this.queryString = queryString == null || queryString.indexOf(Constants.QUERY_STRING_FORCE_AUTHN) < 0 ? queryString : queryString.replaceAll(Constants.QUERY_STRING_FORCE_AUTHN + "=.*?($|[&;])", "");
 
         this.method = method;
 
@@ -55,8 +55,11 @@ public class Request implements Serializable {
 	@SuppressWarnings("unchecked")
 	public static Request fromHttpRequest(HttpServletRequest req) {
         // req.getParameterMap() is a weak reference and is cleared between requests. req.getParameterMap() is only used in combination with POST logins and properly redirection after login was not possible without the parameter map.
+        // GET requests are replayed using the query string, so the parameters are not copied.
         Map<String, String[]> copy = new HashMap<String, String[]>();
-        copy.putAll(req.getParameterMap());
+        if (!"GET".equals(req.getMethod())) {
+            copy.putAll(req.getParameterMap());
+        }
         return new Request(req.getRequestURI(), req.getQueryString(), req.getMethod(), copy);
 	}
 	
@@ -0,0 +1,144 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary encoding of saved requests, used by the session stores and {@link RequestCookie}.
+ * 
+ * <p>Requests are stored in a length prefixed format starting with a version byte, compressed using deflate.</p>
+ */
+public class RequestCodec {
+	private static final int FORMAT_VERSION = 1;
+
+	private RequestCodec() {}
+
+	public static byte[] encode(Request request) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bos, deflater));
+			out.writeByte(FORMAT_VERSION);
+			writeString(out, request.getRequestURI());
+			writeString(out, request.getQueryString());
+			writeString(out, request.getMethod());
+
+			Map<String, String[]> parameters = request.getParameters();
+			if (parameters == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(parameters.size());
+				for (Map.Entry<String, String[]> e : parameters.entrySet()) {
+					writeString(out, e.getKey());
+					String[] values = e.getValue();
+					if (values == null) {
+						out.writeInt(-1);
+					} else {
+						out.writeInt(values.length);
+						for (String value : values) {
+							writeString(out, value);
+						}
+					}
+				}
+			}
+			out.close();
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	public static Request decode(byte[] data) {
+		Inflater inflater = new Inflater(true);
+		try {
+			DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data), inflater));
+			int version = in.readByte();
+			if (version != FORMAT_VERSION) {
+				throw new IOException("Unsupported request format " + version);
+			}
+			String uri = readString(in);
+			String query = readString(in);
+			String method = readString(in);
+
+			Map<String, String[]> parameters = null;
+			int count = in.readInt();
+			if (count >= 0) {
+				parameters = new HashMap<String, String[]>();
+				for (int i = 0; i < count; i++) {
+					String name = readString(in);
+					int length = in.readInt();
+					String[] values = null;
+					if (length >= 0) {
+						values = new String[length];
+						for (int j = 0; j < length; j++) {
+							values[j] = readString(in);
+						}
+					}
+					parameters.put(name, values);
+				}
+			}
+			return new Request(uri, query, method, parameters);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to decode request", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Strings are written as the byte length followed by UTF-8, as {@link DataOutput#writeUTF(String)} is limited to 64 KB.
+	 */
+	private static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
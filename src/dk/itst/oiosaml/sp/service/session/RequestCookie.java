@@ -0,0 +1,265 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.configuration.Configuration;
+import org.opensaml.xml.security.credential.Credential;
+
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+import dk.itst.oiosaml.security.CredentialRepository;
+import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.service.util.Utils;
+
+/**
+ * Encrypted cookies holding saved requests.
+ * 
+ * <p>When an unauthenticated user accesses a protected resource, the request is saved so it can be replayed after login. Instead of
+ * storing the request in the {@link SessionHandler}, it can be compressed and encrypted in a short lived cookie, so unauthenticated
+ * requests do not create any state on the server. The state identifier sent as RelayState is a random nonce, and the cookie is named
+ * after it, so several logins can be in progress at the same time.</p>
+ * 
+ * <p>All cookies are sent with every request, so the cookies must not fill up the request headers of the server. Requests which are
+ * larger than {@link #MAX_VALUE_LENGTH}, typically POST requests with many parameters, are not stored in a cookie, and the caller is
+ * expected to store those in the session handler instead. At most {@link #MAX_COOKIES} requests are kept, and the oldest cookies are
+ * removed when a new request is saved, so only the most recent logins can return to the saved page. {@link #read(HttpServletRequest,
+ * HttpServletResponse, String)} fails for the other logins, and {@link CookieSessionHandler} then sends the user to the home page.</p>
+ */
+public class RequestCookie {
+	private static final Logger log = LoggerFactory.getLogger(RequestCookie.class);
+
+	/**
+	 * All state identifiers for requests saved in cookies start with this prefix. Identifiers created by {@link Utils#generateUUID()} start with
+	 * an underscore and a hex digit.
+	 */
+	private static final String PREFIX = "_r";
+	private static final String COOKIE_NAME = "OIOSAML_REQUEST";
+	private static final int FORMAT_VERSION = 1;
+	private static final int NONCE_LENGTH = 12;
+
+	/**
+	 * Maximum length of a cookie value. Together with the session cookie, {@link #MAX_COOKIES} request cookies stay well below the
+	 * 8KB header limit used by most servers.
+	 */
+	static final int MAX_VALUE_LENGTH = 1000;
+
+	/**
+	 * Maximum number of saved requests kept in the browser at the same time.
+	 */
+	static final int MAX_COOKIES = 3;
+
+	private static RequestCookie instance;
+
+	private final CookieCipher cipher;
+	private final long maxAge;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * @param credential Credential with the private key used to derive the keys.
+	 * @param maxAge Milliseconds a saved request is kept.
+	 */
+	public RequestCookie(Credential credential, long maxAge) {
+		cipher = new CookieCipher(credential, "oiosaml request cookie");
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Get the request cookie configured for the application.
+	 * 
+	 * @return <code>null</code> if request cookies have not been enabled using {@link Constants#PROP_REQUEST_COOKIE}.
+	 */
+	public static synchronized RequestCookie getInstance(Configuration config) {
+		if (instance != null) return instance;
+		if (!config.getBoolean(Constants.PROP_REQUEST_COOKIE, false)) return null;
+
+		instance = new RequestCookie(CredentialRepository.getServiceProviderCredential(config), config.getLong(Constants.PROP_REQUEST_COOKIE_MAXAGE, 600) * 1000);
+		log.info("Saving requests in cookies");
+		return instance;
+	}
+
+	public static synchronized void close() {
+		instance = null;
+	}
+
+	/**
+	 * Save a request in a cookie.
+	 * 
+	 * @return The state identifier of the request, or <code>null</code> if the request is too large to be saved in a cookie.
+	 */
+	public String save(HttpServletRequest request, HttpServletResponse response, Request saved) {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		random.nextBytes(nonce);
+		String state = PREFIX + Utils.encodeBase64Url(nonce);
+
+		String value = encode(state, saved, System.currentTimeMillis());
+		if (value.length() > MAX_VALUE_LENGTH) {
+			if (log.isDebugEnabled()) log.debug("Request to " + saved.getRequestURI() + " is too large for a cookie (" + value.length() + " characters)");
+			return null;
+		}
+		expireOldest(request, response);
+		response.addHeader("Set-Cookie", COOKIE_NAME + state + "=" + value + getAttributes(request) + "; Max-Age=" + (maxAge / 1000));
+		return state;
+	}
+
+	/**
+	 * @return <code>true</code> if the state identifier was created by {@link #save(HttpServletRequest, HttpServletResponse, Request)}.
+	 */
+	public static boolean isCookieState(String state) {
+		return state != null && state.startsWith(PREFIX);
+	}
+
+	/**
+	 * Read a saved request, and remove the cookie from the browser.
+	 * 
+	 * @throws IllegalArgumentException If the request does not have a valid cookie for the state identifier.
+	 */
+	public Request read(HttpServletRequest request, HttpServletResponse response, String state) throws IllegalArgumentException {
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null && isCookieState(state)) {
+			String name = COOKIE_NAME + state;
+			for (Cookie cookie : cookies) {
+				if (!name.equals(cookie.getName())) continue;
+
+				expire(request, response, name);
+				Request res = decode(state, cookie.getValue(), System.currentTimeMillis());
+				if (res != null) {
+					return res;
+				}
+			}
+		}
+		throw new IllegalArgumentException("No request for state " + state);
+	}
+
+	/**
+	 * Remove the oldest request cookies, so there is room for a new one.
+	 */
+	private void expireOldest(HttpServletRequest request, HttpServletResponse response) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies == null) return;
+
+		List<Cookie> saved = new ArrayList<Cookie>();
+		for (Cookie cookie : cookies) {
+			if (cookie.getName() != null && cookie.getName().startsWith(COOKIE_NAME + PREFIX)) {
+				saved.add(cookie);
+			}
+		}
+		if (saved.size() < MAX_COOKIES) return;
+
+		final Map<Cookie, Long> issued = new HashMap<Cookie, Long>();
+		for (Cookie cookie : saved) {
+			issued.put(cookie, getIssued(cookie.getValue()));
+		}
+		// newest first, invalid cookies last
+		Collections.sort(saved, new Comparator<Cookie>() {
+			public int compare(Cookie c1, Cookie c2) {
+				return issued.get(c2).compareTo(issued.get(c1));
+			}
+		});
+		for (Cookie cookie : saved.subList(MAX_COOKIES - 1, saved.size())) {
+			if (log.isDebugEnabled()) log.debug("Too many saved requests, removing " + cookie.getName());
+			expire(request, response, cookie.getName());
+		}
+	}
+
+	private static void expire(HttpServletRequest request, HttpServletResponse response, String name) {
+		response.addHeader("Set-Cookie", name + "=" + getAttributes(request) + "; Max-Age=0; Expires=Thu, 01 Jan 1970 00:00:00 GMT");
+	}
+
+	/**
+	 * @return The time the cookie was issued, or -1 if the cookie is not valid.
+	 */
+	private long getIssued(String value) {
+		byte[] plain = cipher.decrypt(value, MAX_VALUE_LENGTH * 2);
+		if (plain == null || plain.length < 9 || plain[0] != FORMAT_VERSION) return -1;
+		try {
+			return new DataInputStream(new ByteArrayInputStream(plain, 1, 8)).readLong();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	String encode(String state, Request saved, long issued) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(FORMAT_VERSION);
+			out.writeLong(issued);
+			out.writeUTF(state);
+			out.write(RequestCodec.encode(saved));
+			out.flush();
+			return cipher.encrypt(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		}
+	}
+
+	Request decode(String state, String value, long now) {
+		byte[] plain = cipher.decrypt(value, MAX_VALUE_LENGTH * 2);
+		if (plain == null) return null;
+
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+			if (in.readByte() != FORMAT_VERSION) return null;
+			long issued = in.readLong();
+			// the state is part of the encrypted value, so a cookie cannot be replayed under another name
+			if (!state.equals(in.readUTF())) {
+				log.warn("Request cookie does not match state " + state);
+				return null;
+			}
+			if (issued + maxAge <= now) {
+				if (log.isDebugEnabled()) log.debug("Request cookie for state " + state + " has expired");
+				return null;
+			}
+			return RequestCodec.decode(Arrays.copyOfRange(plain, plain.length - in.available(), plain.length));
+		} catch (IOException e) {
+			log.warn("Unable to read request cookie: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static String getAttributes(HttpServletRequest request) {
+		// the response from the IdP is often a cross site POST, so the cookie must be sent with cross site requests
+		return SessionCookie.getAttributes(request) + (request.isSecure() ? "; SameSite=None" : "");
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.configuration.Configuration;
+import org.opensaml.xml.security.credential.Credential;
+
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+import dk.itst.oiosaml.security.CredentialRepository;
+import dk.itst.oiosaml.security.SecurityHelper;
+import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.service.util.Utils;
+
+/**
+ * Creates and validates request ids which carry their own state.
+ * 
+ * <p>Normally, the id of each AuthnRequest and LogoutRequest is registered in the {@link SessionHandler} together with the receiving IdP,
+ * and removed again when the response arrives. A signed id instead contains the entity id of the receiver, the time it was issued and an
+ * HMAC-SHA256 keyed from the SP credential, so InResponseTo can be validated without accessing the session store.</p>
+ * 
+ * <p>To make sure a response to a request is only accepted once, used ids are kept in memory until they expire. This set is local to each
+ * node, so single use of a signed id is only enforced on the node which received the response. Signed ids are therefore only used for
+ * AuthnRequests, where the assertions are still registered for replay protection in the session handler. LogoutRequests are always
+ * registered in the session handler, so a LogoutResponse cannot be replayed to another node.</p>
+ */
+public class RequestIdSigner {
+	private static final Logger log = LoggerFactory.getLogger(RequestIdSigner.class);
+
+	/**
+	 * All signed ids start with this prefix. Ids created by {@link Utils#generateUUID()} start with an underscore and a hex digit.
+	 */
+	private static final String PREFIX = "_s";
+	private static final int FORMAT_VERSION = 1;
+	private static final int NONCE_LENGTH = 8;
+	private static final int MAC_LENGTH = 16;
+
+	private static RequestIdSigner instance;
+
+	private final SecretKeySpec key;
+	private final long maxAge;
+	private final ReplayCache used;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * @param credential Credential with the private key used to derive the key.
+	 * @param maxAge Milliseconds a response to a request is accepted.
+	 */
+	public RequestIdSigner(Credential credential, long maxAge) {
+		key = new SecretKeySpec(SecurityHelper.deriveKey(credential, "oiosaml request id", 32), "HmacSHA256");
+		this.maxAge = maxAge;
+		used = new ReplayCache(1000, 1000);
+	}
+
+	/**
+	 * Get the request id signer configured for the application.
+	 * 
+	 * @return <code>null</code> if signed request ids have not been enabled using {@link Constants#PROP_SIGNED_REQUEST_IDS}.
+	 */
+	public static synchronized RequestIdSigner getInstance(Configuration config) {
+		if (instance != null) return instance;
+		if (!config.getBoolean(Constants.PROP_SIGNED_REQUEST_IDS, false)) return null;
+
+		instance = new RequestIdSigner(CredentialRepository.getServiceProviderCredential(config), config.getLong(Constants.PROP_SIGNED_REQUEST_IDS_MAXAGE, 600) * 1000);
+		log.info("Using signed request ids");
+		return instance;
+	}
+
+	public static synchronized void close() {
+		instance = null;
+	}
+
+	/**
+	 * Create a new request id.
+	 * 
+	 * @param receiverEntityID Entity id of the IdP which receives the request.
+	 * @return An id which is a valid xs:ID.
+	 */
+	public String create(String receiverEntityID) {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		random.nextBytes(nonce);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + receiverEntityID.length());
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(FORMAT_VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.write(nonce);
+			out.writeUTF(receiverEntityID);
+			out.flush();
+
+			byte[] data = bytes.toByteArray();
+			byte[] res = Arrays.copyOf(data, data.length + MAC_LENGTH);
+			System.arraycopy(mac(data, data.length), 0, res, data.length, MAC_LENGTH);
+			return PREFIX + Utils.encodeBase64Url(res);
+		} catch (IOException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		} catch (GeneralSecurityException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the id has the format of a signed id. The id is not validated.
+	 */
+	public static boolean isSigned(String id) {
+		return id != null && id.startsWith(PREFIX);
+	}
+
+	/**
+	 * Validate a signed request id, and mark it as used.
+	 * 
+	 * @return The entity id of the receiver of the request.
+	 * @throws IllegalArgumentException If the id is not valid, has expired or has already been used.
+	 */
+	public String validate(String id) throws IllegalArgumentException {
+		if (!isSigned(id)) throw new IllegalArgumentException("Request id " + id + " is unknown");
+
+		byte[] data = Utils.decodeBase64Url(id.substring(PREFIX.length()));
+		if (data == null || data.length < 1 + 8 + NONCE_LENGTH + 2 + MAC_LENGTH) {
+			throw new IllegalArgumentException("Request id " + id + " is unknown");
+		}
+		try {
+			byte[] expected = Arrays.copyOf(mac(data, data.length - MAC_LENGTH), MAC_LENGTH);
+			if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(data, data.length - MAC_LENGTH, data.length))) {
+				throw new IllegalArgumentException("Request id " + id + " has an invalid signature");
+			}
+		} catch (GeneralSecurityException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - MAC_LENGTH));
+			if (in.readByte() != FORMAT_VERSION) {
+				throw new IllegalArgumentException("Request id " + id + " has an unsupported format");
+			}
+			long issued = in.readLong();
+			in.skipBytes(NONCE_LENGTH);
+			String receiver = in.readUTF();
+
+			long now = System.currentTimeMillis();
+			if (issued + maxAge <= now) {
+				throw new IllegalArgumentException("Request id " + id + " has expired");
+			}
+			if (!used.add(id, issued + maxAge)) {
+				throw new IllegalArgumentException("Request id " + id + " has already been used");
+			}
+			return receiver;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Request id " + id + " is unknown");
+		}
+	}
+
+	/**
+	 * Get the receiver of a request, and remove the request.
+	 * 
+	 * <p>Signed ids are validated by the signer. Other ids, for example ids of requests sent before signed ids were enabled, are looked
+	 * up in the session handler.</p>
+	 * 
+	 * @param signer The signer, or <code>null</code> if signed ids are not enabled.
+	 * @see SessionHandler#removeEntityIdForRequest(String)
+	 */
+	public static String removeEntityIdForRequest(RequestIdSigner signer, SessionHandler handler, String id) throws IllegalArgumentException {
+		if (signer != null && isSigned(id)) {
+			return signer.validate(id);
+		}
+		return handler.removeEntityIdForRequest(id);
+	}
+
+	/**
+	 * Create a request id, and register it in the session handler unless signed ids are enabled.
+	 * 
+	 * @param signer The signer, or <code>null</code> if signed ids are not enabled.
+	 */
+	public static String registerRequest(RequestIdSigner signer, SessionHandler handler, String receiverEntityID) {
+		if (signer != null) {
+			return signer.create(receiverEntityID);
+		}
+		String id = Utils.generateUUID();
+		handler.registerRequest(id, receiverEntityID);
+		return id;
+	}
+
+	private byte[] mac(byte[] data, int length) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(key);
+		mac.update(data, 0, length);
+		return mac.doFinal();
+	}
+}
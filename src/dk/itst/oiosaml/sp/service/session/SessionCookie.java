@@ -0,0 +1,272 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.configuration.Configuration;
+import org.opensaml.xml.security.credential.Credential;
+
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+import dk.itst.oiosaml.security.CredentialRepository;
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+import dk.itst.oiosaml.sp.model.OIOAssertionRecord;
+import dk.itst.oiosaml.sp.service.util.Constants;
+
+/**
+ * Encrypted cookie holding the state of a logged in session.
+ * 
+ * <p>The cookie contains an {@link OIOAssertionRecord} and the time the cookie was issued. It is encrypted and authenticated using a
+ * {@link CookieCipher} with keys derived from the private key of the SP credential, so all nodes using the same credential can read each
+ * others cookies, and the cookie cannot be read or changed by the browser.</p>
+ * 
+ * <p>A cookie is valid until it has not been reissued for the configured max age, or until SessionNotOnOrAfter has passed. Cookies are
+ * reissued when half the max age has passed, so the session expires after a period of inactivity.</p>
+ * 
+ * <p>As the cookie is kept by the browser, logging out cannot delete it on the server. Instead the session index is revoked, and cookies
+ * with a revoked session index are rejected until they would have expired anyway. Revoked session indexes are only kept on the local node,
+ * so to detect logouts on other nodes, for example SOAP logouts from the IdP, the session is checked against the shared session handler when
+ * the cookie is older than the verify interval. A cookie which passes the check is reissued, so each session is checked at most once per
+ * interval.</p>
+ */
+public class SessionCookie {
+	private static final Logger log = LoggerFactory.getLogger(SessionCookie.class);
+
+	/**
+	 * Maximum length of the cookie value. Browsers accept at least 4096 bytes for the name, value and attributes of a cookie.
+	 */
+	static final int MAX_VALUE_LENGTH = 3800;
+
+	/**
+	 * Milliseconds a cookie is accepted if it has been issued in the future, to allow for clock differences between nodes.
+	 */
+	private static final long CLOCK_SKEW = 60 * 1000L;
+
+	private static SessionCookie instance;
+
+	private final CookieCipher cipher;
+	private final String name;
+	private final long maxAge;
+	private final boolean retainXml;
+	private final long verifyInterval;
+	private final ReplayCache revoked;
+
+	/**
+	 * @param credential Credential with the private key used to derive the keys.
+	 * @param name Name of the cookie.
+	 * @param maxAge Milliseconds of inactivity before the cookie expires.
+	 * @param retainXml Keep the compressed assertion XML in the cookie if it fits.
+	 */
+	public SessionCookie(Credential credential, String name, long maxAge, boolean retainXml) {
+		this(credential, name, maxAge, retainXml, 60 * 1000L);
+	}
+
+	/**
+	 * @param credential Credential with the private key used to derive the keys.
+	 * @param name Name of the cookie.
+	 * @param maxAge Milliseconds of inactivity before the cookie expires.
+	 * @param retainXml Keep the compressed assertion XML in the cookie if it fits.
+	 * @param verifyInterval Milliseconds a cookie is trusted before the session is checked in the session handler. Negative never checks.
+	 */
+	public SessionCookie(Credential credential, String name, long maxAge, boolean retainXml, long verifyInterval) {
+		cipher = new CookieCipher(credential, "oiosaml session cookie");
+		this.name = name;
+		this.maxAge = maxAge;
+		this.retainXml = retainXml;
+		this.verifyInterval = verifyInterval;
+		revoked = new ReplayCache(1000, 1000);
+	}
+
+	/**
+	 * Get the session cookie configured for the application.
+	 * 
+	 * @return <code>null</code> if session cookies have not been enabled using {@link Constants#PROP_SESSION_COOKIE}.
+	 */
+	public static synchronized SessionCookie getInstance(Configuration config) {
+		if (instance != null) return instance;
+		if (!config.getBoolean(Constants.PROP_SESSION_COOKIE, false)) return null;
+
+		instance = new SessionCookie(CredentialRepository.getServiceProviderCredential(config),
+				config.getString(Constants.PROP_SESSION_COOKIE_NAME, "OIOSAML_SESSION"),
+				config.getLong(Constants.PROP_SESSION_COOKIE_MAXAGE, 1800) * 1000,
+				config.getBoolean(Constants.PROP_RETAIN_ASSERTION_XML, true),
+				config.getLong(Constants.PROP_SESSION_COOKIE_VERIFY, 60) * 1000);
+		log.info("Using session cookie " + instance.name);
+		return instance;
+	}
+
+	public static synchronized void close() {
+		instance = null;
+	}
+
+	/**
+	 * Read the session from the request without checking the session handler.
+	 * 
+	 * @see #read(HttpServletRequest, HttpServletResponse, SessionHandler)
+	 */
+	public OIOAssertionRecord read(HttpServletRequest request, HttpServletResponse response) {
+		return read(request, response, null);
+	}
+
+	/**
+	 * Read the session from the request.
+	 * 
+	 * <p>If more than half of the max age has passed since the cookie was issued, a new cookie is added to the response. If the verify
+	 * interval has passed, the cookie is only accepted if the session is still logged in in the session handler, and it is then reissued.</p>
+	 * 
+	 * @param sessions The shared session handler used to check that the session has not been logged out on another node, or <code>null</code>.
+	 * @return The session, or <code>null</code> if the request does not have a valid cookie.
+	 */
+	public OIOAssertionRecord read(HttpServletRequest request, HttpServletResponse response, SessionHandler sessions) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies == null) return null;
+
+		for (Cookie cookie : cookies) {
+			if (!name.equals(cookie.getName())) continue;
+
+			long now = System.currentTimeMillis();
+			DataInputStream in = decode(cookie.getValue());
+			if (in == null) continue;
+			try {
+				long issued = in.readLong();
+				OIOAssertionRecord record = OIOAssertionRecord.readFrom(in);
+				if (issued + maxAge <= now || issued > now + CLOCK_SKEW) {
+					if (log.isDebugEnabled()) log.debug("Session cookie for " + record.getID() + " has expired");
+				} else if (record.hasSessionExpired()) {
+					if (log.isDebugEnabled()) log.debug("Session for " + record.getID() + " has passed SessionNotOnOrAfter");
+				} else if (revoked.contains(getRevocationKey(record))) {
+					if (log.isDebugEnabled()) log.debug("Session cookie for " + record.getID() + " has been revoked");
+				} else if (sessions != null && verifyInterval >= 0 && now - issued > verifyInterval && !isLoggedIn(sessions, record)) {
+					if (log.isDebugEnabled()) log.debug("Session for " + record.getID() + " has been logged out in the session handler");
+					revoked.add(getRevocationKey(record), now + maxAge + CLOCK_SKEW);
+				} else {
+					if (now - issued > maxAge / 2 || (sessions != null && verifyInterval >= 0 && now - issued > verifyInterval)) {
+						write(request, response, record, now);
+					}
+					return record;
+				}
+			} catch (IOException e) {
+				log.warn("Unable to read session cookie: " + e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check that the session is still logged in, which also updates its access time in the session handler.
+	 */
+	private static boolean isLoggedIn(SessionHandler sessions, OIOAssertionRecord record) {
+		String sessionId = sessions.getRelatedSessionId(record.getSessionIndex());
+		return sessionId != null && sessions.isLoggedIn(sessionId);
+	}
+
+	/**
+	 * Add a cookie with the session to the response.
+	 */
+	public void write(HttpServletRequest request, HttpServletResponse response, OIOAssertion assertion) {
+		write(request, response, OIOAssertionRecord.valueOf(assertion, retainXml), System.currentTimeMillis());
+	}
+
+	private void write(HttpServletRequest request, HttpServletResponse response, OIOAssertionRecord record, long issued) {
+		String value = encode(record, issued);
+		if (value.length() > MAX_VALUE_LENGTH && record.isXmlRetained()) {
+			// the attributes are then only available from the session handler, see CookieSessionHandler.getUserAssertion
+			if (log.isDebugEnabled()) log.debug("Assertion " + record.getID() + " is too large for the session cookie, storing it without XML");
+			value = encode(record.withoutXml(), issued);
+		}
+		response.addHeader("Set-Cookie", name + "=" + value + getAttributes(request));
+	}
+
+	/**
+	 * Remove the cookie from the browser.
+	 */
+	public void clear(HttpServletRequest request, HttpServletResponse response) {
+		response.addHeader("Set-Cookie", name + "=" + getAttributes(request) + "; Max-Age=0; Expires=Thu, 01 Jan 1970 00:00:00 GMT");
+	}
+
+	/**
+	 * Reject all cookies for a session from now on.
+	 */
+	public void revoke(OIOAssertion assertion) {
+		String key = getRevocationKey(assertion);
+		// cookies cannot be used after max age, so the key can be removed after that
+		revoked.add(key, System.currentTimeMillis() + maxAge + CLOCK_SKEW);
+		if (log.isDebugEnabled()) log.debug("Revoked session cookies for " + key);
+	}
+
+	/**
+	 * @return <code>true</code> if sessions for the assertion can be stored in a cookie. This requires a session index, which is used for
+	 * revoking the cookie on logout.
+	 */
+	public boolean isSupported(OIOAssertion assertion) {
+		return assertion.getSessionIndex() != null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	private static String getRevocationKey(OIOAssertion assertion) {
+		return assertion.getIssuer() + ":" + assertion.getSessionIndex();
+	}
+
+	static String getAttributes(HttpServletRequest request) {
+		String path = request.getContextPath();
+		return "; Path=" + (path == null || path.length() == 0 ? "/" : path) + "; HttpOnly" + (request.isSecure() ? "; Secure" : "");
+	}
+
+	String encode(OIOAssertionRecord record, long issued) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(issued);
+			record.writeTo(out);
+			out.flush();
+			return cipher.encrypt(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		}
+	}
+
+	/**
+	 * Verify and decrypt a cookie value.
+	 * 
+	 * @return The decrypted content, or <code>null</code> if the value has been changed or was not created with the same keys.
+	 */
+	DataInputStream decode(String value) {
+		byte[] plain = cipher.decrypt(value, MAX_VALUE_LENGTH * 2);
+		return plain != null ? new DataInputStream(new ByteArrayInputStream(plain)) : null;
+	}
+}
@@ -55,6 +55,15 @@ public interface SessionHandler {
 	 *         false otherwise. 
 	 */
 	public boolean isLoggedIn(String sessionId);
+
+	/**
+	 * Get the state of a session in a single lookup.
+	 * 
+	 * <p>This is equivalent to calling {@link #isLoggedIn(String)} and {@link #getAssertion(String)}, but only accesses the session store once.</p>
+	 * 
+	 * @return The state of the session, never <code>null</code>. {@link SessionState#LOGGED_OUT} if there is no assertion.
+	 */
+	public SessionState getSessionState(String sessionId);
 	
 	/**
 	 * Mark a given session as it has been logged out by removing it the
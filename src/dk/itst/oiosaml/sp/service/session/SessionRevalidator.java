@@ -0,0 +1,146 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session;
+
+import java.io.Serializable;
+
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.configuration.Configuration;
+
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+import dk.itst.oiosaml.sp.UserAssertion;
+import dk.itst.oiosaml.sp.service.util.Constants;
+
+/**
+ * Lets authenticated requests skip the session handler for a period after the session has been validated.
+ * 
+ * <p>When a request has been validated against the {@link SessionHandler}, a small marker with the assertion id and the time of
+ * validation is stored in the HTTP session. Until the marker is older than the configured interval, requests with the same
+ * {@link UserAssertion} in the HTTP session are accepted without accessing the session store. When the marker is stale, the session is
+ * validated against the session handler again, so a logout on another node is detected within the interval.</p>
+ * 
+ * <p>Logouts in the browser remove the user assertion from the HTTP session, so they take effect immediately. SOAP logouts do not have
+ * access to the HTTP session, so the session id is registered as logged out on the node which handled the logout, until the markers
+ * would have expired anyway.</p>
+ */
+public class SessionRevalidator {
+	private static final Logger log = LoggerFactory.getLogger(SessionRevalidator.class);
+
+	private static SessionRevalidator instance;
+
+	private final long interval;
+	private final ReplayCache loggedOut;
+
+	/**
+	 * @param interval Milliseconds a validated session is trusted before it is validated against the session handler again.
+	 */
+	public SessionRevalidator(long interval) {
+		if (interval < 1) throw new IllegalArgumentException("Interval must be positive, was " + interval);
+		this.interval = interval;
+		loggedOut = new ReplayCache(1000, Math.min(interval, 1000));
+	}
+
+	/**
+	 * Get the revalidator configured for the application.
+	 * 
+	 * @return <code>null</code> if periodic revalidation has not been enabled using {@link Constants#PROP_SESSION_REVALIDATE}.
+	 */
+	public static synchronized SessionRevalidator getInstance(Configuration config) {
+		if (instance != null) return instance;
+		long interval = config.getLong(Constants.PROP_SESSION_REVALIDATE, 0);
+		if (interval <= 0) return null;
+
+		instance = new SessionRevalidator(interval * 1000);
+		log.info("Revalidating sessions every " + interval + " seconds");
+		return instance;
+	}
+
+	public static synchronized void close() {
+		instance = null;
+	}
+
+	/**
+	 * Check if a session has been validated recently.
+	 * 
+	 * @param ua The user assertion in the HTTP session.
+	 * @return <code>true</code> if the session can be trusted without accessing the session handler.
+	 */
+	public boolean isValid(HttpSession session, UserAssertion ua) {
+		Object value = session.getAttribute(Constants.SESSION_VALIDATED);
+		if (!(value instanceof Marker)) return false;
+
+		Marker marker = (Marker) value;
+		long now = System.currentTimeMillis();
+		if (now - marker.validatedAt >= interval || now > marker.sessionNotOnOrAfter) {
+			return false;
+		}
+		if (ua.getAssertionId() == null || !ua.getAssertionId().equals(marker.assertionId)) {
+			return false;
+		}
+		if (loggedOut.contains(session.getId())) {
+			if (log.isDebugEnabled()) log.debug("Session " + session.getId() + " has been logged out");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Mark a session as validated against the session handler.
+	 * 
+	 * @param state The state read from the session handler. Nothing is marked if the session is not logged in.
+	 */
+	public void validated(HttpSession session, SessionState state) {
+		if (!state.isLoggedIn() || state.getAssertion() == null) return;
+
+		session.setAttribute(Constants.SESSION_VALIDATED, new Marker(state.getAssertion().getID(), System.currentTimeMillis(), state.getSessionNotOnOrAfter()));
+	}
+
+	/**
+	 * Register that a session has been logged out without access to the HTTP session, for example using SOAP.
+	 */
+	public void loggedOut(String sessionId) {
+		if (sessionId == null) return;
+		loggedOut.add(sessionId, System.currentTimeMillis() + interval);
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	private static final class Marker implements Serializable {
+		private static final long serialVersionUID = 6023451288737514925L;
+
+		private final String assertionId;
+		private final long validatedAt;
+		private final long sessionNotOnOrAfter;
+
+		private Marker(String assertionId, long validatedAt, long sessionNotOnOrAfter) {
+			this.assertionId = assertionId;
+			this.validatedAt = validatedAt;
+			this.sessionNotOnOrAfter = sessionNotOnOrAfter;
+		}
+	}
+}
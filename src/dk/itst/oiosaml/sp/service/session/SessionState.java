@@ -0,0 +1,121 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session;
+
+import org.joda.time.DateTime;
+
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+
+/**
+ * Immutable snapshot of the state of a session.
+ * 
+ * <p>The snapshot is read from the {@link SessionHandler} in a single lookup, so code which needs to check if a user is logged in and
+ * then read values from the assertion does not have to access the session store more than once.</p>
+ * 
+ * @see SessionHandler#getSessionState(String)
+ */
+public final class SessionState {
+	/**
+	 * State of a session which is not logged in.
+	 */
+	public static final SessionState LOGGED_OUT = new SessionState(null, false, Long.MAX_VALUE, 0, null, null);
+
+	private final OIOAssertion assertion;
+	private final boolean loggedIn;
+	private final long sessionNotOnOrAfter;
+	private final int assuranceLevel;
+	private final String issuer;
+	private final String sessionIndex;
+
+	private SessionState(OIOAssertion assertion, boolean loggedIn, long sessionNotOnOrAfter, int assuranceLevel, String issuer, String sessionIndex) {
+		this.assertion = assertion;
+		this.loggedIn = loggedIn;
+		this.sessionNotOnOrAfter = sessionNotOnOrAfter;
+		this.assuranceLevel = assuranceLevel;
+		this.issuer = issuer;
+		this.sessionIndex = sessionIndex;
+	}
+
+	/**
+	 * Create a snapshot of a session.
+	 * 
+	 * @param assertion The assertion associated with the session, or <code>null</code> if there is none.
+	 */
+	public static SessionState valueOf(OIOAssertion assertion) {
+		if (assertion == null) return LOGGED_OUT;
+
+		DateTime time = assertion.getSessionNotOnOrAfter();
+		long expiry = time != null ? time.getMillis() : Long.MAX_VALUE;
+		return new SessionState(assertion, expiry == Long.MAX_VALUE || expiry >= System.currentTimeMillis(), expiry,
+				assertion.getAssuranceLevel(), assertion.getIssuer(), assertion.getSessionIndex());
+	}
+
+	/**
+	 * @return <code>true</code> if the session had a non expired assertion when the snapshot was taken.
+	 * @see SessionHandler#isLoggedIn(String)
+	 */
+	public boolean isLoggedIn() {
+		return loggedIn;
+	}
+
+	/**
+	 * @return The assertion associated with the session. This is also set if the session has expired, <code>null</code> if there is no assertion.
+	 */
+	public OIOAssertion getAssertion() {
+		return assertion;
+	}
+
+	/**
+	 * @return The time in milliseconds where the session expires. {@link Long#MAX_VALUE} if the session does not expire.
+	 */
+	public long getSessionNotOnOrAfter() {
+		return sessionNotOnOrAfter;
+	}
+
+	/**
+	 * @return The assurance level of the assertion. 0 if there is no assertion, or the assertion does not contain an assurance level.
+	 */
+	public int getAssuranceLevel() {
+		return assuranceLevel;
+	}
+
+	/**
+	 * @return The entity id of the IdP which issued the assertion. <code>null</code> if there is no assertion.
+	 */
+	public String getIssuer() {
+		return issuer;
+	}
+
+	/**
+	 * @return The session index of the assertion. <code>null</code> if there is no assertion.
+	 */
+	public String getSessionIndex() {
+		return sessionIndex;
+	}
+
+	@Override
+	public String toString() {
+		return "SessionState[loggedIn=" + loggedIn + ", sessionNotOnOrAfter=" + sessionNotOnOrAfter + ", assertion=" + (assertion != null ? assertion.getID() : null) + "]";
+	}
+}
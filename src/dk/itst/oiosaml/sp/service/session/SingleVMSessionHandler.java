@@ -25,53 +25,153 @@ package dk.itst.oiosaml.sp.service.session;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpSession;
 
 import dk.itst.oiosaml.logging.Logger;
 import dk.itst.oiosaml.logging.LoggerFactory;
-import org.apache.commons.collections.map.LRUMap;
-import org.opensaml.saml2.core.Issuer;
 
 import dk.itst.oiosaml.logging.Audit;
 import dk.itst.oiosaml.logging.Operation;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
+import dk.itst.oiosaml.sp.model.OIOAssertionRecord;
 import dk.itst.oiosaml.sp.service.util.Constants;
 import dk.itst.oiosaml.sp.service.util.Utils;
 
 /**
  * Singleton implementation of a SessionHandler. Do not use this in a clustered environment, as it depends on static maps flor state sharing.
  * 
+ * <p>The handler does not use any locks, all state is kept in concurrent maps, and replay protection is handled by a {@link ReplayCache}.
+ * Assertion ids are kept for replay protection until SubjectConfirmationData/@NotOnOrAfter (or Conditions/@NotOnOrAfter if not present) plus
+ * the configured clock skew has passed.</p>
+ * 
+ * <p>Sessions, session indexes, request ids and saved requests are registered in an {@link ExpiryIndex} by their last access time, so
+ * {@link #cleanup(long, long)} only visits entries which might have expired instead of all entries. An entry which has been accessed since
+ * it was registered is registered again at its new access time when it is visited.</p>
+ * 
+ * <p>By default, sessions are stored as {@link OIOAssertionRecord}s, which only hold the values used while the session is active. The
+ * assertion XML can optionally be kept in compressed form, so the original assertion can be recreated.</p>
+ * 
+ * <p>The heap used by each entry is estimated, and if a memory limit has been set using {@link #setMaxMemory(long)}, the least recently
+ * used entries are evicted when the limit is exceeded, regardless of whether they are sessions, request ids or saved requests. Evicted
+ * sessions are logged out.</p>
+ * 
  * @author Joakim Recht
  *
  */
-@SuppressWarnings("unchecked")
 public class SingleVMSessionHandler implements SessionHandler {
 	private static final Logger log = LoggerFactory.getLogger(SingleVMSessionHandler.class);
 
-	private final Map<String, TimeOutWrapper<OIOAssertion>> sessionMap = new ConcurrentHashMap<String, TimeOutWrapper<OIOAssertion>>();
-	private final Map<String, TimeOutWrapper<String>> sessionIndexMap = new ConcurrentHashMap<String, TimeOutWrapper<String>>();
-	private final Map<String, TimeOutWrapper<String>> requestIds = new ConcurrentHashMap<String, TimeOutWrapper<String>>();
-	private final Map<String, TimeOutWrapper<Request>> requests = new ConcurrentHashMap<String, TimeOutWrapper<Request>>();
-	private Map<String, String> usedAssertionIds = new LRUMap(10000);
+	private final Entries<OIOAssertion> sessionMap = new Entries<OIOAssertion>("Session ");
+	private final Entries<String> sessionIndexMap = new Entries<String>("SessionIndex ");
+	private final Entries<String> requestIds = new Entries<String>("Request ");
+	private final Entries<Request> requests = new Entries<Request>("Request ");
+	private volatile ReplayCache usedAssertionIds = new ReplayCache(10000, REPLAY_RESOLUTION);
+	private final long clockSkew;
+	private final boolean compact;
+	private final boolean retainXml;
+
+	private final AtomicLong memoryUsage = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+	private volatile long maxMemory;
+
+	/**
+	 * Default clock skew in milliseconds added to the validity of assertions before they are removed from replay protection.
+	 */
+	public static final long DEFAULT_CLOCK_SKEW = 180 * 1000L;
+
+	private static final long REPLAY_RESOLUTION = 1000L;
+	private static final long EXPIRY_RESOLUTION = 100L;
+
+	/**
+	 * Estimated overhead in bytes of a map entry, its wrapper and the key.
+	 */
+	private static final int ENTRY_OVERHEAD = 96;
+
+	/**
+	 * Estimated number of heap bytes used per character of XML by a full OpenSAML assertion.
+	 */
+	private static final int ASSERTION_BYTES_PER_CHAR = 12;
+
+	public SingleVMSessionHandler() {
+		this(DEFAULT_CLOCK_SKEW);
+	}
+
+	/**
+	 * @param clockSkew Milliseconds to keep assertion ids for replay protection after the assertion has expired.
+	 */
+	public SingleVMSessionHandler(long clockSkew) {
+		this(clockSkew, true, true);
+	}
+
+	/**
+	 * @param clockSkew Milliseconds to keep assertion ids for replay protection after the assertion has expired.
+	 * @param compact Store sessions as {@link OIOAssertionRecord}s instead of full assertions.
+	 * @param retainXml Keep the compressed assertion XML in session records.
+	 */
+	public SingleVMSessionHandler(long clockSkew, boolean compact, boolean retainXml) {
+		this.clockSkew = clockSkew;
+		this.compact = compact;
+		this.retainXml = retainXml;
+	}
+
+	/**
+	 * Set the maximum estimated number of bytes used for sessions and requests. When the limit is exceeded, the least recently used
+	 * entries are evicted.
+	 * 
+	 * @param maxMemory Number of bytes, or 0 for no limit.
+	 */
+	public void setMaxMemory(long maxMemory) {
+		this.maxMemory = maxMemory;
+		evict();
+	}
 
-	public synchronized void setAssertion(String sessionId, OIOAssertion assertion) throws IllegalArgumentException{
-		Issuer issuer = assertion.getAssertion().getIssuer();
-		String key = (issuer != null ? issuer.getValue() : "unknown") + ":" + assertion.getAssertion().getID();
-		if(usedAssertionIds.containsKey(key)) {
+	public void setAssertion(String sessionId, OIOAssertion assertion) throws IllegalArgumentException{
+		String key = ReplayCache.getKey(assertion);
+		if(!usedAssertionIds.add(key, ReplayCache.getExpiry(assertion, clockSkew))) {
 			throw new IllegalArgumentException("Assertion ID begin replayed: " + key);
 		}
-		usedAssertionIds.put(key, assertion.getAssertion().getID());
-		sessionMap.put(sessionId, new TimeOutWrapper<OIOAssertion>(assertion));
+		OIOAssertion stored = compact ? OIOAssertionRecord.valueOf(assertion, retainXml) : assertion;
+		sessionMap.put(sessionId, stored, estimateSize(sessionId) + estimateSize(stored));
 
 		String sessionIndex = assertion.getSessionIndex();
 		if (sessionIndex != null) {
-			// Remove the old sessionIndex
-			sessionIndexMap.remove(sessionIndex);
-
-			// Store the new sessionIndex
-			sessionIndexMap.put(sessionIndex, new TimeOutWrapper<String>(sessionId));
+			// Store the new sessionIndex, replacing any old one
+			sessionIndexMap.put(sessionIndex, sessionId, estimateSize(sessionIndex) + estimateSize(sessionId));
 		}
+		evict();
+	}
+
+	/**
+	 * @return The number of assertion ids currently tracked for replay protection.
+	 */
+	public int getReplayCacheSize() {
+		return usedAssertionIds.size();
+	}
+
+	/**
+	 * @return The estimated number of bytes used by sessions, session indexes, request ids and saved requests.
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage.get();
+	}
+
+	/**
+	 * @return The number of entries evicted because the memory limit was exceeded.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return The number of logged in sessions.
+	 */
+	public int getSessionCount() {
+		return sessionMap.size();
 	}
 
 	public boolean isLoggedIn(String sessionId) {
@@ -79,6 +179,10 @@ public class SingleVMSessionHandler implements SessionHandler {
 		return ass != null && !ass.hasSessionExpired();
 	}
 
+	public SessionState getSessionState(String sessionId) {
+		return SessionState.valueOf(getAssertion(sessionId));
+	}
+
 	public void logOut(HttpSession session) {
 		// We cannot remove the SESSION_ID_LIST since we use it in LogoutHttpResponseServlet
 		// session.removeAttribute(Constants.SESSION_ID_LIST);
@@ -89,13 +193,15 @@ public class SingleVMSessionHandler implements SessionHandler {
 	private void removeAssertion(String sessionId) {
 		TimeOutWrapper<OIOAssertion> tow = sessionMap.remove(sessionId);
 		if(tow != null) {
-			OIOAssertion ass = tow.getObject();
+			removeSessionIndex(tow.getObject());
+		}
+	}
 
-			if(ass != null) {
-				String sessionIndex = ass.getSessionIndex();
-				if(sessionIndex != null) {
-					sessionIndexMap.remove(sessionIndex);
-				}
+	private void removeSessionIndex(OIOAssertion ass) {
+		if(ass != null) {
+			String sessionIndex = ass.getSessionIndex();
+			if(sessionIndex != null) {
+				sessionIndexMap.remove(sessionIndex);
 			}
 		}
 	}
@@ -104,20 +210,21 @@ public class SingleVMSessionHandler implements SessionHandler {
 		removeAssertion(sessionId);
 	}
 
-	public synchronized OIOAssertion getAssertion(String sessionId) {
+	public OIOAssertion getAssertion(String sessionId) {
 		if(sessionId == null) {
 			return null;
 		}
-		if (!sessionMap.containsKey(sessionId))
+		TimeOutWrapper<OIOAssertion> tow = sessionMap.get(sessionId);
+		if (tow == null)
 			return null;
 
-		TimeOutWrapper<OIOAssertion> tow = sessionMap.get(sessionId);
 		tow.setAccesstime();
 		return tow.getObject();
 	}
 
 	public String getRelatedSessionId(String sessionIndex) {
-		return sessionIndexMap.get(sessionIndex).getObject();
+		TimeOutWrapper<String> tow = sessionIndexMap.get(sessionIndex);
+		return tow != null ? tow.getObject() : null;
 	}
 
 	public Object clone() throws CloneNotSupportedException {
@@ -128,7 +235,8 @@ public class SingleVMSessionHandler implements SessionHandler {
 		if (log.isDebugEnabled()) log.debug("Registered id " + id + " for " + receiverEntityID + "(size: " + requestIds.size() + ")");
 
 
-		requestIds.put(id, new TimeOutWrapper<String>(receiverEntityID));
+		requestIds.put(id, receiverEntityID, estimateSize(id) + estimateSize(receiverEntityID));
+		evict();
 	}
 
 	/**
@@ -149,34 +257,62 @@ public class SingleVMSessionHandler implements SessionHandler {
 
 
 	public void cleanup(long requestIdsCleanupDelay, long sessionCleanupDelay) {
-		cleanup(sessionMap, sessionCleanupDelay, "Session ");
-		cleanup(requestIds, requestIdsCleanupDelay, "Request ");
-		cleanup(sessionIndexMap, sessionCleanupDelay, "SessionIndex ");
-		cleanup(requests, sessionCleanupDelay, "Request ");
-	}
-
-	private <E, T> void cleanup(Map<E, TimeOutWrapper<T>> map, long cleanupDelay, String msg) {
-		if (log.isDebugEnabled()) log.debug(hashCode() +  " Running cleanup timer on " + map);
-		for (E key : map.keySet()) {
-			TimeOutWrapper<T> tow = map.get(key);
-			if (tow.isExpired(cleanupDelay)) {
-				log.debug("Expiring " + tow);
-				if (tow.getObject() instanceof OIOAssertion) {
-					OIOAssertion a = (OIOAssertion) tow.getObject();
-					Audit.logSystem(null, a.getID(), Operation.TIMEOUT, a.getSubjectNameIDValue());
+		long now = System.currentTimeMillis();
+		sessionMap.cleanup(sessionCleanupDelay, now);
+		requestIds.cleanup(requestIdsCleanupDelay, now);
+		sessionIndexMap.cleanup(sessionCleanupDelay, now);
+		requests.cleanup(sessionCleanupDelay, now);
+
+		int expired = usedAssertionIds.expire(now);
+		if (log.isDebugEnabled()) log.debug("Expired " + expired + " assertion ids, replay cache size: " + usedAssertionIds.size());
+		if (log.isDebugEnabled()) log.debug("Memory usage: " + memoryUsage.get() + " bytes, " + evictions.get() + " evictions");
+	}
+
+	/**
+	 * Evict the least recently used entries until the memory usage is below the limit.
+	 * 
+	 * <p>Entries are visited oldest first using the expiry indexes. An entry which has been accessed since it was registered is
+	 * registered again at its access time instead of being evicted, so active sessions are kept.</p>
+	 */
+	private void evict() {
+		long max = maxMemory;
+		if (max <= 0 || memoryUsage.get() <= max) return;
+		// only one thread evicts at a time, the others continue as the limit will be enforced by the evicting thread
+		if (!evicting.compareAndSet(false, true)) return;
+
+		try {
+			int evicted = 0;
+			while (memoryUsage.get() > max) {
+				Entries<?> oldest = null;
+				long time = Long.MAX_VALUE;
+				// session indexes are not refreshed when the session is used, so they are only evicted together with their session
+				for (Entries<?> entries : new Entries<?>[] { requests, requestIds, sessionMap }) {
+					long first = entries.index.first();
+					if (first < time) {
+						time = first;
+						oldest = entries;
+					}
 				}
-				map.remove(key);
+				if (oldest == null) break;
+				evicted += oldest.evict(time);
+			}
+			if (evicted > 0) {
+				evictions.addAndGet(evicted);
+				if (log.isDebugEnabled()) log.debug("Evicted " + evicted + " entries, memory usage: " + memoryUsage.get() + " bytes, limit: " + max + " bytes");
 			}
+		} finally {
+			evicting.set(false);
 		}
 	}
 
 	public void resetReplayProtection(int maxNum) {
-		usedAssertionIds = new LRUMap(maxNum);
+		usedAssertionIds = new ReplayCache(maxNum, REPLAY_RESOLUTION);
 	}
 
 	public String saveRequest(Request request) {
 		String state = Utils.generateUUID();
-		requests.put(state, new TimeOutWrapper<Request>(request));
+		requests.put(state, request, estimateSize(state) + estimateSize(request));
+		evict();
 		return state;
 	}
 
@@ -188,5 +324,135 @@ public class SingleVMSessionHandler implements SessionHandler {
 		return request.getObject();
 	}
 
+	private static int estimateSize(String value) {
+		return value == null ? 0 : 40 + 2 * value.length();
+	}
+
+	private static int estimateSize(OIOAssertion assertion) {
+		if (assertion instanceof OIOAssertionRecord) {
+			return ((OIOAssertionRecord) assertion).getEstimatedSize();
+		}
+		return ASSERTION_BYTES_PER_CHAR * assertion.toXML().length();
+	}
+
+	private static int estimateSize(Request request) {
+		int size = 32 + estimateSize(request.getRequestURI()) + estimateSize(request.getQueryString()) + estimateSize(request.getMethod());
+		if (request.getParameters() != null) {
+			for (Map.Entry<String, String[]> e : request.getParameters().entrySet()) {
+				size += 48 + estimateSize(e.getKey());
+				if (e.getValue() != null) {
+					for (String value : e.getValue()) {
+						size += 8 + estimateSize(value);
+					}
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Map of entries with an expiry index and memory accounting.
+	 */
+	private class Entries<T> {
+		private final ConcurrentMap<String, TimeOutWrapper<T>> map = new ConcurrentHashMap<String, TimeOutWrapper<T>>();
+		private final ExpiryIndex<String> index = new ExpiryIndex<String>(EXPIRY_RESOLUTION);
+		private final String name;
+
+		private Entries(String name) {
+			this.name = name;
+		}
+
+		public TimeOutWrapper<T> get(String key) {
+			return map.get(key);
+		}
+
+		public int size() {
+			return map.size();
+		}
+
+		public void put(String key, T value, int size) {
+			TimeOutWrapper<T> tow = new TimeOutWrapper<T>(value, ENTRY_OVERHEAD + size);
+			memoryUsage.addAndGet(tow.getSize());
+			TimeOutWrapper<T> old = map.put(key, tow);
+			if (old != null) {
+				memoryUsage.addAndGet(-old.getSize());
+			}
+			index.schedule(key, tow.getAccesstime());
+		}
 
+		public TimeOutWrapper<T> remove(String key) {
+			TimeOutWrapper<T> tow = map.remove(key);
+			if (tow != null) {
+				memoryUsage.addAndGet(-tow.getSize());
+			}
+			return tow;
+		}
+
+		private boolean remove(String key, TimeOutWrapper<T> tow) {
+			if (map.remove(key, tow)) {
+				memoryUsage.addAndGet(-tow.getSize());
+				return true;
+			}
+			return false;
+		}
+
+		public void cleanup(long cleanupDelay, long now) {
+			// entries registered before this time might have expired, all others have been accessed too recently. Include
+			// the bucket containing the limit, so entries are not expired one resolution late
+			long limit = now - cleanupDelay + EXPIRY_RESOLUTION;
+			if (!index.hasExpired(limit)) return;
+
+			int removed = 0;
+			for (String key : index.poll(limit)) {
+				TimeOutWrapper<T> tow = map.get(key);
+				if (tow == null) {
+					// removed or logged out since it was registered
+					continue;
+				}
+				if (!tow.isExpired(cleanupDelay, now)) {
+					index.schedule(key, tow.getAccesstime());
+					continue;
+				}
+				if (!remove(key, tow)) {
+					// replaced concurrently, the new entry has been registered by put
+					continue;
+				}
+				if (log.isDebugEnabled()) log.debug("Expiring " + name + key + ": " + tow);
+				if (tow.getObject() instanceof OIOAssertion) {
+					OIOAssertion a = (OIOAssertion) tow.getObject();
+					Audit.logSystem(null, a.getID(), Operation.TIMEOUT, a.getSubjectNameIDValue());
+				}
+				removed++;
+			}
+			if (log.isDebugEnabled()) log.debug(name + "cleanup removed " + removed + " entries, " + map.size() + " left");
+		}
+
+		/**
+		 * Evict the entries registered at or before a given time, unless they have been accessed since.
+		 * 
+		 * @return The number of evicted entries.
+		 */
+		public int evict(long time) {
+			int evicted = 0;
+			for (String key : index.poll(time)) {
+				TimeOutWrapper<T> tow = map.get(key);
+				if (tow == null) continue;
+
+				if (tow.getAccesstime() > time) {
+					index.schedule(key, tow.getAccesstime());
+					continue;
+				}
+				if (!remove(key, tow)) continue;
+
+				if (log.isDebugEnabled()) log.debug("Evicting " + name + key + ": " + tow);
+				if (tow.getObject() instanceof OIOAssertion) {
+					OIOAssertion a = (OIOAssertion) tow.getObject();
+					removeSessionIndex(a);
+					Audit.logSystem(null, a.getID(), Operation.TIMEOUT, a.getSubjectNameIDValue());
+				}
+				evicted++;
+			}
+			return evicted;
+		}
+	}
 }
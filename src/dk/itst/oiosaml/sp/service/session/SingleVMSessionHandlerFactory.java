@@ -27,6 +27,8 @@ import dk.itst.oiosaml.logging.Logger;
 import dk.itst.oiosaml.logging.LoggerFactory;
 import org.apache.commons.configuration.Configuration;
 
+import dk.itst.oiosaml.sp.service.util.Constants;
+
 public class SingleVMSessionHandlerFactory implements SessionHandlerFactory {
 	private static final Logger log = LoggerFactory.getLogger(SingleVMSessionHandlerFactory.class);
 
@@ -38,7 +40,9 @@ public class SingleVMSessionHandlerFactory implements SessionHandlerFactory {
 	}
 
 	public void configure(Configuration config) {
-		instance = new SingleVMSessionHandler();
+		instance = new SingleVMSessionHandler(config.getLong(Constants.PROP_REPLAY_CLOCK_SKEW, SingleVMSessionHandler.DEFAULT_CLOCK_SKEW / 1000) * 1000,
+				config.getBoolean(Constants.PROP_COMPACT_SESSIONS, true), config.getBoolean(Constants.PROP_RETAIN_ASSERTION_XML, true));
+		instance.setMaxMemory(config.getLong(Constants.PROP_SESSION_MAX_MEMORY, 0) * 1024 * 1024);
 	}
 
 	public SessionHandler getHandler() {
@@ -23,12 +23,32 @@
  */
 package dk.itst.oiosaml.sp.service.session;
 
+/**
+ * Wrapper which keeps track of the last time an object was accessed.
+ * 
+ * <p>The access time is only updated if it is more than {@link #ACCESS_GRANULARITY} milliseconds old, so objects which are accessed
+ * by many concurrent requests do not cause a write on every access.</p>
+ */
 public class TimeOutWrapper<T> {
+	/**
+	 * Milliseconds between updates of the access time.
+	 */
+	public static final long ACCESS_GRANULARITY = 1000L;
+
 	private final T object;
-	private long accesstime;
+	private final int size;
+	private volatile long accesstime;
 
 	public TimeOutWrapper(T object) {
+		this(object, 0);
+	}
+
+	/**
+	 * @param size Estimated size of the object in bytes.
+	 */
+	public TimeOutWrapper(T object, int size) {
 		this.object = object;
+		this.size = size;
 		this.accesstime = System.currentTimeMillis();
 	}
 
@@ -37,11 +57,26 @@ public class TimeOutWrapper<T> {
 	}
 
 	public boolean isExpired(long delay) {
-		return (System.currentTimeMillis() > accesstime + delay);
+		return isExpired(delay, System.currentTimeMillis());
+	}
+
+	public boolean isExpired(long delay, long now) {
+		return (now >= accesstime + delay);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public long getAccesstime() {
+		return accesstime;
 	}
 
 	public void setAccesstime() {
-		accesstime = System.currentTimeMillis();
+		long now = System.currentTimeMillis();
+		if (now - accesstime >= ACCESS_GRANULARITY) {
+			accesstime = now;
+		}
 	}
 	
 	@Override
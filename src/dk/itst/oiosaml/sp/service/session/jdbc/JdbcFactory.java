@@ -23,100 +23,168 @@
  */
 package dk.itst.oiosaml.sp.service.session.jdbc;
 
-import java.io.PrintWriter;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.sql.SQLFeatureNotSupportedException;
-import java.util.logging.Logger;
-
 import javax.sql.DataSource;
 
 import org.apache.commons.configuration.Configuration;
 
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
 import dk.itst.oiosaml.sp.service.session.SessionHandler;
 import dk.itst.oiosaml.sp.service.session.SessionHandlerFactory;
 
 /**
  * Session factory which uses plain old jdbc connections.
  * 
+ * Connections are kept in a {@link PooledDataSource}, so they are reused between requests.
+ * 
  * The following properties must be set in the configuration:
  * <ul>
- * <li>oiosaml-sp.sessionhandler.factory=dk.itst.oiosaml.sp.service.session.jdbc.JndiFactory</li>
+ * <li>oiosaml-sp.sessionhandler.factory=dk.itst.oiosaml.sp.service.session.jdbc.JdbcFactory</li>
  * <li>oiosaml-sp.sessionhandler.jdbc.url: JDBC url to use for the connetion</li>
  * <li>oiosaml-sp.sessionhandler.jdbc.driver: Driver class name to use</li>
  * <li>oiosaml-sp.sessionhandler.jdbc.username</li>
  * <li>oiosaml-sp.sessionhandler.jdbc.password</li>
  * </ul>
  * 
+ * The pool can be configured with the following optional properties:
+ * <ul>
+ * <li>oiosaml-sp.sessionhandler.jdbc.pool.minsize: Number of connections to keep open. Defaults to 1.</li>
+ * <li>oiosaml-sp.sessionhandler.jdbc.pool.maxsize: Maximum number of open connections. Defaults to 10.</li>
+ * <li>oiosaml-sp.sessionhandler.jdbc.pool.timeout: Milliseconds to wait for a free connection. Defaults to 5000.</li>
+ * <li>oiosaml-sp.sessionhandler.jdbc.pool.validationquery: Query used to validate connections. Defaults to Connection.isValid().</li>
+ * <li>oiosaml-sp.sessionhandler.jdbc.pool.validationinterval: Milliseconds a connection can be idle before it is validated. Defaults to 5000.</li>
+ * <li>oiosaml-sp.sessionhandler.jdbc.pool.idletimeout: Milliseconds after which idle connections are closed. Defaults to 600000.</li>
+ * <li>oiosaml-sp.sessionhandler.jdbc.pool.leakthreshold: Milliseconds a connection can be in use before it is logged as a possible leak. 0 disables. Defaults to 0.</li>
+ * <li>oiosaml-sp.sessionhandler.jdbc.pool.statementcache: Number of prepared statements cached per connection. 0 disables. Defaults to 20.</li>
+ * </ul>
+ * 
+ * Decoded assertions and access times are handled by a {@link JdbcSessionCache}, configured with the following optional properties:
+ * <ul>
+ * <li>oiosaml-sp.sessionhandler.jdbc.cache.size: Number of assertions cached on this node. 0 disables. Defaults to 10000.</li>
+ * <li>oiosaml-sp.sessionhandler.jdbc.cache.flushinterval: Milliseconds between batched writes of session access times. 0 writes them
+ * on every request. Defaults to 5000.</li>
+ * </ul>
+ * 
+ * The schema is managed with the following optional properties:
+ * <ul>
+ * <li>oiosaml-sp.sessionhandler.jdbc.schema.update: If true, the tables and indexes are created or upgraded on startup using
+ * {@link JdbcSchema}. Defaults to false.</li>
+ * <li>oiosaml-sp.sessionhandler.jdbc.cleanup.batchsize: Maximum number of expired rows removed in each transaction. Defaults to 500.</li>
+ * <li>oiosaml-sp.sessionhandler.jdbc.binary: Store assertions and requests in the compact binary format if the schema is version 3 or
+ * later. Set to false while nodes running older versions share the database. Rows in the binary format written by other nodes are read
+ * regardless of this property. Defaults to true.</li>
+ * </ul>
+ * 
  * @author Joakim Recht
  * 
  */
 public class JdbcFactory implements SessionHandlerFactory {
+	private static final Logger log = LoggerFactory.getLogger(JdbcFactory.class);
 
-	private String url;
-	private String username;
-	private String password;
-	private String driver;
+	private PooledDataSource ds;
+	private JdbcSessionCache cache;
+	private JdbcSessionCleaner cleaner;
+	private int schemaVersion;
+	private boolean binary;
 
 	public void close() {
-
+		if (cache != null) {
+			log.info("Closing session cache " + cache);
+			cache.close();
+			cache = null;
+		}
+		if (ds != null) {
+			log.info("Closing connection pool " + ds);
+			ds.close();
+			ds = null;
+		}
 	}
 
 	public void configure(Configuration config) {
-		url = config.getString("oiosaml-sp.sessionhandler.jdbc.url");
-		username = config.getString("oiosaml-sp.sessionhandler.jdbc.username");
-		password = config.getString("oiosaml-sp.sessionhandler.jdbc.password");
-		driver = config.getString("oiosaml-sp.sessionhandler.jdbc.driver");
+		String url = config.getString("oiosaml-sp.sessionhandler.jdbc.url");
+		String username = config.getString("oiosaml-sp.sessionhandler.jdbc.username");
+		String password = config.getString("oiosaml-sp.sessionhandler.jdbc.password");
+		String driver = config.getString("oiosaml-sp.sessionhandler.jdbc.driver");
 
 		try {
 			Class.forName(driver);
 		} catch (ClassNotFoundException e) {
 			throw new RuntimeException("Unable to load driver " + driver, e);
 		}
-	}
 
-	public SessionHandler getHandler() {
-		return new JdbcSessionHandler(new DS());
+		close();
+		ds = new PooledDataSource(url, username, password,
+				config.getInt("oiosaml-sp.sessionhandler.jdbc.pool.minsize", 1),
+				config.getInt("oiosaml-sp.sessionhandler.jdbc.pool.maxsize", 10));
+		ds.setTimeout(config.getLong("oiosaml-sp.sessionhandler.jdbc.pool.timeout", 5000));
+		ds.setValidationQuery(config.getString("oiosaml-sp.sessionhandler.jdbc.pool.validationquery", null));
+		ds.setValidationInterval(config.getLong("oiosaml-sp.sessionhandler.jdbc.pool.validationinterval", 5000));
+		ds.setIdleTimeout(config.getLong("oiosaml-sp.sessionhandler.jdbc.pool.idletimeout", 600000));
+		ds.setLeakThreshold(config.getLong("oiosaml-sp.sessionhandler.jdbc.pool.leakthreshold", 0));
+		ds.setStatementCacheSize(config.getInt("oiosaml-sp.sessionhandler.jdbc.pool.statementcache", 20));
+		ds.start();
+
+		updateSchema(ds, config);
+		cache = createCache(ds, config);
+		cleaner = createCleaner(config);
+		schemaVersion = new JdbcSchema(ds).getVersion();
+		binary = useBinaryFormat(schemaVersion, config);
 	}
 
-	private class DS implements DataSource {
-		public Connection getConnection() throws SQLException {
-			return DriverManager.getConnection(url, username, password);
+	static void updateSchema(DataSource ds, Configuration config) {
+		if (config.getBoolean("oiosaml-sp.sessionhandler.jdbc.schema.update", false)) {
+			new JdbcSchema(ds).update();
 		}
+	}
 
-		public Connection getConnection(String username, String password)
-				throws SQLException {
-			throw new UnsupportedOperationException();
-		}
+	/**
+	 * Only controls how rows are written. Rows in the binary format are always read when the schema is version 3 or later.
+	 */
+	static boolean useBinaryFormat(int version, Configuration config) {
+		if (!config.getBoolean("oiosaml-sp.sessionhandler.jdbc.binary", true)) return false;
 
-		public PrintWriter getLogWriter() throws SQLException {
-			throw new UnsupportedOperationException();
+		if (version < 3) {
+			log.info("Session schema is version " + version + ", storing sessions as text. Upgrade to version 3 to use the binary format");
+			return false;
 		}
+		return true;
+	}
 
-		public int getLoginTimeout() throws SQLException {
-			throw new UnsupportedOperationException();
-		}
+	static JdbcSessionCleaner createCleaner(Configuration config) {
+		return new JdbcSessionCleaner(config.getInt("oiosaml-sp.sessionhandler.jdbc.cleanup.batchsize", JdbcSessionCleaner.DEFAULT_BATCH_SIZE));
+	}
 
-		public void setLogWriter(PrintWriter out) throws SQLException {
-			throw new UnsupportedOperationException();
-		}
+	static JdbcSessionCache createCache(DataSource ds, Configuration config) {
+		JdbcSessionCache cache = new JdbcSessionCache(ds,
+				config.getInt("oiosaml-sp.sessionhandler.jdbc.cache.size", 10000),
+				config.getLong("oiosaml-sp.sessionhandler.jdbc.cache.flushinterval", 5000));
+		cache.start();
+		return cache;
+	}
 
-		public void setLoginTimeout(int seconds) throws SQLException {
-			throw new UnsupportedOperationException();
-		}
+	public SessionHandler getHandler() {
+		if (ds == null) throw new IllegalStateException("Factory has not been configured");
+		return new JdbcSessionHandler(ds, cache, cleaner, schemaVersion, binary);
+	}
 
-		public boolean isWrapperFor(Class<?> iface) throws SQLException {
-			throw new UnsupportedOperationException();
-		}
+	/**
+	 * @return The connection pool, which can be used to read pool metrics.
+	 */
+	public PooledDataSource getDataSource() {
+		return ds;
+	}
 
-		public <T> T unwrap(Class<T> iface) throws SQLException {
-			throw new UnsupportedOperationException();
-		}
+	/**
+	 * @return The session cache, which can be used to read cache metrics.
+	 */
+	public JdbcSessionCache getCache() {
+		return cache;
+	}
 
-		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
-			// TODO Auto-generated method stub
-			return null;
-		}
+	/**
+	 * @return The cleaner, which can be used to read cleanup metrics.
+	 */
+	public JdbcSessionCleaner getCleaner() {
+		return cleaner;
 	}
 }
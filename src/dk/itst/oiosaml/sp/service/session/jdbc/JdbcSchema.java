@@ -0,0 +1,209 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.io.IOUtils;
+
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+
+/**
+ * Versioned schema for the JDBC session store.
+ * 
+ * <p>The DDL is kept in <code>schema/&lt;dialect&gt;/&lt;version&gt;.sql</code> next to this class, where each script upgrades the schema
+ * from the previous version. The installed version is stored in the <code>oiosaml_schema</code> table. Schemas created before the version
+ * table was introduced are detected as version 1.</p>
+ * 
+ * <p>Supported dialects are mysql, postgresql, oracle, sqlserver and h2.</p>
+ */
+public class JdbcSchema {
+	private static final Logger log = LoggerFactory.getLogger(JdbcSchema.class);
+
+	/**
+	 * The schema version required by {@link JdbcSessionHandler}.
+	 */
+	public static final int VERSION = 3;
+
+	private final DataSource ds;
+
+	public JdbcSchema(DataSource ds) {
+		this.ds = ds;
+	}
+
+	/**
+	 * @return The dialect of the database, which is used to select scripts.
+	 */
+	public String getDialect() {
+		Connection con = getConnection();
+		try {
+			return getDialect(con.getMetaData().getDatabaseProductName());
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			close(con);
+		}
+	}
+
+	static String getDialect(String productName) {
+		String name = productName.toLowerCase();
+		if (name.contains("mysql") || name.contains("mariadb")) return "mysql";
+		if (name.contains("postgres")) return "postgresql";
+		if (name.contains("oracle")) return "oracle";
+		if (name.contains("microsoft") || name.contains("sql server")) return "sqlserver";
+		if (name.contains("h2")) return "h2";
+		throw new IllegalStateException("No schema available for database " + productName + ", the tables must be created manually");
+	}
+
+	/**
+	 * @return The installed schema version, or 0 if the schema has not been created.
+	 */
+	public int getVersion() {
+		Connection con = getConnection();
+		try {
+			if (tableExists(con, "oiosaml_schema")) {
+				Statement st = con.createStatement();
+				try {
+					ResultSet rs = st.executeQuery("SELECT version FROM oiosaml_schema");
+					return rs.next() ? rs.getInt(1) : 0;
+				} finally {
+					st.close();
+				}
+			}
+			return tableExists(con, "assertions") ? 1 : 0;
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			close(con);
+		}
+	}
+
+	/**
+	 * Upgrade the schema to {@link #VERSION} by running all scripts after the installed version.
+	 * 
+	 * @return The number of scripts which were run.
+	 */
+	public int update() {
+		int version = getVersion();
+		if (version > VERSION) {
+			throw new IllegalStateException("Database schema version " + version + " is newer than the supported version " + VERSION);
+		}
+		if (version == VERSION) return 0;
+
+		String dialect = getDialect();
+		Connection con = getConnection();
+		try {
+			if (!tableExists(con, "oiosaml_schema")) {
+				execute(con, "CREATE TABLE oiosaml_schema (version INT NOT NULL)");
+				execute(con, "INSERT INTO oiosaml_schema (version) VALUES (" + version + ")");
+			}
+			for (int v = version + 1; v <= VERSION; v++) {
+				log.info("Updating session schema to version " + v + " using " + dialect + " dialect");
+				for (String sql : getStatements(dialect, v)) {
+					execute(con, sql);
+				}
+				execute(con, "UPDATE oiosaml_schema SET version = " + v);
+			}
+			return VERSION - version;
+		} catch (SQLException e) {
+			throw new RuntimeException("Unable to update session schema from version " + version, e);
+		} finally {
+			close(con);
+		}
+	}
+
+	/**
+	 * @return The statements in a schema script.
+	 */
+	public static List<String> getStatements(String dialect, int version) {
+		String resource = "schema/" + dialect + "/" + version + ".sql";
+		InputStream is = JdbcSchema.class.getResourceAsStream(resource);
+		if (is == null) {
+			throw new IllegalArgumentException("No schema script " + resource);
+		}
+		try {
+			List<String> res = new ArrayList<String>();
+			for (String sql : IOUtils.toString(is, "UTF-8").split(";\\s*(\r?\n|$)")) {
+				if (sql.trim().length() > 0) {
+					res.add(sql.trim());
+				}
+			}
+			return res;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	private void execute(Connection con, String sql) throws SQLException {
+		Statement st = con.createStatement();
+		try {
+			st.execute(sql);
+		} finally {
+			st.close();
+		}
+	}
+
+	private boolean tableExists(Connection con, String table) throws SQLException {
+		DatabaseMetaData md = con.getMetaData();
+		// databases store unquoted identifiers in different cases
+		for (String name : new String[] { table, table.toUpperCase() }) {
+			ResultSet rs = md.getTables(null, null, name, new String[] { "TABLE" });
+			try {
+				if (rs.next()) return true;
+			} finally {
+				rs.close();
+			}
+		}
+		return false;
+	}
+
+	private Connection getConnection() {
+		try {
+			return ds.getConnection();
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void close(Connection con) {
+		try {
+			con.close();
+		} catch (SQLException e) {
+			log.error("Unable to close connection", e);
+		}
+	}
+}
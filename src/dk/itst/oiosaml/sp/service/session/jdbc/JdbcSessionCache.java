@@ -0,0 +1,324 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+
+/**
+ * Node local state shared by all {@link JdbcSessionHandler} instances created by a factory.
+ * 
+ * <p>Decoded assertions are cached together with the assertion id they were loaded for. The assertion id changes every time a session
+ * gets a new assertion, so it is used as the version of the row: a cached assertion is only used if the id in the database still matches,
+ * which only requires reading the id, and not the full assertion.</p>
+ * 
+ * <p>Access times are not written to the database on each request. Instead, they are collected and written in a single batch every
+ * flush interval, so each session is written at most once per interval regardless of the number of requests.</p>
+ */
+public class JdbcSessionCache {
+	private static final Logger log = LoggerFactory.getLogger(JdbcSessionCache.class);
+
+	private static final int BATCH_SIZE = 500;
+
+	private final DataSource ds;
+	private final int maxSize;
+	private final long flushInterval;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentMap<String, Long> touched = new ConcurrentHashMap<String, Long>();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong flushedTimestamps = new AtomicLong();
+
+	private Timer timer;
+
+	/**
+	 * @param ds Data source used to write access times.
+	 * @param maxSize Maximum number of cached assertions. 0 disables caching.
+	 * @param flushInterval Milliseconds between writes of access times. 0 disables delayed writes.
+	 */
+	public JdbcSessionCache(DataSource ds, int maxSize, long flushInterval) {
+		this.ds = ds;
+		this.maxSize = maxSize;
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * Start writing access times periodically.
+	 */
+	public synchronized void start() {
+		if (timer != null || flushInterval <= 0) return;
+
+		timer = new Timer("JDBC Session Timestamps", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException e) {
+					log.error("Unable to write session access times", e);
+				}
+			}
+		}, flushInterval, flushInterval);
+	}
+
+	/**
+	 * Stop the background task and write all pending access times.
+	 */
+	public synchronized void close() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+		flush();
+		entries.clear();
+	}
+
+	/**
+	 * @return The cached assertion for a session if it was loaded with the given assertion id, otherwise <code>null</code>.
+	 */
+	public OIOAssertion get(String sessionId, String assertionId) {
+		Entry e = entries.get(sessionId);
+		if (e != null && e.assertionId.equals(assertionId)) {
+			e.lastUsed = System.currentTimeMillis();
+			hits.incrementAndGet();
+			return e.assertion;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @return <code>true</code> if an assertion is cached for the session, regardless of the version.
+	 */
+	public boolean contains(String sessionId) {
+		return entries.containsKey(sessionId);
+	}
+
+	public void put(String sessionId, String assertionId, OIOAssertion assertion) {
+		if (maxSize <= 0) return;
+
+		entries.put(sessionId, new Entry(assertionId, assertion));
+		if (entries.size() > maxSize) {
+			evict();
+		}
+	}
+
+	public void remove(String sessionId) {
+		entries.remove(sessionId);
+		touched.remove(sessionId);
+	}
+
+	public void clear() {
+		entries.clear();
+		touched.clear();
+	}
+
+	/**
+	 * Register that a session has been accessed.
+	 * 
+	 * @return <code>false</code> if delayed writes are disabled, and the caller must update the access time itself.
+	 */
+	public boolean touch(String sessionId) {
+		if (flushInterval <= 0) return false;
+
+		touched.put(sessionId, System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Write all pending access times to the database. If the write fails, the access times are kept and written by the next flush.
+	 * 
+	 * @return The number of sessions written.
+	 */
+	public int flush() {
+		if (touched.isEmpty()) return 0;
+
+		List<String> ids = new ArrayList<String>(touched.keySet());
+		Map<String, Long> pending = new HashMap<String, Long>();
+		boolean committed = false;
+		int count = 0;
+		Connection con = null;
+		PreparedStatement ps = null;
+		try {
+			con = ds.getConnection();
+			con.setAutoCommit(false);
+			ps = con.prepareStatement("UPDATE assertions SET timestamp = ? WHERE id = ?");
+			int batch = 0;
+			for (String id : ids) {
+				Long time = touched.remove(id);
+				if (time == null) continue;
+				pending.put(id, time);
+
+				ps.setTimestamp(1, new Timestamp(time));
+				ps.setString(2, id);
+				ps.addBatch();
+				count++;
+				if (++batch == BATCH_SIZE) {
+					ps.executeBatch();
+					batch = 0;
+				}
+			}
+			if (batch > 0) {
+				ps.executeBatch();
+			}
+			con.commit();
+			committed = true;
+			flushedTimestamps.addAndGet(count);
+			if (log.isDebugEnabled()) log.debug("Wrote access time for " + count + " sessions");
+			return count;
+		} catch (SQLException e) {
+			rollback(con);
+			throw new RuntimeException(e);
+		} finally {
+			if (!committed) {
+				// keep the access times, unless the session has been touched again in the meantime
+				for (Map.Entry<String, Long> e : pending.entrySet()) {
+					touched.putIfAbsent(e.getKey(), e.getValue());
+				}
+			}
+			if (ps != null) {
+				try {
+					ps.close();
+				} catch (SQLException e) {
+					log.error("Unable to close statement", e);
+				}
+			}
+			if (con != null) {
+				try {
+					con.setAutoCommit(true);
+					con.close();
+				} catch (SQLException e) {
+					log.error("Unable to close connection", e);
+				}
+			}
+		}
+	}
+
+	private void rollback(Connection con) {
+		if (con == null) return;
+		try {
+			con.rollback();
+		} catch (SQLException e) {
+			log.error("Unable to roll back", e);
+		}
+	}
+
+	/**
+	 * Remove the least recently used tenth of the cache.
+	 */
+	private void evict() {
+		if (!evicting.compareAndSet(false, true)) return;
+		try {
+			int target = maxSize - maxSize / 10;
+			int excess = entries.size() - target;
+			if (excess <= 0) return;
+
+			List<Long> times = new ArrayList<Long>(entries.size());
+			for (Entry e : entries.values()) {
+				times.add(e.lastUsed);
+			}
+			Collections.sort(times);
+			long limit = times.get(Math.min(excess, times.size()) - 1);
+
+			for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext() && excess > 0;) {
+				if (i.next().getValue().lastUsed <= limit) {
+					i.remove();
+					excess--;
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The number of lookups served from the cache.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of lookups which had to read the assertion from the database.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of access times written to the database.
+	 */
+	public long getFlushedCount() {
+		return flushedTimestamps.get();
+	}
+
+	/**
+	 * @return The number of access times waiting to be written.
+	 */
+	public int getPendingCount() {
+		return touched.size();
+	}
+
+	public String toString() {
+		return "JdbcSessionCache[size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", pending=" + getPendingCount()
+			+ ", flushed=" + getFlushedCount() + "]";
+	}
+
+	private static class Entry {
+		private final String assertionId;
+		private final OIOAssertion assertion;
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		private Entry(String assertionId, OIOAssertion assertion) {
+			this.assertionId = assertionId;
+			this.assertion = assertion;
+		}
+	}
+}
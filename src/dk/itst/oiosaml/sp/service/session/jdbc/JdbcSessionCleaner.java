@@ -0,0 +1,202 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+
+/**
+ * Removes expired rows from the JDBC session store in small batches.
+ * 
+ * <p>Instead of a single <code>DELETE ... WHERE timestamp &lt; ?</code>, which can lock large parts of a busy table, the ids of up to
+ * <code>batchSize</code> expired rows are selected using the timestamp index, and deleted by primary key in a short transaction. The
+ * connection is returned to the pool between batches. This works on all databases, as no vendor specific LIMIT syntax is used.</p>
+ */
+public class JdbcSessionCleaner {
+	private static final Logger log = LoggerFactory.getLogger(JdbcSessionCleaner.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	private final int batchSize;
+
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong deleted = new AtomicLong();
+	private volatile long lastDuration;
+
+	/**
+	 * @param batchSize Maximum number of rows deleted in each transaction.
+	 */
+	public JdbcSessionCleaner(int batchSize) {
+		if (batchSize < 1) throw new IllegalArgumentException("Batch size must be positive, was " + batchSize);
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Remove expired rows from the session tables.
+	 * 
+	 * @return The number of removed rows.
+	 */
+	public int cleanup(DataSource ds, long requestIdsCleanupDelay, long sessionCleanupDelay) {
+		long start = System.currentTimeMillis();
+		int count = 0;
+		count += cleanup(ds, "assertions", new Timestamp(start - sessionCleanupDelay));
+		count += cleanup(ds, "requestdata", new Timestamp(start - sessionCleanupDelay));
+		count += cleanup(ds, "requests", new Timestamp(start - requestIdsCleanupDelay));
+
+		runs.incrementAndGet();
+		lastDuration = System.currentTimeMillis() - start;
+		if (log.isDebugEnabled()) log.debug("Removed " + count + " expired rows in " + lastDuration + " ms");
+		return count;
+	}
+
+	/**
+	 * Remove all rows from a table which have not been accessed since a given time.
+	 */
+	public int cleanup(DataSource ds, String table, Timestamp limit) {
+		int count = 0;
+		while (true) {
+			List<String> ids = new ArrayList<String>(batchSize);
+			int removed;
+			Connection con = null;
+			try {
+				con = ds.getConnection();
+				con.setAutoCommit(true);
+				PreparedStatement ps = con.prepareStatement("SELECT id FROM " + table + " WHERE timestamp < ?");
+				try {
+					ps.setMaxRows(batchSize);
+					ps.setFetchSize(batchSize);
+					ps.setTimestamp(1, limit);
+					ResultSet rs = ps.executeQuery();
+					while (rs.next()) {
+						ids.add(rs.getString(1));
+					}
+					rs.close();
+				} finally {
+					ps.close();
+				}
+				if (ids.isEmpty()) break;
+
+				removed = delete(con, table, ids, limit);
+			} catch (SQLException e) {
+				throw new RuntimeException("Unable to clean up " + table, e);
+			} finally {
+				close(con);
+			}
+			count += removed;
+			batches.incrementAndGet();
+			deleted.addAndGet(removed);
+			if (ids.size() < batchSize) break;
+		}
+		return count;
+	}
+
+	private int delete(Connection con, String table, List<String> ids, Timestamp limit) throws SQLException {
+		con.setAutoCommit(false);
+		try {
+			// the timestamp check keeps rows which were accessed after they were selected
+			PreparedStatement ps = con.prepareStatement("DELETE FROM " + table + " WHERE id = ? AND timestamp < ?");
+			int removed = 0;
+			try {
+				for (String id : ids) {
+					ps.setString(1, id);
+					ps.setTimestamp(2, limit);
+					ps.addBatch();
+				}
+				for (int result : ps.executeBatch()) {
+					if (result > 0 || result == Statement.SUCCESS_NO_INFO) {
+						removed++;
+					}
+				}
+			} finally {
+				ps.close();
+			}
+			con.commit();
+			return removed;
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.setAutoCommit(true);
+		}
+	}
+
+	private void close(Connection con) {
+		if (con == null) return;
+		try {
+			con.close();
+		} catch (SQLException e) {
+			log.error("Unable to close connection", e);
+		}
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return The number of times cleanup has run.
+	 */
+	public long getRunCount() {
+		return runs.get();
+	}
+
+	/**
+	 * @return The number of delete transactions.
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * @return The total number of removed rows.
+	 */
+	public long getDeletedCount() {
+		return deleted.get();
+	}
+
+	/**
+	 * @return The duration of the last cleanup in milliseconds.
+	 */
+	public long getLastDuration() {
+		return lastDuration;
+	}
+
+	public String toString() {
+		return "JdbcSessionCleaner[batchSize=" + batchSize + ", runs=" + getRunCount() + ", batches=" + getBatchCount() + ", deleted="
+			+ getDeletedCount() + ", lastDuration=" + getLastDuration() + "]";
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.jdbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+import dk.itst.oiosaml.sp.model.OIOAssertionRecord;
+import dk.itst.oiosaml.sp.service.session.RequestCodec;
+
+/**
+ * Binary encoding of session state stored in BLOB columns.
+ * 
+ * <p>Assertions are stored as {@link OIOAssertionRecord}s, which contain the fields used on each request together with the deflated
+ * assertion XML, so the XML is only parsed if the full assertion is actually needed. Saved requests are stored using
+ * {@link RequestCodec}.</p>
+ */
+public class JdbcSessionCodec {
+	private JdbcSessionCodec() {}
+
+	public static byte[] encodeAssertion(OIOAssertion assertion) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+			DataOutputStream out = new DataOutputStream(bos);
+			OIOAssertionRecord.valueOf(assertion, true).writeTo(out);
+			out.close();
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static OIOAssertion decodeAssertion(byte[] data) {
+		try {
+			return OIOAssertionRecord.readFrom(new DataInputStream(new ByteArrayInputStream(data)));
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to decode assertion", e);
+		}
+	}
+}
@@ -32,6 +32,8 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.Date;
 
@@ -46,24 +48,86 @@ import org.opensaml.xml.util.Base64;
 import dk.itst.oiosaml.common.SAMLUtil;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
 import dk.itst.oiosaml.sp.service.session.Request;
+import dk.itst.oiosaml.sp.service.session.RequestCodec;
 import dk.itst.oiosaml.sp.service.session.SessionHandler;
+import dk.itst.oiosaml.sp.service.session.SessionState;
 import dk.itst.oiosaml.sp.service.util.Constants;
 import dk.itst.oiosaml.sp.service.util.Utils;
 
+/**
+ * Session handler which stores state in a database.
+ * 
+ * <p>Replay protection relies on the unique constraints on assertions.assertionid and assertions.sessionindex, so an assertion is registered
+ * with a single atomic insert, and concurrent logins with the same assertion cannot both succeed. Every statement and result set is closed
+ * after use, so pooled connections can reuse prepared statements.</p>
+ * 
+ * <p>If a {@link JdbcSessionCache} is used, decoded assertions are cached on the node and only revalidated against the assertion id in the
+ * database, and access times are written in batches instead of on every request.</p>
+ * 
+ * <p>Saved requests and request ids can only be read once, as they are deleted when they are read. The schema is described by
+ * {@link JdbcSchema}.</p>
+ * 
+ * <p>With schema version 3, assertions and saved requests can be written in the compact binary format of {@link JdbcSessionCodec} to
+ * BLOB columns. Whether the BLOB columns are read depends only on the schema version, so rows written as text by earlier versions, and rows
+ * written in the binary format by other nodes, can always be read.</p>
+ */
 public class JdbcSessionHandler implements SessionHandler {
 	private static final Logger log = LoggerFactory.getLogger(JdbcSessionHandler.class);
 	private final DataSource ds;
-	private static int uniqueId = 0;
-	private static int counter = 0;
+	private final JdbcSessionCache cache;
+	private final JdbcSessionCleaner cleaner;
+	private final boolean binary;
+	private final boolean binaryColumns;
 
 	public JdbcSessionHandler(DataSource ds) {
+		this(ds, null, new JdbcSessionCleaner(JdbcSessionCleaner.DEFAULT_BATCH_SIZE));
+	}
+
+	/**
+	 * @param cache Cache shared by all handlers on this node, or <code>null</code> to always read from and write to the database.
+	 */
+	public JdbcSessionHandler(DataSource ds, JdbcSessionCache cache) {
+		this(ds, cache, new JdbcSessionCleaner(JdbcSessionCleaner.DEFAULT_BATCH_SIZE));
+	}
+
+	/**
+	 * @param cache Cache shared by all handlers on this node, or <code>null</code> to always read from and write to the database.
+	 * @param cleaner Cleaner used to remove expired rows.
+	 */
+	public JdbcSessionHandler(DataSource ds, JdbcSessionCache cache, JdbcSessionCleaner cleaner) {
+		this(ds, cache, cleaner, false);
+	}
+
+	/**
+	 * @param cache Cache shared by all handlers on this node, or <code>null</code> to always read from and write to the database.
+	 * @param cleaner Cleaner used to remove expired rows.
+	 * @param binary Write assertions and requests to the BLOB columns. This requires schema version 3.
+	 */
+	public JdbcSessionHandler(DataSource ds, JdbcSessionCache cache, JdbcSessionCleaner cleaner, boolean binary) {
+		this(ds, cache, cleaner, new JdbcSchema(ds).getVersion(), binary);
+	}
+
+	/**
+	 * @param cache Cache shared by all handlers on this node, or <code>null</code> to always read from and write to the database.
+	 * @param cleaner Cleaner used to remove expired rows.
+	 * @param schemaVersion The installed schema version, see {@link JdbcSchema#getVersion()}. From version 3, the BLOB columns are always read.
+	 * @param binary Write assertions and requests to the BLOB columns. This requires schema version 3.
+	 */
+	public JdbcSessionHandler(DataSource ds, JdbcSessionCache cache, JdbcSessionCleaner cleaner, int schemaVersion, boolean binary) {
+		if (binary && schemaVersion < 3) throw new IllegalArgumentException("The binary format requires schema version 3, installed version is " + schemaVersion);
 		this.ds = ds;
+		this.cache = cache;
+		this.cleaner = cleaner;
+		this.binary = binary;
+		this.binaryColumns = schemaVersion >= 3;
 	}
 
 	private Connection getConnection() {
 		try {
 			Connection c = ds.getConnection();
-			c.setAutoCommit(true);
+			if (!c.getAutoCommit()) {
+				c.setAutoCommit(true);
+			}
 			return c;
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
@@ -79,16 +143,36 @@ public class JdbcSessionHandler implements SessionHandler {
 		}
 	}
 
-	public void cleanup(long requestIdsCleanupDelay, long sessionCleanupDelay) {
-		Connection con = getConnection();
-		String[] tables = new String[] { "assertions", "requests", "requestdata" };
+	private static void close(Statement statement) {
+		if (statement == null) return;
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			log.error("Unable to close statement", e);
+		}
+	}
 
+	private static void close(ResultSet rs) {
+		if (rs == null) return;
 		try {
-			for (String table : tables) {
-				PreparedStatement ps = con.prepareStatement("DELETE FROM " + table + " WHERE timestamp < ?");
-				ps.setTimestamp(1, new Timestamp(new Date().getTime() - sessionCleanupDelay));
-				ps.executeUpdate();
-			}
+			rs.close();
+		} catch (SQLException e) {
+			log.error("Unable to close result set", e);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the exception is caused by a unique or primary key constraint.
+	 */
+	private static boolean isConstraintViolation(SQLException e) {
+		String state = e.getSQLState();
+		return e instanceof SQLIntegrityConstraintViolationException || (state != null && state.startsWith("23"));
+	}
+
+	private int executeUpdate(String sql, Object... params) {
+		Connection con = getConnection();
+		try {
+			return executeUpdate(con, sql, params);
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		} finally {
@@ -96,45 +180,107 @@ public class JdbcSessionHandler implements SessionHandler {
 		}
 	}
 
+	private int executeUpdate(Connection con, String sql, Object... params) throws SQLException {
+		PreparedStatement ps = con.prepareStatement(sql);
+		try {
+			for (int i = 0; i < params.length; i++) {
+				if (params[i] instanceof byte[]) {
+					ps.setBytes(i + 1, (byte[]) params[i]);
+				} else {
+					ps.setObject(i + 1, params[i]);
+				}
+			}
+			return ps.executeUpdate();
+		} finally {
+			close(ps);
+		}
+	}
+
+	private static Timestamp now() {
+		return new Timestamp(new Date().getTime());
+	}
+
+	public void cleanup(long requestIdsCleanupDelay, long sessionCleanupDelay) {
+		if (cache != null) {
+			// make sure sessions which have been accessed are not removed
+			cache.flush();
+		}
+		cleaner.cleanup(ds, requestIdsCleanupDelay, sessionCleanupDelay);
+	}
+
 	public OIOAssertion getAssertion(String sessionId) {
 		Connection con = getConnection();
 		try {
-			PreparedStatement ps = con.prepareStatement("SELECT assertion FROM assertions WHERE id = ?");
-			ps.setString(1, sessionId);
-			ResultSet rs = ps.executeQuery();
-			if (rs.next()) {
-				OIOAssertion res = new OIOAssertion((Assertion) SAMLUtil.unmarshallElementFromString(rs.getString("assertion")));
-				updateTimestamp(sessionId, con);
-
-				return res;
-			} else {
-				return null;
+			OIOAssertion res = null;
+			if (cache != null && cache.contains(sessionId)) {
+				String assertionId = queryString(con, "SELECT assertionid FROM assertions WHERE id = ?", sessionId);
+				if (assertionId == null) {
+					cache.remove(sessionId);
+					return null;
+				}
+				res = cache.get(sessionId, assertionId);
 			}
+			if (res == null) {
+				res = loadAssertion(con, sessionId);
+				if (res == null) {
+					return null;
+				}
+			}
+			if (cache == null || !cache.touch(sessionId)) {
+				executeUpdate(con, "UPDATE assertions SET timestamp = ? WHERE id = ?", now(), sessionId);
+			}
+			return res;
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
-       		} finally {
+		} finally {
 			closeConnection(con);
-        	}
+		}
 	}
 
-	private void updateTimestamp(String id, Connection con) throws SQLException {
-		PreparedStatement ps = con.prepareStatement("UPDATE assertions SET timestamp = ? WHERE id = ?");
-		ps.setTimestamp(1, new Timestamp(new Date().getTime()));
-		ps.setString(2, id);
-		ps.executeUpdate();
-		ps.close();
+	private OIOAssertion loadAssertion(Connection con, String sessionId) throws SQLException {
+		PreparedStatement ps = con.prepareStatement(binaryColumns ? "SELECT assertion, assertionblob, assertionid FROM assertions WHERE id = ?" : "SELECT assertion, assertionid FROM assertions WHERE id = ?");
+		ResultSet rs = null;
+		try {
+			ps.setString(1, sessionId);
+			rs = ps.executeQuery();
+			if (!rs.next()) {
+				return null;
+			}
+			// binary rows have no text, and text written by nodes which do not use the binary format takes precedence
+			String xml = rs.getString("assertion");
+			OIOAssertion res;
+			if (xml == null && binaryColumns) {
+				res = JdbcSessionCodec.decodeAssertion(rs.getBytes("assertionblob"));
+			} else {
+				res = new OIOAssertion((Assertion) SAMLUtil.unmarshallElementFromString(xml));
+			}
+			if (cache != null) {
+				cache.put(sessionId, rs.getString("assertionid"), res);
+			}
+			return res;
+		} finally {
+			close(rs);
+			close(ps);
+		}
+	}
+
+	private String queryString(Connection con, String sql, String param) throws SQLException {
+		PreparedStatement ps = con.prepareStatement(sql);
+		ResultSet rs = null;
+		try {
+			ps.setString(1, param);
+			rs = ps.executeQuery();
+			return rs.next() ? rs.getString(1) : null;
+		} finally {
+			close(rs);
+			close(ps);
+		}
 	}
 
 	public String getRelatedSessionId(String sessionIndex) {
 		Connection con = getConnection();
 		try {
-			PreparedStatement ps = con.prepareStatement("SELECT id FROM assertions WHERE sessionindex = ?");
-			ResultSet rs = ps.executeQuery();
-			if (rs.next()) {
-				return rs.getString("id");
-			} else {
-				return null;
-			}
+			return queryString(con, "SELECT id FROM assertions WHERE sessionindex = ?", sessionIndex);
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		} finally {
@@ -144,27 +290,40 @@ public class JdbcSessionHandler implements SessionHandler {
 
 	public Request getRequest(String state) throws IllegalArgumentException {
 		Connection con = getConnection();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
 		try {
-			PreparedStatement ps = con.prepareStatement("SELECT data FROM requestdata WHERE id = ?");
+			ps = con.prepareStatement(binaryColumns ? "SELECT data, datablob FROM requestdata WHERE id = ?" : "SELECT data FROM requestdata WHERE id = ?");
 			ps.setString(1, state);
-			ResultSet rs = ps.executeQuery();
+			rs = ps.executeQuery();
 			if (rs.next()) {
-				ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(Base64.decode(rs.getString("data"))));
-				Request result = (Request) is.readObject();
-
-				ps = con.prepareStatement("DELETE FROM requestdata where id = ?");
-				ps.setString(1, state);
-				ps.executeUpdate();
+				String data = rs.getString("data");
+				Request result;
+				if (data == null && binaryColumns) {
+					result = RequestCodec.decode(rs.getBytes("datablob"));
+				} else {
+					ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(Base64.decode(data)));
+					result = (Request) is.readObject();
+				}
+				close(rs);
+				rs = null;
 
+				if (executeUpdate(con, "DELETE FROM requestdata WHERE id = ?", state) == 0) {
+					throw new IllegalArgumentException("State " + state + " has already been used");
+				}
 				return result;
 			} else {
 				throw new IllegalArgumentException("No state with " + state + " registered");
 			}
+		} catch (IllegalArgumentException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
-        } finally {
-            closeConnection(con);
-        }
+		} finally {
+			close(rs);
+			close(ps);
+			closeConnection(con);
+		}
 	}
 
 	public boolean isLoggedIn(String sessionId) {
@@ -172,52 +331,35 @@ public class JdbcSessionHandler implements SessionHandler {
 		return ass != null && !ass.hasSessionExpired();
 	}
 
+	public SessionState getSessionState(String sessionId) {
+		return SessionState.valueOf(getAssertion(sessionId));
+	}
+
 	public void logOut(HttpSession session) {
 		session.removeAttribute(Constants.SESSION_USER_ASSERTION);
 		logOut(session.getId());
 	}
 
 	public void logOut(String sessionId) {
-		Connection con = getConnection();
-		try {
-			PreparedStatement ps = con.prepareStatement("DELETE FROM assertions WHERE id = ?");
-			ps.setString(1, sessionId);
-			ps.executeUpdate();
-			ps.close();
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		} finally {
-			closeConnection(con);
+		if (cache != null) {
+			cache.remove(sessionId);
 		}
+		executeUpdate("DELETE FROM assertions WHERE id = ?", sessionId);
 	}
 
 	public void registerRequest(String id, String receiverEntityID) {
-		Connection con = getConnection();
-		try {
-			PreparedStatement ps = con.prepareStatement("INSERT INTO requests (id, receiver, timestamp) VALUES (?, ?, ?)");
-			ps.setString(1, id);
-			ps.setString(2, receiverEntityID);
-			ps.setTimestamp(3, new Timestamp(new Date().getTime()));
-			ps.executeUpdate();
-			ps.close();
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		} finally {
-			closeConnection(con);
-		}
+		executeUpdate("INSERT INTO requests (id, receiver, timestamp) VALUES (?, ?, ?)", id, receiverEntityID, now());
 	}
 
 	public String removeEntityIdForRequest(String id) {
 		Connection con = getConnection();
 		try {
-			PreparedStatement ps = con.prepareStatement("SELECT receiver FROM requests WHERE id = ?");
-			ps.setString(1, id);
-			ResultSet rs = ps.executeQuery();
-			if (rs.next()) {
-				return rs.getString("receiver");
-			} else {
+			String receiver = queryString(con, "SELECT receiver FROM requests WHERE id = ?", id);
+			// the delete makes sure the id can only be used once, even if it is read concurrently
+			if (receiver == null || executeUpdate(con, "DELETE FROM requests WHERE id = ?", id) == 0) {
 				throw new IllegalArgumentException("Request with id " + id + " is unknown");
 			}
+			return receiver;
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		} finally {
@@ -226,21 +368,19 @@ public class JdbcSessionHandler implements SessionHandler {
 	}
 
 	public void resetReplayProtection(int maxNum) {
-		Connection con = getConnection();
-		try {
-			PreparedStatement ps = con.prepareStatement("DELETE FROM assertions");
-			ps.executeUpdate();
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		} finally {
-			closeConnection(con);
+		if (cache != null) {
+			cache.clear();
 		}
+		executeUpdate("DELETE FROM assertions");
 	}
 
 	public String saveRequest(Request request) {
-		Connection con = getConnection();
+		String state = Utils.generateUUID();
+		if (binary) {
+			executeUpdate("INSERT INTO requestdata (id, datablob, timestamp) VALUES (?, ?, ?)", state, RequestCodec.encode(request), now());
+			return state;
+		}
 		try {
-			String state = Utils.generateUUID();
 			ByteArrayOutputStream bos = new ByteArrayOutputStream();
 			ObjectOutputStream oos = new ObjectOutputStream(bos);
 			oos.writeObject(request);
@@ -248,56 +388,57 @@ public class JdbcSessionHandler implements SessionHandler {
 
 			String s = Base64.encodeBytes(bos.toByteArray());
 
-			PreparedStatement ps = con.prepareStatement("INSERT INTO requestdata (id, data, timestamp) VALUES (?, ?, ?)");
-			ps.setString(1, state);
-			ps.setString(2, s);
-			ps.setTimestamp(3, new Timestamp(new Date().getTime()));
-			ps.executeUpdate();
+			executeUpdate("INSERT INTO requestdata (id, data, timestamp) VALUES (?, ?, ?)", state, s, now());
 
 			return state;
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			closeConnection(con);
 		}
 	}
 
+	/**
+	 * Register an assertion.
+	 * 
+	 * <p>New sessions are registered with a single insert. If the insert violates a constraint, either the session already has an
+	 * assertion, which is then replaced in a single update, or the assertion id or session index is already registered, which means the
+	 * assertion is being replayed. Each statement is atomic, so no locking or explicit transaction is needed.</p>
+	 */
 	public void setAssertion(String sessionId, OIOAssertion assertion) throws IllegalArgumentException {
+		String sessionIndex = assertion.getSessionIndex();
+		if (sessionIndex == null) {
+			// passive logins have no session index, so generate one which is unique across all nodes
+			sessionIndex = "Passive:" + Utils.generateUUID();
+		}
+		Object data = binary ? JdbcSessionCodec.encodeAssertion(assertion) : assertion.toXML();
+		Timestamp now = now();
+
 		Connection con = getConnection();
 		try {
-			PreparedStatement ps = con.prepareStatement("SELECT 1 FROM assertions WHERE assertionid = ? OR sessionindex = ?");
-			ps.setString(1, assertion.getID());
-			ps.setString(2, assertion.getSessionIndex());
-			ResultSet rs = ps.executeQuery();
-			if (rs.next()) {
-				throw new IllegalArgumentException("Assertion with id " + assertion.getID() + " and sessionidx " + assertion.getSessionIndex() + " is already registered");
+			try {
+				executeUpdate(con, binary ? "INSERT INTO assertions (id, assertionblob, assertionid, sessionindex, timestamp) VALUES (?, ?, ?, ?, ?)"
+						: "INSERT INTO assertions (id, assertion, assertionid, sessionindex, timestamp) VALUES (?, ?, ?, ?, ?)",
+						sessionId, data, assertion.getID(), sessionIndex, now);
+				cache(sessionId, assertion);
+				return;
+			} catch (SQLException e) {
+				if (!isConstraintViolation(e)) throw e;
 			}
-			ps.close();
 
-			ps = con.prepareStatement("DELETE FROM assertions WHERE id = ? OR sessionindex = ?");
-			ps.setString(1, sessionId);
-			ps.setString(2, assertion.getSessionIndex());
-			if (ps.executeUpdate() > 0) {
-				log.debug("Overwriting existing session info for session " + sessionId);
+			int updated;
+			try {
+				// the assertion id check prevents the same assertion from being registered on the session again
+				updated = executeUpdate(con, (binary ? "UPDATE assertions SET assertion = NULL, assertionblob = ?" : "UPDATE assertions SET assertion = ?")
+						+ ", assertionid = ?, sessionindex = ?, timestamp = ? WHERE id = ? AND assertionid <> ?",
+						data, assertion.getID(), sessionIndex, now, sessionId, assertion.getID());
+			} catch (SQLException e) {
+				if (!isConstraintViolation(e)) throw e;
+				updated = 0;
 			}
-			ps.close();
-
-			ps = con.prepareStatement("INSERT INTO assertions (id, assertion, assertionid, sessionindex, timestamp) VALUES (?, ?, ?, ?, ?)");
-			ps.setString(1, sessionId);
-			ps.setString(2, assertion.toXML());
-			ps.setString(3, assertion.getID());
-
-			String sessionIndex = assertion.getSessionIndex();
-			if (sessionIndex == null) {
-				sessionIndex = getNextPassiveSessionIndex();
+			if (updated == 0) {
+				throw new IllegalArgumentException("Assertion with id " + assertion.getID() + " and sessionidx " + assertion.getSessionIndex() + " is already registered");
 			}
-			ps.setString(4, sessionIndex);
-
-			ps.setTimestamp(5, new Timestamp(new Date().getTime()));
-			ps.execute();
-			ps.close();
+			log.debug("Overwriting existing session info for session " + sessionId);
+			cache(sessionId, assertion);
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		} finally {
@@ -305,45 +446,9 @@ public class JdbcSessionHandler implements SessionHandler {
 		}
 	}
 
-	private String getNextPassiveSessionIndex() {
-		String sessionIndex = null;
-
-		synchronized (this) {
-			Connection con = null;
-
-			try {
-				con = getConnection();
-
-				for (int i = 0; i < 10; i++) { // 10 tries is more than enough: since we are inside a sync-block, it should actually never fail!
-					counter++;
-
-					String attemptedSessionIndex = "Passive:" + uniqueId + "x" + counter;
-
-					// check if there already is an active session with this sessionIndex
-					PreparedStatement ps = con.prepareStatement("SELECT 1 FROM assertions WHERE sessionindex = ?");
-					ps.setString(1, attemptedSessionIndex);
-					ResultSet rs = ps.executeQuery();
-
-					if (!rs.next()) {
-						sessionIndex = attemptedSessionIndex;
-						ps.close();
-						break;
-					}
-					ps.close();
-				}
-			}
-			catch (Exception ex) {
-				throw new RuntimeException(ex);
-			}
-			finally {
-				closeConnection(con);
-			}
+	private void cache(String sessionId, OIOAssertion assertion) {
+		if (cache != null) {
+			cache.put(sessionId, assertion.getID(), assertion);
 		}
-
-		if (sessionIndex == null) {
-			throw new RuntimeException("Failed to aquire a unique sessionIndex for passive-login!");
-		}
-
-		return sessionIndex;
 	}
 }
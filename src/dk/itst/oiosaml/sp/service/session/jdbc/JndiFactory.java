@@ -23,12 +23,19 @@
  */
 package dk.itst.oiosaml.sp.service.session.jdbc;
 
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 
 import org.apache.commons.configuration.Configuration;
 
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
 import dk.itst.oiosaml.sp.service.session.SessionHandler;
 import dk.itst.oiosaml.sp.service.session.SessionHandlerFactory;
 
@@ -38,30 +45,135 @@ import dk.itst.oiosaml.sp.service.session.SessionHandlerFactory;
  * This requires a JNDI resource to be configured, and the name must be present in the configuration 
  * under the property <strong>oiosaml-sp.sessionhandler.jndi</strong>.
  * 
+ * The DataSource is looked up once, and all calls to {@link #getHandler()} return the same handler. If a connection cannot be
+ * obtained, the DataSource is looked up again, so a redeployed resource is picked up.
+ * 
+ * The session cache, schema and cleanup can be configured with the same properties as in {@link JdbcFactory}.
+ * 
  * @author recht
  *
  */
 public class JndiFactory implements SessionHandlerFactory {
+	private static final Logger log = LoggerFactory.getLogger(JndiFactory.class);
 
 	private String name;
+	private Configuration config;
+	private JdbcSessionCache cache;
+	private volatile JdbcSessionHandler handler;
 
-	public void close() {
-		
+	public synchronized void close() {
+		if (cache != null) {
+			cache.close();
+			cache = null;
+		}
+		handler = null;
 	}
 
 	public void configure(Configuration config) {
 		name = config.getString("oiosaml-sp.sessionhandler.jndi");
+		this.config = config;
+		try {
+			init();
+		} catch (RuntimeException e) {
+			log.warn("Unable to look up " + name + ", retrying when the first session handler is requested", e);
+		}
 	}
 
 	public SessionHandler getHandler() {
-		try {
-			InitialContext ctx = new InitialContext();
-			DataSource ds = (DataSource) ctx.lookup(name);
-			
-			return new JdbcSessionHandler(ds);
-		} catch (NamingException e) {
-			throw new RuntimeException(e);
+		JdbcSessionHandler h = handler;
+		if (h == null) {
+			h = init();
+		}
+		return h;
+	}
+
+	private synchronized JdbcSessionHandler init() {
+		if (handler == null) {
+			JndiDataSource ds = new JndiDataSource(name);
+			try {
+				ds.resolve();
+			} catch (NamingException e) {
+				throw new RuntimeException(e);
+			}
+			JdbcFactory.updateSchema(ds, config);
+			cache = JdbcFactory.createCache(ds, config);
+			int version = new JdbcSchema(ds).getVersion();
+			handler = new JdbcSessionHandler(ds, cache, JdbcFactory.createCleaner(config), version, JdbcFactory.useBinaryFormat(version, config));
 		}
+		return handler;
 	}
 
+	/**
+	 * DataSource which delegates to the DataSource in JNDI, and looks it up again if a connection cannot be obtained.
+	 */
+	private static class JndiDataSource implements DataSource {
+		private final String name;
+		private volatile DataSource ds;
+
+		private JndiDataSource(String name) {
+			this.name = name;
+		}
+
+		private DataSource resolve() throws NamingException {
+			InitialContext ctx = new InitialContext();
+			try {
+				ds = (DataSource) ctx.lookup(name);
+				return ds;
+			} finally {
+				ctx.close();
+			}
+		}
+
+		public Connection getConnection() throws SQLException {
+			DataSource current = ds;
+			try {
+				return current.getConnection();
+			} catch (SQLException e) {
+				DataSource resolved;
+				try {
+					resolved = resolve();
+				} catch (NamingException ne) {
+					log.error("Unable to look up " + name, ne);
+					throw e;
+				}
+				if (resolved == current) throw e;
+
+				log.info("DataSource " + name + " has changed in JNDI, using the new DataSource");
+				return resolved.getConnection();
+			}
+		}
+
+		public Connection getConnection(String username, String password) throws SQLException {
+			throw new UnsupportedOperationException();
+		}
+
+		public PrintWriter getLogWriter() throws SQLException {
+			return ds.getLogWriter();
+		}
+
+		public int getLoginTimeout() throws SQLException {
+			return ds.getLoginTimeout();
+		}
+
+		public void setLogWriter(PrintWriter out) throws SQLException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void setLoginTimeout(int seconds) throws SQLException {
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean isWrapperFor(Class<?> iface) throws SQLException {
+			return iface.isInstance(ds) || ds.isWrapperFor(iface);
+		}
+
+		public <T> T unwrap(Class<T> iface) throws SQLException {
+			if (iface.isInstance(ds)) return iface.cast(ds);
+			return ds.unwrap(iface);
+		}
+
+		public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+	}
 }
@@ -0,0 +1,684 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.jdbc;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+
+/**
+ * Simple connection pool on top of {@link DriverManager}.
+ * 
+ * <p>Connections are handed out as proxies, and calling {@link Connection#close()} returns the connection to the pool. At most
+ * <code>maxSize</code> connections are in use at a time, and callers wait up to the acquisition timeout for a connection to be returned
+ * before failing with a {@link SQLTransientConnectionException}.</p>
+ * 
+ * <p>Idle connections are validated when they are borrowed, if they have not been used within the validation interval. Validation uses the
+ * validation query if set, otherwise {@link Connection#isValid(int)}. Uncommitted work is rolled back when a connection is returned.</p>
+ * 
+ * <p>Each connection keeps a small cache of prepared statements, so calling {@link Connection#prepareStatement(String)} with the same SQL
+ * reuses the statement prepared by an earlier borrower. Closing a cached statement clears its parameters and returns it to the cache.</p>
+ * 
+ * <p>When the pool has been started, a background task runs periodically to keep at least <code>minSize</code> connections open, to close
+ * connections which have been idle longer than the idle timeout, and to log connections which have been borrowed for longer than the leak
+ * threshold, together with the stack trace of the code which borrowed them.</p>
+ */
+public class PooledDataSource implements DataSource {
+	private static final Logger log = LoggerFactory.getLogger(PooledDataSource.class);
+
+	private static final long MAINTENANCE_INTERVAL = 10000;
+	private static final int VALIDATION_TIMEOUT = 5;
+
+	private final String url;
+	private final String username;
+	private final String password;
+	private final int minSize;
+	private final int maxSize;
+
+	private volatile long timeout = 5000;
+	private volatile long validationInterval = 5000;
+	private volatile String validationQuery;
+	private volatile long idleTimeout = 10 * 60 * 1000L;
+	private volatile long leakThreshold = 0;
+	private volatile int statementCacheSize = 20;
+
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	private final ConcurrentMap<PooledConnection, Boolean> active = new ConcurrentHashMap<PooledConnection, Boolean>();
+	private final AtomicInteger total = new AtomicInteger();
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong borrowed = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+	private final AtomicLong validationFailures = new AtomicLong();
+	private final AtomicLong statementCacheHits = new AtomicLong();
+
+	private volatile boolean closed;
+	private Timer timer;
+
+	/**
+	 * @param url JDBC url.
+	 * @param username Database user, or <code>null</code> if the url contains the credentials.
+	 * @param password Database password.
+	 * @param minSize Number of connections to keep open when the pool is started.
+	 * @param maxSize Maximum number of open connections.
+	 */
+	public PooledDataSource(String url, String username, String password, int minSize, int maxSize) {
+		if (maxSize < 1) throw new IllegalArgumentException("Maximum pool size must be positive, was " + maxSize);
+		if (minSize < 0 || minSize > maxSize) throw new IllegalArgumentException("Minimum pool size must be between 0 and " + maxSize + ", was " + minSize);
+
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Open the minimum number of connections and start the maintenance task.
+	 */
+	public synchronized void start() {
+		if (closed) throw new IllegalStateException("Pool has been closed");
+		if (timer != null) return;
+
+		maintain();
+		timer = new Timer("JDBC Connection Pool", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				try {
+					maintain();
+				} catch (RuntimeException e) {
+					log.error("Unable to maintain connection pool", e);
+				}
+			}
+		}, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL);
+	}
+
+	/**
+	 * Close all idle connections and stop the maintenance task. Connections which are in use are closed when they are returned.
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+		PooledConnection pc;
+		while ((pc = idle.pollFirst()) != null) {
+			destroy(pc);
+		}
+		if (!active.isEmpty()) {
+			log.warn(active.size() + " connections are still in use while closing the pool");
+		}
+	}
+
+	public Connection getConnection() throws SQLException {
+		if (closed) throw new SQLException("Connection pool has been closed");
+
+		acquire();
+		boolean ok = false;
+		try {
+			PooledConnection pc = borrow();
+			ok = true;
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new Handle(pc));
+		} finally {
+			if (!ok) {
+				permits.release();
+			}
+		}
+	}
+
+	private void acquire() throws SQLException {
+		if (permits.tryAcquire()) return;
+
+		waits.incrementAndGet();
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLTransientConnectionException("Interrupted while waiting for a connection", e);
+		}
+		if (!acquired) {
+			timeouts.incrementAndGet();
+			throw new SQLTransientConnectionException("Timed out after " + timeout + " ms waiting for a connection to " + url + ", " + active.size() + " of " + maxSize + " connections in use");
+		}
+	}
+
+	private PooledConnection borrow() throws SQLException {
+		long now = System.currentTimeMillis();
+		PooledConnection pc;
+		while ((pc = idle.pollFirst()) != null) {
+			if (now - pc.lastUsed < validationInterval || validate(pc)) {
+				break;
+			}
+			validationFailures.incrementAndGet();
+			log.debug("Discarding invalid connection " + pc);
+			destroy(pc);
+		}
+		if (pc == null) {
+			pc = create();
+		}
+		pc.borrowedAt = now;
+		pc.borrower = leakThreshold > 0 ? new Throwable("Connection borrowed by thread " + Thread.currentThread().getName()) : null;
+		pc.leakReported = false;
+		active.put(pc, Boolean.TRUE);
+		borrowed.incrementAndGet();
+		return pc;
+	}
+
+	private void release(PooledConnection pc) {
+		active.remove(pc);
+		try {
+			if (!closed && total.get() <= maxSize && reset(pc)) {
+				pc.lastUsed = System.currentTimeMillis();
+				idle.offerFirst(pc);
+				// the pool could have been closed while returning the connection
+				if (closed && idle.remove(pc)) {
+					destroy(pc);
+				}
+			} else {
+				destroy(pc);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	private boolean reset(PooledConnection pc) {
+		Connection c = pc.connection;
+		try {
+			if (c.isClosed()) return false;
+			pc.releaseStatements();
+			if (!c.getAutoCommit()) {
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+			c.clearWarnings();
+			return true;
+		} catch (SQLException e) {
+			log.debug("Unable to reset connection " + pc + ", discarding it", e);
+			return false;
+		}
+	}
+
+	private boolean validate(PooledConnection pc) {
+		Connection c = pc.connection;
+		try {
+			String query = validationQuery;
+			if (query == null) {
+				return c.isValid(VALIDATION_TIMEOUT);
+			}
+			Statement st = c.createStatement();
+			try {
+				st.setQueryTimeout(VALIDATION_TIMEOUT);
+				st.execute(query);
+				return true;
+			} finally {
+				st.close();
+			}
+		} catch (SQLException e) {
+			log.debug("Validation of connection " + pc + " failed", e);
+			return false;
+		} catch (AbstractMethodError e) {
+			// pre JDBC 4 driver without isValid
+			try {
+				return !c.isClosed();
+			} catch (SQLException ex) {
+				return false;
+			}
+		}
+	}
+
+	private PooledConnection create() throws SQLException {
+		Connection c = username == null ? DriverManager.getConnection(url) : DriverManager.getConnection(url, username, password);
+		total.incrementAndGet();
+		created.incrementAndGet();
+		PooledConnection pc = new PooledConnection(c, created.get());
+		if (log.isDebugEnabled()) log.debug("Opened connection " + pc + " to " + url);
+		return pc;
+	}
+
+	private void destroy(PooledConnection pc) {
+		total.decrementAndGet();
+		try {
+			pc.connection.close();
+		} catch (SQLException e) {
+			log.debug("Unable to close connection " + pc, e);
+		}
+	}
+
+	/**
+	 * Report leaked connections, close connections which have been idle for too long, and open connections until the pool contains the
+	 * minimum number of connections. This is called periodically when the pool has been started.
+	 */
+	public void maintain() {
+		long now = System.currentTimeMillis();
+
+		long threshold = leakThreshold;
+		if (threshold > 0) {
+			for (PooledConnection pc : active.keySet()) {
+				if (!pc.leakReported && now - pc.borrowedAt > threshold) {
+					pc.leakReported = true;
+					leaks.incrementAndGet();
+					log.warn("Connection " + pc + " has been in use for " + (now - pc.borrowedAt) + " ms, it might not have been closed", pc.borrower);
+				}
+			}
+		}
+
+		if (idleTimeout > 0) {
+			for (Iterator<PooledConnection> i = idle.descendingIterator(); i.hasNext() && total.get() > minSize;) {
+				PooledConnection pc = i.next();
+				if (now - pc.lastUsed > idleTimeout && idle.remove(pc)) {
+					destroy(pc);
+				}
+			}
+		}
+
+		while (!closed && total.get() < minSize) {
+			try {
+				PooledConnection pc = create();
+				pc.lastUsed = now;
+				idle.offerLast(pc);
+			} catch (SQLException e) {
+				log.warn("Unable to open connection to " + url, e);
+				break;
+			}
+		}
+		if (log.isDebugEnabled()) log.debug("Connection pool maintained: " + this);
+	}
+
+	/**
+	 * @param timeout Maximum time in milliseconds to wait for a connection. Defaults to 5000.
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param validationInterval Idle time in milliseconds after which a connection is validated before it is used. Defaults to 5000.
+	 */
+	public void setValidationInterval(long validationInterval) {
+		this.validationInterval = validationInterval;
+	}
+
+	/**
+	 * @param validationQuery Query used to validate connections. If <code>null</code>, {@link Connection#isValid(int)} is used.
+	 */
+	public void setValidationQuery(String validationQuery) {
+		this.validationQuery = validationQuery;
+	}
+
+	/**
+	 * @param idleTimeout Time in milliseconds after which idle connections above the minimum size are closed. 0 disables. Defaults to 10 minutes.
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @param leakThreshold Time in milliseconds a connection can be in use before it is reported as a possible leak. 0 disables. Defaults to 0.
+	 * When enabled, the stack trace of the borrower is captured each time a connection is borrowed, which adds to the cost of {@link #getConnection()}.
+	 */
+	public void setLeakThreshold(long leakThreshold) {
+		this.leakThreshold = leakThreshold;
+	}
+
+	/**
+	 * @param statementCacheSize Number of prepared statements cached for each connection. 0 disables. Defaults to 20.
+	 */
+	public void setStatementCacheSize(int statementCacheSize) {
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	/**
+	 * @return The number of connections currently in use.
+	 */
+	public int getActiveCount() {
+		return active.size();
+	}
+
+	/**
+	 * @return The number of open connections which are not in use.
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * @return The number of open connections.
+	 */
+	public int getTotalCount() {
+		return total.get();
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return The number of connections opened since the pool was created.
+	 */
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * @return The number of times a connection has been handed out.
+	 */
+	public long getBorrowCount() {
+		return borrowed.get();
+	}
+
+	/**
+	 * @return The number of times a caller had to wait for a connection.
+	 */
+	public long getWaitCount() {
+		return waits.get();
+	}
+
+	/**
+	 * @return The number of times a caller gave up waiting for a connection.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * @return The number of connections reported as possible leaks.
+	 */
+	public long getLeakCount() {
+		return leaks.get();
+	}
+
+	/**
+	 * @return The number of idle connections discarded because they failed validation.
+	 */
+	public long getValidationFailureCount() {
+		return validationFailures.get();
+	}
+
+	/**
+	 * @return The number of prepared statements reused from the statement cache.
+	 */
+	public long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+
+	public String toString() {
+		return "PooledDataSource[url=" + url + ", active=" + getActiveCount() + ", idle=" + getIdleCount() + ", max=" + maxSize
+			+ ", created=" + getCreatedCount() + ", borrowed=" + getBorrowCount() + ", waits=" + getWaitCount() + ", timeouts=" + getTimeoutCount()
+			+ ", leaks=" + getLeakCount() + ", validationFailures=" + getValidationFailureCount() + ", statementCacheHits=" + getStatementCacheHits() + "]";
+	}
+
+	public Connection getConnection(String username, String password) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	public PrintWriter getLogWriter() throws SQLException {
+		return DriverManager.getLogWriter();
+	}
+
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	public int getLoginTimeout() throws SQLException {
+		return DriverManager.getLoginTimeout();
+	}
+
+	public void setLoginTimeout(int seconds) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this);
+	}
+
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) return iface.cast(this);
+		throw new SQLException("Not a wrapper for " + iface);
+	}
+
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	private static class PooledConnection {
+		private final Connection connection;
+		private final long id;
+		private volatile long lastUsed;
+		private volatile long borrowedAt;
+		private volatile Throwable borrower;
+		private volatile boolean leakReported;
+		// only accessed by the current borrower
+		private final Map<String, CachedStatement> statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true);
+
+		private PooledConnection(Connection connection, long id) {
+			this.connection = connection;
+			this.id = id;
+		}
+
+		private CachedStatement prepare(String sql, int cacheSize, AtomicLong hits) throws SQLException {
+			CachedStatement cs = statements.get(sql);
+			if (cs != null && !cs.inUse) {
+				cs.inUse = true;
+				hits.incrementAndGet();
+				return cs;
+			}
+			PreparedStatement ps = connection.prepareStatement(sql);
+			if (cs != null) {
+				// the cached statement is in use, so this one is closed after use
+				return new CachedStatement(sql, ps);
+			}
+			cs = new CachedStatement(sql, ps);
+			cs.inUse = true;
+			statements.put(sql, cs);
+			if (statements.size() > cacheSize) {
+				Iterator<CachedStatement> i = statements.values().iterator();
+				CachedStatement eldest = i.next();
+				i.remove();
+				if (!eldest.inUse) {
+					eldest.close();
+				}
+			}
+			return cs;
+		}
+
+		private void release(CachedStatement cs) {
+			cs.inUse = false;
+			if (statements.get(cs.sql) != cs) {
+				cs.close();
+				return;
+			}
+			try {
+				cs.statement.clearParameters();
+			} catch (SQLException e) {
+				statements.remove(cs.sql);
+				cs.close();
+			}
+		}
+
+		/**
+		 * Close statements which the previous borrower did not close, so they cannot be used by the next borrower.
+		 */
+		private void releaseStatements() {
+			for (Iterator<CachedStatement> i = statements.values().iterator(); i.hasNext();) {
+				CachedStatement cs = i.next();
+				if (cs.inUse) {
+					i.remove();
+					cs.close();
+				}
+			}
+		}
+
+		public String toString() {
+			return "#" + id;
+		}
+	}
+
+	private static class CachedStatement {
+		private final String sql;
+		private final PreparedStatement statement;
+		private boolean inUse;
+
+		private CachedStatement(String sql, PreparedStatement statement) {
+			this.sql = sql;
+			this.statement = statement;
+		}
+
+		private void close() {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				log.debug("Unable to close statement " + sql, e);
+			}
+		}
+	}
+
+	/**
+	 * Connection handed out to callers. Closing the handle returns the connection to the pool, after which the handle cannot be used.
+	 */
+	private class Handle implements InvocationHandler {
+		private final AtomicReference<PooledConnection> ref;
+
+		private Handle(PooledConnection pc) {
+			ref = new AtomicReference<PooledConnection>(pc);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("close".equals(name)) {
+				PooledConnection pc = ref.getAndSet(null);
+				if (pc != null) {
+					release(pc);
+				}
+				return null;
+			} else if ("isClosed".equals(name)) {
+				return ref.get() == null;
+			} else if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name)) {
+				return "Pooled connection " + ref.get();
+			}
+
+			PooledConnection pc = ref.get();
+			if (pc == null) throw new SQLException("Connection has been returned to the pool");
+			int cacheSize = statementCacheSize;
+			if ("prepareStatement".equals(name) && args.length == 1 && cacheSize > 0) {
+				CachedStatement cs = pc.prepare((String) args[0], cacheSize, statementCacheHits);
+				return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, new StatementHandle(pc, cs, (Connection) proxy));
+			} else if ("unwrap".equals(name) && ((Class<?>) args[0]).isInstance(pc.connection)) {
+				return pc.connection;
+			} else if ("isWrapperFor".equals(name) && ((Class<?>) args[0]).isInstance(pc.connection)) {
+				return true;
+			}
+			try {
+				return method.invoke(pc.connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Prepared statement handed out to callers. Closing the handle returns the statement to the statement cache of the connection.
+	 */
+	private class StatementHandle implements InvocationHandler {
+		private final PooledConnection pc;
+		private final CachedStatement cs;
+		private final Connection owner;
+		private boolean closed;
+
+		private StatementHandle(PooledConnection pc, CachedStatement cs, Connection owner) {
+			this.pc = pc;
+			this.cs = cs;
+			this.owner = owner;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("close".equals(name)) {
+				if (!closed) {
+					closed = true;
+					pc.release(cs);
+				}
+				return null;
+			} else if ("isClosed".equals(name)) {
+				return closed;
+			} else if ("getConnection".equals(name)) {
+				return owner;
+			} else if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name)) {
+				return "Pooled statement " + cs.sql;
+			}
+
+			if (closed) throw new SQLException("Statement has been closed");
+			try {
+				return method.invoke(cs.statement, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -0,0 +1,5 @@
+create index assertions_timestamp on assertions (timestamp);
+
+create index requestdata_timestamp on requestdata (timestamp);
+
+create index requests_timestamp on requests (timestamp);
@@ -0,0 +1,7 @@
+alter table assertions alter column assertion set null;
+
+alter table assertions add column assertionblob blob;
+
+alter table requestdata alter column data set null;
+
+alter table requestdata add column datablob blob;
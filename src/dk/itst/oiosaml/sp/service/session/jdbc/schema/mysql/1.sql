@@ -0,0 +1,19 @@
+create table assertions (
+    id varchar(255) not null primary key,
+    assertion text not null,
+    assertionid varchar(255) not null unique,
+    sessionindex varchar(255) not null unique,
+    timestamp timestamp not null
+);
+
+create table requestdata (
+    id varchar(255) not null primary key,
+    data text not null,
+    timestamp timestamp not null
+);
+
+create table requests (
+    id varchar(255) not null primary key,
+    receiver text not null,
+    timestamp timestamp not null
+);
@@ -0,0 +1,7 @@
+alter table assertions modify assertion text null;
+
+alter table assertions add assertionblob mediumblob null;
+
+alter table requestdata modify data text null;
+
+alter table requestdata add datablob mediumblob null;
@@ -0,0 +1,19 @@
+create table assertions (
+    id varchar2(255) not null primary key,
+    assertion clob not null,
+    assertionid varchar2(255) not null unique,
+    sessionindex varchar2(255) not null unique,
+    timestamp timestamp not null
+);
+
+create table requestdata (
+    id varchar2(255) not null primary key,
+    data clob not null,
+    timestamp timestamp not null
+);
+
+create table requests (
+    id varchar2(255) not null primary key,
+    receiver varchar2(4000) not null,
+    timestamp timestamp not null
+);
@@ -0,0 +1,7 @@
+alter table assertions modify (assertion null);
+
+alter table assertions add (assertionblob blob);
+
+alter table requestdata modify (data null);
+
+alter table requestdata add (datablob blob);
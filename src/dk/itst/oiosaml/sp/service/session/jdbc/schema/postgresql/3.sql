@@ -0,0 +1,7 @@
+alter table assertions alter column assertion drop not null;
+
+alter table assertions add column assertionblob bytea;
+
+alter table requestdata alter column data drop not null;
+
+alter table requestdata add column datablob bytea;
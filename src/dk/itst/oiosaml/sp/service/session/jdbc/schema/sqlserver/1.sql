@@ -0,0 +1,19 @@
+create table assertions (
+    id varchar(255) not null primary key,
+    assertion nvarchar(max) not null,
+    assertionid varchar(255) not null unique,
+    sessionindex varchar(255) not null unique,
+    timestamp datetime2 not null
+);
+
+create table requestdata (
+    id varchar(255) not null primary key,
+    data nvarchar(max) not null,
+    timestamp datetime2 not null
+);
+
+create table requests (
+    id varchar(255) not null primary key,
+    receiver nvarchar(4000) not null,
+    timestamp datetime2 not null
+);
@@ -0,0 +1,7 @@
+alter table assertions alter column assertion nvarchar(max) null;
+
+alter table assertions add assertionblob varbinary(max) null;
+
+alter table requestdata alter column data nvarchar(max) null;
+
+alter table requestdata add datablob varbinary(max) null;
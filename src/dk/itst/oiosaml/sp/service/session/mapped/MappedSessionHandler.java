@@ -0,0 +1,244 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.mapped;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import javax.servlet.http.HttpSession;
+
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.logging.Audit;
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+import dk.itst.oiosaml.logging.Operation;
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+import dk.itst.oiosaml.sp.model.OIOAssertionRecord;
+import dk.itst.oiosaml.sp.service.session.ReplayCache;
+import dk.itst.oiosaml.sp.service.session.Request;
+import dk.itst.oiosaml.sp.service.session.SessionHandler;
+import dk.itst.oiosaml.sp.service.session.SessionState;
+import dk.itst.oiosaml.sp.service.session.SingleVMSessionHandler;
+import dk.itst.oiosaml.sp.service.session.TimeOutWrapper;
+import dk.itst.oiosaml.sp.service.util.Constants;
+
+/**
+ * Session handler which keeps sessions, session indexes and assertion ids for replay protection in memory mapped files.
+ * 
+ * <p>Sessions are stored as serialized {@link OIOAssertionRecord}s in a {@link MappedTable}, so they do not use the Java heap, and they
+ * survive a restart of the application. If a record with the assertion XML is too large for a slot, it is stored without the XML.</p>
+ * 
+ * <p>Request ids and saved requests only live for the duration of a login, so they are kept on the heap in a {@link SingleVMSessionHandler}.</p>
+ */
+public class MappedSessionHandler implements SessionHandler {
+	private static final Logger log = LoggerFactory.getLogger(MappedSessionHandler.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] EMPTY = new byte[0];
+
+	private final MappedTable sessions;
+	private final MappedTable sessionIndexes;
+	private final MappedTable assertionIds;
+	private final SingleVMSessionHandler requests;
+	private final long clockSkew;
+	private final boolean retainXml;
+
+	/**
+	 * @param sessions Table for sessions.
+	 * @param sessionIndexes Table for session indexes.
+	 * @param assertionIds Table for replay protection.
+	 * @param clockSkew Milliseconds to keep assertion ids for replay protection after the assertion has expired.
+	 * @param retainXml Keep the compressed assertion XML in session records if it fits in a slot.
+	 */
+	public MappedSessionHandler(MappedTable sessions, MappedTable sessionIndexes, MappedTable assertionIds, long clockSkew, boolean retainXml) {
+		this.sessions = sessions;
+		this.sessionIndexes = sessionIndexes;
+		this.assertionIds = assertionIds;
+		this.clockSkew = clockSkew;
+		this.retainXml = retainXml;
+		this.requests = new SingleVMSessionHandler(clockSkew, true, retainXml);
+	}
+
+	public void setAssertion(String sessionId, OIOAssertion assertion) throws IllegalArgumentException {
+		long now = System.currentTimeMillis();
+		final byte[] id = sessionId.getBytes(UTF8);
+
+		// check that the session fits in the store before the assertion id is used, so a failed login can be retried
+		OIOAssertionRecord record = OIOAssertionRecord.valueOf(assertion, retainXml);
+		byte[] value = toBytes(record);
+		if (value.length + id.length > sessions.getMaxEntrySize() && record.isXmlRetained()) {
+			if (log.isDebugEnabled()) log.debug("Assertion " + record.getID() + " is too large for the session store, storing it without XML");
+			value = toBytes(record.withoutXml());
+		}
+		if (value.length + id.length > sessions.getMaxEntrySize()) {
+			throw new IllegalArgumentException("Assertion " + record.getID() + " is too large for the session store: " + (value.length + id.length) + " bytes");
+		}
+		String sessionIndex = record.getSessionIndex();
+		if (sessionIndex != null && sessionIndex.getBytes(UTF8).length + id.length > sessionIndexes.getMaxEntrySize()) {
+			throw new IllegalArgumentException("Session index of assertion " + record.getID() + " is too large for the session store");
+		}
+
+		String key = ReplayCache.getKey(assertion);
+		try {
+			if (!assertionIds.putIfAbsent(key, EMPTY, ReplayCache.getExpiry(assertion, clockSkew), now)) {
+				throw new IllegalArgumentException("Assertion ID begin replayed: " + key);
+			}
+		} catch (IllegalStateException e) {
+			// evicting ids which have not expired would allow them to be replayed, so reject the login instead
+			log.error("Replay protection in " + assertionIds.getFile() + " is full, rejecting assertion " + key);
+			throw new IllegalArgumentException("Unable to register assertion id for replay protection: " + key, e);
+		}
+
+		sessions.put(sessionId, value, now, new MappedTable.RemovalListener() {
+			public void removed(String evicted, byte[] data) {
+				OIOAssertionRecord a = fromBytes(data);
+				if (log.isDebugEnabled()) log.debug("Session store is full, evicting session " + evicted + ": " + a);
+				if (a.getSessionIndex() != null) {
+					sessionIndexes.remove(a.getSessionIndex(), evicted.getBytes(UTF8));
+				}
+			}
+		});
+
+		if (sessionIndex != null) {
+			// Store the new sessionIndex, replacing any old one
+			sessionIndexes.put(sessionIndex, id, now);
+		}
+	}
+
+	public boolean isLoggedIn(String sessionId) {
+		OIOAssertion ass = getAssertion(sessionId);
+		return ass != null && !ass.hasSessionExpired();
+	}
+
+	public SessionState getSessionState(String sessionId) {
+		return SessionState.valueOf(getAssertion(sessionId));
+	}
+
+	public void logOut(HttpSession session) {
+		logOut(session.getId());
+		session.removeAttribute(Constants.SESSION_USER_ASSERTION);
+	}
+
+	public void logOut(String sessionId) {
+		byte[] value = sessions.remove(sessionId);
+		if (value != null) {
+			String sessionIndex = fromBytes(value).getSessionIndex();
+			if (sessionIndex != null) {
+				sessionIndexes.remove(sessionIndex);
+			}
+		}
+	}
+
+	public OIOAssertion getAssertion(String sessionId) {
+		if (sessionId == null) return null;
+
+		byte[] value = sessions.get(sessionId, System.currentTimeMillis(), TimeOutWrapper.ACCESS_GRANULARITY);
+		return value != null ? fromBytes(value) : null;
+	}
+
+	public String getRelatedSessionId(String sessionIndex) {
+		byte[] value = sessionIndexes.get(sessionIndex);
+		return value != null ? new String(value, UTF8) : null;
+	}
+
+	public void registerRequest(String id, String receiverEntityID) {
+		requests.registerRequest(id, receiverEntityID);
+	}
+
+	public String removeEntityIdForRequest(String id) throws IllegalArgumentException {
+		return requests.removeEntityIdForRequest(id);
+	}
+
+	public String saveRequest(Request request) {
+		return requests.saveRequest(request);
+	}
+
+	public Request getRequest(String state) throws IllegalArgumentException {
+		return requests.getRequest(state);
+	}
+
+	public void cleanup(long requestIdsCleanupDelay, long sessionCleanupDelay) {
+		long now = System.currentTimeMillis();
+		int expired = sessions.removeOlderThan(now - sessionCleanupDelay, new MappedTable.RemovalListener() {
+			public void removed(String key, byte[] value) {
+				OIOAssertionRecord a = fromBytes(value);
+				if (log.isDebugEnabled()) log.debug("Expiring session " + key + ": " + a);
+				Audit.logSystem(null, a.getID(), Operation.TIMEOUT, a.getSubjectNameIDValue());
+			}
+		});
+		int expiredIndexes = sessionIndexes.removeOlderThan(now - sessionCleanupDelay, null);
+		int expiredIds = assertionIds.removeOlderThan(now, null);
+		requests.cleanup(requestIdsCleanupDelay, sessionCleanupDelay);
+
+		if (log.isDebugEnabled()) log.debug("Expired " + expired + " sessions, " + expiredIndexes + " session indexes and " + expiredIds + " assertion ids. Sessions: "
+				+ sessions.size() + ", session indexes: " + sessionIndexes.size() + ", assertion ids: " + assertionIds.size());
+	}
+
+	/**
+	 * The number of tracked assertion ids is limited by the size of the mapped file, and ids are kept when the application is restarted,
+	 * so this only logs the requested size.
+	 */
+	public void resetReplayProtection(int maxNum) {
+		if (log.isDebugEnabled()) log.debug("Replay protection requested for " + maxNum + " ids, tracking " + assertionIds.size() + " ids in " + assertionIds.getFile());
+	}
+
+	/**
+	 * @return The number of logged in sessions.
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return The number of assertion ids currently tracked for replay protection.
+	 */
+	public int getReplayCacheSize() {
+		return assertionIds.size();
+	}
+
+	private static byte[] toBytes(OIOAssertionRecord record) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			record.writeTo(out);
+			out.flush();
+		} catch (IOException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static OIOAssertionRecord fromBytes(byte[] value) {
+		try {
+			return OIOAssertionRecord.readFrom(new DataInputStream(new ByteArrayInputStream(value)));
+		} catch (IOException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+	}
+}
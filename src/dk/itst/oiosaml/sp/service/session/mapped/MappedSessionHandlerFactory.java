@@ -0,0 +1,112 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.mapped;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.configuration.Configuration;
+
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+import dk.itst.oiosaml.sp.service.session.SessionHandler;
+import dk.itst.oiosaml.sp.service.session.SessionHandlerFactory;
+import dk.itst.oiosaml.sp.service.session.SingleVMSessionHandler;
+import dk.itst.oiosaml.sp.service.util.Constants;
+
+/**
+ * Session factory which keeps sessions in memory mapped files.
+ * 
+ * <p>Sessions, session indexes and assertion ids are stored outside the Java heap, and are recovered when the application is restarted.
+ * The files can only be used by one application at a time, so this factory should only be used on a single node.</p>
+ * 
+ * The following properties can be set in the configuration:
+ * <ul>
+ * <li>oiosaml-sp.sessionhandler.factory=dk.itst.oiosaml.sp.service.session.mapped.MappedSessionHandlerFactory</li>
+ * <li>oiosaml-sp.sessionhandler.mapped.dir: Directory for the files. Required.</li>
+ * <li>oiosaml-sp.sessionhandler.mapped.capacity: Maximum number of sessions. When the store is full, the least recently used sessions are
+ * evicted. Defaults to 100000.</li>
+ * <li>oiosaml-sp.sessionhandler.mapped.slotsize: Number of bytes reserved for each session. Defaults to 2048.</li>
+ * </ul>
+ */
+public class MappedSessionHandlerFactory implements SessionHandlerFactory {
+	private static final Logger log = LoggerFactory.getLogger(MappedSessionHandlerFactory.class);
+
+	private static final int SEGMENTS = 16;
+	private static final int DEFAULT_CAPACITY = 100000;
+	private static final int DEFAULT_SLOT_SIZE = 2048;
+	private static final int INDEX_SLOT_SIZE = 512;
+
+	private MappedTable sessions;
+	private MappedTable sessionIndexes;
+	private MappedTable assertionIds;
+	private MappedSessionHandler handler;
+
+	public void configure(Configuration config) {
+		String dir = config.getString("oiosaml-sp.sessionhandler.mapped.dir");
+		if (dir == null) {
+			throw new IllegalStateException("oiosaml-sp.sessionhandler.mapped.dir must be set");
+		}
+		int capacity = config.getInt("oiosaml-sp.sessionhandler.mapped.capacity", DEFAULT_CAPACITY);
+		int slotSize = config.getInt("oiosaml-sp.sessionhandler.mapped.slotsize", DEFAULT_SLOT_SIZE);
+		// keep the load factor of the tables at 75%
+		int slots = Math.max(1, (int) Math.ceil(capacity / 0.75 / SEGMENTS));
+
+		File directory = new File(dir);
+		directory.mkdirs();
+		try {
+			sessions = new MappedTable(new File(directory, "sessions.map"), SEGMENTS, slots, slotSize);
+			sessionIndexes = new MappedTable(new File(directory, "sessionindexes.map"), SEGMENTS, slots, INDEX_SLOT_SIZE);
+			assertionIds = new MappedTable(new File(directory, "assertionids.map"), SEGMENTS, slots, INDEX_SLOT_SIZE);
+		} catch (IOException e) {
+			close();
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+		log.info("Using session store in " + directory + " with " + sessions.size() + " recovered sessions");
+
+		handler = new MappedSessionHandler(sessions, sessionIndexes, assertionIds,
+				config.getLong(Constants.PROP_REPLAY_CLOCK_SKEW, SingleVMSessionHandler.DEFAULT_CLOCK_SKEW / 1000) * 1000,
+				config.getBoolean(Constants.PROP_RETAIN_ASSERTION_XML, true));
+	}
+
+	public SessionHandler getHandler() {
+		if (handler == null) throw new IllegalStateException("Handler is null, please call configure before getHandler");
+		return handler;
+	}
+
+	public void close() {
+		log.debug("Closing factory with handler " + handler);
+		handler = null;
+		for (MappedTable table : new MappedTable[] { sessions, sessionIndexes, assertionIds }) {
+			if (table != null) {
+				table.close();
+			}
+		}
+		sessions = null;
+		sessionIndexes = null;
+		assertionIds = null;
+	}
+}
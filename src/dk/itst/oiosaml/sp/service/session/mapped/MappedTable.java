@@ -0,0 +1,630 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.mapped;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+
+/**
+ * Hash table of string keys and binary values stored in a memory mapped file.
+ * 
+ * <p>The table is split into a fixed number of segments, each protected by its own lock. Each segment is an open addressing hash table with
+ * linear probing and a fixed number of fixed size slots, so no data is kept on the Java heap except while an entry is being read or written.
+ * Entries are removed using backward shift deletion, so the table never contains tombstones. A segment is considered full when 75% of its slots
+ * are used, so a lookup for a missing key always stops at an empty slot after a short probe sequence. When a segment is full,
+ * {@link #put(String, byte[], long, RemovalListener)} evicts the entry with the oldest time, while {@link #putIfAbsent(String, byte[], long, long)}
+ * only evicts expired entries.</p>
+ * 
+ * <p>Each entry has a time, which can be used for expiring entries using {@link #removeOlderThan(long, RemovalListener)}.</p>
+ * 
+ * <p>The contents of the table survive a restart of the JVM if the file is opened again with the same geometry. The file is locked while
+ * it is open, so it can only be used by one table at a time. If the JVM crashes while an entry is being written, the entry might be lost.</p>
+ * 
+ * <p>Slot layout: state (1 byte), hash (4 bytes), time (8 bytes), key length (2 bytes), value length (4 bytes), key, value.</p>
+ */
+public class MappedTable {
+	private static final Logger log = LoggerFactory.getLogger(MappedTable.class);
+
+	private static final int MAGIC = 0x4f494f4d;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+
+	private static final int SLOT_HEADER = 19;
+	private static final int HASH = 1;
+	private static final int TIME = 5;
+	private static final int KEY_LENGTH = 13;
+	private static final int VALUE_LENGTH = 15;
+
+	private static final byte EMPTY = 0;
+	private static final byte USED = 1;
+
+	private static final double LOAD_FACTOR = 0.75;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Callback for entries removed by {@link MappedTable#removeOlderThan(long, RemovalListener)} or evicted by {@link MappedTable#put(String, byte[], long, RemovalListener)}.
+	 */
+	public interface RemovalListener {
+		public void removed(String key, byte[] value);
+	}
+
+	private final File file;
+	private final int slotSize;
+	private final Segment[] segments;
+	private final RandomAccessFile raf;
+	private final FileLock lock;
+	private final AtomicLong evictions = new AtomicLong();
+	private volatile boolean closed;
+
+	/**
+	 * Open a table, creating the file if it does not exist. If the file exists, but has a different geometry, the contents are discarded.
+	 * 
+	 * @param file The file to store the table in.
+	 * @param segmentCount Number of segments, which is the number of concurrent writers.
+	 * @param slotsPerSegment Number of slots in each segment. Only 75% of the slots are used for entries.
+	 * @param slotSize Size of each slot in bytes. Entries with a key and value larger than the slot size minus 19 bytes cannot be stored.
+	 */
+	public MappedTable(File file, int segmentCount, int slotsPerSegment, int slotSize) throws IOException {
+		if (segmentCount < 1 || slotsPerSegment < 1) throw new IllegalArgumentException("Table must have at least one slot");
+		if (slotSize <= SLOT_HEADER) throw new IllegalArgumentException("Slot size must be larger than " + SLOT_HEADER);
+		if ((long) slotsPerSegment * slotSize > Integer.MAX_VALUE) throw new IllegalArgumentException("Segments cannot be larger than 2GB");
+
+		this.file = file;
+		this.slotSize = slotSize;
+		long segmentSize = (long) slotsPerSegment * slotSize;
+
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			lock = channel.tryLock();
+			if (lock == null) {
+				throw new IOException("File " + file + " is used by another process");
+			}
+
+			boolean recover = hasGeometry(segmentCount, slotsPerSegment, slotSize);
+			if (!recover) {
+				log.info("Initializing " + file + " with " + segmentCount + " segments of " + slotsPerSegment + " slots of " + slotSize + " bytes");
+				// truncating and extending the file fills it with zeros, which marks all slots as empty
+				raf.setLength(0);
+				raf.setLength(HEADER_SIZE + segmentCount * segmentSize);
+				raf.seek(0);
+				raf.writeInt(MAGIC);
+				raf.writeInt(FORMAT_VERSION);
+				raf.writeInt(segmentCount);
+				raf.writeInt(slotsPerSegment);
+				raf.writeInt(slotSize);
+			}
+
+			segments = new Segment[segmentCount];
+			for (int i = 0; i < segmentCount; i++) {
+				segments[i] = new Segment(channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + i * segmentSize, segmentSize), slotsPerSegment);
+				if (recover) {
+					segments[i].recover();
+				}
+			}
+			if (recover) {
+				log.info("Recovered " + size() + " entries from " + file);
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		} catch (RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	private boolean hasGeometry(int segmentCount, int slotsPerSegment, int slotSize) throws IOException {
+		if (raf.length() < HEADER_SIZE) return false;
+
+		raf.seek(0);
+		return raf.readInt() == MAGIC && raf.readInt() == FORMAT_VERSION && raf.readInt() == segmentCount && raf.readInt() == slotsPerSegment
+				&& raf.readInt() == slotSize && raf.length() == HEADER_SIZE + (long) segmentCount * slotsPerSegment * slotSize;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The maximum number of bytes in a key and value.
+	 */
+	public int getMaxEntrySize() {
+		return slotSize - SLOT_HEADER;
+	}
+
+	/**
+	 * @return The value stored for a key, or <code>null</code>.
+	 */
+	public byte[] get(String key) {
+		return get(key, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Get the value stored for a key, and update the time of the entry if it is older than a given granularity.
+	 * 
+	 * @return The value, or <code>null</code>.
+	 */
+	public byte[] get(String key, long time, long granularity) {
+		byte[] k = key.getBytes(UTF8);
+		int hash = hash(key);
+		Segment s = segment(hash);
+		synchronized (s) {
+			int slot = s.find(hash, k);
+			if (slot < 0) return null;
+
+			int offset = s.offset(slot);
+			if (time - s.buffer.getLong(offset + TIME) >= granularity) {
+				s.buffer.putLong(offset + TIME, time);
+			}
+			return s.readValue(slot);
+		}
+	}
+
+	/**
+	 * @return The time of the entry stored for a key, or -1 if there is no entry.
+	 */
+	public long getTime(String key) {
+		byte[] k = key.getBytes(UTF8);
+		int hash = hash(key);
+		Segment s = segment(hash);
+		synchronized (s) {
+			int slot = s.find(hash, k);
+			return slot < 0 ? -1 : s.buffer.getLong(s.offset(slot) + TIME);
+		}
+	}
+
+	/**
+	 * Store a value, replacing any existing value for the key.
+	 */
+	public void put(String key, byte[] value, long time) {
+		put(key, value, time, null);
+	}
+
+	/**
+	 * Store a value, replacing any existing value for the key.
+	 * 
+	 * @param listener Listener to notify of entries evicted because the segment is full. Can be <code>null</code>.
+	 */
+	public void put(String key, byte[] value, long time, RemovalListener listener) {
+		byte[] k = key.getBytes(UTF8);
+		int hash = hash(key);
+		Segment s = segment(hash);
+		checkSize(k, value);
+		synchronized (s) {
+			int slot = s.find(hash, k);
+			if (slot < 0) {
+				while (s.count >= s.limit) {
+					s.evictOldest(listener);
+				}
+				slot = s.insertionSlot(hash);
+			}
+			s.write(slot, hash, k, value, time);
+		}
+	}
+
+	/**
+	 * Store a value if there is no entry for the key, or if the existing entry has a time before <code>now</code>.
+	 * 
+	 * <p>The time of each entry is treated as its expiry time. If the segment is full, all entries which have expired at <code>now</code>
+	 * are removed, but entries which have not expired are never evicted, so the table can be used for replay protection.</p>
+	 * 
+	 * @return <code>true</code> if the value was stored.
+	 * @throws IllegalStateException If the segment is full of entries which have not expired.
+	 */
+	public boolean putIfAbsent(String key, byte[] value, long time, long now) {
+		byte[] k = key.getBytes(UTF8);
+		int hash = hash(key);
+		Segment s = segment(hash);
+		checkSize(k, value);
+		synchronized (s) {
+			int slot = s.find(hash, k);
+			if (slot < 0) {
+				if (s.count >= s.limit) {
+					s.removeOlderThan(now + 1, null);
+					if (s.count >= s.limit) {
+						throw new IllegalStateException("Table " + file + " is full of entries which have not expired");
+					}
+				}
+				slot = s.insertionSlot(hash);
+			} else if (s.buffer.getLong(s.offset(slot) + TIME) > now) {
+				return false;
+			}
+			s.write(slot, hash, k, value, time);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove an entry.
+	 * 
+	 * @return The removed value, or <code>null</code> if there was no entry.
+	 */
+	public byte[] remove(String key) {
+		byte[] k = key.getBytes(UTF8);
+		int hash = hash(key);
+		Segment s = segment(hash);
+		synchronized (s) {
+			int slot = s.find(hash, k);
+			if (slot < 0) return null;
+
+			byte[] value = s.readValue(slot);
+			s.delete(slot);
+			return value;
+		}
+	}
+
+	/**
+	 * Remove an entry if it has a given value.
+	 * 
+	 * @return <code>true</code> if the entry was removed.
+	 */
+	public boolean remove(String key, byte[] value) {
+		byte[] k = key.getBytes(UTF8);
+		int hash = hash(key);
+		Segment s = segment(hash);
+		synchronized (s) {
+			int slot = s.find(hash, k);
+			if (slot < 0 || !Arrays.equals(value, s.readValue(slot))) return false;
+
+			s.delete(slot);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove all entries with a time before a given limit.
+	 * 
+	 * @param listener Listener to notify of removed entries. Can be <code>null</code>.
+	 * @return The number of removed entries.
+	 */
+	public int removeOlderThan(long limit, RemovalListener listener) {
+		int removed = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				removed += s.removeOlderThan(limit, listener);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return The number of entries in the table.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment s : segments) {
+			size += s.count;
+		}
+		return size;
+	}
+
+	/**
+	 * @return The number of entries evicted because a segment was full.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+		for (Segment s : segments) {
+			synchronized (s) {
+				for (int slot = 0; slot < s.slots; slot++) {
+					s.buffer.put(s.offset(slot), EMPTY);
+				}
+				s.count = 0;
+			}
+		}
+	}
+
+	/**
+	 * Write all changes to disk and release the file. The table cannot be used after it has been closed. Calling close more than once has no effect.
+	 */
+	public synchronized void close() {
+		if (closed) return;
+		closed = true;
+
+		for (Segment s : segments) {
+			synchronized (s) {
+				s.buffer.force();
+			}
+		}
+		try {
+			lock.release();
+		} catch (IOException e) {
+			log.warn("Unable to release lock on " + file, e);
+		}
+		try {
+			raf.close();
+		} catch (IOException e) {
+			log.warn("Unable to close " + file, e);
+		}
+	}
+
+	/**
+	 * @return The number of slots examined when looking up a key. Used for testing.
+	 */
+	int probeLength(String key) {
+		byte[] k = key.getBytes(UTF8);
+		int hash = hash(key);
+		Segment s = segment(hash);
+		synchronized (s) {
+			int slot = s.home(hash);
+			for (int i = 1; i <= s.slots; i++) {
+				int offset = s.offset(slot);
+				if (s.buffer.get(offset) == EMPTY || (s.buffer.getInt(offset + HASH) == hash && s.keyEquals(offset, k))) return i;
+				slot = slot + 1 == s.slots ? 0 : slot + 1;
+			}
+			return s.slots;
+		}
+	}
+
+	private Segment segment(int hash) {
+		if (closed) throw new IllegalStateException("Table " + file + " has been closed");
+		return segments[(hash & 0x7fffffff) % segments.length];
+	}
+
+	private void checkSize(byte[] key, byte[] value) {
+		if (key.length > Short.MAX_VALUE || key.length + value.length > slotSize - SLOT_HEADER) {
+			throw new IllegalArgumentException("Entry of " + (key.length + value.length) + " bytes is larger than the maximum of " + (slotSize - SLOT_HEADER));
+		}
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private final class Segment {
+		private final MappedByteBuffer buffer;
+		private final int slots;
+		private final int limit;
+		private volatile int count;
+
+		private Segment(MappedByteBuffer buffer, int slots) {
+			this.buffer = buffer;
+			this.slots = slots;
+			this.limit = Math.max(1, (int) (slots * LOAD_FACTOR));
+		}
+
+		private int offset(int slot) {
+			return slot * slotSize;
+		}
+
+		private int home(int hash) {
+			// the lowest bits select the segment, so use the highest bits for the slot
+			return (hash >>> 8) % slots;
+		}
+
+		private boolean isUsed(int slot) {
+			return buffer.get(offset(slot)) == USED;
+		}
+
+		private int find(int hash, byte[] key) {
+			int slot = home(hash);
+			for (int i = 0; i < slots; i++) {
+				int offset = offset(slot);
+				if (buffer.get(offset) == EMPTY) return -1;
+				if (buffer.getInt(offset + HASH) == hash && keyEquals(offset, key)) return slot;
+				slot = slot + 1 == slots ? 0 : slot + 1;
+			}
+			return -1;
+		}
+
+		private boolean keyEquals(int offset, byte[] key) {
+			if (buffer.getShort(offset + KEY_LENGTH) != key.length) return false;
+			for (int i = 0; i < key.length; i++) {
+				if (buffer.get(offset + SLOT_HEADER + i) != key[i]) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Find an empty slot for a new entry. The caller must make sure the segment is not full.
+		 */
+		private int insertionSlot(int hash) {
+			int slot = home(hash);
+			while (buffer.get(offset(slot)) != EMPTY) {
+				slot = slot + 1 == slots ? 0 : slot + 1;
+			}
+			return slot;
+		}
+
+		private void evictOldest(RemovalListener listener) {
+			int oldest = 0;
+			long time = Long.MAX_VALUE;
+			for (int slot = 0; slot < slots; slot++) {
+				long t = buffer.getLong(offset(slot) + TIME);
+				if (isUsed(slot) && t < time) {
+					time = t;
+					oldest = slot;
+				}
+			}
+			if (log.isDebugEnabled()) log.debug("Segment in " + file + " is full, evicting " + readKey(oldest));
+			if (listener != null) {
+				listener.removed(readKey(oldest), readValue(oldest));
+			}
+			delete(oldest);
+			evictions.incrementAndGet();
+		}
+
+		private int removeOlderThan(long limit, RemovalListener listener) {
+			int removed = 0;
+			for (int slot = 0; slot < slots; slot++) {
+				// deleting shifts the following entries back, so check the same slot again
+				while (isUsed(slot) && buffer.getLong(offset(slot) + TIME) < limit) {
+					if (listener != null) {
+						listener.removed(readKey(slot), readValue(slot));
+					}
+					delete(slot);
+					removed++;
+				}
+			}
+			return removed;
+		}
+
+		private void write(int slot, int hash, byte[] key, byte[] value, long time) {
+			int offset = offset(slot);
+			boolean existing = isUsed(slot);
+			buffer.putInt(offset + HASH, hash);
+			buffer.putLong(offset + TIME, time);
+			buffer.putShort(offset + KEY_LENGTH, (short) key.length);
+			buffer.putInt(offset + VALUE_LENGTH, value.length);
+			ByteBuffer b = buffer.duplicate();
+			b.position(offset + SLOT_HEADER);
+			b.put(key);
+			b.put(value);
+			// mark the slot as used last, so a partially written entry is not visible after a crash
+			buffer.put(offset, USED);
+			if (!existing) {
+				count++;
+			}
+		}
+
+		private String readKey(int slot) {
+			int offset = offset(slot);
+			byte[] key = new byte[buffer.getShort(offset + KEY_LENGTH)];
+			ByteBuffer b = buffer.duplicate();
+			b.position(offset + SLOT_HEADER);
+			b.get(key);
+			return new String(key, UTF8);
+		}
+
+		private byte[] readValue(int slot) {
+			int offset = offset(slot);
+			byte[] value = new byte[buffer.getInt(offset + VALUE_LENGTH)];
+			ByteBuffer b = buffer.duplicate();
+			b.position(offset + SLOT_HEADER + buffer.getShort(offset + KEY_LENGTH));
+			b.get(value);
+			return value;
+		}
+
+		/**
+		 * Delete the entry in a slot, and move following entries in the same probe sequence back, so lookups do not stop at the empty slot.
+		 */
+		private void delete(int slot) {
+			int hole = slot;
+			buffer.put(offset(hole), EMPTY);
+			count--;
+
+			int next = hole;
+			while (true) {
+				next = next + 1 == slots ? 0 : next + 1;
+				int offset = offset(next);
+				if (buffer.get(offset) == EMPTY) return;
+
+				int home = home(buffer.getInt(offset + HASH));
+				// the entry can be moved if the hole is between its home slot and its current slot
+				boolean move = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+				if (move) {
+					ByteBuffer src = buffer.duplicate();
+					src.position(offset);
+					src.limit(offset + SLOT_HEADER + buffer.getShort(offset + KEY_LENGTH) + buffer.getInt(offset + VALUE_LENGTH));
+					ByteBuffer dst = buffer.duplicate();
+					dst.position(offset(hole));
+					dst.put(src);
+					buffer.put(offset, EMPTY);
+					hole = next;
+				}
+			}
+		}
+
+		/**
+		 * Count the used slots after opening an existing file, and discard slots which cannot be read.
+		 */
+		private void recover() {
+			boolean corrupt = false;
+			int used = 0;
+			for (int slot = 0; slot < slots; slot++) {
+				int offset = offset(slot);
+				byte state = buffer.get(offset);
+				if (state == EMPTY) continue;
+
+				int keyLength = buffer.getShort(offset + KEY_LENGTH);
+				int valueLength = buffer.getInt(offset + VALUE_LENGTH);
+				if (state != USED || keyLength < 0 || valueLength < 0 || SLOT_HEADER + keyLength + valueLength > slotSize) {
+					log.warn("Discarding corrupt slot " + slot + " in " + file);
+					buffer.put(offset, EMPTY);
+					corrupt = true;
+					continue;
+				}
+				used++;
+			}
+			count = used;
+			if (corrupt) {
+				rehash();
+			}
+		}
+
+		/**
+		 * Insert all entries again, so no probe sequence is broken by a slot which has been emptied without shifting the following entries.
+		 */
+		private void rehash() {
+			List<byte[]> entries = new ArrayList<byte[]>(count);
+			for (int slot = 0; slot < slots; slot++) {
+				if (!isUsed(slot)) continue;
+
+				int offset = offset(slot);
+				byte[] entry = new byte[SLOT_HEADER + buffer.getShort(offset + KEY_LENGTH) + buffer.getInt(offset + VALUE_LENGTH)];
+				ByteBuffer b = buffer.duplicate();
+				b.position(offset);
+				b.get(entry);
+				entries.add(entry);
+				buffer.put(offset, EMPTY);
+			}
+			for (byte[] entry : entries) {
+				int slot = home(ByteBuffer.wrap(entry).getInt(HASH));
+				while (isUsed(slot)) {
+					slot = slot + 1 == slots ? 0 : slot + 1;
+				}
+				ByteBuffer b = buffer.duplicate();
+				b.position(offset(slot) + 1);
+				b.put(entry, 1, entry.length - 1);
+				buffer.put(offset(slot), USED);
+			}
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.redis;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+
+/**
+ * Thread safe Redis client with a pool of connections.
+ * 
+ * <p>Each call borrows a connection for the duration of the call. All commands passed to {@link #pipeline(List)} are sent in one write and
+ * the replies are read afterwards, so a pipeline costs a single network round trip no matter how many commands it contains.</p>
+ * 
+ * <p>A connection which fails with an I/O error is discarded. If the failing connection was an idle connection from the pool, and the server
+ * closed it before sending any reply, the call is retried once on a new connection, as the server closed it while it was idle and did not
+ * execute the commands. Other errors, such as read timeouts, are never retried, as the commands might have been executed, and commands such
+ * as <code>SET NX</code> or <code>GET</code> followed by <code>DEL</code> do not give the same result when they are sent again.</p>
+ */
+public class RedisClient {
+	private static final Logger log = LoggerFactory.getLogger(RedisClient.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String host;
+	private final int port;
+	private final String password;
+	private final int database;
+	private final int timeout;
+
+	private final Semaphore permits;
+	private final BlockingDeque<RedisConnection> idle = new LinkedBlockingDeque<RedisConnection>();
+	private volatile boolean closed;
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong roundTrips = new AtomicLong();
+	private final AtomicLong commands = new AtomicLong();
+
+	/**
+	 * @param password Password sent with AUTH when connecting. <code>null</code> if the server does not require authentication.
+	 * @param database Database selected when connecting.
+	 * @param timeout Connect and read timeout in milliseconds. This is also the maximum time to wait for a free connection.
+	 * @param poolSize Maximum number of open connections.
+	 */
+	public RedisClient(String host, int port, String password, int database, int timeout, int poolSize) {
+		if (poolSize < 1) throw new IllegalArgumentException("Pool size must be positive, was " + poolSize);
+		this.host = host;
+		this.port = port;
+		this.password = password;
+		this.database = database;
+		this.timeout = timeout;
+		permits = new Semaphore(poolSize, true);
+	}
+
+	/**
+	 * Execute a single command.
+	 * 
+	 * @param args Command arguments. Strings are sent as UTF-8, numbers as their decimal value and byte arrays as is.
+	 * @return The reply.
+	 * @throws RedisException If the server returned an error.
+	 */
+	public Object execute(Object... args) {
+		return pipeline(Collections.singletonList(args)).get(0);
+	}
+
+	/**
+	 * Execute a number of commands in one round trip.
+	 * 
+	 * @return The replies, in the same order as the commands.
+	 * @throws RedisException If the server returned an error for any of the commands. All replies are read before the first error is thrown.
+	 */
+	public List<Object> pipeline(List<Object[]> commands) {
+		List<byte[][]> encoded = new ArrayList<byte[][]>(commands.size());
+		for (Object[] command : commands) {
+			encoded.add(encode(command));
+		}
+
+		List<Object> replies = send(encoded);
+		for (Object reply : replies) {
+			if (reply instanceof RedisException) {
+				throw (RedisException) reply;
+			}
+		}
+		return replies;
+	}
+
+	private List<Object> send(List<byte[][]> commands) {
+		if (closed) throw new IllegalStateException("Client has been closed");
+		try {
+			if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				throw new WrappedException(Layer.DATAACCESS, new IOException("Timeout waiting for a connection to " + host + ":" + port));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+		try {
+			RedisConnection con = idle.pollFirst();
+			if (con != null) {
+				try {
+					return send(con, commands);
+				} catch (RedisConnection.ClosedException e) {
+					log.debug("Pooled connection to " + host + ":" + port + " was closed, retrying on a new connection: " + e.getMessage());
+				} catch (IOException e) {
+					throw new WrappedException(Layer.DATAACCESS, e);
+				}
+			}
+			try {
+				return send(connect(), commands);
+			} catch (IOException e) {
+				throw new WrappedException(Layer.DATAACCESS, e);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	private List<Object> send(RedisConnection con, List<byte[][]> commands) throws IOException {
+		List<Object> replies;
+		try {
+			replies = con.pipeline(commands);
+		} catch (IOException e) {
+			con.close();
+			throw e;
+		} catch (RuntimeException e) {
+			con.close();
+			throw e;
+		}
+		roundTrips.incrementAndGet();
+		this.commands.addAndGet(commands.size());
+		if (closed) {
+			con.close();
+		} else {
+			idle.offerFirst(con);
+		}
+		return replies;
+	}
+
+	private RedisConnection connect() throws IOException {
+		RedisConnection con = new RedisConnection(host, port, timeout);
+		List<byte[][]> init = new ArrayList<byte[][]>();
+		if (password != null) {
+			init.add(encode(new Object[] { "AUTH", password }));
+		}
+		if (database != 0) {
+			init.add(encode(new Object[] { "SELECT", database }));
+		}
+		if (!init.isEmpty()) {
+			List<Object> replies;
+			try {
+				replies = con.pipeline(init);
+			} catch (IOException e) {
+				con.close();
+				throw e;
+			}
+			for (Object reply : replies) {
+				if (reply instanceof RedisException) {
+					con.close();
+					throw (RedisException) reply;
+				}
+			}
+		}
+		created.incrementAndGet();
+		log.debug("Opened connection to " + host + ":" + port);
+		return con;
+	}
+
+	static byte[][] encode(Object[] command) {
+		byte[][] res = new byte[command.length][];
+		for (int i = 0; i < command.length; i++) {
+			Object arg = command[i];
+			if (arg instanceof byte[]) {
+				res[i] = (byte[]) arg;
+			} else if (arg != null) {
+				res[i] = arg.toString().getBytes(UTF8);
+			} else {
+				throw new IllegalArgumentException("Argument " + i + " is null");
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Decode a bulk string reply as UTF-8.
+	 */
+	public static String toString(Object reply) {
+		return reply != null ? new String((byte[]) reply, UTF8) : null;
+	}
+
+	/**
+	 * Close all idle connections. Connections in use are closed when they are returned.
+	 */
+	public void close() {
+		closed = true;
+		RedisConnection con;
+		while ((con = idle.pollFirst()) != null) {
+			con.close();
+		}
+	}
+
+	/**
+	 * @return The number of connections opened since the client was created.
+	 */
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * @return The number of network round trips made.
+	 */
+	public long getRoundTripCount() {
+		return roundTrips.get();
+	}
+
+	/**
+	 * @return The number of commands sent.
+	 */
+	public long getCommandCount() {
+		return commands.get();
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	@Override
+	public String toString() {
+		return "RedisClient[" + host + ":" + port + "/" + database + ", idle=" + idle.size() + ", created=" + created + ", roundTrips=" + roundTrips + ", commands=" + commands + "]";
+	}
+}
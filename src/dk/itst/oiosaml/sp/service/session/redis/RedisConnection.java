@@ -0,0 +1,197 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single connection to a Redis server using the RESP protocol.
+ * 
+ * <p>Commands are written as arrays of bulk strings. Replies are returned as {@link String} for simple strings, {@link Long} for integers,
+ * <code>byte[]</code> for bulk strings, {@link List} for arrays, <code>null</code> for nil replies and {@link RedisException} for errors.
+ * Error replies are returned instead of thrown, so all replies of a pipeline are read even if one of the commands fails.</p>
+ * 
+ * <p>Connections are not thread safe.</p>
+ */
+public class RedisConnection {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+
+	public RedisConnection(String host, int port, int timeout) throws IOException {
+		socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.setSoTimeout(timeout);
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			in = new BufferedInputStream(socket.getInputStream(), 8192);
+			out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Thrown when the server has closed the connection before sending any part of a reply, which happens when an idle connection has been
+	 * closed by the server. The commands have not been executed, so they can safely be sent again on another connection.
+	 */
+	public static class ClosedException extends IOException {
+		private static final long serialVersionUID = -4187356200471383520L;
+
+		public ClosedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Send a number of commands in one write, and read all replies.
+	 * 
+	 * @throws ClosedException If the connection was closed by the server before the first byte of the replies was read.
+	 * @throws IOException For all other errors. The commands might have been executed, so they must not be sent again.
+	 */
+	public List<Object> pipeline(List<byte[][]> commands) throws IOException {
+		for (byte[][] command : commands) {
+			write(command);
+		}
+		out.flush();
+
+		int first;
+		try {
+			first = in.read();
+		} catch (SocketException e) {
+			// connection reset, a read timeout is a SocketTimeoutException, which is not a SocketException
+			throw new ClosedException("Connection reset by server: " + e.getMessage());
+		}
+		if (first == -1) {
+			throw new ClosedException("Connection closed by server");
+		}
+
+		List<Object> replies = new ArrayList<Object>(commands.size());
+		replies.add(read(first));
+		for (int i = 1; i < commands.size(); i++) {
+			replies.add(read());
+		}
+		return replies;
+	}
+
+	private void write(byte[][] command) throws IOException {
+		out.write('*');
+		writeNumber(command.length);
+		for (byte[] arg : command) {
+			out.write('$');
+			writeNumber(arg.length);
+			out.write(arg);
+			out.write(CRLF);
+		}
+	}
+
+	private void writeNumber(long value) throws IOException {
+		out.write(Long.toString(value).getBytes(UTF8));
+		out.write(CRLF);
+	}
+
+	private Object read() throws IOException {
+		return read(in.read());
+	}
+
+	private Object read(int type) throws IOException {
+		switch (type) {
+		case '+':
+			return readLine();
+		case '-':
+			return new RedisException(readLine());
+		case ':':
+			return Long.parseLong(readLine());
+		case '$': {
+			int length = Integer.parseInt(readLine());
+			if (length < 0) return null;
+			byte[] value = new byte[length];
+			readFully(value);
+			if (in.read() != '\r' || in.read() != '\n') {
+				throw new IOException("Bulk string not terminated by CRLF");
+			}
+			return value;
+		}
+		case '*': {
+			int count = Integer.parseInt(readLine());
+			if (count < 0) return null;
+			List<Object> values = new ArrayList<Object>(count);
+			for (int i = 0; i < count; i++) {
+				values.add(read());
+			}
+			return values;
+		}
+		case -1:
+			throw new EOFException("Connection closed by server");
+		default:
+			throw new IOException("Unknown reply type " + (char) type);
+		}
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\r') {
+			if (c == -1) throw new EOFException("Connection closed by server");
+			sb.append((char) c);
+		}
+		if (in.read() != '\n') {
+			throw new IOException("Line not terminated by CRLF");
+		}
+		return sb.toString();
+	}
+
+	private void readFully(byte[] value) throws IOException {
+		int pos = 0;
+		while (pos < value.length) {
+			int read = in.read(value, pos, value.length - pos);
+			if (read < 0) throw new EOFException("Connection closed by server");
+			pos += read;
+		}
+	}
+
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
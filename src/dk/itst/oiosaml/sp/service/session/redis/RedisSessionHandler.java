@@ -0,0 +1,258 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.redis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpSession;
+
+import dk.itst.oiosaml.error.Layer;
+import dk.itst.oiosaml.error.WrappedException;
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+import dk.itst.oiosaml.sp.model.OIOAssertionRecord;
+import dk.itst.oiosaml.sp.service.session.ReplayCache;
+import dk.itst.oiosaml.sp.service.session.Request;
+import dk.itst.oiosaml.sp.service.session.RequestCodec;
+import dk.itst.oiosaml.sp.service.session.SessionHandler;
+import dk.itst.oiosaml.sp.service.session.SessionState;
+import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.service.util.Utils;
+
+/**
+ * Session handler which keeps all state in Redis.
+ * 
+ * <p>Every entry is stored with a time to live, so Redis expires sessions, request ids and assertion ids itself, and {@link #cleanup(long, long)}
+ * does nothing. The following keys are used, all prefixed with a configurable prefix:</p>
+ * <ul>
+ * <li><code>session:&lt;session id&gt;</code>: The assertion as a serialized {@link OIOAssertionRecord}. The time to live is extended when the session
+ * is used, so it expires after the session timeout of inactivity.</li>
+ * <li><code>index:&lt;session index&gt;</code>: The session id of a session index. Expires together with the session.</li>
+ * <li><code>assertion:&lt;issuer:id&gt;</code>: Assertion ids for replay protection, created with <code>SET NX</code> so an id can only be
+ * registered once across all nodes. Kept until the assertion expires plus the clock skew.</li>
+ * <li><code>request:&lt;id&gt;</code> and <code>requestdata:&lt;state&gt;</code>: Request ids and saved requests, read and deleted in one round trip
+ * so they can only be used once.</li>
+ * </ul>
+ * 
+ * <p>Commands which belong together are pipelined, so each operation costs at most two round trips.</p>
+ */
+public class RedisSessionHandler implements SessionHandler {
+	private static final Logger log = LoggerFactory.getLogger(RedisSessionHandler.class);
+
+	/**
+	 * Maximum time in milliseconds between extending the time to live of a session.
+	 */
+	private static final long MAX_REFRESH_INTERVAL = 60 * 1000L;
+
+	private final RedisClient client;
+	private final String prefix;
+	private final long sessionTtl;
+	private final long requestTtl;
+	private final long refreshInterval;
+	private final long clockSkew;
+	private final boolean retainXml;
+
+	/**
+	 * @param client Client used to access Redis.
+	 * @param prefix Prefix for all keys.
+	 * @param sessionTtl Time in milliseconds a session is kept after it was last used.
+	 * @param requestTtl Time in milliseconds request ids and saved requests are kept.
+	 * @param clockSkew Milliseconds to keep assertion ids for replay protection after the assertion has expired.
+	 * @param retainXml Keep the compressed assertion XML in session records.
+	 */
+	public RedisSessionHandler(RedisClient client, String prefix, long sessionTtl, long requestTtl, long clockSkew, boolean retainXml) {
+		this.client = client;
+		this.prefix = prefix;
+		this.sessionTtl = sessionTtl;
+		this.requestTtl = requestTtl;
+		this.clockSkew = clockSkew;
+		this.retainXml = retainXml;
+		// only extend the ttl when a noticeable part of it has passed, to save a round trip on most reads
+		this.refreshInterval = Math.min(MAX_REFRESH_INTERVAL, sessionTtl / 10);
+	}
+
+	public void setAssertion(String sessionId, OIOAssertion assertion) throws IllegalArgumentException {
+		String key = ReplayCache.getKey(assertion);
+		long ttl = Math.max(1, ReplayCache.getExpiry(assertion, clockSkew) - System.currentTimeMillis());
+		if (client.execute("SET", prefix + "assertion:" + key, "1", "NX", "PX", ttl) == null) {
+			throw new IllegalArgumentException("Assertion ID begin replayed: " + key);
+		}
+
+		OIOAssertionRecord record = OIOAssertionRecord.valueOf(assertion, retainXml);
+		List<Object[]> commands = new ArrayList<Object[]>(2);
+		commands.add(new Object[] { "SET", sessionKey(sessionId), toBytes(record), "PX", sessionTtl });
+		if (record.getSessionIndex() != null) {
+			// Store the new sessionIndex, replacing any old one
+			commands.add(new Object[] { "SET", indexKey(record.getSessionIndex()), sessionId, "PX", sessionTtl });
+		}
+		client.pipeline(commands);
+	}
+
+	public boolean isLoggedIn(String sessionId) {
+		OIOAssertion ass = getAssertion(sessionId);
+		return ass != null && !ass.hasSessionExpired();
+	}
+
+	public SessionState getSessionState(String sessionId) {
+		return SessionState.valueOf(getAssertion(sessionId));
+	}
+
+	public void logOut(HttpSession session) {
+		logOut(session.getId());
+		session.removeAttribute(Constants.SESSION_USER_ASSERTION);
+	}
+
+	public void logOut(String sessionId) {
+		byte[] value = (byte[]) getAndDelete(sessionKey(sessionId)).get(0);
+		if (value != null) {
+			String sessionIndex = fromBytes(value).getSessionIndex();
+			if (sessionIndex != null) {
+				client.execute("DEL", indexKey(sessionIndex));
+			}
+		}
+	}
+
+	public OIOAssertion getAssertion(String sessionId) {
+		if (sessionId == null) return null;
+
+		String key = sessionKey(sessionId);
+		List<Object[]> commands = new ArrayList<Object[]>(2);
+		commands.add(new Object[] { "GET", key });
+		commands.add(new Object[] { "PTTL", key });
+		List<Object> replies = client.pipeline(commands);
+
+		byte[] value = (byte[]) replies.get(0);
+		if (value == null) return null;
+
+		OIOAssertionRecord record = fromBytes(value);
+		long ttl = (Long) replies.get(1);
+		if (ttl >= 0 && ttl < sessionTtl - refreshInterval) {
+			commands.clear();
+			commands.add(new Object[] { "PEXPIRE", key, sessionTtl });
+			if (record.getSessionIndex() != null) {
+				commands.add(new Object[] { "PEXPIRE", indexKey(record.getSessionIndex()), sessionTtl });
+			}
+			client.pipeline(commands);
+		}
+		return record;
+	}
+
+	public String getRelatedSessionId(String sessionIndex) {
+		return RedisClient.toString(client.execute("GET", indexKey(sessionIndex)));
+	}
+
+	public void registerRequest(String id, String receiverEntityID) {
+		if (log.isDebugEnabled()) log.debug("Registered id " + id + " for " + receiverEntityID);
+		client.execute("SET", prefix + "request:" + id, receiverEntityID, "PX", requestTtl);
+	}
+
+	public String removeEntityIdForRequest(String id) throws IllegalArgumentException {
+		if (log.isDebugEnabled()) log.debug("Removing id " + id);
+
+		List<Object> replies = getAndDelete(prefix + "request:" + id);
+		if (replies.get(0) == null || ((Long) replies.get(1)) == 0) {
+			throw new IllegalArgumentException("Request id " + id + " is unknown");
+		}
+		return RedisClient.toString(replies.get(0));
+	}
+
+	public String saveRequest(Request request) {
+		String state = Utils.generateUUID();
+		client.execute("SET", prefix + "requestdata:" + state, RequestCodec.encode(request), "PX", requestTtl);
+		return state;
+	}
+
+	public Request getRequest(String state) throws IllegalArgumentException {
+		List<Object> replies = getAndDelete(prefix + "requestdata:" + state);
+		if (replies.get(0) == null || ((Long) replies.get(1)) == 0) {
+			throw new IllegalArgumentException("No request for state " + state);
+		}
+		return RequestCodec.decode((byte[]) replies.get(0));
+	}
+
+	/**
+	 * All keys are stored with a time to live, so Redis removes expired entries itself.
+	 */
+	public void cleanup(long requestIdsCleanupDelay, long sessionCleanupDelay) {
+		if (log.isDebugEnabled()) log.debug("Entries expire in Redis, nothing to clean up. " + client);
+	}
+
+	/**
+	 * Assertion ids are kept in Redis until the assertion expires, so the number of ids is not limited and this only logs the requested size.
+	 */
+	public void resetReplayProtection(int maxNum) {
+		if (log.isDebugEnabled()) log.debug("Replay protection requested for " + maxNum + " ids, ids are kept in Redis until they expire");
+	}
+
+	public RedisClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Get and delete a key in one round trip.
+	 * 
+	 * @return The value and the number of deleted keys. When two threads read the same key, only one of them will see a delete count of 1.
+	 */
+	private List<Object> getAndDelete(String key) {
+		List<Object[]> commands = new ArrayList<Object[]>(2);
+		commands.add(new Object[] { "GET", key });
+		commands.add(new Object[] { "DEL", key });
+		return client.pipeline(commands);
+	}
+
+	private String sessionKey(String sessionId) {
+		return prefix + "session:" + sessionId;
+	}
+
+	private String indexKey(String sessionIndex) {
+		return prefix + "index:" + sessionIndex;
+	}
+
+	private static byte[] toBytes(OIOAssertionRecord record) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			record.writeTo(out);
+			out.flush();
+		} catch (IOException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static OIOAssertionRecord fromBytes(byte[] value) {
+		try {
+			return OIOAssertionRecord.readFrom(new DataInputStream(new ByteArrayInputStream(value)));
+		} catch (IOException e) {
+			throw new WrappedException(Layer.DATAACCESS, e);
+		}
+	}
+}
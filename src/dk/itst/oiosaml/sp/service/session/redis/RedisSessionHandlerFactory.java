@@ -0,0 +1,92 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.session.redis;
+
+import org.apache.commons.configuration.Configuration;
+
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+import dk.itst.oiosaml.sp.service.session.SessionHandler;
+import dk.itst.oiosaml.sp.service.session.SessionHandlerFactory;
+import dk.itst.oiosaml.sp.service.session.SingleVMSessionHandler;
+import dk.itst.oiosaml.sp.service.util.Constants;
+
+/**
+ * Session factory which keeps sessions in Redis, so they can be shared by all nodes in a cluster.
+ * 
+ * <p>All entries expire using the time to live in Redis, so no cleanup is done by the nodes.</p>
+ * 
+ * The following properties can be set in the configuration:
+ * <ul>
+ * <li>oiosaml-sp.sessionhandler.factory=dk.itst.oiosaml.sp.service.session.redis.RedisSessionHandlerFactory</li>
+ * <li>oiosaml-sp.sessionhandler.redis.host: Redis server host. Defaults to localhost.</li>
+ * <li>oiosaml-sp.sessionhandler.redis.port: Redis server port. Defaults to 6379.</li>
+ * <li>oiosaml-sp.sessionhandler.redis.password: Password for AUTH. Optional.</li>
+ * <li>oiosaml-sp.sessionhandler.redis.database: Database number. Defaults to 0.</li>
+ * <li>oiosaml-sp.sessionhandler.redis.timeout: Connect and read timeout in milliseconds. Defaults to 2000.</li>
+ * <li>oiosaml-sp.sessionhandler.redis.poolsize: Maximum number of connections. Defaults to 16.</li>
+ * <li>oiosaml-sp.sessionhandler.redis.prefix: Prefix for all keys. Defaults to oiosaml:.</li>
+ * <li>oiosaml-sp.sessionhandler.redis.sessionttl: Seconds of inactivity before a session expires. Defaults to 1800.</li>
+ * <li>oiosaml-sp.sessionhandler.redis.requestttl: Seconds request ids and saved requests are kept. Defaults to 600.</li>
+ * </ul>
+ */
+public class RedisSessionHandlerFactory implements SessionHandlerFactory {
+	private static final Logger log = LoggerFactory.getLogger(RedisSessionHandlerFactory.class);
+
+	private RedisClient client;
+	private RedisSessionHandler handler;
+
+	public void configure(Configuration config) {
+		String host = config.getString("oiosaml-sp.sessionhandler.redis.host", "localhost");
+		int port = config.getInt("oiosaml-sp.sessionhandler.redis.port", 6379);
+		int database = config.getInt("oiosaml-sp.sessionhandler.redis.database", 0);
+
+		client = new RedisClient(host, port,
+				config.getString("oiosaml-sp.sessionhandler.redis.password", null),
+				database,
+				config.getInt("oiosaml-sp.sessionhandler.redis.timeout", 2000),
+				config.getInt("oiosaml-sp.sessionhandler.redis.poolsize", 16));
+		handler = new RedisSessionHandler(client,
+				config.getString("oiosaml-sp.sessionhandler.redis.prefix", "oiosaml:"),
+				config.getLong("oiosaml-sp.sessionhandler.redis.sessionttl", 1800) * 1000,
+				config.getLong("oiosaml-sp.sessionhandler.redis.requestttl", 600) * 1000,
+				config.getLong(Constants.PROP_REPLAY_CLOCK_SKEW, SingleVMSessionHandler.DEFAULT_CLOCK_SKEW / 1000) * 1000,
+				config.getBoolean(Constants.PROP_RETAIN_ASSERTION_XML, true));
+		log.info("Using Redis session store at " + host + ":" + port + "/" + database);
+	}
+
+	public SessionHandler getHandler() {
+		if (handler == null) throw new IllegalStateException("Handler is null, please call configure before getHandler");
+		return handler;
+	}
+
+	public void close() {
+		log.debug("Closing factory with client " + client);
+		handler = null;
+		if (client != null) {
+			client.close();
+			client = null;
+		}
+	}
+}
@@ -41,6 +41,11 @@ public interface Constants {
 	 * attribute should be a {@link UserAssertion}.
 	 */
 	static final String SESSION_USER_ASSERTION = "dk.itst.oiosaml.userassertion";
+	
+	/**
+	 * Session attribute holding the time the session was last validated against the session handler.
+	 */
+	static final String SESSION_VALIDATED = "dk.itst.oiosaml.validated";
 
     // Constants used within query strings
     static final String QUERY_STRING_FORCE_AUTHN = "forceAuthn"; // Enables force authentication when querying IdP.
@@ -72,6 +77,82 @@ public interface Constants {
 
     static final String PROP_REQUIRE_ENCRYPTION = "oiosaml-sp.encryption.force";
 	static final String PROP_NUM_TRACKED_ASSERTIONIDS = "common.saml2.loggedinhandler.numusedassertionids";
+	
+	/**
+	 * Number of seconds assertion ids are kept for replay protection after the assertion has expired.
+	 */
+	static final String PROP_REPLAY_CLOCK_SKEW = "common.saml2.loggedinhandler.clockskew";
+	
+	/**
+	 * Keep logged in sessions as compact records instead of full assertions.
+	 */
+	static final String PROP_COMPACT_SESSIONS = "common.saml2.loggedinhandler.compact";
+	
+	/**
+	 * Keep the compressed assertion XML in compact session records.
+	 */
+	static final String PROP_RETAIN_ASSERTION_XML = "common.saml2.loggedinhandler.retainxml";
+	
+	/**
+	 * Maximum number of megabytes used for sessions and requests by the default session handler. 0 for no limit.
+	 */
+	static final String PROP_SESSION_MAX_MEMORY = "common.saml2.loggedinhandler.maxmemory";
+	
+	/**
+	 * Keep logged in sessions in an encrypted cookie, so requests can be authenticated without accessing the session store.
+	 */
+	static final String PROP_SESSION_COOKIE = "oiosaml-sp.session.cookie";
+	
+	/**
+	 * Name of the session cookie.
+	 */
+	static final String PROP_SESSION_COOKIE_NAME = "oiosaml-sp.session.cookie.name";
+	
+	/**
+	 * Seconds of inactivity before the session cookie expires.
+	 */
+	static final String PROP_SESSION_COOKIE_MAXAGE = "oiosaml-sp.session.cookie.maxage";
+
+	/**
+	 * Seconds a session cookie is trusted before the session is checked against the session handler, so logouts on other nodes are detected.
+	 * 0 checks every request, and a negative value never checks.
+	 */
+	static final String PROP_SESSION_COOKIE_VERIFY = "oiosaml-sp.session.cookie.verify";
+	
+	/**
+	 * Seconds a validated session is trusted before it is validated against the session handler again. 0 validates every request.
+	 */
+	static final String PROP_SESSION_REVALIDATE = "oiosaml-sp.session.revalidate";
+	
+	/**
+	 * Set to true to save requests in encrypted cookies instead of in the session handler.
+	 */
+	static final String PROP_REQUEST_COOKIE = "oiosaml-sp.request.cookie";
+	
+	/**
+	 * Seconds a request saved in a cookie is kept.
+	 */
+	static final String PROP_REQUEST_COOKIE_MAXAGE = "oiosaml-sp.request.cookie.maxage";
+	
+	/**
+	 * Set to true to only create HTTP sessions when login state must be stored.
+	 */
+	static final String PROP_LAZY_SESSION = "oiosaml-sp.session.lazy";
+	
+	/**
+	 * How the assertion XML is kept in the user assertion stored in the session: full, compressed or none.
+	 */
+	static final String PROP_USER_ASSERTION_XML = "oiosaml-sp.userassertion.xml";
+	
+	/**
+	 * Set to true to use signed request ids instead of registering requests in the session handler.
+	 */
+	static final String PROP_SIGNED_REQUEST_IDS = "oiosaml-sp.requestid.signed";
+	
+	/**
+	 * Seconds a response to a request with a signed id is accepted.
+	 */
+	static final String PROP_SIGNED_REQUEST_IDS_MAXAGE = "oiosaml-sp.requestid.maxage";
 	static final String PROP_VALIDATOR = "oiosaml-sp.assertion.validator";
 	
 	static final String PROP_NAMEID_POLICY = "oiosaml-sp.nameid.policy";
@@ -100,6 +181,17 @@ public interface Constants {
 	 * Each url is treated as a regular expression against the request (without the servlet path).
 	 */
 	static final String PROP_FORCE_AUTHN_URLS = "oiosaml-sp.authn.force";
+	
+	/**
+	 * A comma separated list of regular expressions for paths which are not protected by SPFilter, for example static resources.
+	 * Each expression is matched against the servlet path and path info of the request.
+	 */
+	static final String PROP_FILTER_BYPASS = "oiosaml-sp.filter.bypass";
+	
+	/**
+	 * A comma separated list of path=level entries. Requests for paths matching the regular expression require at least the given assurance level.
+	 */
+	static final String PROP_ASSURANCE_LEVEL_PATHS = "oiosaml-sp.assurancelevel.paths";
 
 	/**
 	 * Path to the saml dispatcher servlet.
@@ -219,5 +311,10 @@ public interface Constants {
 	static final String IDP_METADATA_FILE = "common.saml2.metadata.idp.filename";
 	static final String IDP_METADATA_DIRECTORY = "common.saml2.metadata.idp.directory";
 
+	/**
+	 * Property controlling if parsed IdP metadata should be cached in a binary snapshot next to the metadata files.
+	 */
+	static final String PROP_METADATA_SNAPSHOT = "common.saml2.metadata.idp.snapshot";
+
 	static final String SIGNATURE_ALGORITHM = "oiosaml-sp.signature.algorithm";
 }
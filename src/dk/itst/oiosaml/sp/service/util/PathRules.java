@@ -0,0 +1,274 @@
+/*
+ * The contents of this file are subject to the Mozilla Public 
+ * License Version 1.1 (the "License"); you may not use this 
+ * file except in compliance with the License. You may obtain 
+ * a copy of the License at http://www.mozilla.org/MPL/
+ * 
+ * Software distributed under the License is distributed on an 
+ * "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express 
+ * or implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ *
+ * The Original Code is OIOSAML Java Service Provider.
+ * 
+ * The Initial Developer of the Original Code is Trifork A/S. Portions 
+ * created by Trifork A/S are Copyright (C) 2008 Danish National IT 
+ * and Telecom Agency (http://www.itst.dk). All Rights Reserved.
+ * 
+ * Contributor(s):
+ *   Joakim Recht <jre@trifork.com>
+ *   Rolf Njor Jensen <rolf@trifork.com>
+ *
+ */
+package dk.itst.oiosaml.sp.service.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.configuration.Configuration;
+
+import dk.itst.oiosaml.logging.Logger;
+import dk.itst.oiosaml.logging.LoggerFactory;
+
+/**
+ * Access rules for request paths.
+ * 
+ * <p>Rules are read from {@link Constants#PROP_FILTER_BYPASS}, {@link Constants#PROP_FORCE_AUTHN_URLS} and
+ * {@link Constants#PROP_ASSURANCE_LEVEL_PATHS}. Each rule is a regular expression which must match the whole path. Expressions which are
+ * plain paths, or plain paths followed by <code>.*</code>, are placed in a prefix tree, so they are matched in a single pass over the path no matter how
+ * many rules are configured. Other expressions are compiled once and tested in order.</p>
+ * 
+ * <p>If several rules match a path, the results are combined: the path is bypassed or forced if any rule says so, and the highest
+ * assurance level is required.</p>
+ */
+public class PathRules {
+	private static final Logger log = LoggerFactory.getLogger(PathRules.class);
+	private static final String REGEX_CHARS = "\\.[]{}()*+?^$|";
+
+	private static PathRules instance;
+	private static Configuration instanceConfiguration;
+
+	private final Node root = new Node();
+	private final List<Pattern> patterns = new ArrayList<Pattern>();
+	private final List<Rule> patternRules = new ArrayList<Rule>();
+
+	/**
+	 * @param bypass Expressions for paths which are not protected.
+	 * @param forceAuthn Expressions for paths which require ForceAuthn.
+	 * @param assuranceLevels Expressions for paths which require a minimum assurance level, written as <code>expression=level</code>.
+	 */
+	public PathRules(String[] bypass, String[] forceAuthn, String[] assuranceLevels) {
+		for (String expr : nonNull(bypass)) {
+			add(expr, Rule.BYPASS);
+		}
+		for (String expr : nonNull(forceAuthn)) {
+			add(expr, Rule.FORCE_AUTHN);
+		}
+		for (String entry : nonNull(assuranceLevels)) {
+			int idx = entry.lastIndexOf('=');
+			if (idx == -1) {
+				throw new IllegalArgumentException("Assurance level rule must be on the form path=level: " + entry);
+			}
+			int level;
+			try {
+				level = Integer.parseInt(entry.substring(idx + 1).trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid assurance level in rule " + entry);
+			}
+			add(entry.substring(0, idx), new Rule(false, false, level));
+		}
+		root.resolve(Rule.NONE);
+	}
+
+	/**
+	 * Get the rules for the application. The rules are built once for each configuration.
+	 */
+	public static synchronized PathRules getInstance(Configuration config) {
+		if (instance != null && instanceConfiguration == config) return instance;
+
+		instance = new PathRules(config.getStringArray(Constants.PROP_FILTER_BYPASS), config.getStringArray(Constants.PROP_FORCE_AUTHN_URLS),
+				config.getStringArray(Constants.PROP_ASSURANCE_LEVEL_PATHS));
+		instanceConfiguration = config;
+		return instance;
+	}
+
+	public static synchronized void close() {
+		instance = null;
+		instanceConfiguration = null;
+	}
+
+	/**
+	 * Get the path of a request relative to the context, which is the servlet path followed by the path info.
+	 */
+	public static String getPath(HttpServletRequest request) {
+		String servletPath = request.getServletPath();
+		String pathInfo = request.getPathInfo();
+		if (servletPath == null) servletPath = "";
+		return pathInfo == null ? servletPath : servletPath + pathInfo;
+	}
+
+	/**
+	 * Find the combined rule for a path.
+	 * 
+	 * @return The rule, never <code>null</code>.
+	 */
+	public Rule match(String path) {
+		Node node = root;
+		Rule rule = root.prefix;
+		for (int i = 0; i < path.length(); i++) {
+			node = node.get(path.charAt(i));
+			if (node == null) break;
+			rule = node.prefix;
+		}
+		if (node != null) {
+			rule = node.exact;
+		}
+		for (int j = 0; j < patterns.size(); j++) {
+			if (patterns.get(j).matcher(path).matches()) {
+				rule = rule.merge(patternRules.get(j));
+			}
+		}
+		return rule;
+	}
+
+	private void add(String expr, Rule rule) {
+		expr = expr.trim();
+		if (expr.length() == 0) return;
+
+		if (isLiteral(expr)) {
+			Node node = root.insert(expr);
+			node.ownExact = rule.merge(node.ownExact);
+		} else if (expr.endsWith(".*") && isLiteral(expr.substring(0, expr.length() - 2))) {
+			Node node = root.insert(expr.substring(0, expr.length() - 2));
+			node.ownPrefix = rule.merge(node.ownPrefix);
+		} else {
+			try {
+				patterns.add(Pattern.compile(expr));
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Invalid path expression " + expr, e);
+			}
+			patternRules.add(rule);
+		}
+		if (log.isDebugEnabled()) log.debug("Added rule " + rule + " for " + expr);
+	}
+
+	private static boolean isLiteral(String expr) {
+		for (int i = 0; i < expr.length(); i++) {
+			if (REGEX_CHARS.indexOf(expr.charAt(i)) != -1) return false;
+		}
+		return true;
+	}
+
+	private static List<String> nonNull(String[] values) {
+		if (values == null) return new ArrayList<String>();
+		return Arrays.asList(values);
+	}
+
+	/**
+	 * Node in the prefix tree. Children are kept in a sorted array, which is small and fast for the few distinct characters found at each
+	 * position of a path.
+	 */
+	private static class Node {
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		private Rule ownPrefix;
+		private Rule ownExact;
+
+		/** Rule for all paths starting with this node, including the rules of the parent nodes. */
+		private Rule prefix;
+		/** Rule for the path ending at this node. */
+		private Rule exact;
+
+		Node get(char c) {
+			int idx = Arrays.binarySearch(keys, c);
+			return idx < 0 ? null : children[idx];
+		}
+
+		Node insert(String path) {
+			Node node = this;
+			for (int i = 0; i < path.length(); i++) {
+				char c = path.charAt(i);
+				int idx = Arrays.binarySearch(node.keys, c);
+				if (idx < 0) {
+					idx = -idx - 1;
+					char[] keys = new char[node.keys.length + 1];
+					Node[] children = new Node[keys.length];
+					System.arraycopy(node.keys, 0, keys, 0, idx);
+					System.arraycopy(node.children, 0, children, 0, idx);
+					keys[idx] = c;
+					children[idx] = new Node();
+					System.arraycopy(node.keys, idx, keys, idx + 1, node.keys.length - idx);
+					System.arraycopy(node.children, idx, children, idx + 1, node.children.length - idx);
+					node.keys = keys;
+					node.children = children;
+				}
+				node = node.children[idx];
+			}
+			return node;
+		}
+
+		void resolve(Rule inherited) {
+			prefix = inherited.merge(ownPrefix);
+			exact = prefix.merge(ownExact);
+			for (Node child : children) {
+				child.resolve(prefix);
+			}
+		}
+	}
+
+	/**
+	 * The result of matching a path.
+	 */
+	public static class Rule {
+		public static final Rule NONE = new Rule(false, false, 0);
+		static final Rule BYPASS = new Rule(true, false, 0);
+		static final Rule FORCE_AUTHN = new Rule(false, true, 0);
+
+		private final boolean bypass;
+		private final boolean forceAuthn;
+		private final int assuranceLevel;
+
+		Rule(boolean bypass, boolean forceAuthn, int assuranceLevel) {
+			this.bypass = bypass;
+			this.forceAuthn = forceAuthn;
+			this.assuranceLevel = assuranceLevel;
+		}
+
+		/**
+		 * @return <code>true</code> if the path is not protected by SPFilter.
+		 */
+		public boolean isBypass() {
+			return bypass;
+		}
+
+		/**
+		 * @return <code>true</code> if logins for the path must use ForceAuthn.
+		 */
+		public boolean isForceAuthn() {
+			return forceAuthn;
+		}
+
+		/**
+		 * @return The minimum assurance level required for the path, or 0 if the path has no specific requirement.
+		 */
+		public int getAssuranceLevel() {
+			return assuranceLevel;
+		}
+
+		Rule merge(Rule other) {
+			if (other == null || other == this) return this;
+			return new Rule(bypass || other.bypass, forceAuthn || other.forceAuthn, Math.max(assuranceLevel, other.assuranceLevel));
+		}
+
+		@Override
+		public String toString() {
+			return "Rule[bypass=" + bypass + ", forceAuthn=" + forceAuthn + ", assuranceLevel=" + assuranceLevel + "]";
+		}
+	}
+}
@@ -23,6 +23,10 @@
  */
 package dk.itst.oiosaml.sp.service.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -33,6 +37,10 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.ServletContext;
 
@@ -223,6 +231,73 @@ public final class Utils {
 	public static String generateUUID() {
 		return "_" + UUID.randomUUID().toString();
 	}
+
+	/**
+	 * Compress a string using raw deflate. The string is encoded as UTF-8.
+	 */
+	public static byte[] deflate(String value) {
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(value.length() / 4);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		DeflaterOutputStream deflaterStream = new DeflaterOutputStream(bytesOut, deflater);
+		try {
+			deflaterStream.write(value.getBytes("UTF-8"));
+			deflaterStream.finish();
+		} catch (IOException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		} finally {
+			deflater.end();
+		}
+		return bytesOut.toByteArray();
+	}
+
+	/**
+	 * Decompress a string compressed with {@link #deflate(String)}.
+	 */
+	public static String inflate(byte[] value) {
+		Inflater inflater = new Inflater(true);
+		try {
+			InputStream is = new InflaterInputStream(new ByteArrayInputStream(value), inflater);
+			ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(value.length * 4);
+			byte[] buf = new byte[4096];
+			int read;
+			while ((read = is.read(buf)) != -1) {
+				bytesOut.write(buf, 0, read);
+			}
+			return bytesOut.toString("UTF-8");
+		} catch (IOException e) {
+			throw new WrappedException(Layer.BUSINESS, e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Base64 encode a value using the URL safe alphabet and no padding, so it can be used in cookies, urls and XML ids.
+	 */
+	public static String encodeBase64Url(byte[] value) {
+		String encoded = Base64.encodeBytes(value, Base64.DONT_BREAK_LINES);
+		int end = encoded.length();
+		while (end > 0 && encoded.charAt(end - 1) == '=') end--;
+		return encoded.substring(0, end).replace('+', '-').replace('/', '_');
+	}
+
+	/**
+	 * Decode a value encoded with {@link #encodeBase64Url(byte[])}.
+	 * 
+	 * @return The decoded value, or <code>null</code> if the value is not valid.
+	 */
+	public static byte[] decodeBase64Url(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 3);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '-') sb.append('+');
+			else if (c == '_') sb.append('/');
+			else if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) sb.append(c);
+			else return null;
+		}
+		while (sb.length() % 4 != 0) sb.append('=');
+		return Base64.decode(sb.toString());
+	}
 	
 	/**
 	 * Get the SOAP version from an Envelope.
@@ -0,0 +1,96 @@
+package dk.itst.oiosaml.sp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opensaml.xml.util.Base64;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+
+public class PrivilegesTest {
+
+	private static final String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+		+ "<bpp:PrivilegeList xmlns:bpp=\"http://itst.dk/oiosaml/basic_privilege_profile\">"
+		+ "<PrivilegeGroup Scope=\"urn:dk:gov:saml:cvrNumberIdentifier:12345678\">"
+		+ "<Privilege>urn:dk:example:read</Privilege>"
+		+ "<Privilege>urn:dk:example:write</Privilege>"
+		+ "</PrivilegeGroup>"
+		+ "<PrivilegeGroup Scope=\"urn:dk:gov:saml:productionUnitIdentifier:0123456789\">"
+		+ "<Constraint Name=\"urn:dk:example:kle\">25.*</Constraint>"
+		+ "<Privilege>urn:dk:example:read</Privilege>"
+		+ "</PrivilegeGroup>"
+		+ "</bpp:PrivilegeList>";
+
+	@Test
+	public void privilegesAreIndexedByScopeAndPrivilege() {
+		Privileges p = Privileges.parse(XML);
+		assertFalse(p.isEmpty());
+		assertTrue(p.hasCVRPrivilege("12345678", "urn:dk:example:read"));
+		assertTrue(p.hasCVRPrivilege("12345678", "urn:dk:example:write"));
+		assertTrue(p.hasPNRPrivilege("0123456789", "urn:dk:example:read"));
+		assertFalse(p.hasPNRPrivilege("0123456789", "urn:dk:example:write"));
+		assertFalse(p.hasCVRPrivilege("87654321", "urn:dk:example:read"));
+		assertTrue(p.hasPrivilege(Privileges.SCOPE_CVR + "12345678", "urn:dk:example:read"));
+
+		assertEquals(new HashSet<String>(Arrays.asList("urn:dk:example:read", "urn:dk:example:write")), p.getPrivileges(Privileges.SCOPE_CVR + "12345678"));
+		assertEquals(new HashSet<String>(Arrays.asList(Privileges.SCOPE_CVR + "12345678", Privileges.SCOPE_PNR + "0123456789")), p.getScopes("urn:dk:example:read"));
+		assertEquals(Collections.singleton(Privileges.SCOPE_CVR + "12345678"), p.getScopes("urn:dk:example:write"));
+		assertTrue(p.getScopes("urn:dk:example:unknown").isEmpty());
+		assertTrue(p.getPrivileges("unknown").isEmpty());
+		assertEquals(2, p.getScopes().size());
+	}
+
+	@Test
+	public void constraintsArePerGroup() {
+		Privileges p = Privileges.parse(XML);
+		List<Map<String, String>> constraints = p.getConstraints(Privileges.SCOPE_PNR + "0123456789", "urn:dk:example:read");
+		assertEquals(1, constraints.size());
+		assertEquals("25.*", constraints.get(0).get("urn:dk:example:kle"));
+
+		constraints = p.getConstraints(Privileges.SCOPE_CVR + "12345678", "urn:dk:example:read");
+		assertEquals(1, constraints.size());
+		assertTrue(constraints.get(0).isEmpty());
+		assertTrue(p.getConstraints(Privileges.SCOPE_CVR + "12345678", "urn:dk:example:unknown").isEmpty());
+	}
+
+	@Test
+	public void attributeValuesAreBase64Decoded() throws Exception {
+		UserAttribute attr = new UserAttribute(OIOSAMLConstants.ATTRIBUTE_PRIVILEGES_INTERMEDIATE, null,
+				Arrays.asList(Base64.encodeBytes(XML.getBytes("UTF-8"), Base64.DONT_BREAK_LINES)), null);
+		Privileges p = Privileges.fromAttribute(attr);
+		assertTrue(p.hasCVRPrivilege("12345678", "urn:dk:example:write"));
+
+		attr = new UserAttribute(OIOSAMLConstants.ATTRIBUTE_PRIVILEGES_INTERMEDIATE, null, Arrays.asList(XML), null);
+		assertTrue(Privileges.fromAttribute(attr).hasCVRPrivilege("12345678", "urn:dk:example:write"));
+	}
+
+	@Test
+	public void missingAttributeHasNoPrivileges() {
+		assertSame(Privileges.NONE, Privileges.fromAttribute(null));
+		assertSame(Privileges.NONE, Privileges.fromAttribute(UserAttribute.create(OIOSAMLConstants.ATTRIBUTE_PRIVILEGES_INTERMEDIATE, null)));
+		assertTrue(Privileges.NONE.isEmpty());
+		assertFalse(Privileges.NONE.hasCVRPrivilege("12345678", "urn:dk:example:read"));
+	}
+
+	@Test
+	public void failOnOtherDocuments() {
+		try {
+			Privileges.parse("<test/>");
+			fail();
+		} catch (IllegalArgumentException e) {}
+		try {
+			Privileges.parse("<PrivilegeList><PrivilegeGroup><Privilege>urn:test</Privilege></PrivilegeGroup></PrivilegeList>");
+			fail();
+		} catch (IllegalArgumentException e) {}
+	}
+}
@@ -4,10 +4,20 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.joda.time.DateTime;
 import org.junit.Before;
@@ -30,8 +40,10 @@ import org.opensaml.xml.util.XMLConstants;
 
 import dk.itst.oiosaml.common.OIOSAMLConstants;
 import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.UserAssertionImpl.XmlRetention;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
 import dk.itst.oiosaml.sp.service.TestHelper;
+import dk.itst.oiosaml.sp.service.util.Constants;
 import dk.itst.oiosaml.sp.util.AttributeUtil;
 
 public class UserAssertionImplTest {
@@ -341,6 +353,24 @@ public class UserAssertionImplTest {
 		assertFalse(new UserAssertionImpl(assertion).isPersistentPseudonymProfileCompliant());
 	}
 	
+	@Test
+	public void testPrivilegesAreParsedOnce() throws Exception {
+		String privileges = "<bpp:PrivilegeList xmlns:bpp=\"http://itst.dk/oiosaml/basic_privilege_profile\">"
+			+ "<PrivilegeGroup Scope=\"urn:dk:gov:saml:cvrNumberIdentifier:12345678\"><Privilege>urn:dk:example:read</Privilege></PrivilegeGroup>"
+			+ "</bpp:PrivilegeList>";
+		attributeStatement.getAttributes().add(createAttribute(OIOSAMLConstants.ATTRIBUTE_PRIVILEGES_INTERMEDIATE, Base64.encodeBytes(privileges.getBytes("UTF-8"), Base64.DONT_BREAK_LINES)));
+
+		UserAssertionImpl ua = new UserAssertionImpl(assertion);
+		Privileges p = ua.getPrivileges();
+		assertTrue(p.hasCVRPrivilege("12345678", "urn:dk:example:read"));
+		assertSame(p, ua.getPrivileges());
+
+		UserAssertionImpl copy = (UserAssertionImpl) deserialize(serialize(ua));
+		assertTrue(copy.getPrivileges().hasCVRPrivilege("12345678", "urn:dk:example:read"));
+
+		assertSame(Privileges.NONE, new UserAssertionImpl(new OIOAssertion(createAssertion())).getPrivileges());
+	}
+
 	@Test
 	public void testGetAssertionId() throws Exception {
 		assertEquals(as.getID(), new UserAssertionImpl(assertion).getAssertionId());
@@ -362,6 +392,157 @@ public class UserAssertionImplTest {
 		assertTrue("input: " + value + ", out: " + a.getValues().get(0), a.getValues().get(0).endsWith(value));
 	}
 	
+	@Test
+	public void testXmlRetention() throws Exception {
+		OIOAssertion oces = createOIOSAMLAssertion();
+		String xml = oces.toXML();
+
+		assertEquals(xml, new UserAssertionImpl(oces).getXML());
+		assertEquals(xml, new UserAssertionImpl(oces, XmlRetention.FULL).getXML());
+		assertEquals(xml, new UserAssertionImpl(oces, XmlRetention.COMPRESSED).getXML());
+		assertNull(new UserAssertionImpl(oces, XmlRetention.NONE).getXML());
+
+		UserAssertionImpl ua = (UserAssertionImpl) deserialize(serialize(new UserAssertionImpl(oces, XmlRetention.COMPRESSED)));
+		assertEquals(xml, ua.getXML());
+		assertEquals(oces.getID(), ua.getAssertionId());
+	}
+
+	@Test
+	public void testXmlRetentionFromConfiguration() {
+		Map<String, String> props = new HashMap<String, String>();
+		assertEquals(XmlRetention.FULL, XmlRetention.getRetention(TestHelper.buildConfiguration(props)));
+		props.put(Constants.PROP_USER_ASSERTION_XML, " compressed");
+		assertEquals(XmlRetention.COMPRESSED, XmlRetention.getRetention(TestHelper.buildConfiguration(props)));
+		props.put(Constants.PROP_USER_ASSERTION_XML, "invalid");
+		try {
+			XmlRetention.getRetention(TestHelper.buildConfiguration(props));
+			fail("Invalid value should fail");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void testXmlRetentionSize() throws Exception {
+		OIOAssertion oces = createOIOSAMLAssertion();
+		int full = serialize(new UserAssertionImpl(oces, XmlRetention.FULL)).length;
+		int compressed = serialize(new UserAssertionImpl(oces, XmlRetention.COMPRESSED)).length;
+		int none = serialize(new UserAssertionImpl(oces, XmlRetention.NONE)).length;
+		System.out.println("Serialized UserAssertionImpl for a signed OCES assertion of " + oces.toXML().length() + " chars: " 
+				+ full + " bytes with full XML, " + compressed + " bytes compressed, " + none + " bytes without XML");
+
+		// the serialized form is deflated, so the full XML is compressed as well
+		assertTrue(none < full);
+		assertTrue(none < compressed);
+	}
+
+	@Test
+	public void testSerializationRoundTrip() throws Exception {
+		OIOAssertion oces = createOIOSAMLAssertion();
+		for (XmlRetention retention : XmlRetention.values()) {
+			UserAssertionImpl ua = new UserAssertionImpl(oces, retention);
+			UserAssertionImpl copy = (UserAssertionImpl) deserialize(serialize(ua));
+
+			assertEquals(ua.getAssertionId(), copy.getAssertionId());
+			assertEquals(ua.getIssuer(), copy.getIssuer());
+			assertEquals(ua.getSubject(), copy.getSubject());
+			assertEquals(ua.getNameIDFormat(), copy.getNameIDFormat());
+			assertEquals(ua.getIssueTime(), copy.getIssueTime());
+			assertEquals(ua.getSessionExpireTime(), copy.getSessionExpireTime());
+			assertEquals(ua.isSigned(), copy.isSigned());
+			assertEquals(ua.getXML(), copy.getXML());
+			assertEquals(ua.getAllAttributes().size(), copy.getAllAttributes().size());
+			for (UserAttribute attr : ua.getAllAttributes()) {
+				UserAttribute c = copy.getAttribute(attr.getName());
+				assertNotNull(c);
+				assertEquals(attr.getFriendlyName(), c.getFriendlyName());
+				assertEquals(attr.getFormat(), c.getFormat());
+				assertEquals(attr.getValues(), c.getValues());
+			}
+			assertTrue(copy.isOCESProfileCompliant());
+			assertEquals(ua.getUserCertificate(), copy.getUserCertificate());
+		}
+	}
+
+	@Test
+	public void testUserAttributeRoundTrip() throws Exception {
+		UserAttribute attr = new UserAttribute(OIOSAMLConstants.ATTRIBUTE_MAIL_NAME, null, Arrays.asList("a@example.com", "a@example.com", null), Attribute.BASIC);
+		UserAttribute copy = (UserAttribute) deserialize(serialize(attr));
+		assertEquals(attr.getName(), copy.getName());
+		assertNull(copy.getFriendlyName());
+		assertEquals(attr.getFormat(), copy.getFormat());
+		assertEquals(attr.getValues(), copy.getValues());
+
+		copy = (UserAttribute) deserialize(serialize(UserAttribute.create("name", null)));
+		assertEquals("name", copy.getName());
+		assertNull(copy.getValue());
+	}
+
+	@Test
+	public void testSerializedSizeComparedToFields() throws Exception {
+		OIOAssertion oces = createOIOSAMLAssertion();
+		UserAssertionImpl ua = new UserAssertionImpl(oces, XmlRetention.NONE);
+
+		// the same data written using default serialization of plain fields, as the assertion was stored before
+		HashMap<String, Object[]> attributes = new HashMap<String, Object[]>();
+		for (UserAttribute attr : ua.getAllAttributes()) {
+			attributes.put(attr.getName(), new Object[] { attr.getName(), attr.getFriendlyName(), new ArrayList<String>(attr.getValues()), attr.getFormat() });
+		}
+		Object[] fields = new Object[] { attributes, ua.getIssueTime(), ua.getIssuer(), ua.getSessionExpireTime(), ua.getNameIDFormat(), ua.getSubject(), ua.isSigned(), ua.getAssertionId() };
+
+		int iterations = 2000;
+		long start = System.nanoTime();
+		int compact = 0;
+		for (int i = 0; i < iterations; i++) {
+			compact = serialize(ua).length;
+		}
+		long compactTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		int plain = 0;
+		for (int i = 0; i < iterations; i++) {
+			plain = serialize(fields).length;
+		}
+		long plainTime = System.nanoTime() - start;
+		System.out.println("Serialized UserAssertionImpl without XML: " + compact + " bytes in " + (compactTime / iterations / 1000) + " us, "
+				+ "default serialization of the fields: " + plain + " bytes in " + (plainTime / iterations / 1000) + " us");
+
+		assertTrue(compact < plain);
+	}
+
+	/**
+	 * Create a signed assertion with the attributes sent by the OIOSAML IdP for an employee certificate.
+	 */
+	private OIOAssertion createOIOSAMLAssertion() throws Exception {
+		Credential cred = TestHelper.getCredential();
+		Assertion a = TestHelper.buildAssertion("http://sp.example.com/saml/SAMLAssertionConsumer", "http://sp.example.com");
+		a.getSubject().getNameID().setFormat(NameIDFormat.X509SUBJECT.getFormat());
+		a.getSubject().getNameID().setValue("C=DK,O=Example A/S // CVR:12345678,CN=Joe Test,Serial=CVR:12345678-RID:1234567890123");
+		AttributeStatement st = a.getAttributeStatements().get(0);
+		st.getAttributes().add(createAttribute(OIOSAMLConstants.ATTRIBUTE_SPECVER_NAME, "DK-SAML-2.0"));
+		st.getAttributes().add(AttributeUtil.createCommonName("Joe Test"));
+		st.getAttributes().add(AttributeUtil.createSurname("Test"));
+		st.getAttributes().add(AttributeUtil.createUid("CVR:12345678-RID:1234567890123"));
+		st.getAttributes().add(AttributeUtil.createMail("joe.test@example.com"));
+		st.getAttributes().add(AttributeUtil.createCVRNumberIdentifier("12345678"));
+		st.getAttributes().add(AttributeUtil.createRidNumberIdentifier("1234567890123"));
+		st.getAttributes().add(AttributeUtil.createSerialNumber("4C0E7A5B"));
+		st.getAttributes().add(createAttribute(OIOSAMLConstants.ATTRIBUTE_YOUTH_CERTIFICATE_NAME, "false"));
+		st.getAttributes().add(createAttribute(OIOSAMLConstants.ATTRIBUTE_ORGANISATION_NAME_NAME, "Example A/S"));
+		st.getAttributes().add(AttributeUtil.createUserCertificate(Base64.encodeBytes(TestHelper.getCertificate(cred).getEncoded())));
+		TestHelper.signObject(a, cred);
+		return new OIOAssertion(a);
+	}
+
+	private static byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bos);
+		out.writeObject(o);
+		out.close();
+		return bos.toByteArray();
+	}
+
+	private static Object deserialize(byte[] data) throws Exception {
+		return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+	}
+
 	private Assertion createAssertion() {
 		return SAMLUtil.buildXMLObject(Assertion.class);
 	}
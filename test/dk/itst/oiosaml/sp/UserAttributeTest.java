@@ -0,0 +1,99 @@
+package dk.itst.oiosaml.sp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.opensaml.saml2.core.Attribute;
+
+import dk.itst.oiosaml.common.OIOSAMLConstants;
+
+public class UserAttributeTest {
+
+	@Test
+	public void attributeCanBeSerializedOnItsOwn() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		String longValue = sb.toString();
+		List<String> values = Arrays.asList("custom value", "custom value", null, longValue, longValue, "true");
+		UserAttribute attr = new UserAttribute("urn:example:custom", "Custom", values, "urn:example:format");
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bos);
+		attr.writeExternal(out);
+		out.close();
+
+		UserAttribute copy = new UserAttribute();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		copy.readExternal(in);
+		assertEquals(-1, in.read());
+
+		assertEquals("urn:example:custom", copy.getName());
+		assertEquals("Custom", copy.getFriendlyName());
+		assertEquals("urn:example:format", copy.getFormat());
+		assertEquals(values, copy.getValues());
+	}
+
+	@Test
+	public void attributesInTheSameStreamDoNotShareStrings() throws Exception {
+		UserAttribute first = new UserAttribute("urn:example:custom", null, Arrays.asList("shared value"), Attribute.BASIC);
+		UserAttribute second = new UserAttribute("urn:example:custom", null, Arrays.asList("shared value"), Attribute.BASIC);
+		List<UserAttribute> list = new ArrayList<UserAttribute>();
+		list.add(first);
+		list.add(second);
+
+		@SuppressWarnings("unchecked")
+		List<UserAttribute> copy = (List<UserAttribute>) deserialize(serialize(list));
+		assertEquals(2, copy.size());
+		for (UserAttribute attr : copy) {
+			assertEquals("urn:example:custom", attr.getName());
+			assertEquals(Attribute.BASIC, attr.getFormat());
+			assertEquals(Arrays.asList("shared value"), attr.getValues());
+		}
+	}
+
+	@Test
+	public void wellKnownNamesAreWrittenCompactly() throws Exception {
+		UserAttribute known = new UserAttribute(OIOSAMLConstants.ATTRIBUTE_SPECVER_NAME, null, Arrays.asList("DK-SAML-2.0"), Attribute.BASIC);
+		UserAttribute custom = new UserAttribute("urn:example:attribute:specver", null, Arrays.asList("EX-SAML-2.0"), "urn:example:attrname-format:basic");
+		assertTrue(serialize(known).length + OIOSAMLConstants.ATTRIBUTE_SPECVER_NAME.length() < serialize(custom).length);
+
+		UserAttribute copy = (UserAttribute) deserialize(serialize(known));
+		assertEquals(OIOSAMLConstants.ATTRIBUTE_SPECVER_NAME, copy.getName());
+		assertEquals("DK-SAML-2.0", copy.getValue());
+		assertEquals(Attribute.BASIC, copy.getFormat());
+	}
+
+	@Test
+	public void missingValuesAreKept() throws Exception {
+		UserAttribute copy = (UserAttribute) deserialize(serialize(UserAttribute.create("name", null)));
+		assertEquals("name", copy.getName());
+		assertNull(copy.getFormat());
+		assertNull(copy.getValue());
+		assertTrue(copy.getValues().isEmpty());
+	}
+
+	private static byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bos);
+		out.writeObject(o);
+		out.close();
+		return bos.toByteArray();
+	}
+
+	private static Object deserialize(byte[] data) throws Exception {
+		return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+	}
+}
@@ -0,0 +1,113 @@
+package dk.itst.oiosaml.sp.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.XMLObject;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.metadata.IdpMetadata.Metadata;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class MetadataSnapshotTest extends AbstractTests {
+
+	private File dir;
+	private File source;
+	private MetadataSnapshot snapshot;
+	private List<XMLObject> descriptors;
+
+	@Before
+	public void setup() throws Exception {
+		dir = new File(File.createTempFile("test", "test").getAbsolutePath() + ".snapshot");
+		dir.mkdir();
+
+		EntityDescriptor ed = TestHelper.buildEntityDescriptor(TestHelper.getCredential());
+		source = new File(dir, "IdPMetadata.xml");
+		FileUtils.writeStringToFile(source, SAMLUtil.getSAMLObjectAsPrettyPrintXML(ed));
+
+		descriptors = new ArrayList<XMLObject>();
+		descriptors.add(SAMLUtil.unmarshallElementFromFile(source.getAbsolutePath()));
+		snapshot = new MetadataSnapshot(new File(dir, MetadataSnapshot.FILE_NAME));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.forceDelete(dir);
+	}
+
+	@Test
+	public void loadReturnsNullWhenMissing() {
+		assertNull(snapshot.load(hash(), SAMLConstants.SAML20P_NS));
+	}
+
+	@Test
+	public void storedSnapshotCanBeLoaded() throws Exception {
+		snapshot.store(hash(), SAMLConstants.SAML20P_NS, descriptors);
+		assertTrue(snapshot.getFile().exists());
+
+		List<XMLObject> loaded = snapshot.load(hash(), SAMLConstants.SAML20P_NS);
+		assertNotNull(loaded);
+		assertEquals(1, loaded.size());
+
+		Metadata expected = new IdpMetadata(SAMLConstants.SAML20P_NS, (EntityDescriptor) descriptors.get(0)).getFirstMetadata();
+		Metadata md = new IdpMetadata(SAMLConstants.SAML20P_NS, (EntityDescriptor) loaded.get(0)).getFirstMetadata();
+
+		assertEquals(expected.getEntityID(), md.getEntityID());
+		assertEquals(expected.getCertificates(), md.getCertificates());
+		assertEquals(expected.getSingleSignonServiceLocation(SAMLConstants.SAML2_POST_BINDING_URI), md.getSingleSignonServiceLocation(SAMLConstants.SAML2_POST_BINDING_URI));
+		assertEquals(expected.getSingleSignonServices().size(), md.getSingleSignonServices().size());
+		assertEquals(expected.getSingleLogoutServiceLocation(), md.getSingleLogoutServiceLocation());
+		assertEquals(expected.getSingleLogoutServiceResponseLocation(), md.getSingleLogoutServiceResponseLocation());
+		assertEquals(expected.getArtifactResolutionServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI), md.getArtifactResolutionServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI));
+		assertEquals(expected.getAttributeQueryServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI), md.getAttributeQueryServiceLocation(SAMLConstants.SAML2_SOAP11_BINDING_URI));
+	}
+
+	@Test
+	public void snapshotIsIgnoredWhenSourceChanges() throws Exception {
+		byte[] hash = hash();
+		snapshot.store(hash, SAMLConstants.SAML20P_NS, descriptors);
+
+		FileUtils.writeStringToFile(source, FileUtils.readFileToString(source) + "\n");
+		assertFalse(Arrays.equals(MetadataSnapshot.hash(SAMLConstants.SAML20P_NS, Collections.singletonList(source)), hash));
+		assertNull(snapshot.load(hash(), SAMLConstants.SAML20P_NS));
+	}
+
+	@Test
+	public void snapshotIsIgnoredForOtherProtocol() throws Exception {
+		snapshot.store(hash(), SAMLConstants.SAML20P_NS, descriptors);
+		assertNull(snapshot.load(MetadataSnapshot.hash("urn:other", Collections.singletonList(source)), "urn:other"));
+	}
+
+	@Test
+	public void truncatedSnapshotIsIgnored() throws Exception {
+		snapshot.store(hash(), SAMLConstants.SAML20P_NS, descriptors);
+		byte[] data = FileUtils.readFileToByteArray(snapshot.getFile());
+
+		FileOutputStream os = new FileOutputStream(snapshot.getFile());
+		os.write(data, 0, data.length - 10);
+		os.close();
+
+		assertNull(snapshot.load(hash(), SAMLConstants.SAML20P_NS));
+	}
+
+	private byte[] hash() {
+		return MetadataSnapshot.hash(SAMLConstants.SAML20P_NS, Collections.singletonList(source));
+	}
+}
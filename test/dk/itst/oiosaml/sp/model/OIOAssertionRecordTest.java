@@ -0,0 +1,87 @@
+package dk.itst.oiosaml.sp.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Assertion;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+
+public class OIOAssertionRecordTest extends AbstractTests {
+	private OIOAssertion assertion;
+
+	@Before
+	public void setUp() {
+		assertion = new OIOAssertion((Assertion) SAMLUtil.unmarshallElement(getClass().getResourceAsStream("assertion.xml")));
+	}
+
+	@Test
+	public void recordHasSameValues() {
+		OIOAssertionRecord record = new OIOAssertionRecord(assertion, false);
+		assertEquals(assertion.getID(), record.getID());
+		assertEquals(assertion.getIssuer(), record.getIssuer());
+		assertEquals(assertion.getSubjectNameIDValue(), record.getSubjectNameIDValue());
+		assertEquals(assertion.getSubjectNameIDFormat(), record.getSubjectNameIDFormat());
+		assertEquals(assertion.getSessionIndex(), record.getSessionIndex());
+		assertEquals(assertion.getAuthnContextClassRef(), record.getAuthnContextClassRef());
+		assertEquals(assertion.getAssuranceLevel(), record.getAssuranceLevel());
+		assertEquals(assertion.hasSessionExpired(), record.hasSessionExpired());
+		assertFalse(record.isXmlRetained());
+	}
+
+	@Test
+	public void retainedXmlIsRestored() {
+		OIOAssertionRecord record = new OIOAssertionRecord(assertion, true);
+		assertTrue(record.isXmlRetained());
+
+		Assertion restored = record.getAssertion();
+		assertNotSame(assertion.getAssertion(), restored);
+		assertEquals(assertion.toXML(), record.toXML());
+		assertEquals(assertion.getAudience(), record.getAudience());
+		assertEquals(assertion.getConfirmationTime(), record.getConfirmationTime());
+		assertEquals(assertion.getAssertion().getAttributeStatements().get(0).getAttributes().size(), restored.getAttributeStatements().get(0).getAttributes().size());
+	}
+
+	@Test
+	public void assertionIsBuiltFromRecordWithoutXml() {
+		OIOAssertion restored = new OIOAssertion(new OIOAssertionRecord(assertion, false).getAssertion());
+		assertEquals(assertion.getID(), restored.getID());
+		assertEquals(assertion.getIssuer(), restored.getIssuer());
+		assertEquals(assertion.getSubjectNameIDValue(), restored.getSubjectNameIDValue());
+		assertEquals(assertion.getSubjectNameIDFormat(), restored.getSubjectNameIDFormat());
+		assertEquals(assertion.getSessionIndex(), restored.getSessionIndex());
+		assertEquals(assertion.getAuthnContextClassRef(), restored.getAuthnContextClassRef());
+		assertEquals(assertion.getAssuranceLevel(), restored.getAssuranceLevel());
+	}
+
+	@Test
+	public void assertionIsOnlyRecreatedOnce() {
+		OIOAssertionRecord record = new OIOAssertionRecord(assertion, true);
+		assertSame(record.getAssertion(), record.getAssertion());
+
+		record = new OIOAssertionRecord(assertion, false);
+		assertSame(record.getAssertion(), record.getAssertion());
+	}
+
+	@Test
+	public void sessionExpiry() {
+		assertion.getAssertion().getAuthnStatements().get(0).setSessionNotOnOrAfter(new DateTime().minusMinutes(1));
+		assertTrue(new OIOAssertionRecord(assertion, false).hasSessionExpired());
+
+		assertion.getAssertion().getAuthnStatements().get(0).setSessionNotOnOrAfter(new DateTime().plusMinutes(1));
+		assertFalse(new OIOAssertionRecord(assertion, false).hasSessionExpired());
+	}
+
+	@Test
+	public void recordIsNotCopied() {
+		OIOAssertionRecord record = new OIOAssertionRecord(assertion, false);
+		assertSame(record, OIOAssertionRecord.valueOf(record, true));
+	}
+}
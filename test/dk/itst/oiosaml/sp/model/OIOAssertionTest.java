@@ -3,7 +3,9 @@ package dk.itst.oiosaml.sp.model;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -402,6 +404,37 @@ public class OIOAssertionTest extends AbstractTests {
 	}
 
 
+	@Test
+	public void viewContainsAssertionValues() {
+		AssertionView view = assertion.getView();
+		assertEquals(assertion.getID(), view.getID());
+		assertEquals(assertion.getIssuer(), view.getIssuer());
+		assertEquals(assertion.getSubjectNameIDValue(), view.getSubjectNameIDValue());
+		assertEquals(assertion.getSessionIndex(), view.getSessionIndex());
+		assertEquals(assertion.getAssuranceLevel(), view.getAssuranceLevel());
+		assertEquals(assertion.getConfirmationTime(), view.getConfirmationTime());
+		assertEquals(assertion.getAudience(), view.getAudience());
+		assertTrue(view.hasBearerRecipient(assertionConsumerURL));
+		assertFalse(view.hasBearerRecipient(null));
+		assertEquals(1, view.getAuthnStatementCount());
+		assertFalse(view.isSigned());
+	}
+
+	@Test
+	public void precomputedViewIsNotChanged() {
+		assertNotSame(assertion.getView(), assertion.getView());
+
+		AssertionView view = assertion.precomputeView();
+		String sessionIndex = assertion.getSessionIndex();
+		assertion.getAssertion().getAuthnStatements().get(0).setSessionIndex("other");
+
+		assertSame(view, assertion.getView());
+		assertSame(view, assertion.precomputeView());
+		assertEquals(sessionIndex, assertion.getSessionIndex());
+		assertEquals("other", new OIOAssertion(assertion.getAssertion()).getSessionIndex());
+	}
+
+
 	private Assertion getProxiedAssertion(InvocationHandler handler) {
 		return (Assertion)Proxy.newProxyInstance(
 				this.getClass().getClassLoader(), 
@@ -17,6 +17,7 @@ import org.opensaml.xml.util.XMLHelper;
 
 import dk.itst.oiosaml.sp.model.OIOLogoutRequest;
 import dk.itst.oiosaml.sp.model.OIOLogoutResponse;
+import dk.itst.oiosaml.sp.service.session.RequestIdSigner;
 import dk.itst.oiosaml.sp.service.util.Constants;
 import dk.itst.oiosaml.sp.service.util.Utils;
 
@@ -74,6 +75,28 @@ public class LogoutHTTPResponseHandlerTest extends AbstractServiceTests {
 		
 	}
 	
+	@Test(expected=IllegalArgumentException.class)
+	public void signedRequestIdIsRejected() throws Exception {
+		configuration = TestHelper.buildConfiguration(new HashMap<String, String>() {{
+			put(Constants.PROP_HOME, "url");
+			put(Constants.PROP_SIGNED_REQUEST_IDS, "true");
+		}});
+		ctx = new RequestContext(req, res, idpMetadata, spMetadata, credential, configuration, handler, bindingHandlerFactory);
+		try {
+			// logout requests are always registered in the session handler, so an unused AuthnRequest id must not be accepted
+			String id = RequestIdSigner.getInstance(configuration).create(idpEntityId);
+			OIOLogoutRequest lr = OIOLogoutRequest.buildLogoutRequest(session, "http://slo", idpEntityId, handler, id);
+
+			OIOLogoutResponse resp = OIOLogoutResponse.fromRequest(lr, StatusCode.SUCCESS_URI, "consent", idpEntityId, spMetadata.getSingleLogoutServiceHTTPRedirectResponseLocation());
+			String responseUrl = resp.getRedirectURL(credential, "relayState");
+			setExpectations(req, responseUrl, spMetadata.getSingleLogoutServiceHTTPRedirectResponseLocation());
+
+			lh.handleGet(ctx);
+		} finally {
+			RequestIdSigner.close();
+		}
+	}
+
 	@Test
 	public void testReceiveResponseCluster() throws Exception {
 		OIOLogoutRequest lr = OIOLogoutRequest.buildLogoutRequest(session, "http://cluster", idpEntityId, handler);
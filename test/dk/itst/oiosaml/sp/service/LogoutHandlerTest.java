@@ -1,6 +1,7 @@
 package dk.itst.oiosaml.sp.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.HashMap;
@@ -12,6 +13,7 @@ import org.opensaml.saml2.core.LogoutRequest;
 import org.w3c.dom.Document;
 
 import dk.itst.oiosaml.sp.service.LogoutHandler;
+import dk.itst.oiosaml.sp.service.session.RequestIdSigner;
 import dk.itst.oiosaml.sp.service.util.Constants;
 import dk.itst.oiosaml.sp.service.util.Utils;
 
@@ -52,4 +54,29 @@ public class LogoutHandlerTest extends AbstractServiceTests {
 		
 		assertEquals(idpMetadata.getFirstMetadata().getEntityID(), handler.removeEntityIdForRequest(lr.getID()));
 	}
+
+	@Test
+	public void logoutRequestIsRegisteredWithSignedIds() throws Exception {
+		LogoutHandler servlet = new LogoutHandler();
+		configuration = TestHelper.buildConfiguration(new HashMap<String, String>() {{
+			put(Constants.PROP_HOME, "url");
+			put(Constants.PROP_SIGNED_REQUEST_IDS, "true");
+		}});
+		RequestContext ctx = new RequestContext(req, res, idpMetadata, spMetadata, credential, configuration, handler, bindingHandlerFactory);
+
+		setHandler();
+		final StringValueHolder val = new StringValueHolder();
+		context.checking(new Expectations() {{
+			one(session).removeAttribute(Constants.SESSION_USER_ASSERTION);
+			one(res).sendRedirect(with(val));
+		}});
+		servlet.handleGet(ctx);
+
+		Document doc = TestHelper.parseBase64Encoded(Utils.getParameter("SAMLRequest", val.getValue()), true);
+		LogoutRequest lr = (LogoutRequest) org.opensaml.xml.Configuration.getUnmarshallerFactory().getUnmarshaller(doc.getDocumentElement()).unmarshall(doc.getDocumentElement());
+
+		// the response must be single use on all nodes, so the id is kept in the shared session handler
+		assertFalse(RequestIdSigner.isSigned(lr.getID()));
+		assertEquals(idpMetadata.getFirstMetadata().getEntityID(), handler.removeEntityIdForRequest(lr.getID()));
+	}
 }
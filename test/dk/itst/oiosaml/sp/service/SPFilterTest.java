@@ -44,6 +44,7 @@ import dk.itst.oiosaml.sp.develmode.DevelMode;
 import dk.itst.oiosaml.sp.model.OIOAssertion;
 import dk.itst.oiosaml.sp.service.session.SingleVMSessionHandlerFactory;
 import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.service.util.PathRules;
 
 public class SPFilterTest extends AbstractServiceTests {
 
@@ -147,6 +148,44 @@ public class SPFilterTest extends AbstractServiceTests {
 		filter.doFilter(req, res, chain);
 		assertNull(UserAssertionHolder.get());
 	}
+
+	@Test
+	public void doFilterWhenPathIsBypassed() throws Exception {
+		filter.setPathRules(new PathRules(new String[] { "/servlet/.*" }, null, null));
+		context.checking(new Expectations() {{
+			one(session).getCreationTime(); will(returnValue(0l));
+			one(session).getAttribute(Constants.SESSION_USER_ASSERTION); will(returnValue(null));
+			one(chain).doFilter(req, res);
+		}});
+
+		filter.doFilter(req, res, chain);
+	}
+
+	@Test
+	public void redirectWithoutSessionWhenLazy() throws Exception {
+		filter.setLazySessions(true);
+		final RequestDispatcher dispatcher = context.mock(RequestDispatcher.class);
+		// the shared request mock allows getSession(), so use a request which does not
+		final HttpServletRequest request = context.mock(HttpServletRequest.class, "lazyRequest");
+		context.checking(new Expectations() {{
+			allowing(request).getRequestURI(); will(returnValue("http://test"));
+			allowing(request).getPathInfo(); will(returnValue("/test"));
+			allowing(request).getRequestURL(); will(returnValue(new StringBuffer("http://test/saml/service")));
+			allowing(request).getQueryString();
+			allowing(request).getServletPath(); will(returnValue("/servlet"));
+			allowing(request).getMethod(); will(returnValue("GET"));
+			allowing(request).getRemoteAddr(); will(returnValue("127.0.0.1"));
+			allowing(request).getParameterMap();
+			allowing(request).getSession(false); will(returnValue(null));
+			never(request).getSession();
+			never(request).getSession(true);
+			one(request).getRequestDispatcher("/saml/login"); will(returnValue(dispatcher));
+			one(dispatcher).forward(with(any(HttpServletRequest.class)), with(equal(res)));
+		}});
+
+		filter.doFilter(request, res, chain);
+		assertNull(UserAssertionHolder.get());
+	}
 	
 	@Test
 	public void doFilterWhenAuthenticated() throws Exception {
@@ -4,7 +4,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
 
 import org.jmock.Expectations;
 import org.junit.After;
@@ -30,7 +34,8 @@ public class LoggedInHandlerTest extends AbstractServiceTests{
 		handler.setAssertion(session.getId(), new OIOAssertion(assertion));
 		
 		OIOAssertion assertion = handler.getAssertion(session.getId());
-		assertEquals(this.assertion, assertion.getAssertion());
+		assertEquals(this.assertion.getID(), assertion.getID());
+		assertEquals(new OIOAssertion(this.assertion).toXML(), assertion.toXML());
 		
 		String idx = new OIOAssertion(this.assertion).getSessionIndex();
 		
@@ -57,6 +62,23 @@ public class LoggedInHandlerTest extends AbstractServiceTests{
 		assertTrue(handler.isLoggedIn(session.getId()));
 	}
 
+	@Test
+	public void testGetSessionState() {
+		assertSame(SessionState.LOGGED_OUT, handler.getSessionState(session.getId()));
+		assertFalse(handler.getSessionState(session.getId()).isLoggedIn());
+
+		setHandler();
+		SessionState state = handler.getSessionState(session.getId());
+		OIOAssertion expected = new OIOAssertion(assertion);
+		assertTrue(state.isLoggedIn());
+		assertEquals(expected.getID(), state.getAssertion().getID());
+		assertEquals(expected.getIssuer(), state.getIssuer());
+		assertEquals(expected.getSessionIndex(), state.getSessionIndex());
+		assertEquals(expected.getAssuranceLevel(), state.getAssuranceLevel());
+		assertNull(expected.getSessionNotOnOrAfter());
+		assertEquals(Long.MAX_VALUE, state.getSessionNotOnOrAfter());
+	}
+
 	@Test
 	public void testLogOut() {
 		// session does not exist, no errors
@@ -104,6 +126,85 @@ public class LoggedInHandlerTest extends AbstractServiceTests{
 		Thread.sleep(2000);
 		handler.removeEntityIdForRequest("1");
 	}
-	
 
+	@Test
+	public void cleanupKeepsAccessedSessions() throws Exception {
+		setHandler();
+		Thread.sleep(1100);
+		assertTrue(handler.isLoggedIn(session.getId()));
+
+		handler.cleanup(1000, 1000);
+		assertTrue(handler.isLoggedIn(session.getId()));
+
+		Thread.sleep(1100);
+		handler.cleanup(1000, 1000);
+		assertFalse(handler.isLoggedIn(session.getId()));
+	}
+
+	@Test
+	public void cleanupIgnoresRemovedEntries() throws Exception {
+		handler.registerRequest("1", "id");
+		handler.removeEntityIdForRequest("1");
+		handler.registerRequest("1", "id2");
+		Thread.sleep(200);
+
+		handler.cleanup(10000, 10000);
+		assertEquals("id2", handler.removeEntityIdForRequest("1"));
+	}
+
+	@Test
+	public void memoryUsageIsTracked() {
+		SingleVMSessionHandler handler = new SingleVMSessionHandler();
+		assertEquals(0, handler.getMemoryUsage());
+
+		handler.setAssertion("session", new OIOAssertion(assertion));
+		handler.registerRequest("1", "id");
+		String state = handler.saveRequest(new Request("/uri", "a=b", "GET", new HashMap<String, String[]>()));
+		assertTrue(handler.getMemoryUsage() > 0);
+
+		handler.logOut("session");
+		handler.removeEntityIdForRequest("1");
+		handler.getRequest(state);
+		assertEquals(0, handler.getMemoryUsage());
+	}
+
+	@Test
+	public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+		SingleVMSessionHandler handler = new SingleVMSessionHandler();
+		handler.setAssertion("session", new OIOAssertion(assertion));
+
+		Thread.sleep(TimeOutWrapper.ACCESS_GRANULARITY + 100);
+		for (int i = 0; i < 10; i++) {
+			handler.registerRequest("old" + i, "id");
+		}
+		Thread.sleep(TimeOutWrapper.ACCESS_GRANULARITY + 100);
+		// the session is used, so the request ids are now older
+		assertTrue(handler.isLoggedIn("session"));
+		long limit = handler.getMemoryUsage();
+		handler.setMaxMemory(limit);
+
+		for (int i = 0; i < 10; i++) {
+			handler.registerRequest("new" + i, "id");
+		}
+		assertTrue(handler.getMemoryUsage() <= limit);
+		assertTrue(handler.getEvictionCount() >= 10);
+		assertTrue(handler.isLoggedIn("session"));
+		assertEquals("id", handler.removeEntityIdForRequest("new9"));
+		try {
+			handler.removeEntityIdForRequest("old0");
+			fail("Request id should have been evicted");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void idleSessionsAreEvicted() {
+		SingleVMSessionHandler handler = new SingleVMSessionHandler();
+		handler.setAssertion("session", new OIOAssertion(assertion));
+		handler.setMaxMemory(1);
+
+		assertFalse(handler.isLoggedIn("session"));
+		assertNull(handler.getRelatedSessionId(new OIOAssertion(assertion).getSessionIndex()));
+		assertEquals(1, handler.getEvictionCount());
+		assertEquals(0, handler.getMemoryUsage());
+	}
 }
@@ -0,0 +1,39 @@
+package dk.itst.oiosaml.sp.service.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ReplayCacheTest {
+
+	@Test
+	public void idsExpireAtValidity() {
+		ReplayCache cache = new ReplayCache(10, 10);
+		long now = System.currentTimeMillis();
+		assertTrue(cache.add("1", now + 60000));
+		assertTrue(cache.add("2", now + 60000));
+		assertFalse(cache.add("2", now + 60000));
+		assertEquals(2, cache.size());
+
+		assertEquals(0, cache.expire(now + 59000));
+		assertTrue(cache.contains("1"));
+
+		assertEquals(2, cache.expire(now + 60010));
+		assertEquals(0, cache.size());
+		assertFalse(cache.contains("1"));
+		assertTrue(cache.add("1", now + 120000));
+	}
+
+	@Test
+	public void idsStillInFlightAreNotEvicted() {
+		ReplayCache cache = new ReplayCache(1, 1000);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 100; i++) {
+			assertTrue(cache.add("id" + i, now + 60000));
+		}
+		assertEquals(100, cache.size());
+		assertFalse(cache.add("id0", now + 60000));
+	}
+}
@@ -0,0 +1,187 @@
+package dk.itst.oiosaml.sp.service.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class RequestCookieTest extends AbstractTests {
+	private static final long MAX_AGE = 10 * 60 * 1000L;
+
+	private RequestCookie cookie;
+	private HttpServletRequest req;
+	private HttpServletResponse res;
+	private List<String> headers;
+	private Cookie[] cookies;
+
+	@Before
+	public void setUp() throws Exception {
+		cookie = new RequestCookie(TestHelper.getCredential(), MAX_AGE);
+
+		headers = new ArrayList<String>();
+		req = context.mock(HttpServletRequest.class);
+		res = context.mock(HttpServletResponse.class);
+		context.checking(new Expectations() {{
+			allowing(req).getContextPath(); will(returnValue("/app"));
+			allowing(req).isSecure(); will(returnValue(true));
+			allowing(req).getCookies(); will(new CustomAction("get cookies") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					return cookies;
+				}
+			});
+			allowing(res).addHeader(with(equal("Set-Cookie")), with(any(String.class))); will(new CustomAction("add header") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					headers.add((String) invocation.getParameter(1));
+					return null;
+				}
+			});
+		}});
+	}
+
+	@Test
+	public void requestCanBeRead() {
+		Map<String, String[]> params = new HashMap<String, String[]>();
+		params.put("name", new String[] { "value" });
+		String state = cookie.save(req, res, new Request("/app/page", "a=b", "POST", params));
+		assertTrue(RequestCookie.isCookieState(state));
+		assertTrue(state.length() <= 72);
+		assertEquals(1, headers.size());
+		String header = headers.get(0);
+		assertTrue(header, header.startsWith("OIOSAML_REQUEST" + state + "="));
+		assertTrue(header, header.endsWith("; Path=/app; HttpOnly; Secure; SameSite=None; Max-Age=600"));
+		assertFalse("Cookie must be encrypted", header.contains("/app/page"));
+
+		cookies = new Cookie[] { new Cookie("other", "value"), toCookie(header) };
+		Request r = cookie.read(req, res, state);
+		assertEquals("/app/page", r.getRequestURI());
+		assertEquals("a=b", r.getQueryString());
+		assertEquals("POST", r.getMethod());
+		assertEquals("value", r.getParameters().get("name")[0]);
+
+		// the cookie is removed from the browser
+		assertEquals(2, headers.size());
+		assertTrue(headers.get(1).contains("Max-Age=0"));
+	}
+
+	@Test
+	public void largeRequestIsNotSaved() {
+		Map<String, String[]> params = new HashMap<String, String[]>();
+		Random random = new Random(1);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			sb.append((char) ('a' + random.nextInt(26)));
+		}
+		params.put("data", new String[] { sb.toString() });
+		assertNull(cookie.save(req, res, new Request("/app/page", null, "POST", params)));
+		assertTrue(headers.isEmpty());
+	}
+
+	@Test
+	public void cookieCannotBeUsedForOtherState() {
+		String state = cookie.save(req, res, new Request("/app/page", null, "GET", null));
+		String other = cookie.save(req, res, new Request("/app/other", null, "GET", null));
+
+		cookies = new Cookie[] { new Cookie("OIOSAML_REQUEST" + other, toCookie(headers.get(0)).getValue()) };
+		try {
+			cookie.read(req, res, other);
+			fail("Cookie for " + state + " accepted for " + other);
+		} catch (IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void oldestCookiesAreRemoved() throws Exception {
+		List<Cookie> browser = new ArrayList<Cookie>();
+		List<String> states = new ArrayList<String>();
+		for (int i = 0; i < RequestCookie.MAX_COOKIES + 2; i++) {
+			cookies = browser.toArray(new Cookie[browser.size()]);
+			headers.clear();
+			states.add(cookie.save(req, res, new Request("/app/page" + i, null, "GET", null)));
+			for (String header : headers) {
+				Cookie c = toCookie(header);
+				for (int j = browser.size() - 1; j >= 0; j--) {
+					if (browser.get(j).getName().equals(c.getName())) browser.remove(j);
+				}
+				if (!header.contains("Max-Age=0")) browser.add(c);
+			}
+			assertTrue(browser.size() <= RequestCookie.MAX_COOKIES);
+			Thread.sleep(5);
+		}
+		assertEquals(RequestCookie.MAX_COOKIES, browser.size());
+
+		cookies = browser.toArray(new Cookie[browser.size()]);
+		for (int i = 0; i < states.size(); i++) {
+			try {
+				assertEquals("/app/page" + i, cookie.read(req, res, states.get(i)).getRequestURI());
+				assertTrue(states.get(i), i >= states.size() - RequestCookie.MAX_COOKIES);
+			} catch (IllegalArgumentException e) {
+				assertTrue(states.get(i), i < states.size() - RequestCookie.MAX_COOKIES);
+			}
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void expiredCookieIsRejected() {
+		String state = "_rexpired";
+		cookies = new Cookie[] { new Cookie("OIOSAML_REQUEST" + state, cookie.encode(state, new Request("/app/page", null, "GET", null), System.currentTimeMillis() - MAX_AGE - 1)) };
+		cookie.read(req, res, state);
+	}
+
+	@Test
+	public void handlerReturnsNoRequestForRemovedCookie() {
+		SessionHandler handler = CookieSessionHandler.wrap(context.mock(SessionHandler.class), null, cookie, req, res);
+		String state = handler.saveRequest(new Request("/app/page", null, "GET", null));
+
+		// the cookie has been removed by the browser, so the user is sent to the home page instead
+		cookies = new Cookie[0];
+		assertNull(handler.getRequest(state));
+	}
+
+	@Test
+	public void largeRequestIsSavedInSessionHandler() {
+		final SessionHandler delegate = context.mock(SessionHandler.class);
+		final Map<String, String[]> params = new HashMap<String, String[]>();
+		Random random = new Random(1);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			sb.append((char) ('a' + random.nextInt(26)));
+		}
+		params.put("data", new String[] { sb.toString() });
+		final Request large = new Request("/app/page", null, "POST", params);
+		context.checking(new Expectations() {{
+			one(delegate).saveRequest(large); will(returnValue("_123"));
+			one(delegate).getRequest("_123"); will(returnValue(large));
+		}});
+
+		SessionHandler handler = CookieSessionHandler.wrap(delegate, null, cookie, req, res);
+		String state = handler.saveRequest(new Request("/app/page", null, "GET", null));
+		assertTrue(RequestCookie.isCookieState(state));
+
+		assertEquals("_123", handler.saveRequest(large));
+		assertEquals(large, handler.getRequest("_123"));
+	}
+
+	private static Cookie toCookie(String header) {
+		String value = header.substring(0, header.indexOf(';'));
+		return new Cookie(value.substring(0, value.indexOf('=')), value.substring(value.indexOf('=') + 1));
+	}
+}
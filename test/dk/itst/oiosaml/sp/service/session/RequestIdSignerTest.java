@@ -0,0 +1,92 @@
+package dk.itst.oiosaml.sp.service.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.jmock.Expectations;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.service.TestHelper;
+
+public class RequestIdSignerTest extends AbstractTests {
+	private static final String IDP = "http://idp.example.com";
+
+	private RequestIdSigner signer;
+
+	@Before
+	public void setUp() throws Exception {
+		signer = new RequestIdSigner(TestHelper.getCredential(), 60000);
+	}
+
+	@Test
+	public void idIsValidNCName() {
+		String id = signer.create(IDP);
+		assertTrue(RequestIdSigner.isSigned(id));
+		assertTrue(id, id.matches("[_A-Za-z][-_A-Za-z0-9]*"));
+		assertFalse(id.equals(signer.create(IDP)));
+	}
+
+	@Test
+	public void validIdReturnsReceiver() {
+		assertEquals(IDP, signer.validate(signer.create(IDP)));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void idCanOnlyBeUsedOnce() {
+		String id = signer.create(IDP);
+		signer.validate(id);
+		signer.validate(id);
+	}
+
+	@Test
+	public void tamperedIdIsRejected() {
+		String id = signer.create(IDP);
+		char c = id.charAt(10);
+		String tampered = id.substring(0, 10) + (c == 'A' ? 'B' : 'A') + id.substring(11);
+		try {
+			signer.validate(tampered);
+			fail("Tampered id accepted");
+		} catch (IllegalArgumentException e) {}
+
+		try {
+			signer.validate(id.substring(0, id.length() - 4));
+			fail("Truncated id accepted");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void idFromOtherKeyIsRejected() throws Exception {
+		RequestIdSigner other = new RequestIdSigner(TestHelper.getCredential(), 60000);
+		signer.validate(other.create(IDP));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void expiredIdIsRejected() throws Exception {
+		RequestIdSigner expired = new RequestIdSigner(TestHelper.getCredential(), -1);
+		expired.validate(expired.create(IDP));
+	}
+
+	@Test
+	public void unsignedIdsAreHandledBySessionHandler() {
+		final SessionHandler handler = context.mock(SessionHandler.class);
+		context.checking(new Expectations() {{
+			one(handler).removeEntityIdForRequest("_123"); will(returnValue(IDP));
+			one(handler).registerRequest(with(any(String.class)), with(equal(IDP)));
+		}});
+		assertEquals(IDP, RequestIdSigner.removeEntityIdForRequest(signer, handler, "_123"));
+
+		String id = RequestIdSigner.registerRequest(null, handler, IDP);
+		assertFalse(RequestIdSigner.isSigned(id));
+	}
+
+	@Test
+	public void signedIdsAreNotRegistered() {
+		SessionHandler handler = context.mock(SessionHandler.class);
+		String id = RequestIdSigner.registerRequest(signer, handler, IDP);
+		assertEquals(IDP, RequestIdSigner.removeEntityIdForRequest(signer, handler, id));
+	}
+}
@@ -0,0 +1,282 @@
+package dk.itst.oiosaml.sp.service.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.hamcrest.Description;
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AttributeStatement;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.UserAssertion;
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+import dk.itst.oiosaml.sp.model.OIOAssertionRecord;
+import dk.itst.oiosaml.sp.service.TestHelper;
+import dk.itst.oiosaml.sp.service.util.Constants;
+import dk.itst.oiosaml.sp.util.AttributeUtil;
+
+public class SessionCookieTest extends AbstractTests {
+	private static final long MAX_AGE = 30 * 60 * 1000L;
+
+	private SessionCookie cookie;
+	private HttpServletRequest req;
+	private HttpServletResponse res;
+	private List<String> headers;
+	private Cookie[] cookies;
+	private Assertion assertion;
+
+	@Before
+	public void setUp() throws Exception {
+		cookie = new SessionCookie(TestHelper.getCredential(), "SESSION", MAX_AGE, true);
+		assertion = (Assertion) SAMLUtil.unmarshallElement(getClass().getResourceAsStream("/dk/itst/oiosaml/sp/model/assertion.xml"));
+
+		headers = new ArrayList<String>();
+		req = context.mock(HttpServletRequest.class);
+		res = context.mock(HttpServletResponse.class);
+		context.checking(new Expectations() {{
+			allowing(req).getContextPath(); will(returnValue("/app"));
+			allowing(req).isSecure(); will(returnValue(true));
+			allowing(req).getCookies(); will(new CustomAction("get cookies") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					return cookies;
+				}
+			});
+			allowing(res).addHeader(with(equal("Set-Cookie")), with(any(String.class))); will(new CustomAction("add header") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					headers.add((String) invocation.getParameter(1));
+					return null;
+				}
+			});
+		}});
+	}
+
+	@Test
+	public void sessionCanBeRead() {
+		assertNull(cookie.read(req, res));
+
+		cookie.write(req, res, new OIOAssertion(assertion));
+		assertEquals(1, headers.size());
+		String header = headers.get(0);
+		assertTrue(header, header.startsWith("SESSION="));
+		assertTrue(header, header.endsWith("; Path=/app; HttpOnly; Secure"));
+		assertFalse("Cookie must be encrypted", header.contains(assertion.getID()));
+
+		cookies = new Cookie[] { new Cookie("other", "value"), new Cookie("SESSION", getValue(header)) };
+		OIOAssertionRecord record = cookie.read(req, res);
+		assertNotNull(record);
+		assertEquals(assertion.getID(), record.getID());
+		assertEquals(assertion.getAuthnStatements().get(0).getSessionIndex(), record.getSessionIndex());
+		assertTrue(record.isXmlRetained());
+		// the cookie is new, so it is not reissued
+		assertEquals(1, headers.size());
+	}
+
+	@Test
+	public void changedCookieIsRejected() {
+		String value = cookie.encode(OIOAssertionRecord.valueOf(new OIOAssertion(assertion), false), System.currentTimeMillis());
+		char c = value.charAt(value.length() / 2);
+		cookies = new Cookie[] { new Cookie("SESSION", value.substring(0, value.length() / 2) + (c == 'A' ? 'B' : 'A') + value.substring(value.length() / 2 + 1)) };
+		assertNull(cookie.read(req, res));
+
+		cookies = new Cookie[] { new Cookie("SESSION", value.substring(0, value.length() - 4)) };
+		assertNull(cookie.read(req, res));
+
+		cookies = new Cookie[] { new Cookie("SESSION", "garbage") };
+		assertNull(cookie.read(req, res));
+	}
+
+	@Test
+	public void cookieFromOtherCredentialIsRejected() throws Exception {
+		SessionCookie other = new SessionCookie(TestHelper.getCredential(), "SESSION", MAX_AGE, true);
+		cookies = new Cookie[] { new Cookie("SESSION", other.encode(OIOAssertionRecord.valueOf(new OIOAssertion(assertion), false), System.currentTimeMillis())) };
+		assertNull(cookie.read(req, res));
+	}
+
+	@Test
+	public void cookieExpiresAfterMaxAge() {
+		OIOAssertionRecord record = OIOAssertionRecord.valueOf(new OIOAssertion(assertion), false);
+		long now = System.currentTimeMillis();
+		cookies = new Cookie[] { new Cookie("SESSION", cookie.encode(record, now - MAX_AGE - 1)) };
+		assertNull(cookie.read(req, res));
+
+		cookies = new Cookie[] { new Cookie("SESSION", cookie.encode(record, now - MAX_AGE / 2 - 1000)) };
+		assertNotNull(cookie.read(req, res));
+		// more than half the max age has passed, so the cookie is reissued
+		assertEquals(1, headers.size());
+
+		cookies = new Cookie[] { new Cookie("SESSION", getValue(headers.get(0))) };
+		assertNotNull(cookie.read(req, res));
+		assertEquals(1, headers.size());
+	}
+
+	@Test
+	public void revokedCookieIsRejected() {
+		OIOAssertion a = new OIOAssertion(assertion);
+		cookies = new Cookie[] { new Cookie("SESSION", cookie.encode(OIOAssertionRecord.valueOf(a, false), System.currentTimeMillis())) };
+		assertNotNull(cookie.read(req, res));
+
+		cookie.revoke(a);
+		assertNull(cookie.read(req, res));
+	}
+
+	@Test
+	public void cookieIsVerifiedAgainstSessionHandlerAfterInterval() throws Exception {
+		SessionCookie verified = new SessionCookie(TestHelper.getCredential(), "SESSION", MAX_AGE, true, 1000);
+		SingleVMSessionHandler sessions = new SingleVMSessionHandler();
+		OIOAssertion a = new OIOAssertion(assertion);
+		sessions.setAssertion("session", a);
+		OIOAssertionRecord record = OIOAssertionRecord.valueOf(a, false);
+		long now = System.currentTimeMillis();
+
+		cookies = new Cookie[] { new Cookie("SESSION", verified.encode(record, now - 2000)) };
+		assertNotNull(verified.read(req, res, sessions));
+		// the session was checked, so the cookie is reissued
+		assertEquals(1, headers.size());
+
+		// logged out on another node, for example over SOAP
+		sessions.logOut("session");
+		cookies = new Cookie[] { new Cookie("SESSION", getValue(headers.get(0))) };
+		// the reissued cookie is trusted until the interval has passed
+		assertNotNull(verified.read(req, res, sessions));
+
+		cookies = new Cookie[] { new Cookie("SESSION", verified.encode(record, now - 2000)) };
+		assertNull(verified.read(req, res, sessions));
+		// the session index is now revoked locally
+		cookies = new Cookie[] { new Cookie("SESSION", verified.encode(record, System.currentTimeMillis())) };
+		assertNull(verified.read(req, res, sessions));
+	}
+
+	@Test
+	public void largeAssertionIsStoredWithoutXml() {
+		Assertion large = createLargeAssertion();
+		cookie.write(req, res, new OIOAssertion(large));
+
+		String value = getValue(headers.get(0));
+		assertTrue(value.length() <= SessionCookie.MAX_VALUE_LENGTH);
+		cookies = new Cookie[] { new Cookie("SESSION", value) };
+		OIOAssertionRecord record = cookie.read(req, res);
+		assertEquals(assertion.getID(), record.getID());
+		assertFalse(record.isXmlRetained());
+	}
+
+	@Test
+	public void handlerLoadsAssertionTooLargeForCookieFromSessionHandler() {
+		Assertion large = createLargeAssertion();
+		AttributeStatement attributes = SAMLUtil.buildXMLObject(AttributeStatement.class);
+		attributes.getAttributes().add(AttributeUtil.createMail("mail@example.com"));
+		large.getAttributeStatements().add(attributes);
+		HttpSession session = mockSession("session");
+
+		// log in on one node, using a shared session handler
+		SingleVMSessionHandler shared = new SingleVMSessionHandler();
+		new CookieSessionHandler(shared, cookie, req, res).setAssertion("other", new OIOAssertion(large));
+		cookies = new Cookie[] { new Cookie("SESSION", getValue(headers.get(0))) };
+		assertFalse(cookie.read(req, res).isXmlRetained());
+
+		// the cookie does not hold the attributes, so they are loaded from the session handler using the session index
+		UserAssertion ua = new CookieSessionHandler(shared, cookie, req, res).getUserAssertion(session);
+		assertNotNull(ua);
+		assertEquals(large.getID(), ua.getAssertionId());
+		assertEquals("mail@example.com", ua.getMail());
+
+		// without the assertion in the session handler, the user assertion cannot be created
+		CookieSessionHandler handler = new CookieSessionHandler(new SingleVMSessionHandler(), cookie, req, res);
+		assertTrue(handler.isLoggedIn("session"));
+		assertNull(handler.getUserAssertion(mockSession("empty")));
+	}
+
+	@Test
+	public void handlerReadsSessionFromCookie() {
+		final HttpSession session = context.mock(HttpSession.class);
+		final UserAssertion[] stored = new UserAssertion[1];
+		context.checking(new Expectations() {{
+			allowing(session).getId(); will(returnValue("session"));
+			allowing(session).getAttribute(Constants.SESSION_USER_ASSERTION); will(new CustomAction("get attribute") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					return stored[0];
+				}
+			});
+			one(session).setAttribute(with(equal(Constants.SESSION_USER_ASSERTION)), with(any(UserAssertion.class))); will(new CustomAction("set attribute") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					stored[0] = (UserAssertion) invocation.getParameter(1);
+					return null;
+				}
+			});
+			one(session).removeAttribute(Constants.SESSION_USER_ASSERTION);
+		}});
+
+		// log in on one node
+		new CookieSessionHandler(new SingleVMSessionHandler(), cookie, req, res).setAssertion("session", new OIOAssertion(assertion));
+		assertEquals(1, headers.size());
+
+		// the session is not known on this node, but the cookie is valid
+		cookies = new Cookie[] { new Cookie("SESSION", getValue(headers.get(0))) };
+		SingleVMSessionHandler delegate = new SingleVMSessionHandler();
+		CookieSessionHandler handler = new CookieSessionHandler(delegate, cookie, req, res);
+		assertTrue(handler.isLoggedIn("session"));
+		assertEquals(assertion.getID(), handler.getAssertion("session").getID());
+		assertFalse(delegate.isLoggedIn("session"));
+
+		UserAssertion ua = handler.getUserAssertion(session);
+		assertEquals(assertion.getID(), ua.getAssertionId());
+		assertEquals(ua, handler.getUserAssertion(session));
+
+		handler.logOut(session);
+		assertFalse(handler.isLoggedIn("session"));
+		assertTrue(headers.get(1), headers.get(1).startsWith("SESSION=; "));
+
+		// the cookie is revoked, even if the browser sends it again
+		assertFalse(new CookieSessionHandler(delegate, cookie, req, res).isLoggedIn("session"));
+	}
+
+	private Assertion createLargeAssertion() {
+		Assertion large = SAMLUtil.clone(assertion);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append(Integer.toHexString(i * 7919));
+		}
+		large.getSubject().getNameID().setSPNameQualifier(sb.toString());
+		return large;
+	}
+
+	private HttpSession mockSession(final String name) {
+		final HttpSession session = context.mock(HttpSession.class, name);
+		final UserAssertion[] stored = new UserAssertion[1];
+		context.checking(new Expectations() {{
+			allowing(session).getId(); will(returnValue(name));
+			allowing(session).getAttribute(Constants.SESSION_USER_ASSERTION); will(new CustomAction("get attribute") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					return stored[0];
+				}
+			});
+			allowing(session).setAttribute(with(equal(Constants.SESSION_USER_ASSERTION)), with(any(UserAssertion.class))); will(new CustomAction("set attribute") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					stored[0] = (UserAssertion) invocation.getParameter(1);
+					return null;
+				}
+			});
+		}});
+		return session;
+	}
+
+	private static String getValue(String header) {
+		return header.substring(header.indexOf('=') + 1, header.indexOf(';'));
+	}
+}
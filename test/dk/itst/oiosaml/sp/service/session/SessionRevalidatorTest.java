@@ -0,0 +1,91 @@
+package dk.itst.oiosaml.sp.service.session;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpSession;
+
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Assertion;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.UserAssertion;
+import dk.itst.oiosaml.sp.UserAssertionImpl;
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+
+public class SessionRevalidatorTest extends AbstractTests {
+	private SessionRevalidator revalidator;
+	private HttpSession session;
+	private Map<String, Object> attributes;
+	private OIOAssertion assertion;
+	private UserAssertion ua;
+
+	@Before
+	public void setUp() {
+		revalidator = new SessionRevalidator(60000);
+		assertion = new OIOAssertion((Assertion) SAMLUtil.unmarshallElement(getClass().getResourceAsStream("/dk/itst/oiosaml/sp/model/assertion.xml")));
+		ua = new UserAssertionImpl(assertion);
+
+		attributes = new HashMap<String, Object>();
+		session = context.mock(HttpSession.class);
+		context.checking(new Expectations() {{
+			allowing(session).getId(); will(returnValue("session"));
+			allowing(session).getAttribute(with(any(String.class))); will(new CustomAction("get attribute") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					return attributes.get(invocation.getParameter(0));
+				}
+			});
+			allowing(session).setAttribute(with(any(String.class)), with(any(Object.class))); will(new CustomAction("set attribute") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					return attributes.put((String) invocation.getParameter(0), invocation.getParameter(1));
+				}
+			});
+		}});
+	}
+
+	@Test
+	public void sessionIsOnlyValidAfterValidation() {
+		assertFalse(revalidator.isValid(session, ua));
+
+		revalidator.validated(session, SessionState.valueOf(assertion));
+		assertTrue(revalidator.isValid(session, ua));
+	}
+
+	@Test
+	public void loggedOutSessionIsNotMarked() {
+		revalidator.validated(session, SessionState.LOGGED_OUT);
+		assertFalse(revalidator.isValid(session, ua));
+	}
+
+	@Test
+	public void markerExpires() throws Exception {
+		SessionRevalidator revalidator = new SessionRevalidator(1);
+		revalidator.validated(session, SessionState.valueOf(assertion));
+		Thread.sleep(5);
+		assertFalse(revalidator.isValid(session, ua));
+	}
+
+	@Test
+	public void otherAssertionIsNotValid() {
+		revalidator.validated(session, SessionState.valueOf(assertion));
+
+		Assertion other = SAMLUtil.clone(assertion.getAssertion());
+		other.setID("other");
+		assertFalse(revalidator.isValid(session, new UserAssertionImpl(new OIOAssertion(other))));
+	}
+
+	@Test
+	public void soapLogoutInvalidatesMarker() {
+		revalidator.validated(session, SessionState.valueOf(assertion));
+		revalidator.loggedOut("session");
+		assertFalse(revalidator.isValid(session, ua));
+	}
+}
@@ -0,0 +1,187 @@
+package dk.itst.oiosaml.sp.service.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Assertion;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+
+public class SingleVMSessionHandlerConcurrencyTest extends AbstractTests {
+	private static final int SESSIONS = 1000;
+	private static final long RUN_MILLIS = 300;
+	private static final int RUNS = 3;
+
+	private SingleVMSessionHandler handler;
+	private Assertion assertion;
+
+	@Before
+	public void setUp() {
+		handler = new SingleVMSessionHandler();
+		handler.resetReplayProtection(SESSIONS * 2);
+		assertion = (Assertion) SAMLUtil.unmarshallElement(getClass().getResourceAsStream("/dk/itst/oiosaml/sp/model/assertion.xml"));
+	}
+
+	@Test
+	public void replayIsOnlyAcceptedOnceAcrossThreads() throws Exception {
+		final int threads = 16;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger accepted = new AtomicInteger();
+		final AtomicInteger rejected = new AtomicInteger();
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final String sessionId = "session" + i;
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						handler.setAssertion(sessionId, new OIOAssertion(assertion));
+						accepted.incrementAndGet();
+					} catch (IllegalArgumentException e) {
+						rejected.incrementAndGet();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			t.start();
+			workers.add(t);
+		}
+		start.countDown();
+		for (Thread t : workers) {
+			t.join();
+		}
+		assertEquals(1, accepted.get());
+		assertEquals(threads - 1, rejected.get());
+	}
+
+	@Test
+	public void expiredAssertionIdIsKeptForClockSkew() {
+		SingleVMSessionHandler handler = new SingleVMSessionHandler(60000);
+		handler.setAssertion("session", new OIOAssertion(assertion));
+		assertEquals(1, handler.getReplayCacheSize());
+
+		handler.cleanup(1000, 1000);
+		assertEquals(1, handler.getReplayCacheSize());
+	}
+
+	@Test
+	public void reportReadThroughput() throws Exception {
+		for (int i = 0; i < SESSIONS; i++) {
+			Assertion a = SAMLUtil.clone(assertion);
+			a.setID("id" + i);
+			handler.setAssertion("session" + i, new OIOAssertion(a));
+		}
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		int threads = Math.max(2, Math.min(cores, 8));
+
+		// warm up
+		measure(1);
+		measure(threads);
+
+		double single = 0;
+		double multi = 0;
+		for (int i = 0; i < RUNS; i++) {
+			single += measure(1) / RUNS;
+			multi += measure(threads) / RUNS;
+		}
+		System.out.println("SingleVMSessionHandler read throughput: " + Math.round(single) + " ops/ms with 1 thread, "
+				+ Math.round(multi) + " ops/ms with " + threads + " threads (" + cores + " cores)");
+
+		for (int i = 0; i < SESSIONS; i++) {
+			assertTrue(handler.isLoggedIn("session" + i));
+			assertEquals("id" + i, handler.getAssertion("session" + i).getID());
+		}
+	}
+
+	@Test
+	public void readsDoNotBlock() throws Exception {
+		for (int i = 0; i < SESSIONS; i++) {
+			Assertion a = SAMLUtil.clone(assertion);
+			a.setID("id" + i);
+			handler.setAssertion("session" + i, new OIOAssertion(a));
+		}
+
+		final AtomicInteger found = new AtomicInteger();
+		final AtomicLong blocked = new AtomicLong(-1);
+		Thread reader = new Thread() {
+			public void run() {
+				for (int i = 0; i < SESSIONS; i++) {
+					if (handler.isLoggedIn("session" + i) && handler.getAssertion("session" + i) != null) {
+						found.incrementAndGet();
+					}
+				}
+				blocked.set(ManagementFactory.getThreadMXBean().getThreadInfo(getId()).getBlockedCount());
+			}
+		};
+		// reads must not wait for a monitor, so they complete while the handler is locked by another thread
+		synchronized (handler) {
+			reader.start();
+			reader.join(10000);
+			assertFalse("Reader is blocked", reader.isAlive());
+		}
+		assertEquals(SESSIONS, found.get());
+		// the reader never had to wait for a monitor held by another thread
+		assertEquals(0, blocked.get());
+	}
+
+	private double measure(int threads) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicLong ops = new AtomicLong();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final long[] deadline = new long[1];
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final int offset = i * 97;
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						long count = 0;
+						int n = offset;
+						while (System.currentTimeMillis() < deadline[0]) {
+							for (int j = 0; j < 100; j++) {
+								String sessionId = "session" + (n++ % SESSIONS);
+								if (handler.isLoggedIn(sessionId)) {
+									handler.getAssertion(sessionId);
+								}
+								count++;
+							}
+						}
+						ops.addAndGet(count);
+					} catch (Throwable e) {
+						error.set(e);
+					}
+				}
+			};
+			t.start();
+			workers.add(t);
+		}
+		long begin = System.currentTimeMillis();
+		deadline[0] = begin + RUN_MILLIS;
+		start.countDown();
+		for (Thread t : workers) {
+			t.join();
+		}
+		if (error.get() != null) {
+			throw new RuntimeException(error.get());
+		}
+		return ops.get() / (double) (System.currentTimeMillis() - begin);
+	}
+}
@@ -0,0 +1,96 @@
+package dk.itst.oiosaml.sp.service.session.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JdbcSchemaTest {
+	private static int counter = 0;
+
+	private PooledDataSource ds;
+	private JdbcSchema schema;
+
+	@Before
+	public void setUp() throws Exception {
+		Class.forName("org.h2.Driver");
+		ds = new PooledDataSource("jdbc:h2:mem:schema" + (counter++) + ";DB_CLOSE_DELAY=-1", "sa", "", 0, 2);
+		schema = new JdbcSchema(ds);
+	}
+
+	@After
+	public void tearDown() {
+		ds.close();
+	}
+
+	@Test
+	public void schemaIsCreated() throws Exception {
+		assertEquals(0, schema.getVersion());
+		assertEquals("h2", schema.getDialect());
+
+		assertEquals(JdbcSchema.VERSION, schema.update());
+		assertEquals(JdbcSchema.VERSION, schema.getVersion());
+		assertTrue(hasIndex("ASSERTIONS_TIMESTAMP"));
+
+		assertEquals(0, schema.update());
+	}
+
+	@Test
+	public void unversionedSchemaIsUpgraded() throws Exception {
+		Connection c = ds.getConnection();
+		Statement st = c.createStatement();
+		for (String sql : JdbcSchema.getStatements("h2", 1)) {
+			st.execute(sql);
+		}
+		st.close();
+		c.close();
+
+		assertEquals(1, schema.getVersion());
+		assertEquals(JdbcSchema.VERSION - 1, schema.update());
+		assertEquals(JdbcSchema.VERSION, schema.getVersion());
+		assertTrue(hasIndex("REQUESTS_TIMESTAMP"));
+	}
+
+	@Test
+	public void scriptsExistForAllDialects() {
+		for (String dialect : new String[] { "mysql", "postgresql", "oracle", "sqlserver", "h2" }) {
+			assertEquals(3, JdbcSchema.getStatements(dialect, 1).size());
+			for (int v = 2; v <= JdbcSchema.VERSION; v++) {
+				assertTrue(JdbcSchema.getStatements(dialect, v).size() > 0);
+			}
+		}
+	}
+
+	@Test
+	public void dialectIsDetected() {
+		assertEquals("mysql", JdbcSchema.getDialect("MySQL"));
+		assertEquals("postgresql", JdbcSchema.getDialect("PostgreSQL"));
+		assertEquals("oracle", JdbcSchema.getDialect("Oracle"));
+		assertEquals("sqlserver", JdbcSchema.getDialect("Microsoft SQL Server"));
+		assertEquals("h2", JdbcSchema.getDialect("H2"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void unknownDialectFails() {
+		JdbcSchema.getDialect("Derby");
+	}
+
+	private boolean hasIndex(String name) throws Exception {
+		Connection c = ds.getConnection();
+		try {
+			ResultSet rs = c.getMetaData().getIndexInfo(null, null, name.substring(0, name.indexOf('_')), false, false);
+			while (rs.next()) {
+				if (name.equals(rs.getString("INDEX_NAME"))) return true;
+			}
+			return false;
+		} finally {
+			c.close();
+		}
+	}
+}
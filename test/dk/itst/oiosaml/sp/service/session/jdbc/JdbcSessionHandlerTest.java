@@ -0,0 +1,417 @@
+package dk.itst.oiosaml.sp.service.session.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Assertion;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+import dk.itst.oiosaml.sp.service.session.Request;
+import dk.itst.oiosaml.sp.service.session.RequestCodec;
+
+public class JdbcSessionHandlerTest extends AbstractTests {
+	private static int counter = 0;
+
+	private PooledDataSource ds;
+	private JdbcSessionHandler handler;
+	private Assertion assertion;
+
+	@Before
+	public void setUp() throws Exception {
+		Class.forName("org.h2.Driver");
+		ds = new PooledDataSource("jdbc:h2:mem:sessions" + (counter++) + ";DB_CLOSE_DELAY=-1", "sa", "", 0, 8);
+		new JdbcSchema(ds).update();
+
+		handler = new JdbcSessionHandler(ds);
+		assertion = (Assertion) SAMLUtil.unmarshallElement(getClass().getResourceAsStream("/dk/itst/oiosaml/sp/model/assertion.xml"));
+	}
+
+	@After
+	public void tearDown() {
+		ds.close();
+	}
+
+	@Test
+	public void assertionIsStored() {
+		assertFalse(handler.isLoggedIn("session"));
+		handler.setAssertion("session", new OIOAssertion(assertion));
+
+		assertTrue(handler.isLoggedIn("session"));
+		OIOAssertion stored = handler.getAssertion("session");
+		assertEquals(assertion.getID(), stored.getID());
+		assertEquals("session", handler.getRelatedSessionId(assertion.getAuthnStatements().get(0).getSessionIndex()));
+		assertNull(handler.getRelatedSessionId("unknown"));
+
+		handler.logOut("session");
+		assertFalse(handler.isLoggedIn("session"));
+		assertEquals(0, ds.getActiveCount());
+	}
+
+	@Test
+	public void replayIsRejected() {
+		handler.setAssertion("session", new OIOAssertion(assertion));
+		try {
+			handler.setAssertion("other", new OIOAssertion(assertion));
+			fail("Replay must be rejected");
+		} catch (IllegalArgumentException e) {}
+		try {
+			handler.setAssertion("session", new OIOAssertion(assertion));
+			fail("Replay on the same session must be rejected");
+		} catch (IllegalArgumentException e) {}
+		assertNull(handler.getAssertion("other"));
+	}
+
+	@Test
+	public void newAssertionReplacesSession() {
+		handler.setAssertion("session", new OIOAssertion(assertion));
+
+		Assertion other = SAMLUtil.clone(assertion);
+		other.setID("other");
+		other.getAuthnStatements().get(0).setSessionIndex("otherindex");
+		handler.setAssertion("session", new OIOAssertion(other));
+
+		assertEquals("other", handler.getAssertion("session").getID());
+		assertEquals("session", handler.getRelatedSessionId("otherindex"));
+		assertNull(handler.getRelatedSessionId(assertion.getAuthnStatements().get(0).getSessionIndex()));
+	}
+
+	@Test
+	public void passiveSessionsGetUniqueIndexes() {
+		for (int i = 0; i < 3; i++) {
+			Assertion a = SAMLUtil.clone(assertion);
+			a.setID("id" + i);
+			a.getAuthnStatements().clear();
+			handler.setAssertion("session" + i, new OIOAssertion(a));
+		}
+		assertNotNull(handler.getAssertion("session2"));
+	}
+
+	@Test
+	public void replayIsOnlyAcceptedOnceAcrossThreads() throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger accepted = new AtomicInteger();
+		final AtomicInteger rejected = new AtomicInteger();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final String sessionId = "session" + i;
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						handler.setAssertion(sessionId, new OIOAssertion(assertion));
+						accepted.incrementAndGet();
+					} catch (IllegalArgumentException e) {
+						rejected.incrementAndGet();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			t.start();
+			workers.add(t);
+		}
+		start.countDown();
+		for (Thread t : workers) {
+			t.join();
+		}
+		assertEquals(1, accepted.get());
+		assertEquals(7, rejected.get());
+	}
+
+	@Test
+	public void requestsAreStored() {
+		String state = handler.saveRequest(new Request("uri", "query", "GET", new HashMap<String, String[]>()));
+		assertEquals("uri", handler.getRequest(state).getRequestURI());
+		try {
+			handler.getRequest(state);
+			fail("Request must only be returned once");
+		} catch (IllegalArgumentException e) {}
+
+		handler.registerRequest("id", "entity");
+		assertEquals("entity", handler.removeEntityIdForRequest("id"));
+		try {
+			handler.removeEntityIdForRequest("id");
+			fail("Request ids must only be used once");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void expiredRowsAreRemovedInBatches() throws Exception {
+		for (int i = 0; i < 1200; i++) {
+			handler.registerRequest("old" + i, "entity");
+		}
+		Thread.sleep(20);
+		handler.registerRequest("new", "entity");
+		handler.setAssertion("session", new OIOAssertion(assertion));
+
+		JdbcSessionCleaner cleaner = new JdbcSessionCleaner(500);
+		assertEquals(1200, cleaner.cleanup(ds, 10, 60000));
+		assertEquals(1200, cleaner.getDeletedCount());
+		assertEquals(3, cleaner.getBatchCount());
+		assertEquals(1, cleaner.getRunCount());
+		assertEquals("entity", handler.removeEntityIdForRequest("new"));
+		assertTrue(handler.isLoggedIn("session"));
+
+		assertEquals(0, cleaner.cleanup(ds, 10, 60000));
+		assertEquals(0, ds.getActiveCount());
+	}
+
+	@Test
+	public void statementsAreReused() {
+		handler.setAssertion("session", new OIOAssertion(assertion));
+		for (int i = 0; i < 10; i++) {
+			handler.isLoggedIn("session");
+		}
+		assertTrue(ds.getStatementCacheHits() >= 18);
+		assertEquals(1, ds.getCreatedCount());
+	}
+
+	@Test
+	public void cachedAssertionIsValidatedAgainstDatabase() {
+		JdbcSessionCache cache = new JdbcSessionCache(ds, 100, 60000);
+		JdbcSessionHandler cached = new JdbcSessionHandler(ds, cache);
+		cached.setAssertion("session", new OIOAssertion(assertion));
+		OIOAssertion first = cached.getAssertion("session");
+		assertSame(first, cached.getAssertion("session"));
+		assertEquals(2, cache.getHitCount());
+
+		// another node replaces the assertion
+		Assertion other = SAMLUtil.clone(assertion);
+		other.setID("other");
+		other.getAuthnStatements().get(0).setSessionIndex("otherindex");
+		handler.setAssertion("session", new OIOAssertion(other));
+		assertEquals("other", cached.getAssertion("session").getID());
+
+		// and logs it out
+		handler.logOut("session");
+		assertNull(cached.getAssertion("session"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void accessTimesAreWrittenInBatches() throws Exception {
+		JdbcSessionCache cache = new JdbcSessionCache(ds, 100, 60000);
+		JdbcSessionHandler cached = new JdbcSessionHandler(ds, cache);
+		cached.setAssertion("session", new OIOAssertion(assertion));
+		Timestamp registered = timestamp("session");
+
+		Thread.sleep(20);
+		for (int i = 0; i < 50; i++) {
+			assertTrue(cached.isLoggedIn("session"));
+		}
+		assertEquals(registered, timestamp("session"));
+		assertEquals(1, cache.getPendingCount());
+
+		assertEquals(1, cache.flush());
+		assertTrue(timestamp("session").after(registered));
+		assertEquals(0, cache.getPendingCount());
+		assertEquals(0, cache.flush());
+	}
+
+	@Test
+	public void accessTimesAreKeptWhenFlushFails() throws Exception {
+		JdbcSessionCache cache = new JdbcSessionCache(ds, 100, 60000);
+		JdbcSessionHandler cached = new JdbcSessionHandler(ds, cache);
+		cached.setAssertion("session", new OIOAssertion(assertion));
+		Timestamp registered = timestamp("session");
+
+		Thread.sleep(20);
+		assertTrue(cached.isLoggedIn("session"));
+		assertEquals(1, cache.getPendingCount());
+
+		execute("ALTER TABLE assertions RENAME TO assertions_moved");
+		try {
+			cache.flush();
+			fail("Flush should fail when the table is missing");
+		} catch (RuntimeException e) {}
+		assertEquals(1, cache.getPendingCount());
+
+		execute("ALTER TABLE assertions_moved RENAME TO assertions");
+		assertEquals(1, cache.flush());
+		assertTrue(timestamp("session").after(registered));
+		assertEquals(0, cache.getPendingCount());
+	}
+
+	@Test
+	public void cacheIsBounded() {
+		JdbcSessionCache cache = new JdbcSessionCache(ds, 10, 0);
+		for (int i = 0; i < 50; i++) {
+			cache.put("session" + i, "id" + i, new OIOAssertion(assertion));
+			assertTrue(cache.size() <= 10);
+		}
+		assertTrue(cache.contains("session49"));
+	}
+
+	@Test
+	public void readThroughput() {
+		JdbcSessionCache cache = new JdbcSessionCache(ds, 100, 60000);
+		JdbcSessionHandler cached = new JdbcSessionHandler(ds, cache);
+		handler.setAssertion("session", new OIOAssertion(assertion));
+		System.out.println("JdbcSessionHandler: " + reads(handler) + " reads/s without cache, " + reads(cached) + " reads/s with cache against H2");
+	}
+
+	private long reads(JdbcSessionHandler handler) {
+		for (int i = 0; i < 100; i++) {
+			handler.isLoggedIn("session");
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < 1000; i++) {
+			handler.isLoggedIn("session");
+		}
+		return Math.round(1000 / ((System.nanoTime() - start) / 1e9));
+	}
+
+	private void execute(String sql) throws Exception {
+		Connection c = ds.getConnection();
+		try {
+			c.createStatement().execute(sql);
+		} finally {
+			c.close();
+		}
+	}
+
+	private Timestamp timestamp(String sessionId) throws Exception {
+		Connection c = ds.getConnection();
+		try {
+			PreparedStatement ps = c.prepareStatement("SELECT timestamp FROM assertions WHERE id = ?");
+			ps.setString(1, sessionId);
+			ResultSet rs = ps.executeQuery();
+			rs.next();
+			Timestamp res = rs.getTimestamp(1);
+			ps.close();
+			return res;
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void binaryFormatIsCompact() throws Exception {
+		JdbcSessionHandler binary = new JdbcSessionHandler(ds, null, new JdbcSessionCleaner(10), true);
+		binary.setAssertion("session", new OIOAssertion(assertion));
+
+		OIOAssertion stored = binary.getAssertion("session");
+		assertEquals(assertion.getID(), stored.getID());
+		assertEquals(assertion.getSubject().getNameID().getValue(), stored.getSubjectNameIDValue());
+		assertEquals(assertion.getID(), stored.getAssertion().getID());
+
+		Connection c = ds.getConnection();
+		ResultSet rs = c.createStatement().executeQuery("SELECT assertion, assertionblob FROM assertions");
+		rs.next();
+		assertNull(rs.getString(1));
+		int size = rs.getBytes(2).length;
+		c.close();
+		int xml = new OIOAssertion(assertion).toXML().length();
+		assertTrue(size + " bytes, " + xml + " bytes as XML", size < xml);
+
+		// replacing the assertion must also replace the binary record
+		Assertion other = SAMLUtil.clone(assertion);
+		other.setID("other");
+		other.getAuthnStatements().get(0).setSessionIndex("otherindex");
+		binary.setAssertion("session", new OIOAssertion(other));
+		assertEquals("other", binary.getAssertion("session").getID());
+	}
+
+	@Test
+	public void textRowsCanBeReadInBinaryMode() {
+		JdbcSessionHandler binary = new JdbcSessionHandler(ds, null, new JdbcSessionCleaner(10), true);
+		handler.setAssertion("session", new OIOAssertion(assertion));
+		String state = handler.saveRequest(new Request("uri", "query", "GET", new HashMap<String, String[]>()));
+
+		assertEquals(assertion.getID(), binary.getAssertion("session").getID());
+		assertEquals("uri", binary.getRequest(state).getRequestURI());
+
+		// and text written by a node without binary support takes precedence over an older binary record
+		binary.logOut("session");
+		binary.setAssertion("session", new OIOAssertion(assertion));
+		Assertion other = SAMLUtil.clone(assertion);
+		other.setID("other");
+		other.getAuthnStatements().get(0).setSessionIndex("otherindex");
+		handler.setAssertion("session", new OIOAssertion(other));
+		assertEquals("other", binary.getAssertion("session").getID());
+	}
+
+	@Test
+	public void binaryRowsCanBeReadInTextMode() {
+		JdbcSessionHandler binary = new JdbcSessionHandler(ds, null, new JdbcSessionCleaner(10), true);
+		JdbcSessionHandler text = new JdbcSessionHandler(ds, null, new JdbcSessionCleaner(10), JdbcSchema.VERSION, false);
+		binary.setAssertion("session", new OIOAssertion(assertion));
+		String state = binary.saveRequest(new Request("uri", "query", "GET", new HashMap<String, String[]>()));
+
+		assertEquals(assertion.getID(), text.getAssertion("session").getID());
+		assertEquals("uri", text.getRequest(state).getRequestURI());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void binaryFormatRequiresSchemaVersion3() {
+		new JdbcSessionHandler(ds, null, new JdbcSessionCleaner(10), 2, true);
+	}
+
+	@Test
+	public void requestsAreEncoded() {
+		JdbcSessionHandler binary = new JdbcSessionHandler(ds, null, new JdbcSessionCleaner(10), true);
+		HashMap<String, String[]> params = new HashMap<String, String[]>();
+		params.put("a", new String[] { "1", "\u00e6\u00f8\u00e5", null });
+		params.put("b", null);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			large.append("value").append(i);
+		}
+		params.put("c", new String[] { large.toString() });
+
+		String state = binary.saveRequest(new Request("/uri", null, "POST", params));
+		Request r = binary.getRequest(state);
+		assertEquals("/uri", r.getRequestURI());
+		assertNull(r.getQueryString());
+		assertEquals("POST", r.getMethod());
+		assertEquals(3, r.getParameters().get("a").length);
+		assertEquals("\u00e6\u00f8\u00e5", r.getParameters().get("a")[1]);
+		assertNull(r.getParameters().get("a")[2]);
+		assertTrue(r.getParameters().containsKey("b"));
+		assertEquals(large.toString(), r.getParameters().get("c")[0]);
+
+		assertTrue(RequestCodec.encode(r).length < large.length() / 2);
+	}
+
+	@Test
+	public void loginThroughput() {
+		int logins = 2000;
+		Assertion[] assertions = new Assertion[logins];
+		for (int i = 0; i < logins; i++) {
+			assertions[i] = SAMLUtil.clone(assertion);
+			assertions[i].setID("id" + i);
+			assertions[i].getAuthnStatements().get(0).setSessionIndex("index" + i);
+		}
+		// warm up
+		for (int i = 0; i < 200; i++) {
+			handler.setAssertion("session" + i, new OIOAssertion(assertions[i]));
+		}
+		long start = System.nanoTime();
+		for (int i = 200; i < logins; i++) {
+			handler.setAssertion("session" + i, new OIOAssertion(assertions[i]));
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println("JdbcSessionHandler: " + Math.round((logins - 200) / (elapsed / 1e9)) + " logins/s against H2, " + ds);
+		assertTrue(handler.isLoggedIn("session" + (logins - 1)));
+	}
+}
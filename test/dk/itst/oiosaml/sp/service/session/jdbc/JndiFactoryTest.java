@@ -0,0 +1,101 @@
+package dk.itst.oiosaml.sp.service.session.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.spi.InitialContextFactory;
+
+import org.apache.commons.configuration.MapConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.itst.oiosaml.sp.service.session.SessionHandler;
+
+public class JndiFactoryTest {
+	private static final AtomicInteger lookups = new AtomicInteger();
+	private static volatile Object bound;
+
+	private String url;
+	private String oldFactory;
+	private PooledDataSource ds;
+	private JndiFactory factory;
+
+	@Before
+	public void setUp() throws Exception {
+		Class.forName("org.h2.Driver");
+		url = "jdbc:h2:mem:jndi;DB_CLOSE_DELAY=-1";
+		ds = new PooledDataSource(url, "sa", "", 0, 2);
+		bound = ds;
+		lookups.set(0);
+		oldFactory = System.getProperty(Context.INITIAL_CONTEXT_FACTORY);
+		System.setProperty(Context.INITIAL_CONTEXT_FACTORY, TestContextFactory.class.getName());
+
+		Map<String, String> props = new HashMap<String, String>();
+		props.put("oiosaml-sp.sessionhandler.jndi", "java:comp/env/jdbc/sessions");
+		props.put("oiosaml-sp.sessionhandler.jdbc.schema.update", "true");
+		factory = new JndiFactory();
+		factory.configure(new MapConfiguration(props));
+	}
+
+	@After
+	public void tearDown() {
+		factory.close();
+		ds.close();
+		if (oldFactory == null) {
+			System.clearProperty(Context.INITIAL_CONTEXT_FACTORY);
+		} else {
+			System.setProperty(Context.INITIAL_CONTEXT_FACTORY, oldFactory);
+		}
+	}
+
+	@Test
+	public void dataSourceIsLookedUpOnce() {
+		SessionHandler handler = factory.getHandler();
+		for (int i = 0; i < 10; i++) {
+			assertSame(handler, factory.getHandler());
+			assertFalse(factory.getHandler().isLoggedIn("session"));
+		}
+		assertEquals(1, lookups.get());
+	}
+
+	@Test
+	public void dataSourceIsLookedUpAgainOnFailure() {
+		SessionHandler handler = factory.getHandler();
+		assertFalse(handler.isLoggedIn("session"));
+
+		ds.close();
+		ds = new PooledDataSource(url, "sa", "", 0, 2);
+		bound = ds;
+
+		assertFalse(handler.isLoggedIn("session"));
+		assertEquals(2, lookups.get());
+		assertFalse(handler.isLoggedIn("session"));
+		assertEquals(2, lookups.get());
+	}
+
+	public static class TestContextFactory implements InitialContextFactory {
+		public Context getInitialContext(Hashtable<?, ?> environment) throws NamingException {
+			return (Context) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Context.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if ("lookup".equals(method.getName())) {
+						lookups.incrementAndGet();
+						return bound;
+					}
+					return null;
+				}
+			});
+		}
+	}
+}
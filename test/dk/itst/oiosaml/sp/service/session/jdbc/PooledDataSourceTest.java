@@ -0,0 +1,249 @@
+package dk.itst.oiosaml.sp.service.session.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.configuration.MapConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.itst.oiosaml.sp.service.session.SessionHandler;
+
+public class PooledDataSourceTest {
+	private static int counter = 0;
+
+	private String url;
+	private PooledDataSource ds;
+
+	@Before
+	public void setUp() throws Exception {
+		Class.forName("org.h2.Driver");
+		url = "jdbc:h2:mem:pool" + (counter++) + ";DB_CLOSE_DELAY=-1";
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (ds != null) {
+			ds.close();
+		}
+	}
+
+	@Test
+	public void connectionsAreReused() throws Exception {
+		ds = new PooledDataSource(url, "sa", "", 0, 2);
+		for (int i = 0; i < 10; i++) {
+			Connection c = ds.getConnection();
+			assertEquals(1, ds.getActiveCount());
+			query(c, "SELECT 1");
+			c.close();
+		}
+		assertEquals(1, ds.getCreatedCount());
+		assertEquals(10, ds.getBorrowCount());
+		assertEquals(0, ds.getActiveCount());
+		assertEquals(1, ds.getIdleCount());
+	}
+
+	@Test
+	public void closedConnectionCannotBeUsed() throws Exception {
+		ds = new PooledDataSource(url, "sa", "", 0, 2);
+		Connection c = ds.getConnection();
+		c.close();
+		assertTrue(c.isClosed());
+		c.close();
+		assertEquals(1, ds.getIdleCount());
+		try {
+			c.createStatement();
+			fail("Connection returned to the pool must not be usable");
+		} catch (SQLException e) {}
+	}
+
+	@Test
+	public void acquisitionTimesOut() throws Exception {
+		ds = new PooledDataSource(url, "sa", "", 0, 1);
+		ds.setTimeout(100);
+		Connection c = ds.getConnection();
+		long start = System.currentTimeMillis();
+		try {
+			ds.getConnection();
+			fail("Pool is exhausted");
+		} catch (SQLTransientConnectionException e) {}
+		assertTrue(System.currentTimeMillis() - start >= 90);
+		assertEquals(1, ds.getWaitCount());
+		assertEquals(1, ds.getTimeoutCount());
+
+		c.close();
+		ds.getConnection().close();
+		assertEquals(1, ds.getCreatedCount());
+	}
+
+	@Test
+	public void waitingCallerGetsReturnedConnection() throws Exception {
+		ds = new PooledDataSource(url, "sa", "", 0, 1);
+		ds.setTimeout(5000);
+		final Connection c = ds.getConnection();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Connection other = ds.getConnection();
+					other.close();
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}
+		};
+		t.start();
+		Thread.sleep(100);
+		c.close();
+		t.join();
+
+		assertEquals(null, error.get());
+		assertEquals(1, ds.getWaitCount());
+		assertEquals(0, ds.getTimeoutCount());
+		assertEquals(1, ds.getCreatedCount());
+	}
+
+	@Test
+	public void invalidConnectionsAreReplaced() throws Exception {
+		ds = new PooledDataSource(url, "sa", "", 0, 2);
+		ds.setValidationInterval(0);
+		Connection c = ds.getConnection();
+		Connection real = c.unwrap(Connection.class);
+		c.close();
+		real.close();
+
+		c = ds.getConnection();
+		query(c, "SELECT 1");
+		c.close();
+		assertEquals(1, ds.getValidationFailureCount());
+		assertEquals(2, ds.getCreatedCount());
+		assertEquals(1, ds.getTotalCount());
+	}
+
+	@Test
+	public void validationQueryIsUsed() throws Exception {
+		ds = new PooledDataSource(url, "sa", "", 0, 2);
+		ds.setValidationInterval(0);
+		ds.setValidationQuery("SELECT * FROM missing");
+		ds.getConnection().close();
+		ds.getConnection().close();
+		assertEquals(1, ds.getValidationFailureCount());
+	}
+
+	@Test
+	public void uncommittedWorkIsRolledBack() throws Exception {
+		ds = new PooledDataSource(url, "sa", "", 0, 1);
+		Connection c = ds.getConnection();
+		c.createStatement().execute("CREATE TABLE test (id INT)");
+		c.setAutoCommit(false);
+		c.createStatement().execute("INSERT INTO test VALUES (1)");
+		c.close();
+
+		c = ds.getConnection();
+		assertTrue(c.getAutoCommit());
+		assertEquals(0, query(c, "SELECT COUNT(*) FROM test"));
+		c.close();
+	}
+
+	@Test
+	public void leaksAreReported() throws Exception {
+		ds = new PooledDataSource(url, "sa", "", 0, 2);
+		ds.setLeakThreshold(500);
+		Connection c = ds.getConnection();
+		ds.maintain();
+		assertEquals(0, ds.getLeakCount());
+
+		Thread.sleep(600);
+		ds.maintain();
+		ds.maintain();
+		assertEquals(1, ds.getLeakCount());
+		c.close();
+	}
+
+	@Test
+	public void minimumSizeIsKept() throws Exception {
+		ds = new PooledDataSource(url, "sa", "", 2, 4);
+		ds.start();
+		assertEquals(2, ds.getIdleCount());
+
+		Connection[] cs = new Connection[4];
+		for (int i = 0; i < cs.length; i++) {
+			cs[i] = ds.getConnection();
+		}
+		for (Connection c : cs) {
+			c.close();
+		}
+		assertEquals(4, ds.getIdleCount());
+
+		ds.setIdleTimeout(1);
+		Thread.sleep(10);
+		ds.maintain();
+		assertEquals(2, ds.getIdleCount());
+		assertEquals(2, ds.getTotalCount());
+	}
+
+	@Test
+	public void closedPoolClosesConnections() throws Exception {
+		ds = new PooledDataSource(url, "sa", "", 0, 2);
+		Connection c = ds.getConnection();
+		Connection real = c.unwrap(Connection.class);
+		ds.close();
+		c.close();
+		assertTrue(real.isClosed());
+		assertEquals(0, ds.getTotalCount());
+		try {
+			ds.getConnection();
+			fail("Pool is closed");
+		} catch (SQLException e) {}
+	}
+
+	@Test
+	public void factoryReusesConnections() throws Exception {
+		Map<String, String> props = new HashMap<String, String>();
+		props.put("oiosaml-sp.sessionhandler.jdbc.url", url);
+		props.put("oiosaml-sp.sessionhandler.jdbc.driver", "org.h2.Driver");
+		props.put("oiosaml-sp.sessionhandler.jdbc.username", "sa");
+		props.put("oiosaml-sp.sessionhandler.jdbc.password", "");
+		props.put("oiosaml-sp.sessionhandler.jdbc.pool.maxsize", "3");
+		props.put("oiosaml-sp.sessionhandler.jdbc.schema.update", "true");
+
+		JdbcFactory factory = new JdbcFactory();
+		factory.configure(new MapConfiguration(props));
+		ds = factory.getDataSource();
+		assertEquals(1, ds.getCreatedCount());
+		assertEquals(3, ds.getMaxSize());
+
+		SessionHandler handler = factory.getHandler();
+		for (int i = 0; i < 20; i++) {
+			assertFalse(handler.isLoggedIn("session" + i));
+		}
+		assertEquals(1, ds.getCreatedCount());
+		assertEquals(0, ds.getActiveCount());
+
+		factory.close();
+		assertEquals(0, ds.getTotalCount());
+	}
+
+	private int query(Connection c, String sql) throws SQLException {
+		Statement st = c.createStatement();
+		try {
+			ResultSet rs = st.executeQuery(sql);
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			st.close();
+		}
+	}
+}
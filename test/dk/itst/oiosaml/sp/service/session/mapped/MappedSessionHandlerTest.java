@@ -0,0 +1,156 @@
+package dk.itst.oiosaml.sp.service.session.mapped;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Assertion;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+import dk.itst.oiosaml.sp.service.TestHelper;
+import dk.itst.oiosaml.sp.service.session.SessionHandler;
+import dk.itst.oiosaml.sp.service.util.Constants;
+
+public class MappedSessionHandlerTest extends AbstractTests {
+	private File dir;
+	private MappedSessionHandlerFactory factory;
+	private SessionHandler handler;
+	private OIOAssertion assertion;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(File.createTempFile("sessions", "test").getAbsolutePath() + ".dir");
+		factory = createFactory();
+		handler = factory.getHandler();
+		assertion = new OIOAssertion((Assertion) SAMLUtil.unmarshallElement(getClass().getResourceAsStream("/dk/itst/oiosaml/sp/model/assertion.xml")));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		factory.close();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private MappedSessionHandlerFactory createFactory() {
+		return createFactory(new HashMap<String, String>());
+	}
+
+	private MappedSessionHandlerFactory createFactory(Map<String, String> props) {
+		props.put("oiosaml-sp.sessionhandler.mapped.dir", dir.getAbsolutePath());
+		props.put("oiosaml-sp.sessionhandler.mapped.capacity", "100");
+		MappedSessionHandlerFactory factory = new MappedSessionHandlerFactory();
+		factory.configure(TestHelper.buildConfiguration(props));
+		return factory;
+	}
+
+	@Test
+	public void testSetAssertion() {
+		handler.setAssertion("session", assertion);
+		assertTrue(handler.isLoggedIn("session"));
+
+		OIOAssertion stored = handler.getAssertion("session");
+		assertEquals(assertion.getID(), stored.getID());
+		assertEquals(assertion.toXML(), stored.toXML());
+		assertEquals("session", handler.getRelatedSessionId(assertion.getSessionIndex()));
+
+		handler.logOut("session");
+		assertFalse(handler.isLoggedIn("session"));
+		assertNull(handler.getRelatedSessionId(assertion.getSessionIndex()));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void failOnReplayAssertionId() {
+		handler.setAssertion("session", assertion);
+		handler.setAssertion("session2", assertion);
+	}
+
+	@Test
+	public void tooLargeSessionDoesNotUseAssertionId() {
+		factory.close();
+		Map<String, String> props = new HashMap<String, String>();
+		props.put("oiosaml-sp.sessionhandler.mapped.slotsize", "64");
+		factory = createFactory(props);
+		handler = factory.getHandler();
+		try {
+			handler.setAssertion("session", assertion);
+			throw new AssertionError("Session does not fit in the store");
+		} catch (IllegalArgumentException e) {}
+		assertFalse(handler.isLoggedIn("session"));
+		factory.close();
+
+		factory = createFactory();
+		handler = factory.getHandler();
+		handler.setAssertion("session", assertion);
+		assertTrue(handler.isLoggedIn("session"));
+	}
+
+	@Test
+	public void evictedSessionsAreRemovedFromSessionIndexes() throws Exception {
+		// expire assertion ids immediately, so only the session table fills up
+		factory.close();
+		Map<String, String> props = new HashMap<String, String>();
+		props.put(Constants.PROP_REPLAY_CLOCK_SKEW, "0");
+		factory = createFactory(props);
+		handler = factory.getHandler();
+
+		int evicted = 0;
+		for (int i = 0; i < 200; i++) {
+			Assertion a = (Assertion) SAMLUtil.unmarshallElement(getClass().getResourceAsStream("/dk/itst/oiosaml/sp/model/assertion.xml"));
+			a.setID("id" + i);
+			a.getAuthnStatements().get(0).setSessionIndex("index" + i);
+			handler.setAssertion("session" + i, new OIOAssertion(a));
+		}
+		for (int i = 0; i < 200; i++) {
+			if (!handler.isLoggedIn("session" + i)) {
+				evicted++;
+				assertNull(handler.getRelatedSessionId("index" + i));
+			}
+		}
+		assertTrue(evicted > 0);
+	}
+
+	@Test
+	public void sessionsAreRecoveredAfterRestart() {
+		handler.setAssertion("session", assertion);
+		factory.close();
+
+		factory = createFactory();
+		handler = factory.getHandler();
+		assertTrue(handler.isLoggedIn("session"));
+		assertEquals(assertion.getSubjectNameIDValue(), handler.getAssertion("session").getSubjectNameIDValue());
+		assertEquals("session", handler.getRelatedSessionId(assertion.getSessionIndex()));
+		try {
+			handler.setAssertion("session2", assertion);
+			throw new AssertionError("Replay was not detected after restart");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void cleanupExpiresSessions() throws Exception {
+		handler.setAssertion("session", assertion);
+		handler.cleanup(1000, 60000);
+		assertTrue(handler.isLoggedIn("session"));
+
+		Thread.sleep(20);
+		handler.cleanup(1000, 10);
+		assertFalse(handler.isLoggedIn("session"));
+		assertNull(handler.getRelatedSessionId(assertion.getSessionIndex()));
+	}
+
+	@Test
+	public void requestsAreHandled() {
+		handler.registerRequest("id", "entity");
+		assertEquals("entity", handler.removeEntityIdForRequest("id"));
+	}
+}
@@ -0,0 +1,278 @@
+package dk.itst.oiosaml.sp.service.session.mapped;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedTableTest {
+	private File file;
+	private MappedTable table;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("table", ".map");
+		table = new MappedTable(file, 2, 16, 64);
+	}
+
+	@After
+	public void tearDown() {
+		table.close();
+		file.delete();
+	}
+
+	@Test
+	public void putGetRemove() {
+		assertNull(table.get("key"));
+		table.put("key", bytes("value"), 1);
+		assertArrayEquals(bytes("value"), table.get("key"));
+		assertEquals(1, table.size());
+
+		table.put("key", bytes("other"), 2);
+		assertArrayEquals(bytes("other"), table.get("key"));
+		assertEquals(1, table.size());
+		assertEquals(2, table.getTime("key"));
+
+		assertArrayEquals(bytes("other"), table.remove("key"));
+		assertNull(table.get("key"));
+		assertNull(table.remove("key"));
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void putIfAbsentReplacesOnlyOldEntries() {
+		assertTrue(table.putIfAbsent("id", new byte[0], 100, 50));
+		assertFalse(table.putIfAbsent("id", new byte[0], 200, 50));
+		assertFalse(table.putIfAbsent("id", new byte[0], 200, 99));
+		assertTrue(table.putIfAbsent("id", new byte[0], 200, 100));
+		assertEquals(200, table.getTime("id"));
+	}
+
+	@Test
+	public void getUpdatesTimeWithGranularity() {
+		table.put("key", bytes("value"), 1000);
+		table.get("key", 1500, 1000);
+		assertEquals(1000, table.getTime("key"));
+		table.get("key", 2000, 1000);
+		assertEquals(2000, table.getTime("key"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void failOnTooLargeEntry() {
+		table.put("key", new byte[table.getMaxEntrySize()], 1);
+	}
+
+	@Test
+	public void removalKeepsOtherEntriesReachable() {
+		// fill the table completely, so probe sequences overlap, and remove entries in random order
+		Random random = new Random(1);
+		List<String> keys = fill();
+		while (!keys.isEmpty()) {
+			String key = keys.remove(random.nextInt(keys.size()));
+			assertArrayEquals(bytes("value" + key.substring(3)), table.remove(key));
+			for (String k : keys) {
+				assertArrayEquals(k, bytes("value" + k.substring(3)), table.get(k));
+			}
+		}
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void removeOlderThan() {
+		for (int i = 0; i < 20; i++) {
+			table.put("key" + i, bytes("value"), i);
+		}
+		final List<String> removed = new ArrayList<String>();
+		assertEquals(10, table.removeOlderThan(10, new MappedTable.RemovalListener() {
+			public void removed(String key, byte[] value) {
+				removed.add(key);
+			}
+		}));
+		assertEquals(10, removed.size());
+		assertEquals(10, table.size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i >= 10, table.get("key" + i) != null);
+		}
+	}
+
+	@Test
+	public void oldestEntryIsEvictedWhenFull() {
+		for (int i = 0; i < 100; i++) {
+			table.put("key" + i, bytes("value"), i);
+		}
+		assertEquals(24, table.size());
+		assertTrue(table.getEvictionCount() >= 76);
+		assertArrayEquals(bytes("value"), table.get("key99"));
+		assertNull(table.get("key0"));
+	}
+
+	@Test
+	public void evictedEntriesAreReported() {
+		final List<String> evicted = new ArrayList<String>();
+		MappedTable.RemovalListener listener = new MappedTable.RemovalListener() {
+			public void removed(String key, byte[] value) {
+				evicted.add(key);
+			}
+		};
+		for (int i = 0; i < 100; i++) {
+			table.put("key" + i, bytes("value"), i, listener);
+		}
+		assertEquals(table.getEvictionCount(), evicted.size());
+		for (String key : evicted) {
+			assertNull(table.get(key));
+		}
+	}
+
+	@Test
+	public void missingKeyLookupIsBoundedWhenFull() {
+		// each segment has 16 slots, of which only 12 are used, so a lookup always reaches an empty slot
+		for (int i = 0; i < 100; i++) {
+			table.put("key" + i, bytes("value"), i);
+		}
+		assertEquals(24, table.size());
+		assertProbesBounded();
+
+		table.clear();
+		try {
+			for (int i = 0; i < 100; i++) {
+				table.putIfAbsent("id" + i, new byte[0], 1000, 0);
+			}
+			fail("Live entries must not be evicted");
+		} catch (IllegalStateException e) {}
+		assertTrue(table.size() <= 24);
+		assertProbesBounded();
+	}
+
+	private void assertProbesBounded() {
+		for (int i = 0; i < 1000; i++) {
+			int probes = table.probeLength("missing" + i);
+			assertTrue("Lookup examined " + probes + " slots", probes <= 13);
+		}
+	}
+
+	@Test
+	public void conditionalRemove() {
+		table.put("key", bytes("value"), 1);
+		assertFalse(table.remove("key", bytes("other")));
+		assertArrayEquals(bytes("value"), table.get("key"));
+		assertTrue(table.remove("key", bytes("value")));
+		assertNull(table.get("key"));
+		assertFalse(table.remove("key", bytes("value")));
+	}
+
+	@Test
+	public void putIfAbsentOnlyEvictsExpiredEntries() {
+		int stored = 0;
+		try {
+			for (int i = 0; i < 100; i++) {
+				assertTrue(table.putIfAbsent("id" + i, new byte[0], 1000, 0));
+				stored++;
+			}
+			fail("Live entries must not be evicted");
+		} catch (IllegalStateException e) {}
+		assertEquals(stored, table.size());
+		for (int i = 0; i < stored; i++) {
+			assertFalse(table.putIfAbsent("id" + i, new byte[0], 1000, 0));
+		}
+		assertEquals(0, table.getEvictionCount());
+
+		// once the entries have expired, they can be replaced by new ones
+		for (int i = 0; i < stored; i++) {
+			assertTrue(table.putIfAbsent("id" + (i + 100), new byte[0], 2000, 1000));
+		}
+	}
+
+	@Test
+	public void corruptSlotDoesNotBreakProbeSequences() throws Exception {
+		List<String> keys = fill();
+		table.close();
+
+		// corrupt a slot which is followed by a used slot, so it is part of a probe sequence
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		String corrupted = null;
+		for (int slot = 0; slot < 31 && corrupted == null; slot++) {
+			long offset = 64 + slot * 64;
+			raf.seek(offset);
+			byte state = raf.readByte();
+			raf.seek(offset + 64);
+			if (state == 1 && raf.readByte() == 1) {
+				raf.seek(offset + 13);
+				byte[] key = new byte[raf.readShort()];
+				raf.seek(offset + 19);
+				raf.readFully(key);
+				corrupted = new String(key, "UTF-8");
+				raf.seek(offset);
+				raf.writeByte(7);
+			}
+		}
+		raf.close();
+		assertNotNull(corrupted);
+
+		table = new MappedTable(file, 2, 16, 64);
+		assertEquals(keys.size() - 1, table.size());
+		assertNull(table.get(corrupted));
+		keys.remove(corrupted);
+		for (String k : keys) {
+			assertArrayEquals(k, bytes("value" + k.substring(3)), table.get(k));
+		}
+	}
+
+	@Test
+	public void entriesAreRecoveredWhenReopened() throws Exception {
+		table.put("key", bytes("value"), 1);
+		table.close();
+
+		table = new MappedTable(file, 2, 16, 64);
+		assertEquals(1, table.size());
+		assertArrayEquals(bytes("value"), table.get("key"));
+	}
+
+	@Test
+	public void entriesAreDiscardedWhenGeometryChanges() throws Exception {
+		table.put("key", bytes("value"), 1);
+		table.close();
+
+		table = new MappedTable(file, 2, 32, 64);
+		assertEquals(0, table.size());
+		assertNull(table.get("key"));
+	}
+
+	@Test
+	public void fileCanOnlyBeOpenedOnce() throws Exception {
+		try {
+			new MappedTable(file, 2, 16, 64);
+			fail("File is locked");
+		} catch (Exception e) {}
+	}
+
+	private List<String> fill() {
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 32; i++) {
+			table.put("key" + i, bytes("value" + i), i);
+		}
+		for (int i = 0; i < 32; i++) {
+			if (table.get("key" + i) != null) {
+				keys.add("key" + i);
+			}
+		}
+		assertEquals(keys.size(), table.size());
+		return keys;
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes();
+	}
+}
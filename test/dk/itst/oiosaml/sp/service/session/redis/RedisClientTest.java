@@ -0,0 +1,149 @@
+package dk.itst.oiosaml.sp.service.session.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.itst.oiosaml.error.WrappedException;
+
+public class RedisClientTest {
+	private TestRedisServer server;
+	private RedisClient client;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new TestRedisServer();
+		client = new RedisClient("localhost", server.getPort(), null, 0, 2000, 4);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void repliesAreDecoded() {
+		assertEquals("PONG", client.execute("PING"));
+		assertNull(client.execute("GET", "missing"));
+		assertEquals("OK", client.execute("SET", "key", "value"));
+		assertEquals("value", RedisClient.toString(client.execute("GET", "key")));
+		assertEquals(-1L, client.execute("PTTL", "key"));
+		assertEquals(1L, client.execute("DEL", "key"));
+		assertEquals(0L, client.execute("DEL", "key"));
+	}
+
+	@Test
+	public void binaryValuesAreKept() {
+		byte[] value = new byte[100000];
+		new Random(1).nextBytes(value);
+		client.execute("SET", "binary", value);
+		assertArrayEquals(value, (byte[]) client.execute("GET", "binary"));
+	}
+
+	@Test
+	public void errorsAreThrown() {
+		try {
+			client.execute("UNKNOWN");
+			fail("Error reply must be thrown");
+		} catch (RedisException e) {
+			assertTrue(e.getMessage().startsWith("ERR"));
+		}
+		// the connection is still usable
+		assertEquals("PONG", client.execute("PING"));
+		assertEquals(1, client.getCreatedCount());
+	}
+
+	@Test
+	public void pipelineUsesOneRoundTrip() {
+		List<Object[]> commands = new ArrayList<Object[]>();
+		for (int i = 0; i < 100; i++) {
+			commands.add(new Object[] { "SET", "key" + i, i });
+		}
+		commands.add(new Object[] { "GET", "key42" });
+		List<Object> replies = client.pipeline(commands);
+
+		assertEquals(101, replies.size());
+		assertEquals("OK", replies.get(0));
+		assertEquals("42", RedisClient.toString(replies.get(100)));
+		assertEquals(1, client.getRoundTripCount());
+		assertEquals(101, client.getCommandCount());
+	}
+
+	@Test
+	public void pipelineReadsAllRepliesBeforeThrowing() {
+		List<Object[]> commands = new ArrayList<Object[]>();
+		commands.add(new Object[] { "UNKNOWN" });
+		commands.add(new Object[] { "SET", "key", "value" });
+		try {
+			client.pipeline(commands);
+			fail("Error reply must be thrown");
+		} catch (RedisException e) {}
+
+		assertEquals("value", RedisClient.toString(client.execute("GET", "key")));
+		assertEquals(1, client.getCreatedCount());
+	}
+
+	@Test
+	public void closedConnectionIsReplaced() throws Exception {
+		client.execute("SET", "key", "value");
+		assertEquals(1, client.getIdleCount());
+
+		server.disconnectClients();
+		assertEquals("value", RedisClient.toString(client.execute("GET", "key")));
+		assertEquals(2, client.getCreatedCount());
+	}
+
+	@Test
+	public void timeoutIsNotRetried() throws Exception {
+		RedisClient c = new RedisClient("localhost", server.getPort(), null, 0, 200, 1);
+		try {
+			assertEquals("PONG", c.execute("PING"));
+			server.setDelay(500);
+			int before = server.getCommandCount();
+			try {
+				c.execute("SET", "key", "value", "NX", "PX", 10000);
+				fail("Timeout must be thrown");
+			} catch (WrappedException e) {}
+			Thread.sleep(600);
+			assertEquals(before + 1, server.getCommandCount());
+			assertEquals(1, c.getCreatedCount());
+
+			// the command was executed once, so the key must not be reported as existing by a retry
+			server.setDelay(0);
+			assertEquals("value", RedisClient.toString(c.execute("GET", "key")));
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void authenticationIsSentOnConnect() throws Exception {
+		server.setPassword("secret");
+		RedisClient c = new RedisClient("localhost", server.getPort(), "secret", 1, 2000, 1);
+		try {
+			assertEquals("PONG", c.execute("PING"));
+		} finally {
+			c.close();
+		}
+
+		c = new RedisClient("localhost", server.getPort(), "wrong", 0, 2000, 1);
+		try {
+			c.execute("PING");
+			fail("Wrong password must fail");
+		} catch (RedisException e) {
+		} finally {
+			c.close();
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package dk.itst.oiosaml.sp.service.session.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Assertion;
+
+import dk.itst.oiosaml.common.SAMLUtil;
+import dk.itst.oiosaml.sp.AbstractTests;
+import dk.itst.oiosaml.sp.model.OIOAssertion;
+import dk.itst.oiosaml.sp.service.TestHelper;
+import dk.itst.oiosaml.sp.service.session.Request;
+import dk.itst.oiosaml.sp.service.session.SessionHandler;
+
+public class RedisSessionHandlerTest extends AbstractTests {
+	private static final long SESSION_TTL = 30 * 60 * 1000L;
+
+	private TestRedisServer server;
+	private RedisClient client;
+	private RedisSessionHandler handler;
+	private Assertion assertion;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new TestRedisServer();
+		client = new RedisClient("localhost", server.getPort(), null, 0, 2000, 8);
+		handler = new RedisSessionHandler(client, "test:", SESSION_TTL, 60000, 60000, true);
+		assertion = (Assertion) SAMLUtil.unmarshallElement(getClass().getResourceAsStream("/dk/itst/oiosaml/sp/model/assertion.xml"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void assertionIsStored() {
+		assertFalse(handler.isLoggedIn("session"));
+		handler.setAssertion("session", new OIOAssertion(assertion));
+
+		assertTrue(handler.isLoggedIn("session"));
+		assertEquals(assertion.getID(), handler.getAssertion("session").getID());
+		String sessionIndex = assertion.getAuthnStatements().get(0).getSessionIndex();
+		assertEquals("session", handler.getRelatedSessionId(sessionIndex));
+		assertNull(handler.getRelatedSessionId("unknown"));
+
+		handler.logOut("session");
+		assertFalse(handler.isLoggedIn("session"));
+		assertNull(handler.getRelatedSessionId(sessionIndex));
+		// only the replay protection entry is left
+		assertEquals(1, server.size());
+	}
+
+	@Test
+	public void replayIsRejected() {
+		handler.setAssertion("session", new OIOAssertion(assertion));
+		try {
+			handler.setAssertion("other", new OIOAssertion(assertion));
+			fail("Replay must be rejected");
+		} catch (IllegalArgumentException e) {}
+		assertNull(handler.getAssertion("other"));
+
+		// replay protection is shared by all nodes using the server
+		RedisSessionHandler other = new RedisSessionHandler(client, "test:", SESSION_TTL, 60000, 60000, true);
+		try {
+			other.setAssertion("other", new OIOAssertion(assertion));
+			fail("Replay must be rejected on other nodes");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void replayIsOnlyAcceptedOnceAcrossThreads() throws Exception {
+		final int threads = 16;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger accepted = new AtomicInteger();
+		final AtomicInteger rejected = new AtomicInteger();
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final String sessionId = "session" + i;
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						handler.setAssertion(sessionId, new OIOAssertion(assertion));
+						accepted.incrementAndGet();
+					} catch (IllegalArgumentException e) {
+						rejected.incrementAndGet();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			t.start();
+			workers.add(t);
+		}
+		start.countDown();
+		for (Thread t : workers) {
+			t.join();
+		}
+		assertEquals(1, accepted.get());
+		assertEquals(threads - 1, rejected.get());
+	}
+
+	@Test
+	public void replayProtectionExpires() {
+		handler.setAssertion("session", new OIOAssertion(assertion));
+		server.advance(SESSION_TTL + 1);
+		assertNull(handler.getAssertion("session"));
+
+		handler.setAssertion("session", new OIOAssertion(assertion));
+		assertTrue(handler.isLoggedIn("session"));
+	}
+
+	@Test
+	public void sessionExpiresAfterInactivity() {
+		handler.setAssertion("session", new OIOAssertion(assertion));
+		assertTrue(server.ttl("test:session:session") <= SESSION_TTL);
+
+		server.advance(SESSION_TTL / 2);
+		long roundTrips = client.getRoundTripCount();
+		assertTrue(handler.isLoggedIn("session"));
+		// the ttl was extended with one additional round trip
+		assertEquals(roundTrips + 2, client.getRoundTripCount());
+		assertTrue(server.ttl("test:session:session") > SESSION_TTL - 1000);
+		assertTrue(server.ttl("test:index:" + assertion.getAuthnStatements().get(0).getSessionIndex()) > SESSION_TTL - 1000);
+
+		roundTrips = client.getRoundTripCount();
+		handler.getAssertion("session");
+		assertEquals(roundTrips + 1, client.getRoundTripCount());
+
+		server.advance(SESSION_TTL + 1);
+		assertFalse(handler.isLoggedIn("session"));
+		assertEquals(0, server.size());
+	}
+
+	@Test
+	public void requestIdCanOnlyBeUsedOnce() {
+		handler.registerRequest("id1", "entity");
+		assertEquals("entity", handler.removeEntityIdForRequest("id1"));
+		try {
+			handler.removeEntityIdForRequest("id1");
+			fail("Request id must only be used once");
+		} catch (IllegalArgumentException e) {}
+
+		handler.registerRequest("id2", "entity");
+		server.advance(60001);
+		try {
+			handler.removeEntityIdForRequest("id2");
+			fail("Request id must expire");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void savedRequestCanOnlyBeUsedOnce() {
+		Map<String, String[]> params = new HashMap<String, String[]>();
+		params.put("param", new String[] { "value" });
+		String state = handler.saveRequest(new Request("/uri", "query=1", "POST", params));
+
+		Request request = handler.getRequest(state);
+		assertEquals("/uri", request.getRequestURI());
+		assertEquals("query=1", request.getQueryString());
+		assertEquals("POST", request.getMethod());
+		assertEquals("value", request.getParameters().get("param")[0]);
+		try {
+			handler.getRequest(state);
+			fail("Saved request must only be used once");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void factoryIsConfigured() throws Exception {
+		Map<String, String> props = new HashMap<String, String>();
+		props.put("oiosaml-sp.sessionhandler.redis.port", Integer.toString(server.getPort()));
+		props.put("oiosaml-sp.sessionhandler.redis.prefix", "factory:");
+		RedisSessionHandlerFactory factory = new RedisSessionHandlerFactory();
+		factory.configure(TestHelper.buildConfiguration(props));
+
+		SessionHandler h = factory.getHandler();
+		h.setAssertion("session", new OIOAssertion(assertion));
+		assertTrue(h.isLoggedIn("session"));
+		assertTrue(server.ttl("factory:session:session") <= 1800 * 1000);
+		factory.close();
+
+		try {
+			factory.getHandler();
+			fail("Handler must not be available after close");
+		} catch (IllegalStateException e) {}
+	}
+}
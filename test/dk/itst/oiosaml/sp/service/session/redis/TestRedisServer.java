@@ -0,0 +1,247 @@
+package dk.itst.oiosaml.sp.service.session.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal in-process server speaking the Redis protocol, supporting the commands used by {@link RedisSessionHandler}.
+ */
+public class TestRedisServer {
+	private final ServerSocket server;
+	private final Map<String, byte[]> values = new HashMap<String, byte[]>();
+	private final Map<String, Long> expiry = new HashMap<String, Long>();
+	private final List<Socket> clients = new CopyOnWriteArrayList<Socket>();
+	private final AtomicInteger commands = new AtomicInteger();
+	private volatile String password;
+	private volatile long offset;
+	private volatile long delay;
+
+	public TestRedisServer() throws IOException {
+		server = new ServerSocket(0);
+		Thread t = new Thread("redis-accept") {
+			public void run() {
+				try {
+					while (true) {
+						final Socket s = server.accept();
+						clients.add(s);
+						Thread c = new Thread("redis-client") {
+							public void run() {
+								serve(s);
+							}
+						};
+						c.setDaemon(true);
+						c.start();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	/**
+	 * Move the server clock forward.
+	 */
+	public void advance(long millis) {
+		offset += millis;
+	}
+
+	/**
+	 * Wait before sending each reply, after the command has been executed.
+	 */
+	public void setDelay(long delay) {
+		this.delay = delay;
+	}
+
+	public int getCommandCount() {
+		return commands.get();
+	}
+
+	public synchronized int size() {
+		expireAll();
+		return values.size();
+	}
+
+	public synchronized Long ttl(String key) {
+		expireAll();
+		Long at = expiry.get(key);
+		return at != null ? at - now() : null;
+	}
+
+	/**
+	 * Close all client connections, as if the server had been restarted.
+	 */
+	public void disconnectClients() throws IOException {
+		for (Socket s : clients) {
+			s.close();
+		}
+		clients.clear();
+	}
+
+	public void close() throws IOException {
+		server.close();
+		disconnectClients();
+	}
+
+	private void serve(Socket s) {
+		try {
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			OutputStream out = new BufferedOutputStream(s.getOutputStream());
+			boolean authenticated = password == null;
+			while (true) {
+				List<byte[]> command = readCommand(in);
+				if (command == null) break;
+				commands.incrementAndGet();
+				String name = new String(command.get(0), "UTF-8").toUpperCase();
+				if (name.equals("AUTH")) {
+					authenticated = password != null && password.equals(new String(command.get(1), "UTF-8"));
+					write(out, authenticated ? "OK" : new IllegalArgumentException("ERR invalid password"));
+				} else if (!authenticated) {
+					write(out, new IllegalArgumentException("NOAUTH Authentication required."));
+				} else {
+					Object reply = execute(name, command);
+					if (delay > 0) {
+						try {
+							Thread.sleep(delay);
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+					write(out, reply);
+				}
+				if (in.available() == 0) {
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			// client went away
+		} finally {
+			try {
+				s.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private synchronized Object execute(String name, List<byte[]> command) throws IOException {
+		expireAll();
+		if (name.equals("PING")) return "PONG";
+		if (name.equals("SELECT")) return "OK";
+		String key = command.size() > 1 ? new String(command.get(1), "UTF-8") : null;
+		if (name.equals("GET")) {
+			return values.get(key);
+		} else if (name.equals("SET")) {
+			boolean nx = false;
+			Long px = null;
+			for (int i = 3; i < command.size(); i++) {
+				String opt = new String(command.get(i), "UTF-8").toUpperCase();
+				if (opt.equals("NX")) nx = true;
+				else if (opt.equals("PX")) px = Long.parseLong(new String(command.get(++i), "UTF-8"));
+				else return new IllegalArgumentException("ERR syntax error");
+			}
+			if (nx && values.containsKey(key)) return null;
+			values.put(key, command.get(2));
+			if (px != null) expiry.put(key, now() + px);
+			else expiry.remove(key);
+			return "OK";
+		} else if (name.equals("DEL")) {
+			expiry.remove(key);
+			return values.remove(key) != null ? 1L : 0L;
+		} else if (name.equals("PEXPIRE")) {
+			if (!values.containsKey(key)) return 0L;
+			expiry.put(key, now() + Long.parseLong(new String(command.get(2), "UTF-8")));
+			return 1L;
+		} else if (name.equals("PTTL")) {
+			if (!values.containsKey(key)) return -2L;
+			Long at = expiry.get(key);
+			return at != null ? at - now() : -1L;
+		}
+		return new IllegalArgumentException("ERR unknown command '" + name + "'");
+	}
+
+	private long now() {
+		return System.currentTimeMillis() + offset;
+	}
+
+	private void expireAll() {
+		long now = now();
+		for (Object key : expiry.keySet().toArray()) {
+			if (expiry.get(key) <= now) {
+				expiry.remove(key);
+				values.remove(key);
+			}
+		}
+	}
+
+	private static List<byte[]> readCommand(InputStream in) throws IOException {
+		int type = in.read();
+		if (type == -1) return null;
+		if (type != '*') throw new IOException("Expected array, got " + (char) type);
+		int count = Integer.parseInt(readLine(in));
+		List<byte[]> res = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			if (in.read() != '$') throw new IOException("Expected bulk string");
+			byte[] value = new byte[Integer.parseInt(readLine(in))];
+			int pos = 0;
+			while (pos < value.length) {
+				int read = in.read(value, pos, value.length - pos);
+				if (read < 0) throw new IOException("EOF");
+				pos += read;
+			}
+			in.read();
+			in.read();
+			res.add(value);
+		}
+		return res;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\r') {
+			if (c == -1) throw new IOException("EOF");
+			sb.append((char) c);
+		}
+		in.read();
+		return sb.toString();
+	}
+
+	private static void write(OutputStream out, Object reply) throws IOException {
+		if (reply == null) {
+			out.write("$-1\r\n".getBytes("UTF-8"));
+		} else if (reply instanceof String) {
+			out.write(("+" + reply + "\r\n").getBytes("UTF-8"));
+		} else if (reply instanceof Exception) {
+			out.write(("-" + ((Exception) reply).getMessage() + "\r\n").getBytes("UTF-8"));
+		} else if (reply instanceof Long) {
+			out.write((":" + reply + "\r\n").getBytes("UTF-8"));
+		} else if (reply instanceof byte[]) {
+			byte[] b = (byte[]) reply;
+			out.write(("$" + b.length + "\r\n").getBytes("UTF-8"));
+			out.write(b);
+			out.write("\r\n".getBytes("UTF-8"));
+		} else {
+			throw new IllegalArgumentException("Unsupported reply " + reply);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package dk.itst.oiosaml.sp.service.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PathRulesTest {
+
+	@Test
+	public void emptyRulesMatchNothing() {
+		PathRules rules = new PathRules(null, null, null);
+		assertSame(PathRules.Rule.NONE, rules.match("/test"));
+		assertSame(PathRules.Rule.NONE, rules.match(""));
+	}
+
+	@Test
+	public void literalRulesMatchWholePath() {
+		PathRules rules = new PathRules(new String[] { "/robots" }, new String[] { "/login" }, null);
+		assertTrue(rules.match("/robots").isBypass());
+		assertFalse(rules.match("/robots2").isBypass());
+		assertFalse(rules.match("/robot").isBypass());
+
+		assertTrue(rules.match("/login").isForceAuthn());
+		assertFalse(rules.match("/login/more").isForceAuthn());
+		assertFalse(rules.match("/login").isBypass());
+	}
+
+	@Test
+	public void prefixRulesMatchSubPaths() {
+		PathRules rules = new PathRules(new String[] { "/static/.*", " /images.*" }, null, new String[] { "/admin/.*=3", "/admin/super/.*=4" });
+		assertTrue(rules.match("/static/").isBypass());
+		assertTrue(rules.match("/static/css/site.css").isBypass());
+		assertFalse(rules.match("/static").isBypass());
+		assertTrue(rules.match("/images").isBypass());
+		assertTrue(rules.match("/images2/a.png").isBypass());
+
+		assertEquals(0, rules.match("/admin").getAssuranceLevel());
+		assertEquals(3, rules.match("/admin/users").getAssuranceLevel());
+		assertEquals(4, rules.match("/admin/super/x").getAssuranceLevel());
+		assertEquals(3, rules.match("/admin/superb").getAssuranceLevel());
+	}
+
+	@Test
+	public void regexRulesAreCombined() {
+		PathRules rules = new PathRules(new String[] { ".*\\.css" }, new String[] { "/te.*", "nothere" }, new String[] { "/test/.*=2", "/te[s]t/secure=3" });
+		assertTrue(rules.match("/a/b.css").isBypass());
+		assertFalse(rules.match("/a/bcss").isBypass());
+
+		PathRules.Rule rule = rules.match("/test/secure");
+		assertTrue(rule.isForceAuthn());
+		assertFalse(rule.isBypass());
+		assertEquals(3, rule.getAssuranceLevel());
+
+		assertEquals(2, rules.match("/test/other").getAssuranceLevel());
+		assertFalse(rules.match("/other").isForceAuthn());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void failOnInvalidAssuranceLevel() {
+		new PathRules(null, null, new String[] { "/admin/.*" });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void failOnInvalidExpression() {
+		new PathRules(new String[] { "/admin/(" }, null, null);
+	}
+}